@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+/** An associative summary of the entries of a sorted map, used to augment
+ *  the nodes of a {@link SnapTreeMap}.  Summaries are combined in key
+ *  order, so the operation need not be commutative.  Summaries must be
+ *  immutable and non-null.  Sum, count, min, and max of the values are all
+ *  aggregators, with zero, zero, +infinity, and -infinity as their
+ *  identities.
+ *
+ *  <p>An aggregator that will be serialized along with its map must be
+ *  {@link java.io.Serializable}.
+ *
+ *  @see SnapTreeAggregateMap
+ *  @author agent
+ */
+public interface Aggregator<K,V,A> {
+    /** Returns the summary of no entries. */
+    A identity();
+
+    /** Returns the summary of a single entry. */
+    A lift(K key, V value);
+
+    /** Returns the summary of the entries summarized by <code>lhs</code>
+     *  followed by those summarized by <code>rhs</code>.
+     */
+    A combine(A lhs, A rhs);
+}
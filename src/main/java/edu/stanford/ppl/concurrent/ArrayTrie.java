@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A radix-32 trie of element slots with copy-on-write sharing, used as the
+ *  root value of the {@link CopyOnWriteManager} in {@link SnapVector} and
+ *  {@link SnapArrayDeque}.  The live elements occupy the contiguous slot
+ *  range <code>[head,tail)</code>, and are never null.
+ *  <p>
+ *  Reads are performed without locking.  All mutation is performed while
+ *  holding the trie's monitor, which serializes writers to a single
+ *  instance.  Chunks are shared between instances in the same way that
+ *  <code>SnapTreeMap</code> shares nodes: {@link COWMgr#freezeAndClone} marks
+ *  the root chunk as shared, and writers copy shared chunks lazily as they
+ *  descend, marking the children of each copied chunk as shared.  A shared
+ *  chunk is never modified.
+ *  <p>
+ *  Changes that move elements between slots, or that change the mapping
+ *  from slot index to chunk, are protected by <code>shapeOVL</code>, which
+ *  uses the same encoding as the node OVLs of <code>SnapTreeMap</code>.
+ *  Appending or removing a single element at either end does not change the
+ *  shape.
+ */
+class ArrayTrie {
+
+    private static final int LOG_BF = 5;
+    private static final int BF = 1 << LOG_BF;
+    private static final int BF_MASK = BF - 1;
+
+    /** The largest shift for which <code>BF &lt;&lt; shift</code> does not
+     *  overflow an int.
+     */
+    private static final int MAX_SHIFT = 25;
+
+    static final class Chunk extends AtomicReferenceArray<Object> {
+        private static final long serialVersionUID = -2391850712432810563L;
+
+        /** Once set, this chunk and all chunks reachable from it must not be
+         *  modified.
+         */
+        volatile boolean shared;
+
+        Chunk() {
+            super(BF);
+        }
+
+        /** Returns an unshared copy of this chunk.  If <code>interior</code>
+         *  then the children are marked as shared, since they are now
+         *  reachable from both the original and the copy.
+         */
+        Chunk copy(final boolean interior) {
+            final Chunk c = new Chunk();
+            for (int i = 0; i < BF; ++i) {
+                final Object x = get(i);
+                if (interior && x != null) {
+                    ((Chunk) x).shared = true;
+                }
+                c.lazySet(i, x);
+            }
+            return c;
+        }
+    }
+
+    static class COWMgr extends CopyOnWriteManager<ArrayTrie> {
+        COWMgr() {
+            super(new ArrayTrie(), 0);
+        }
+
+        COWMgr(final ArrayTrie initialValue, final int initialSize) {
+            super(initialValue, initialSize);
+        }
+
+        protected ArrayTrie freezeAndClone(final ArrayTrie value) {
+            value.markShared();
+            return new ArrayTrie(value);
+        }
+
+        protected ArrayTrie cloneFrozen(final ArrayTrie frozenValue) {
+            return new ArrayTrie(frozenValue);
+        }
+    }
+
+    //////////////// state
+
+    private volatile long shapeOVL;
+
+    /** Null iff the trie is empty. */
+    private volatile Chunk root;
+
+    /** The root covers the slots <code>[0, BF &lt;&lt; shift)</code>. */
+    private volatile int shift;
+
+    private volatile int head;
+    private volatile int tail;
+
+    /** The nesting depth of shape changes, guarded by the monitor. */
+    private int shapeChangeDepth;
+
+    ArrayTrie() {
+    }
+
+    private ArrayTrie(final ArrayTrie snapshot) {
+        this.root = snapshot.root;
+        this.shift = snapshot.shift;
+        this.head = snapshot.head;
+        this.tail = snapshot.tail;
+    }
+
+    private void markShared() {
+        final Chunk r = root;
+        if (r != null) {
+            r.shared = true;
+        }
+    }
+
+    //////////////// reads
+
+    private static Object slot(Chunk c, final int s, final int index) {
+        for (int level = s; c != null && level > 0; level -= LOG_BF) {
+            c = (Chunk) c.get((index >>> level) & BF_MASK);
+        }
+        return c == null ? null : c.get(index & BF_MASK);
+    }
+
+    private void waitUntilShapeChanged(final long ovl) {
+        if (!SnapTreeMap.isShrinking(ovl)) {
+            return;
+        }
+
+        for (int tries = 0; tries < SnapTreeMap.SpinCount; ++tries) {
+            if (shapeOVL != ovl) {
+                return;
+            }
+        }
+
+        for (int tries = 0; tries < SnapTreeMap.YieldCount; ++tries) {
+            Thread.yield();
+            if (shapeOVL != ovl) {
+                return;
+            }
+        }
+
+        // the shape change is performed while holding our monitor
+        synchronized (this) {
+        }
+        assert(shapeOVL != ovl);
+    }
+
+    /** Returns the element at <code>index</code> positions after the head,
+     *  or null if there is no such element.  If <code>fromTail</code> then
+     *  positions are counted backward from the last element.
+     */
+    Object get(final int index, final boolean fromTail) {
+        while (true) {
+            final long ovl = shapeOVL;
+            if (SnapTreeMap.isShrinking(ovl)) {
+                waitUntilShapeChanged(ovl);
+                continue;
+            }
+            final int h = head;
+            final int t = tail;
+            final Object v;
+            if (index < 0 || index >= t - h) {
+                v = null;
+            } else {
+                v = slot(root, shift, fromTail ? t - 1 - index : h + index);
+                if (v == null) {
+                    // raced with a removal at the end, our head or tail was
+                    // stale
+                    continue;
+                }
+            }
+            if (shapeOVL == ovl) {
+                return v;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        while (true) {
+            final long ovl = shapeOVL;
+            if (SnapTreeMap.isShrinking(ovl)) {
+                waitUntilShapeChanged(ovl);
+                continue;
+            }
+            final boolean z = head == tail;
+            if (shapeOVL == ovl) {
+                return z;
+            }
+        }
+    }
+
+    /** Only valid for a frozen trie, or while holding the monitor. */
+    int size() {
+        return tail - head;
+    }
+
+    /** Returns the element at <code>index</code>, which must be in range.
+     *  Only valid for a frozen trie, or while holding the monitor.
+     */
+    Object getQuiesced(final int index) {
+        return slot(root, shift, head + index);
+    }
+
+    //////////////// iteration
+
+    /** Walks the elements of a frozen trie, caching the current leaf chunk
+     *  so that most steps require no descent.
+     */
+    static final class Cursor {
+        private final ArrayTrie trie;
+        private int next;
+        private Chunk leaf;
+        private int leafBase;
+
+        Cursor(final ArrayTrie frozen, final int index) {
+            this.trie = frozen;
+            this.next = frozen.head + index;
+        }
+
+        boolean hasNext() {
+            return next < trie.tail;
+        }
+
+        boolean hasPrevious() {
+            return next > trie.head;
+        }
+
+        int nextIndex() {
+            return next - trie.head;
+        }
+
+        Object next() {
+            if (next >= trie.tail) {
+                throw new NoSuchElementException();
+            }
+            return at(next++);
+        }
+
+        Object previous() {
+            if (next <= trie.head) {
+                throw new NoSuchElementException();
+            }
+            return at(--next);
+        }
+
+        private Object at(final int i) {
+            final int base = i & ~BF_MASK;
+            if (leaf == null || base != leafBase) {
+                Chunk c = trie.root;
+                for (int level = trie.shift; level > 0; level -= LOG_BF) {
+                    c = (Chunk) c.get((i >>> level) & BF_MASK);
+                }
+                leaf = c;
+                leafBase = base;
+            }
+            return leaf.get(i & BF_MASK);
+        }
+    }
+
+    //////////////// mutation, all callers must hold the monitor
+
+    private void beginShapeChange() {
+        if (shapeChangeDepth++ == 0) {
+            shapeOVL = SnapTreeMap.beginChange(shapeOVL);
+        }
+    }
+
+    private void endShapeChange() {
+        if (--shapeChangeDepth == 0) {
+            shapeOVL = SnapTreeMap.endChange(shapeOVL);
+        }
+    }
+
+    private Chunk unsharedRoot() {
+        final Chunk r = root;
+        if (r == null || !r.shared) {
+            return r;
+        }
+        final Chunk repl = r.copy(shift > 0);
+        root = repl;
+        return repl;
+    }
+
+    /** Returns the unshared chunk at <code>which</code> in the unshared
+     *  parent <code>c</code>, copying or creating it if necessary.
+     */
+    private static Chunk unsharedChild(final Chunk c, final int which, final boolean interior) {
+        final Chunk child = (Chunk) c.get(which);
+        if (child == null) {
+            final Chunk repl = new Chunk();
+            c.set(which, repl);
+            return repl;
+        } else if (child.shared) {
+            final Chunk repl = child.copy(interior);
+            c.set(which, repl);
+            return repl;
+        } else {
+            return child;
+        }
+    }
+
+    /** Stores <code>v</code> at the absolute slot <code>index</code>,
+     *  returning the previous value.
+     */
+    private Object store(final int index, final Object v) {
+        Chunk c = unsharedRoot();
+        for (int level = shift; level > 0; level -= LOG_BF) {
+            c = unsharedChild(c, (index >>> level) & BF_MASK, level > LOG_BF);
+        }
+        return c.getAndSet(index & BF_MASK, v);
+    }
+
+    private void growRight() {
+        if (shift >= MAX_SHIFT) {
+            throw new IllegalStateException("maximum capacity exceeded");
+        }
+        final Chunk repl = new Chunk();
+        repl.set(0, root);
+        beginShapeChange();
+        root = repl;
+        shift += LOG_BF;
+        endShapeChange();
+    }
+
+    private void growLeft() {
+        if (shift >= MAX_SHIFT) {
+            throw new IllegalStateException("maximum capacity exceeded");
+        }
+        final int which = BF / 2;
+        final int newShift = shift + LOG_BF;
+        final int offset = which << newShift;
+        final Chunk repl = new Chunk();
+        repl.set(which, root);
+        beginShapeChange();
+        root = repl;
+        shift = newShift;
+        head += offset;
+        tail += offset;
+        endShapeChange();
+    }
+
+    private void reset() {
+        beginShapeChange();
+        root = null;
+        shift = 0;
+        head = 0;
+        tail = 0;
+        endShapeChange();
+    }
+
+    /** Discards chunks that lie entirely outside <code>[head,tail)</code>
+     *  on the path to <code>index</code>, then lowers the root while it has
+     *  only a single child.
+     */
+    private void prune(final int index) {
+        final Chunk[] path = new Chunk[1 + shift / LOG_BF];
+        int depth = 0;
+        Chunk c = unsharedRoot();
+        for (int level = shift; level > 0; level -= LOG_BF) {
+            path[depth++] = c;
+            final Chunk child = (Chunk) c.get((index >>> level) & BF_MASK);
+            if (child == null) {
+                break;
+            }
+            c = child.shared ? unsharedChild(c, (index >>> level) & BF_MASK, level > LOG_BF) : child;
+        }
+
+        // unlink the deepest dead chunks first
+        int level = shift - LOG_BF * (depth - 1);
+        for (int d = depth - 1; d >= 0; --d, level += LOG_BF) {
+            final int lo = (index >>> level) << level;
+            final int hi = lo + (1 << level);
+            if (hi > head && lo < tail) {
+                break;
+            }
+            path[d].set((index >>> level) & BF_MASK, null);
+        }
+
+        while (shift > 0) {
+            final Chunk r = root;
+            int only = -1;
+            for (int i = 0; i < BF; ++i) {
+                if (r.get(i) != null) {
+                    if (only >= 0) {
+                        return;
+                    }
+                    only = i;
+                }
+            }
+            if (only < 0) {
+                return;
+            }
+            final int offset = only << shift;
+            beginShapeChange();
+            root = (Chunk) r.get(only);
+            shift -= LOG_BF;
+            head -= offset;
+            tail -= offset;
+            endShapeChange();
+        }
+    }
+
+    Object set(final int index, final Object v) {
+        return store(head + index, v);
+    }
+
+    void addLast(final Object v) {
+        if (root == null) {
+            root = new Chunk();
+        } else if (tail == (BF << shift)) {
+            growRight();
+        }
+        store(tail, v);
+        ++tail;
+    }
+
+    void addFirst(final Object v) {
+        if (root == null) {
+            beginShapeChange();
+            root = new Chunk();
+            head = BF;
+            tail = BF;
+            endShapeChange();
+        }
+        if (head == 0) {
+            growLeft();
+        }
+        store(head - 1, v);
+        --head;
+    }
+
+    Object pollFirst() {
+        final int h = head;
+        if (h == tail) {
+            return null;
+        }
+        final Object v = getQuiesced(0);
+        head = h + 1;
+        afterRemove(h);
+        return v;
+    }
+
+    Object pollLast() {
+        final int t = tail;
+        if (head == t) {
+            return null;
+        }
+        final Object v = slot(root, shift, t - 1);
+        tail = t - 1;
+        afterRemove(t - 1);
+        return v;
+    }
+
+    /** Cleans up the absolute slot <code>index</code>, which has just been
+     *  moved outside of <code>[head,tail)</code>.
+     */
+    private void afterRemove(final int index) {
+        if (head == tail) {
+            reset();
+        } else if ((index & BF_MASK) == (head > index ? BF_MASK : 0)) {
+            // the leaf holding index is now entirely outside the live range
+            prune(index);
+        } else {
+            store(index, null);
+        }
+    }
+
+    /** Removes and returns the element at <code>index</code>, moving the
+     *  shorter of the two sides to close the gap.
+     */
+    Object removeAt(final int index) {
+        final int n = tail - head;
+        if (index == 0) {
+            return pollFirst();
+        }
+        if (index == n - 1) {
+            return pollLast();
+        }
+        final Object v = getQuiesced(index);
+        beginShapeChange();
+        try {
+            if (index < n / 2) {
+                for (int i = head + index; i > head; --i) {
+                    store(i, slot(root, shift, i - 1));
+                }
+                pollFirst();
+            } else {
+                for (int i = head + index; i < tail - 1; ++i) {
+                    store(i, slot(root, shift, i + 1));
+                }
+                pollLast();
+            }
+        } finally {
+            endShapeChange();
+        }
+        return v;
+    }
+
+    /** Inserts <code>v</code> so that it will be at <code>index</code>,
+     *  moving the shorter of the two sides to make room.
+     */
+    void insertAt(final int index, final Object v) {
+        final int n = tail - head;
+        if (index == n) {
+            addLast(v);
+            return;
+        }
+        if (index == 0) {
+            addFirst(v);
+            return;
+        }
+        beginShapeChange();
+        try {
+            if (index < n / 2) {
+                addFirst(getQuiesced(0));
+                for (int i = head + 1; i < head + index; ++i) {
+                    store(i, slot(root, shift, i + 1));
+                }
+            } else {
+                addLast(getQuiesced(n - 1));
+                for (int i = tail - 2; i > head + index; --i) {
+                    store(i, slot(root, shift, i - 1));
+                }
+            }
+            store(head + index, v);
+        } finally {
+            endShapeChange();
+        }
+    }
+
+    /** Returns the index of the first (or last) element equal to
+     *  <code>o</code>, or -1.
+     */
+    int indexOf(final Object o, final boolean last) {
+        final int n = tail - head;
+        if (!last) {
+            for (int i = 0; i < n; ++i) {
+                if (o.equals(getQuiesced(i))) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = n - 1; i >= 0; --i) {
+                if (o.equals(getQuiesced(i))) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -35,8 +35,13 @@
 
 package edu.stanford.ppl.concurrent;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** Manages copy-on-write behavior for a concurrent tree structure.  It is
  *  assumed that the managed structure allows concurrent mutation, but that no
@@ -107,6 +112,11 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
         /** True if the successor should freeze and clone this epoch's value. */  
         boolean freezeRequested;
 
+        /** If non-null, the successor is not activated until every epoch of
+         *  the group snapshot that shares this gate has closed.
+         */
+        GroupGate groupGate;
+
         private COWEpoch(final boolean mutationAllowed) {
             this._activated = new Latch(false);
             this.mutationAllowed = mutationAllowed;
@@ -168,6 +178,19 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
             }
             succ.initialSize = initialSize + dataSum;
 
+            if (groupGate == null) {
+                activateSuccessor();
+            } else {
+                groupGate.closed(new Runnable() {
+                    public void run() {
+                        activateSuccessor();
+                    }
+                });
+            }
+        }
+
+        private void activateSuccessor() {
+            final COWEpoch succ = successorRef.get();
             _active = succ;
             successorTicket.leave(0);
             succ._activated.releaseShared(1);
@@ -204,8 +227,30 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
         }
     }
 
+    /** A frozen value, its size, and a <code>System.nanoTime()</code> at
+     *  which it was not older than the mutable value.
+     */
+    private static class RecentFrozen<E> {
+        final E value;
+        final int size;
+        final long nanos;
+
+        RecentFrozen(final E value, final int size, final long nanos) {
+            this.value = value;
+            this.size = size;
+            this.nanos = nanos;
+        }
+    }
+
     private volatile COWEpoch _active;
 
+    /** The most recent snapshot taken by {@link #frozen(long)} or
+     *  {@link #clone(long)} with a nonzero bound.  Other snapshots aren't
+     *  recorded, so a manager that is never asked for a stale snapshot
+     *  doesn't keep an old one reachable.
+     */
+    private volatile RecentFrozen<E> _recentFrozen;
+
     /** Creates a new {@link CopyOnWriteManager} holding
      *  <code>initialValue</code>, with an assumed size of
      *  <code>initialSize</code>.
@@ -224,6 +269,20 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
     abstract protected E cloneFrozen(E frozenValue);
 
     public CopyOnWriteManager<E> clone() {
+        return cloneOf(freeze(0L));
+    }
+
+    /** Returns a clone whose contents may be as old as
+     *  <code>maxStalenessNanos</code>, reusing the snapshot from a recent
+     *  call to this method or to {@link #frozen(long)} if there is one.  If
+     *  <code>maxStalenessNanos</code> is zero this is the same as {@link
+     *  #clone()}.
+     */
+    public CopyOnWriteManager<E> clone(final long maxStalenessNanos) {
+        return cloneOf(maxStalenessNanos > 0 ? recentFrozen(maxStalenessNanos) : freeze(0L));
+    }
+
+    private CopyOnWriteManager<E> cloneOf(final RecentFrozen<E> r) {
         final CopyOnWriteManager<E> copy;
         try {
             copy = (CopyOnWriteManager<E>) super.clone();
@@ -232,6 +291,21 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
             throw new Error("unexpected", xx);
         }
 
+        copy.createNewEpoch(r.value, r.size);
+        return copy;
+    }
+
+    private void createNewEpoch(E f, int size)
+    {
+        _active = new COWEpoch(cloneFrozen(f), f, size);
+        _recentFrozen = null;
+    }
+
+    /** Freezes the current value if it is not already frozen, and returns
+     *  it together with its size.  <code>nanos</code> should be a time
+     *  before the call, or 0 if the result won't be recorded.
+     */
+    private RecentFrozen<E> freeze(final long nanos) {
         COWEpoch a = _active;
         E f = a.getFrozenValue();
         while (f == null) {
@@ -243,14 +317,174 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
             }
             a = succ;
         }
+        return new RecentFrozen<E>(f, a.initialSize, nanos);
+    }
 
-        copy.createNewEpoch(f, a);
-        return copy;
+    /** Returns <code>_recentFrozen</code> if it is within
+     *  <code>maxStalenessNanos</code>, which must be positive, otherwise
+     *  freezes the current value and records it.
+     */
+    private RecentFrozen<E> recentFrozen(final long maxStalenessNanos) {
+        final RecentFrozen<E> prev = _recentFrozen;
+        final long t0 = System.nanoTime();
+        if (prev != null && t0 - prev.nanos <= maxStalenessNanos) {
+            return prev;
+        }
+        final RecentFrozen<E> r = freeze(t0);
+        _recentFrozen = r;
+        return r;
     }
 
-    private void createNewEpoch(E f, COWEpoch a)
-    {
-        _active = new COWEpoch(cloneFrozen(f), f, a.initialSize);
+    //////// group snapshots
+
+    /** Holds back the activation of the successors of the epochs frozen by
+     *  one {@link #cloneAll} until all of those epochs have closed.  The
+     *  thread that closes the last one activates every successor.
+     */
+    private static final class GroupGate {
+        private final AtomicInteger open = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Runnable> held = new ConcurrentLinkedQueue<Runnable>();
+
+        /** Must be called before any of the gated epochs can close. */
+        void expect(final int epochs) {
+            open.set(epochs);
+        }
+
+        void closed(final Runnable activation) {
+            held.add(activation);
+            if (open.decrementAndGet() == 0) {
+                Runnable r;
+                while ((r = held.poll()) != null) {
+                    r.run();
+                }
+            }
+        }
+    }
+
+    /** Serializes the holding phase of concurrent {@link #cloneAll} calls,
+     *  so that an epoch is never held by two of them at once and joins at
+     *  most one {@link GroupGate}.  Waiting for epochs to close happens
+     *  outside of it.
+     */
+    private static final ReentrantLock GroupLock = new ReentrantLock();
+
+    /** One manager's participation in {@link #cloneAll}. */
+    private class GroupHold {
+        final COWEpoch epoch;
+        final Epoch.Ticket ticket;
+        COWEpoch successor;
+
+        GroupHold(final COWEpoch epoch, final Epoch.Ticket ticket) {
+            this.epoch = epoch;
+            this.ticket = ticket;
+        }
+    }
+
+    /** Returns clones of <code>managers</code> that are mutually consistent:
+     *  there is a single instant at which every clone's contents were the
+     *  current contents of its source.  This is accomplished by holding open
+     *  the current epoch of every manager while successors that will freeze
+     *  them are installed, so no manager stops admitting mutations until all
+     *  of them have.  The successors share a {@link GroupGate}, so none of
+     *  them is activated (admitting mutations that follow the snapshot)
+     *  until the mutations already in progress on every manager have
+     *  completed.  Every mutation in the clones therefore finishes before
+     *  any mutation outside them starts.  Writers are blocked only while
+     *  those mutations complete, as for {@link #clone}.
+     */
+    public static List<CopyOnWriteManager<?>> cloneAll(final List<? extends CopyOnWriteManager<?>> managers) {
+        final int n = managers.size();
+        final Object[] holds = new Object[n];
+        while (true) {
+            final int held;
+            GroupLock.lock();
+            try {
+                held = attemptGroupHolds(managers, holds);
+                if (held == n) {
+                    final GroupGate gate = new GroupGate();
+                    int epochs = 0;
+                    for (int i = 0; i < n; ++i) {
+                        if (managers.get(i).requestGroupFreeze(holds[i], gate)) {
+                            ++epochs;
+                        }
+                    }
+                    gate.expect(epochs);
+                }
+                for (int i = 0; i < held; ++i) {
+                    managers.get(i).releaseGroupHold(holds[i]);
+                }
+            } finally {
+                GroupLock.unlock();
+            }
+            if (held == n) {
+                break;
+            }
+
+            // Another freeze is closing an epoch.  Waiting for it while
+            // holding our tickets could deadlock with a concurrent cloneAll,
+            // so we released everything and retry once it is done.
+            managers.get(held).awaitActiveSuccessor();
+        }
+
+        final List<CopyOnWriteManager<?>> result = new ArrayList<CopyOnWriteManager<?>>(n);
+        for (int i = 0; i < n; ++i) {
+            result.add(managers.get(i).groupClone(holds[i]));
+        }
+        return result;
+    }
+
+    /** Returns the number of leading <code>managers</code> whose current
+     *  epoch was held, stopping at the first that is already closing.
+     */
+    private static int attemptGroupHolds(final List<? extends CopyOnWriteManager<?>> managers,
+                                         final Object[] holds) {
+        int held = 0;
+        while (held < holds.length && (holds[held] = managers.get(held).attemptGroupHold()) != null) {
+            ++held;
+        }
+        return held;
+    }
+
+    Object attemptGroupHold() {
+        final COWEpoch a = _active;
+        final Epoch.Ticket t = a.attemptInitialArrive();
+        return t == null ? null : new GroupHold(a, t);
+    }
+
+    @SuppressWarnings("unchecked")
+    void releaseGroupHold(final Object hold) {
+        ((GroupHold) hold).ticket.leave(0);
+    }
+
+    void awaitActiveSuccessor() {
+        final COWEpoch a = _active;
+        a.getOrCreateSuccessor(a.mutationAllowed).awaitActivated();
+    }
+
+    /** Must be called while the hold's ticket is outstanding, so that the
+     *  request is seen by <code>onClosed</code>.  Returns false if the
+     *  epoch had already joined <code>gate</code>, which happens if a
+     *  manager is listed twice.
+     */
+    @SuppressWarnings("unchecked")
+    boolean requestGroupFreeze(final Object hold, final GroupGate gate) {
+        final GroupHold h = (GroupHold) hold;
+        h.epoch.freezeRequested = true;
+        h.successor = h.epoch.getOrCreateSuccessor(h.epoch.mutationAllowed);
+        if (h.epoch.groupGate == gate) {
+            return false;
+        }
+        assert(h.epoch.groupGate == null);
+        h.epoch.groupGate = gate;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    CopyOnWriteManager<E> groupClone(final Object hold) {
+        final GroupHold h = (GroupHold) hold;
+        h.successor.awaitActivated();
+        assert(h.epoch.value != h.successor.value);
+        return cloneOf(new RecentFrozen<E>(h.epoch.value, h.successor.initialSize, 0L));
     }
 
     /** Returns a reference to the tree structure suitable for a read
@@ -347,6 +581,18 @@ abstract public class CopyOnWriteManager<E> implements Cloneable {
         return f;
     }
 
+    /** Like {@link #frozen()}, but returns the snapshot from a previous call
+     *  if it was current less than <code>maxStalenessNanos</code> ago.
+     *  Readers that can tolerate bounded staleness can use this to share one
+     *  snapshot, rather than each forcing a new epoch under a constant write
+     *  load (and causing writers to copy their paths afterward).  If
+     *  <code>maxStalenessNanos</code> is zero this is the same as {@link
+     *  #frozen()}.
+     */
+    public E frozen(final long maxStalenessNanos) {
+        return maxStalenessNanos > 0 ? recentFrozen(maxStalenessNanos).value : frozen();
+    }
+
     /** Returns a reference to a snapshot of this instance's tree structure,
      *  if one is available without requiring any additional copying, otherwise
      *  returns null.  May be used in combination with {@link #beginQuiescent}
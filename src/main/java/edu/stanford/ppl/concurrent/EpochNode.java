@@ -42,7 +42,10 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 abstract class EpochNode extends AtomicLong implements Epoch.Ticket {
 
     private static final int TRIES_BEFORE_SUBTREE = 2;
-    private static final int CLOSER_HEAD_START = 1000;
+    /** Zero in the <code>snaptree.unmountable</code> mode of {@link
+     *  SnapTreeMap}, where a closer helps at once rather than spinning.
+     */
+    private static final int CLOSER_HEAD_START = Boolean.getBoolean("snaptree.unmountable") ? 0 : 1000;
 
     /** This includes the root.  7 or fewer procs gets 2, 63 or fewer gets
      *  3, 511 or fewer 4.  We observe that the node count reported by {@link
@@ -331,8 +334,12 @@ abstract class EpochNode extends AtomicLong implements Epoch.Ticket {
 
             if (isMarked(state)) {
                 // give the thread that actually performed this transition a
-                // bit of a head start
+                // bit of a head start, yielding now and then in case it needs
+                // our processor (or, for a virtual thread, our carrier)
                 if (attempts < CLOSER_HEAD_START) {
+                    if ((attempts & 127) == 0) {
+                        Thread.yield();
+                    }
                     continue;
                 }
                 break;
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static edu.stanford.ppl.concurrent.SnapTreeMap.*;
+
+/** The part of a tree node that {@link SnapTreeMap} and {@link SnapTreeSet}
+ *  share: the node's OVL, and the lock that is kept in its high bits.  The
+ *  two trees have different nodes, because a set's node has no value, but
+ *  they lock them and wait for shrinks in exactly the same way.
+ *
+ *  @author agent
+ */
+abstract class OVLNode {
+
+    /** Threads that are parked waiting for a node's lock, in arrival order,
+     *  keyed by the identity of the node.  Blocking parks with {@link
+     *  LockSupport} rather than waiting on a monitor, so a virtual thread
+     *  that must block unmounts from its carrier instead of pinning it.  A
+     *  node only has a queue while it is contended, and an unlock wakes just
+     *  the first of that node's waiters.  A waiter that stops waiting clears
+     *  its slot rather than removing it, and the unlocking thread skips it.
+     */
+    private static final ConcurrentHashMap<IdentityKey,ConcurrentLinkedQueue<AtomicReference<Thread>>> LockWaiters
+            = new ConcurrentHashMap<IdentityKey,ConcurrentLinkedQueue<AtomicReference<Thread>>>(16, 0.75f, 64);
+
+    /** A map node overrides equals and hashCode, so it can't key LockWaiters. */
+    private static final class IdentityKey {
+        final Object target;
+
+        IdentityKey(final Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(target);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).target == target;
+        }
+    }
+
+    /** Removes the first waiter in <code>queue</code> that is still waiting,
+     *  and returns its thread, which the caller must unpark.
+     */
+    private static Thread claimWaiter(final ConcurrentLinkedQueue<AtomicReference<Thread>> queue) {
+        AtomicReference<Thread> slot;
+        while ((slot = queue.poll()) != null) {
+            final Thread t = slot.getAndSet(null);
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /** The node's OVL, plus {@link #LockedBit} and {@link #ParkedBit} in
+     *  the high bits.  Use {@link #ovl} to read only the OVL.
+     */
+    volatile long shrinkOVL;
+
+    private static final AtomicLongFieldUpdater<OVLNode> shrinkOVLUpdater
+            = AtomicLongFieldUpdater.newUpdater(OVLNode.class, "shrinkOVL");
+
+    OVLNode(final long shrinkOVL) {
+        this.shrinkOVL = shrinkOVL;
+    }
+
+    /** Returns the number of nodes that have a queue of lock waiters, which
+     *  is zero whenever no thread is blocked.
+     */
+    static int lockWaiterQueues() {
+        return LockWaiters.size();
+    }
+
+    //////// per-node blocking
+
+    void waitUntilShrinkCompleted(final long ovl) {
+        if (!isShrinking(ovl)) {
+            return;
+        }
+
+        for (int tries = 0; tries < SpinCount; ++tries) {
+            if (ovl() != ovl) {
+                return;
+            }
+        }
+
+        for (int tries = 0; tries < YieldCount; ++tries) {
+            Thread.yield();
+            if (ovl() != ovl) {
+                return;
+            }
+        }
+
+        // spin and yield failed, use the nuclear option
+        lock();
+        // we can't have gotten the lock unless the shrink was over
+        unlock();
+        assert(ovl() != ovl);
+    }
+
+    //////// per-node locking
+
+    // Each node's lock is kept in two high bits of shrinkOVL, rather than
+    // in its monitor.  Contended monitors are inflated, which allocates
+    // an ObjectMonitor for each node that has ever been contended.  The
+    // version part of the OVL can't carry into these bits in practice.
+    // Acquiring or releasing the lock leaves ovl() unchanged, so
+    // optimistic readers don't notice it, just as they didn't notice
+    // monitor acquisition.  A thread that can't get the lock by spinning
+    // sets ParkedBit, joins the node's queue in LockWaiters and parks.
+    // While ParkedBit is set unlock hands off to the first queued waiter,
+    // or retires the queue once it is empty.
+
+    static final long LockedBit = 1L << 62;
+    static final long ParkedBit = 1L << 63;
+    static final long LockMask = LockedBit | ParkedBit;
+
+    /** Returns the OVL, without the lock bits. */
+    long ovl() {
+        return shrinkOVL & ~LockMask;
+    }
+
+    /** Must be called while holding this node's lock. */
+    void setOVL(final long ovl) {
+        while (true) {
+            final long s = shrinkOVL;
+            if (shrinkOVLUpdater.compareAndSet(this, s, (s & LockMask) | ovl)) {
+                return;
+            }
+            // a waiter set ParkedBit, RETRY
+        }
+    }
+
+    /** Acquires this node's lock, which is not reentrant. */
+    void lock() {
+        final long s = shrinkOVL;
+        if ((s & LockedBit) != 0L || !shrinkOVLUpdater.compareAndSet(this, s, s | LockedBit)) {
+            lockSlow();
+        }
+    }
+
+    private void lockSlow() {
+        int tries = 0;
+        IdentityKey key = null;
+        ConcurrentLinkedQueue<AtomicReference<Thread>> queue = null;
+        AtomicReference<Thread> slot = null;
+        boolean interrupted = false;
+        while (true) {
+            final long s = shrinkOVL;
+            if ((s & LockedBit) == 0L) {
+                // if we have touched a queue then we leave ParkedBit set,
+                // so that our unlock will wake its waiters or retire it
+                final long locked = s | LockedBit | (queue != null ? ParkedBit : 0L);
+                if (shrinkOVLUpdater.compareAndSet(this, s, locked)) {
+                    break;
+                }
+            } else if (tries < SpinCount) {
+                ++tries;
+            } else if (tries < SpinCount + YieldCount) {
+                ++tries;
+                Thread.yield();
+            } else if ((s & ParkedBit) == 0L) {
+                shrinkOVLUpdater.compareAndSet(this, s, s | ParkedBit);
+            } else if (slot == null) {
+                // join the queue, then recheck the lock before parking
+                if (key == null) {
+                    key = new IdentityKey(this);
+                }
+                queue = LockWaiters.get(key);
+                if (queue == null) {
+                    final ConcurrentLinkedQueue<AtomicReference<Thread>> fresh
+                            = new ConcurrentLinkedQueue<AtomicReference<Thread>>();
+                    queue = LockWaiters.putIfAbsent(key, fresh);
+                    if (queue == null) {
+                        queue = fresh;
+                    }
+                }
+                slot = new AtomicReference<Thread>(Thread.currentThread());
+                queue.add(slot);
+            } else if (LockWaiters.get(key) != queue) {
+                // an unlock found the queue empty and retired it, after
+                // which it will wake anybody who joined late
+                slot.set(null);
+                slot = null;
+            } else {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+                if (slot.get() == null) {
+                    // an unlock claimed us, we must queue again to wait again
+                    slot = null;
+                }
+            }
+        }
+        if (slot != null) {
+            slot.set(null);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void unlock() {
+        final long s = shrinkOVL;
+        assert((s & LockedBit) != 0L);
+        if ((s & ParkedBit) != 0L || !shrinkOVLUpdater.compareAndSet(this, s, s & ~LockedBit)) {
+            unlockSlow();
+        }
+    }
+
+    private void unlockSlow() {
+        final IdentityKey key = new IdentityKey(this);
+        final ConcurrentLinkedQueue<AtomicReference<Thread>> queue = LockWaiters.get(key);
+        final Thread next = queue == null ? null : claimWaiter(queue);
+        long s;
+        if (next != null) {
+            // the rest of the queue is still waiting, so ParkedBit stays
+            do {
+                s = shrinkOVL;
+            } while (!shrinkOVLUpdater.compareAndSet(this, s, (s & ~LockedBit) | ParkedBit));
+            LockSupport.unpark(next);
+            return;
+        }
+
+        if (queue != null) {
+            LockWaiters.remove(key, queue);
+        }
+        do {
+            s = shrinkOVL;
+        } while (!shrinkOVLUpdater.compareAndSet(this, s, s & ~LockMask));
+
+        // A waiter may have joined the queue after we found it empty, or
+        // created a queue after we found none, and then seen LockedBit
+        // before the CAS above.  Any such waiter is in one of these two
+        // queues now, so we wake all of them and they retry.  A waiter
+        // in a fresh queue that acquires the lock sets ParkedBit, so its
+        // unlock will retire that queue.
+        wakeAll(queue);
+        final ConcurrentLinkedQueue<AtomicReference<Thread>> fresh = LockWaiters.get(key);
+        if (fresh != queue) {
+            wakeAll(fresh);
+        }
+    }
+
+    private static void wakeAll(final ConcurrentLinkedQueue<AtomicReference<Thread>> queue) {
+        if (queue != null) {
+            Thread t;
+            while ((t = claimWaiter(queue)) != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Map;
+
+/** An immutable copy of a snapshot of a {@link SnapTreeMap}, laid out for
+ *  searching rather than for update.  The entries are stored in Eytzinger
+ *  (breadth-first) order: the root of a perfectly balanced search tree is
+ *  at index 1 and the children of index <i>k</i> are at <i>2k</i> and
+ *  <i>2k+1</i>.  The first few levels of every search share the same few
+ *  cache lines, and each step's next position is computed arithmetically
+ *  rather than loaded from a node.
+ *
+ *  <p>Without a codec each step still loads and compares a key object that
+ *  may be anywhere in the heap, and on some JVMs that makes a search no
+ *  faster than a search of the tree itself.  If a {@link KeyCodec} is
+ *  supplied the keys are stored as a <code>long[]</code>, so a search
+ *  compares primitives and touches no key objects at all; that is the
+ *  layout to use when lookups dominate.  Lookups may then be made with
+ *  the encoded key directly, to avoid boxing.
+ *
+ *  <p>Instances are created by {@link SnapTreeMap#toSearchLayout()}.
+ *
+ *  @author agent
+ */
+public final class SearchLayout<K,V> {
+
+    /** Converts keys to <code>long</code>s and back.  The encoding must be
+     *  strictly increasing in the key order of the map from which the
+     *  layout is built.
+     */
+    public interface KeyCodec<K> {
+        long encode(K key);
+
+        K decode(long code);
+    }
+
+    private final int size;
+    private final Comparator<? super K> comparator;
+    private final KeyCodec<K> codec;
+
+    /** Keys in Eytzinger order, starting at index 1, if there is no codec. */
+    private final Object[] keys;
+
+    /** Encoded keys in Eytzinger order, starting at index 1, if there is a
+     *  codec.
+     */
+    private final long[] codes;
+
+    /** Values in the same order as the keys. */
+    private final Object[] values;
+
+    /** Constructs a layout of the first <code>size</code> entries of
+     *  <code>sortedKeys</code> and <code>sortedValues</code>.
+     *  @throws IllegalArgumentException if <code>codec</code> does not
+     *          encode the keys in increasing order
+     */
+    @SuppressWarnings("unchecked")
+    SearchLayout(final Comparator<? super K> comparator,
+                 final KeyCodec<K> codec,
+                 final Object[] sortedKeys,
+                 final Object[] sortedValues,
+                 final int size) {
+        this.size = size;
+        this.comparator = comparator;
+        this.codec = codec;
+        this.values = new Object[size + 1];
+        if (codec == null) {
+            this.keys = new Object[size + 1];
+            this.codes = null;
+            fill(sortedKeys, sortedValues, 0, 1);
+        } else {
+            this.keys = null;
+            this.codes = new long[size + 1];
+            final long[] sortedCodes = new long[size];
+            for (int i = 0; i < size; ++i) {
+                sortedCodes[i] = codec.encode((K) sortedKeys[i]);
+                if (i > 0 && sortedCodes[i - 1] >= sortedCodes[i]) {
+                    throw new IllegalArgumentException("codec is not strictly increasing");
+                }
+            }
+            fill(sortedCodes, sortedValues, 0, 1);
+        }
+    }
+
+    /** Places the sorted entries starting at <code>i</code> into the subtree
+     *  rooted at <code>k</code>, in order, returning the index of the first
+     *  unplaced entry.
+     */
+    private int fill(final Object[] sortedKeys, final Object[] sortedValues, int i, final int k) {
+        if (k <= size) {
+            i = fill(sortedKeys, sortedValues, i, 2 * k);
+            keys[k] = sortedKeys[i];
+            values[k] = sortedValues[i];
+            ++i;
+            i = fill(sortedKeys, sortedValues, i, 2 * k + 1);
+        }
+        return i;
+    }
+
+    private int fill(final long[] sortedCodes, final Object[] sortedValues, int i, final int k) {
+        if (k <= size) {
+            i = fill(sortedCodes, sortedValues, i, 2 * k);
+            codes[k] = sortedCodes[i];
+            values[k] = sortedValues[i];
+            ++i;
+            i = fill(sortedCodes, sortedValues, i, 2 * k + 1);
+        }
+        return i;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    /** Returns the codec with which the keys are stored, or null. */
+    public KeyCodec<K> codec() {
+        return codec;
+    }
+
+    //////////////// search
+
+    /** Returns the position of the smallest key &gt;= <code>key</code>
+     *  (or &gt; <code>key</code> if <code>strict</code>), or 0 if there is
+     *  none.  The descent records each step in the low bits of
+     *  <code>k</code>; the answer is the last node at which it went left,
+     *  which is recovered by discarding the trailing right turns and the
+     *  left turn that precedes them.
+     */
+    @SuppressWarnings("unchecked")
+    private int ceilingPos(final Object key, final boolean strict) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (codec != null) {
+            return ceilingPos(codec.encode((K) key), strict);
+        }
+        // go right if key > keys[k], or if key >= keys[k] when strict
+        final int threshold = strict ? -1 : 0;
+        int k = 1;
+        if (comparator == null) {
+            final Comparable<Object> c = (Comparable<Object>) key;
+            while (k <= size) {
+                k = 2 * k + (c.compareTo(keys[k]) > threshold ? 1 : 0);
+            }
+        } else {
+            while (k <= size) {
+                k = 2 * k + (comparator.compare((K) key, (K) keys[k]) > threshold ? 1 : 0);
+            }
+        }
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    private int ceilingPos(final long code, final boolean strict) {
+        int k = 1;
+        if (strict) {
+            while (k <= size) {
+                k = 2 * k + (codes[k] <= code ? 1 : 0);
+            }
+        } else {
+            while (k <= size) {
+                k = 2 * k + (codes[k] < code ? 1 : 0);
+            }
+        }
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /** Returns the position of the largest key &lt;= <code>key</code> (or
+     *  &lt; <code>key</code> if <code>strict</code>), or 0 if there is none.
+     *  This is the symmetric case of {@link #ceilingPos}, recovered from the
+     *  trailing left turns.
+     */
+    @SuppressWarnings("unchecked")
+    private int floorPos(final Object key, final boolean strict) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (codec != null) {
+            return floorPos(codec.encode((K) key), strict);
+        }
+        // go right if key >= keys[k], or if key > keys[k] when strict
+        final int threshold = strict ? 0 : -1;
+        int k = 1;
+        if (comparator == null) {
+            final Comparable<Object> c = (Comparable<Object>) key;
+            while (k <= size) {
+                k = 2 * k + (c.compareTo(keys[k]) > threshold ? 1 : 0);
+            }
+        } else {
+            while (k <= size) {
+                k = 2 * k + (comparator.compare((K) key, (K) keys[k]) > threshold ? 1 : 0);
+            }
+        }
+        return k >>> (Integer.numberOfTrailingZeros(k) + 1);
+    }
+
+    private int floorPos(final long code, final boolean strict) {
+        int k = 1;
+        if (strict) {
+            while (k <= size) {
+                k = 2 * k + (codes[k] < code ? 1 : 0);
+            }
+        } else {
+            while (k <= size) {
+                k = 2 * k + (codes[k] <= code ? 1 : 0);
+            }
+        }
+        return k >>> (Integer.numberOfTrailingZeros(k) + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(final int pos) {
+        return pos == 0 ? null : (codec == null ? (K) keys[pos] : codec.decode(codes[pos]));
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(final int pos) {
+        return (V) values[pos];
+    }
+
+    private Map.Entry<K,V> entryAt(final int pos) {
+        return pos == 0 ? null : new AbstractMap.SimpleImmutableEntry<K,V>(keyAt(pos), valueAt(pos));
+    }
+
+    /** Returns the value associated with <code>key</code>, or null. */
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        final int pos = ceilingPos(key, false);
+        if (pos == 0) {
+            return null;
+        }
+        final boolean found = codec != null
+                ? codes[pos] == codec.encode((K) key)
+                : (comparator == null
+                        ? ((Comparable<Object>) key).compareTo(keys[pos]) == 0
+                        : comparator.compare((K) key, (K) keys[pos]) == 0);
+        return found ? valueAt(pos) : null;
+    }
+
+    /** Like {@link #get}, but takes an encoded key.
+     *  @throws IllegalStateException if this layout has no codec
+     */
+    public V getEncoded(final long code) {
+        requireCodec();
+        final int pos = ceilingPos(code, false);
+        return pos != 0 && codes[pos] == code ? valueAt(pos) : null;
+    }
+
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    public K floorKey(final K key) {
+        return keyAt(floorPos(key, false));
+    }
+
+    public K lowerKey(final K key) {
+        return keyAt(floorPos(key, true));
+    }
+
+    public K ceilingKey(final K key) {
+        return keyAt(ceilingPos(key, false));
+    }
+
+    public K higherKey(final K key) {
+        return keyAt(ceilingPos(key, true));
+    }
+
+    public Map.Entry<K,V> floorEntry(final K key) {
+        return entryAt(floorPos(key, false));
+    }
+
+    public Map.Entry<K,V> ceilingEntry(final K key) {
+        return entryAt(ceilingPos(key, false));
+    }
+
+    /** Returns the value of the entry with the largest key whose encoding
+     *  is &lt;= <code>code</code>, or null if there is none.
+     *  @throws IllegalStateException if this layout has no codec
+     */
+    public V floorValueEncoded(final long code) {
+        requireCodec();
+        final int pos = floorPos(code, false);
+        return pos == 0 ? null : valueAt(pos);
+    }
+
+    /** Returns the value of the entry with the smallest key whose encoding
+     *  is &gt;= <code>code</code>, or null if there is none.
+     *  @throws IllegalStateException if this layout has no codec
+     */
+    public V ceilingValueEncoded(final long code) {
+        requireCodec();
+        final int pos = ceilingPos(code, false);
+        return pos == 0 ? null : valueAt(pos);
+    }
+
+    private void requireCodec() {
+        if (codec == null) {
+            throw new IllegalStateException("no KeyCodec");
+        }
+    }
+}
@@ -0,0 +1,1372 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A concurrent sorted map that splits its key space into contiguous ranges,
+ *  each stored in its own {@link SnapTreeMap}.  Each range has its own
+ *  copy-on-write epoch, so writers to different ranges don't contend on a
+ *  shared epoch root.  <code>clone()</code> uses a {@link SnapshotGroup} to
+ *  produce a copy that is consistent across all of the ranges, and
+ *  iteration traverses such a copy.
+ *
+ *  <p>The map starts with a single range.  When a range grows large entries
+ *  are moved from it to a neighbor that is much smaller, or if there is no
+ *  such neighbor and there are fewer than <code>maxShards</code> ranges, to
+ *  a new empty range next to it.  Entries are moved in batches of at most
+ *  {@link #MoveBatch}, so a writer that happens to perform a step of the
+ *  rebalancing does a bounded amount of extra work.  While a batch is moved
+ *  only writers to the two ranges involved are blocked.  Moved entries are
+ *  copied, then the new boundary is published, then the originals are
+ *  removed, and a reader that sees the boundary move underneath it
+ *  retries, so readers never miss an entry.
+ *
+ *  <p>Operations on a single key are linearizable, as are
+ *  <code>clone</code> and iteration.  Operations that have to consult more
+ *  than one range, such as <code>higherKey</code> across a boundary or
+ *  <code>size</code>, are not atomic with respect to concurrent updates to
+ *  other ranges.  Null keys and values are not permitted.
+ *
+ *  @author agent
+ */
+public class ShardedSnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavigableMap<K,V>, Cloneable, Serializable {
+    private static final long serialVersionUID = -3361257316240912704L;
+
+    /** A range is split (or drained into a neighbor) only once it has at
+     *  least this many entries.
+     */
+    static final int SplitThreshold = 1024;
+
+    /** The most entries moved by one step of rebalancing.  Each step holds
+     *  the write locks of two ranges while it copies the entries.
+     */
+    static final int MoveBatch = SplitThreshold / 4;
+
+    /** One in this many inserts by each thread checks whether the ranges
+     *  should be rebalanced.
+     */
+    private static final int RebalanceSampleMask = 63;
+
+    /** The number of inserts performed by the current thread, in any map.
+     *  Sampling by this rather than by the key means that a skewed key set
+     *  can't starve or flood the check.
+     */
+    private static final ThreadLocal<int[]> InsertCounts = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private static final int DefaultMaxShards;
+    static {
+        int n = 1;
+        while (n < 4 * Runtime.getRuntime().availableProcessors() && n < 64) {
+            n *= 2;
+        }
+        DefaultMaxShards = n;
+    }
+
+    /** A range of keys.  Writers hold <code>lock</code> in shared mode, the
+     *  thread moving entries in or out holds it exclusively.
+     */
+    private static final class Shard<K,V> {
+        final SnapTreeMap<K,V> map;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Shard(final SnapTreeMap<K,V> map) {
+            this.map = map;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <K,V> Shard<K,V>[] newArray(final int length) {
+            return (Shard<K,V>[]) new Shard<?,?>[length];
+        }
+    }
+
+    /** An immutable assignment of ranges to shards.  Shard <i>i</i> holds the
+     *  keys <i>k</i> with <code>splits[i-1] &lt;= k &lt; splits[i]</code>.
+     *  A new instance is published every time a boundary moves, so an
+     *  identity comparison tells a reader whether it raced with a move.
+     */
+    private static final class Layout<K,V> {
+        final Object[] splits;
+        final Shard<K,V>[] shards;
+
+        Layout(final Object[] splits, final Shard<K,V>[] shards) {
+            assert(splits.length + 1 == shards.length);
+            this.splits = splits;
+            this.shards = shards;
+        }
+    }
+
+    //////////////// state
+
+    private final Comparator<? super K> comparator;
+    private final int maxShards;
+
+    private transient volatile Layout<K,V> layout;
+
+    /** Held in shared mode by operations that need a stable layout, such as
+     *  clone and clear, and exclusively while moving entries between shards.
+     */
+    private transient ReentrantReadWriteLock topology;
+
+    //////////////// public interface
+
+    public ShardedSnapTreeMap() {
+        this(null, DefaultMaxShards);
+    }
+
+    public ShardedSnapTreeMap(final Comparator<? super K> comparator) {
+        this(comparator, DefaultMaxShards);
+    }
+
+    public ShardedSnapTreeMap(final int maxShards) {
+        this(null, maxShards);
+    }
+
+    public ShardedSnapTreeMap(final Comparator<? super K> comparator, final int maxShards) {
+        if (maxShards < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.comparator = comparator;
+        this.maxShards = maxShards;
+        init(new Object[0]);
+    }
+
+    public ShardedSnapTreeMap(final Map<? extends K, ? extends V> source) {
+        this(null, DefaultMaxShards);
+        putAll(source);
+    }
+
+    private void init(final Object[] splits) {
+        final Shard<K,V>[] shards = Shard.newArray(splits.length + 1);
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new Shard<K,V>(new SnapTreeMap<K,V>(comparator));
+        }
+        this.layout = new Layout<K,V>(splits, shards);
+        this.topology = new ReentrantReadWriteLock();
+    }
+
+    /** Returns a copy of this map that is consistent across all of its
+     *  ranges.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public ShardedSnapTreeMap<K,V> clone() {
+        final ShardedSnapTreeMap<K,V> copy;
+        try {
+            copy = (ShardedSnapTreeMap<K,V>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+
+        topology.readLock().lock();
+        try {
+            final Layout<K,V> l = layout;
+            final SnapTreeMap<?,?>[] maps = new SnapTreeMap<?,?>[l.shards.length];
+            for (int i = 0; i < maps.length; ++i) {
+                maps[i] = l.shards[i].map;
+            }
+            final SnapshotGroup.Snapshot snap = new SnapshotGroup(maps).snapshotAll();
+            final Shard<K,V>[] shards = Shard.newArray(maps.length);
+            for (int i = 0; i < maps.length; ++i) {
+                shards[i] = new Shard<K,V>(snap.get(l.shards[i].map));
+            }
+            copy.layout = new Layout<K,V>(l.splits, shards);
+        } finally {
+            topology.readLock().unlock();
+        }
+        copy.topology = new ReentrantReadWriteLock();
+        return copy;
+    }
+
+    /** Returns the number of ranges into which the keys are currently
+     *  divided.
+     */
+    public int shardCount() {
+        return layout.shards.length;
+    }
+
+    public int getMaxShards() {
+        return maxShards;
+    }
+
+    /** Returns the sum of the sizes of the ranges.  This is exact when the
+     *  map is quiescent, but is not atomic with respect to concurrent
+     *  updates; <code>clone().size()</code> is.
+     */
+    @Override
+    public int size() {
+        topology.readLock().lock();
+        try {
+            int total = 0;
+            for (Shard<K,V> shard : layout.shards) {
+                total += shard.map.size();
+            }
+            return total;
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return boundedExtreme(null, false, null, false, false) == null;
+    }
+
+    @Override
+    public void clear() {
+        topology.readLock().lock();
+        try {
+            for (Shard<K,V> shard : layout.shards) {
+                shard.map.clear();
+            }
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    //////////////// routing
+
+    @SuppressWarnings("unchecked")
+    private int compare(final Object lhs, final Object rhs) {
+        return comparator != null
+                ? comparator.compare((K) lhs, (K) rhs)
+                : ((Comparable<Object>) lhs).compareTo(rhs);
+    }
+
+    /** Returns the index of the shard of <code>l</code> that owns
+     *  <code>key</code>, which is the number of splits that are &lt;= key.
+     */
+    private int shardIndex(final Layout<K,V> l, final Object key) {
+        int lo = 0;
+        int hi = l.splits.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compare(l.splits[mid], key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the shard that owns <code>key</code>, with its lock held in
+     *  shared mode.
+     */
+    private Shard<K,V> acquireShard(final K key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            final Layout<K,V> l = layout;
+            final Shard<K,V> shard = l.shards[shardIndex(l, key)];
+            shard.lock.readLock().lock();
+            final Layout<K,V> now = layout;
+            if (now == l || now.shards[shardIndex(now, key)] == shard) {
+                return shard;
+            }
+            // the boundary moved while we were waiting
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the part of shard <code>i</code> of <code>l</code> that lies
+     *  within the bounds, or null if that part is empty.  Null bounds are
+     *  open.
+     */
+    @SuppressWarnings("unchecked")
+    private ConcurrentNavigableMap<K,V> shardView(final Layout<K,V> l,
+                                                  final int i,
+                                                  final K lo,
+                                                  final boolean loIncl,
+                                                  final K hi,
+                                                  final boolean hiIncl) {
+        K min = lo;
+        boolean minIncl = loIncl;
+        if (i > 0 && (min == null || compare(l.splits[i - 1], min) > 0)) {
+            min = (K) l.splits[i - 1];
+            minIncl = true;
+        }
+        K max = hi;
+        boolean maxIncl = hiIncl;
+        if (i < l.splits.length && (max == null || compare(l.splits[i], max) <= 0)) {
+            max = (K) l.splits[i];
+            maxIncl = false;
+        }
+
+        final SnapTreeMap<K,V> m = l.shards[i].map;
+        if (min == null) {
+            return max == null ? m : m.headMap(max, maxIncl);
+        } else if (max == null) {
+            return m.tailMap(min, minIncl);
+        } else {
+            final int c = compare(min, max);
+            if (c > 0 || (c == 0 && !(minIncl && maxIncl))) {
+                return null;
+            }
+            return m.subMap(min, minIncl, max, maxIncl);
+        }
+    }
+
+    //////////////// search
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V get(final Object key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            final Layout<K,V> l = layout;
+            final V result = l.shards[shardIndex(l, key)].map.get(key);
+            if (layout == l) {
+                return result;
+            }
+        }
+    }
+
+    /** Returns the first (or the last, if <code>fromMax</code>) entry whose
+     *  key is within the bounds, or null if there is none.  Null bounds are
+     *  open.
+     */
+    Map.Entry<K,V> boundedExtreme(final K lo,
+                                  final boolean loIncl,
+                                  final K hi,
+                                  final boolean hiIncl,
+                                  final boolean fromMax) {
+        while (true) {
+            final Layout<K,V> l = layout;
+            final int first = lo == null ? 0 : shardIndex(l, lo);
+            final int last = hi == null ? l.splits.length : shardIndex(l, hi);
+            Map.Entry<K,V> result = null;
+            for (int j = 0; j <= last - first && result == null; ++j) {
+                final ConcurrentNavigableMap<K,V> view = shardView(l, fromMax ? last - j : first + j, lo, loIncl, hi, hiIncl);
+                if (view != null) {
+                    result = fromMax ? view.lastEntry() : view.firstEntry();
+                }
+            }
+            if (layout == l) {
+                return result;
+            }
+        }
+    }
+
+    private static <K> K keyOrNull(final Map.Entry<K,?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static <K> K keyOrThrow(final Map.Entry<K,?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    private static void requireKey(final Object key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    @Override
+    public K firstKey() {
+        return keyOrThrow(firstEntry());
+    }
+
+    @Override
+    public Map.Entry<K,V> firstEntry() {
+        return boundedExtreme(null, false, null, false, false);
+    }
+
+    @Override
+    public K lastKey() {
+        return keyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Map.Entry<K,V> lastEntry() {
+        return boundedExtreme(null, false, null, false, true);
+    }
+
+    @Override
+    public Map.Entry<K,V> lowerEntry(final K key) {
+        requireKey(key);
+        return boundedExtreme(null, false, key, false, true);
+    }
+
+    @Override
+    public K lowerKey(final K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K,V> floorEntry(final K key) {
+        requireKey(key);
+        return boundedExtreme(null, false, key, true, true);
+    }
+
+    @Override
+    public K floorKey(final K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K,V> ceilingEntry(final K key) {
+        requireKey(key);
+        return boundedExtreme(key, true, null, false, false);
+    }
+
+    @Override
+    public K ceilingKey(final K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K,V> higherEntry(final K key) {
+        requireKey(key);
+        return boundedExtreme(key, false, null, false, false);
+    }
+
+    @Override
+    public K higherKey(final K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    //////////////// update
+
+    @Override
+    public V put(final K key, final V value) {
+        final Shard<K,V> shard = acquireShard(key);
+        final V prev;
+        try {
+            prev = shard.map.put(key, value);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (prev == null) {
+            insertedKey();
+        }
+        return prev;
+    }
+
+    @Override
+    public V putIfAbsent(final K key, final V value) {
+        final Shard<K,V> shard = acquireShard(key);
+        final V prev;
+        try {
+            prev = shard.map.putIfAbsent(key, value);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (prev == null) {
+            insertedKey();
+        }
+        return prev;
+    }
+
+    @Override
+    public V replace(final K key, final V value) {
+        final Shard<K,V> shard = acquireShard(key);
+        try {
+            return shard.map.replace(key, value);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        final Shard<K,V> shard = acquireShard(key);
+        try {
+            return shard.map.replace(key, oldValue, newValue);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(final Object key) {
+        final Shard<K,V> shard = acquireShard((K) key);
+        try {
+            return shard.map.remove(key);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        final Shard<K,V> shard = acquireShard((K) key);
+        try {
+            return shard.map.remove(key, value);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> pollFirstEntry() {
+        while (true) {
+            final Map.Entry<K,V> snapshot = firstEntry();
+            if (snapshot == null || remove(snapshot.getKey(), snapshot.getValue())) {
+                return snapshot;
+            }
+        }
+    }
+
+    @Override
+    public Map.Entry<K,V> pollLastEntry() {
+        while (true) {
+            final Map.Entry<K,V> snapshot = lastEntry();
+            if (snapshot == null || remove(snapshot.getKey(), snapshot.getValue())) {
+                return snapshot;
+            }
+        }
+    }
+
+    //////////////// rebalancing
+
+    /** Called after a successful insert, with no shard lock held.  Inserts
+     *  are sampled with a per-thread counter so that the check doesn't need
+     *  any shared state.
+     */
+    private void insertedKey() {
+        final int[] count = InsertCounts.get();
+        if ((++count[0] & RebalanceSampleMask) == 0 && topology.writeLock().tryLock()) {
+            try {
+                rebalanceStep();
+            } finally {
+                topology.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Blocks until the ranges are balanced.  This is only useful after a
+     *  bulk load, since the map otherwise rebalances itself as it grows.
+     */
+    public void rebalance() {
+        topology.writeLock().lock();
+        try {
+            while (rebalanceStep()) {
+                // keep going
+            }
+        } finally {
+            topology.writeLock().unlock();
+        }
+    }
+
+    /** Moves up to {@link #MoveBatch} entries from the largest shard into
+     *  its smaller neighbor if the neighbor has less than half as many,
+     *  otherwise into a new shard if there is room for another.  A split
+     *  into a new shard is completed by the steps that follow it, which
+     *  find the new shard to be a small neighbor.  Returns true if entries
+     *  were moved.  Requires the exclusive topology lock.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean rebalanceStep() {
+        final Layout<K,V> l = layout;
+        final int n = l.shards.length;
+        int big = 0;
+        int bigSize = -1;
+        for (int i = 0; i < n; ++i) {
+            final int s = l.shards[i].map.size();
+            if (s > bigSize) {
+                big = i;
+                bigSize = s;
+            }
+        }
+        if (bigSize < SplitThreshold) {
+            return false;
+        }
+
+        final int leftSize = big > 0 ? l.shards[big - 1].map.size() : Integer.MAX_VALUE;
+        final int rightSize = big < n - 1 ? l.shards[big + 1].map.size() : Integer.MAX_VALUE;
+        final int dst = leftSize <= rightSize ? big - 1 : big + 1;
+        final int dstSize = Math.min(leftSize, rightSize);
+        if (dstSize != Integer.MAX_VALUE && dstSize * 2 < bigSize) {
+            moveEntries(l, big, dst, l.shards.clone(), Math.min((bigSize - dstSize) / 2, MoveBatch));
+            return true;
+        }
+
+        if (n < maxShards) {
+            final Shard<K,V>[] shards = Shard.newArray(n + 1);
+            System.arraycopy(l.shards, 0, shards, 0, big + 1);
+            System.arraycopy(l.shards, big + 1, shards, big + 2, n - big - 1);
+            shards[big + 1] = new Shard<K,V>(new SnapTreeMap<K,V>(comparator));
+            moveEntries(l, big, big + 1, shards, Math.min(bigSize / 2, MoveBatch));
+            return true;
+        }
+        return false;
+    }
+
+    /** Moves up to <code>count</code> entries from shard <code>src</code> of
+     *  <code>l</code> into <code>next[dst]</code>, which is its neighbor,
+     *  then publishes a layout with shards <code>next</code> that has the
+     *  boundary between them adjusted.  The moved entries are copied before
+     *  the boundary is published and removed after, so a reader that
+     *  retries on a layout change always finds them.
+     */
+    private void moveEntries(final Layout<K,V> l,
+                             final int src,
+                             final int dst,
+                             final Shard<K,V>[] next,
+                             final int count) {
+        final boolean upward = dst > src;
+        final Shard<K,V> from = l.shards[src];
+        final Shard<K,V> to = next[dst];
+        final Shard<K,V> first = upward ? from : to;
+        final Shard<K,V> second = upward ? to : from;
+
+        first.lock.writeLock().lock();
+        try {
+            second.lock.writeLock().lock();
+            try {
+                // the entries of from closest to the boundary, nearest first
+                final ConcurrentNavigableMap<K,V> order = upward ? from.map.descendingMap() : from.map;
+                final List<Map.Entry<K,V>> moved = new ArrayList<Map.Entry<K,V>>(count);
+                final Iterator<Map.Entry<K,V>> iter = order.entrySet().iterator();
+                while (moved.size() < count && iter.hasNext()) {
+                    moved.add(iter.next());
+                }
+                if (moved.isEmpty() || (!upward && !iter.hasNext())) {
+                    // src shrank after its size was sampled
+                    return;
+                }
+                // the first key that stays in (or the last that is moved to)
+                // the upper of the two shards
+                final Object boundary = upward ? moved.get(moved.size() - 1).getKey() : iter.next().getKey();
+
+                for (Map.Entry<K,V> e : moved) {
+                    to.map.put(e.getKey(), e.getValue());
+                }
+
+                final Object[] splits;
+                if (next.length > l.shards.length) {
+                    splits = new Object[l.splits.length + 1];
+                    System.arraycopy(l.splits, 0, splits, 0, src);
+                    System.arraycopy(l.splits, src, splits, src + 1, l.splits.length - src);
+                    splits[src] = boundary;
+                } else {
+                    splits = l.splits.clone();
+                    splits[Math.min(src, dst)] = boundary;
+                }
+                layout = new Layout<K,V>(splits, next);
+
+                for (Map.Entry<K,V> e : moved) {
+                    from.map.remove(e.getKey());
+                }
+            } finally {
+                second.lock.writeLock().unlock();
+            }
+        } finally {
+            first.lock.writeLock().unlock();
+        }
+    }
+
+    //////////////// iteration
+
+    /** Returns an iterator over a consistent copy of the entries within the
+     *  bounds, whose <code>remove</code> removes from this map.
+     */
+    private Iterator<Map.Entry<K,V>> entryIterator(final K lo,
+                                                   final boolean loIncl,
+                                                   final K hi,
+                                                   final boolean hiIncl,
+                                                   final boolean descending) {
+        final ShardedSnapTreeMap<K,V> frozen = clone();
+        final Layout<K,V> l = frozen.layout;
+        final List<Map<K,V>> parts = new ArrayList<Map<K,V>>(l.shards.length);
+        for (int i = 0; i < l.shards.length; ++i) {
+            final ConcurrentNavigableMap<K,V> view = frozen.shardView(l, i, lo, loIncl, hi, hiIncl);
+            if (view != null) {
+                parts.add(descending ? view.descendingMap() : view);
+            }
+        }
+        if (descending) {
+            Collections.reverse(parts);
+        }
+        return new EntryIter(parts);
+    }
+
+    private int boundedSize(final K lo, final boolean loIncl, final K hi, final boolean hiIncl) {
+        final ShardedSnapTreeMap<K,V> frozen = clone();
+        final Layout<K,V> l = frozen.layout;
+        int total = 0;
+        for (int i = 0; i < l.shards.length; ++i) {
+            final ConcurrentNavigableMap<K,V> view = frozen.shardView(l, i, lo, loIncl, hi, hiIncl);
+            if (view != null) {
+                total += view.size();
+            }
+        }
+        return total;
+    }
+
+    private class EntryIter implements Iterator<Map.Entry<K,V>> {
+        private final Iterator<Map<K,V>> parts;
+        private Iterator<Map.Entry<K,V>> current;
+        private K lastKey;
+
+        EntryIter(final List<Map<K,V>> parts) {
+            this.parts = parts.iterator();
+            this.current = Collections.<Map.Entry<K,V>>emptyList().iterator();
+        }
+
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (!parts.hasNext()) {
+                    return false;
+                }
+                current = parts.next().entrySet().iterator();
+            }
+            return true;
+        }
+
+        public Map.Entry<K,V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<K,V> e = current.next();
+            lastKey = e.getKey();
+            return new SimpleImmutableEntry<K,V>(e);
+        }
+
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            ShardedSnapTreeMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private static class KeyIter<K> implements Iterator<K> {
+        private final Iterator<Map.Entry<K,?>> entries;
+
+        @SuppressWarnings("unchecked")
+        KeyIter(final Iterator<? extends Map.Entry<K,?>> entries) {
+            this.entries = (Iterator<Map.Entry<K,?>>) entries;
+        }
+
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        public K next() {
+            return entries.next().getKey();
+        }
+
+        public void remove() {
+            entries.remove();
+        }
+    }
+
+    //////////////// Map views
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySet(null, false, null, false, false);
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new SnapTreeMap.KeySet<K>(this) {
+            public Iterator<K> iterator() {
+                return new KeyIter<K>(entryIterator(null, false, null, false, false));
+            }
+        };
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        private final K lo;
+        private final boolean loIncl;
+        private final K hi;
+        private final boolean hiIncl;
+        private final boolean descending;
+
+        EntrySet(final K lo, final boolean loIncl, final K hi, final boolean hiIncl, final boolean descending) {
+            this.lo = lo;
+            this.loIncl = loIncl;
+            this.hi = hi;
+            this.hiIncl = hiIncl;
+            this.descending = descending;
+        }
+
+        private boolean inRange(final Object key) {
+            if (lo != null) {
+                final int c = compare(lo, key);
+                if (c > 0 || (c == 0 && !loIncl)) {
+                    return false;
+                }
+            }
+            if (hi != null) {
+                final int c = compare(hi, key);
+                if (c < 0 || (c == 0 && !hiIncl)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return lo == null && hi == null ? ShardedSnapTreeMap.this.size() : boundedSize(lo, loIncl, hi, hiIncl);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return boundedExtreme(lo, loIncl, hi, hiIncl, false) == null;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            if (!inRange(k)) {
+                return false;
+            }
+            final V actual = get(k);
+            return actual != null && actual.equals(((Map.Entry<?,?>)o).getValue());
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            return inRange(k) && ShardedSnapTreeMap.this.remove(k, ((Map.Entry<?,?>)o).getValue());
+        }
+
+        @Override
+        public void clear() {
+            if (lo == null && hi == null) {
+                ShardedSnapTreeMap.this.clear();
+            } else {
+                super.clear();
+            }
+        }
+
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return entryIterator(lo, loIncl, hi, hiIncl, descending);
+        }
+    }
+
+    //////////////// NavigableMap views
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(final K fromKey,
+                                              final boolean fromInclusive,
+                                              final K toKey,
+                                              final boolean toInclusive) {
+        requireKey(fromKey);
+        requireKey(toKey);
+        if (compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException();
+        }
+        return new SubMap<K,V>(this, fromKey, fromInclusive, toKey, toInclusive, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(final K toKey, final boolean inclusive) {
+        requireKey(toKey);
+        return new SubMap<K,V>(this, null, false, toKey, inclusive, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(final K fromKey, final boolean inclusive) {
+        requireKey(fromKey);
+        return new SubMap<K,V>(this, fromKey, inclusive, null, false, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(final K fromKey, final K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(final K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(final K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> descendingMap() {
+        return new SubMap<K,V>(this, null, false, null, false, true);
+    }
+
+    private static class SubMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavigableMap<K,V>, Serializable {
+        private static final long serialVersionUID = 4217553815284957130L;
+
+        private final ShardedSnapTreeMap<K,V> m;
+        private final K minKey;
+        private final boolean minIncl;
+        private final K maxKey;
+        private final boolean maxIncl;
+        private final boolean descending;
+
+        private SubMap(final ShardedSnapTreeMap<K,V> m,
+                       final K minKey,
+                       final boolean minIncl,
+                       final K maxKey,
+                       final boolean maxIncl,
+                       final boolean descending) {
+            this.m = m;
+            this.minKey = minKey;
+            this.minIncl = minIncl;
+            this.maxKey = maxKey;
+            this.maxIncl = maxIncl;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(final Object key) {
+            if (minKey == null) {
+                return false;
+            } else {
+                final int c = m.compare(minKey, key);
+                return c > 0 || (c == 0 && !minIncl);
+            }
+        }
+
+        private boolean tooHigh(final Object key) {
+            if (maxKey == null) {
+                return false;
+            } else {
+                final int c = m.compare(maxKey, key);
+                return c < 0 || (c == 0 && !maxIncl);
+            }
+        }
+
+        private boolean inRange(final Object key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        private void requireInRange(final K key) {
+            requireKey(key);
+            if (!inRange(key)) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        private Map.Entry<K,V> first() {
+            return m.boundedExtreme(minKey, minIncl, maxKey, maxIncl, descending);
+        }
+
+        private Map.Entry<K,V> last() {
+            return m.boundedExtreme(minKey, minIncl, maxKey, maxIncl, !descending);
+        }
+
+        //////// AbstractMap
+
+        @Override
+        public boolean isEmpty() {
+            return first() == null;
+        }
+
+        @Override
+        public int size() {
+            return m.boundedSize(minKey, minIncl, maxKey, maxIncl);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            requireKey(key);
+            return inRange(key) && m.containsKey(key);
+        }
+
+        @Override
+        public V get(final Object key) {
+            requireKey(key);
+            return !inRange(key) ? null : m.get(key);
+        }
+
+        @Override
+        public V put(final K key, final V value) {
+            requireInRange(key);
+            return m.put(key, value);
+        }
+
+        @Override
+        public V remove(final Object key) {
+            requireKey(key);
+            return !inRange(key) ? null : m.remove(key);
+        }
+
+        @Override
+        public Set<Map.Entry<K,V>> entrySet() {
+            return m.new EntrySet(minKey, minIncl, maxKey, maxIncl, descending);
+        }
+
+        //////// SortedMap
+
+        @Override
+        public Comparator<? super K> comparator() {
+            final Comparator<? super K> fromM = m.comparator();
+            if (descending) {
+                return Collections.reverseOrder(fromM);
+            } else {
+                return fromM;
+            }
+        }
+
+        @Override
+        public K firstKey() {
+            return keyOrThrow(first());
+        }
+
+        @Override
+        public K lastKey() {
+            return keyOrThrow(last());
+        }
+
+        //////// NavigableMap
+
+        @Override
+        public Map.Entry<K,V> firstEntry() {
+            return first();
+        }
+
+        @Override
+        public Map.Entry<K,V> lastEntry() {
+            return last();
+        }
+
+        @Override
+        public Map.Entry<K,V> lowerEntry(final K key) {
+            requireKey(key);
+            if (!descending ? tooLow(key) : tooHigh(key)) {
+                return null;
+            }
+            return ((!descending ? tooHigh(key) : tooLow(key))
+                    ? this : subMapInRange(null, false, key, false)).last();
+        }
+
+        @Override
+        public K lowerKey(final K key) {
+            return keyOrNull(lowerEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> floorEntry(final K key) {
+            requireKey(key);
+            if (!descending ? tooLow(key) : tooHigh(key)) {
+                return null;
+            }
+            return ((!descending ? tooHigh(key) : tooLow(key))
+                    ? this : subMapInRange(null, false, key, true)).last();
+        }
+
+        @Override
+        public K floorKey(final K key) {
+            return keyOrNull(floorEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> ceilingEntry(final K key) {
+            requireKey(key);
+            if (!descending ? tooHigh(key) : tooLow(key)) {
+                return null;
+            }
+            return ((!descending ? tooLow(key) : tooHigh(key))
+                    ? this : subMapInRange(key, true, null, false)).first();
+        }
+
+        @Override
+        public K ceilingKey(final K key) {
+            return keyOrNull(ceilingEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> higherEntry(final K key) {
+            requireKey(key);
+            if (!descending ? tooHigh(key) : tooLow(key)) {
+                return null;
+            }
+            return ((!descending ? tooLow(key) : tooHigh(key))
+                    ? this : subMapInRange(key, false, null, false)).first();
+        }
+
+        @Override
+        public K higherKey(final K key) {
+            return keyOrNull(higherEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> pollFirstEntry() {
+            while (true) {
+                final Map.Entry<K,V> snapshot = first();
+                if (snapshot == null || m.remove(snapshot.getKey(), snapshot.getValue())) {
+                    return snapshot;
+                }
+            }
+        }
+
+        @Override
+        public Map.Entry<K,V> pollLastEntry() {
+            while (true) {
+                final Map.Entry<K,V> snapshot = last();
+                if (snapshot == null || m.remove(snapshot.getKey(), snapshot.getValue())) {
+                    return snapshot;
+                }
+            }
+        }
+
+        //////// ConcurrentMap
+
+        @Override
+        public V putIfAbsent(final K key, final V value) {
+            requireInRange(key);
+            return m.putIfAbsent(key, value);
+        }
+
+        @Override
+        public boolean remove(final Object key, final Object value) {
+            requireKey(key);
+            return inRange(key) && m.remove(key, value);
+        }
+
+        @Override
+        public boolean replace(final K key, final V oldValue, final V newValue) {
+            requireInRange(key);
+            return m.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public V replace(final K key, final V value) {
+            requireInRange(key);
+            return m.replace(key, value);
+        }
+
+        //////// ConcurrentNavigableMap
+
+        @Override
+        public SubMap<K,V> subMap(final K fromKey,
+                                  final boolean fromInclusive,
+                                  final K toKey,
+                                  final boolean toInclusive) {
+            requireKey(fromKey);
+            requireKey(toKey);
+            return subMapImpl(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        @Override
+        public SubMap<K,V> headMap(final K toKey, final boolean inclusive) {
+            requireKey(toKey);
+            return subMapImpl(null, false, toKey, inclusive);
+        }
+
+        @Override
+        public SubMap<K,V> tailMap(final K fromKey, final boolean inclusive) {
+            requireKey(fromKey);
+            return subMapImpl(fromKey, inclusive, null, false);
+        }
+
+        @Override
+        public SubMap<K,V> subMap(final K fromKey, final K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SubMap<K,V> headMap(final K toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SubMap<K,V> tailMap(final K fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        private SubMap<K,V> subMapImpl(final K fromKey,
+                                       final boolean fromIncl,
+                                       final K toKey,
+                                       final boolean toIncl) {
+            if (fromKey != null) {
+                requireInRange(fromKey);
+            }
+            if (toKey != null) {
+                requireInRange(toKey);
+            }
+            return subMapInRange(fromKey, fromIncl, toKey, toIncl);
+        }
+
+        private SubMap<K,V> subMapInRange(final K fromKey,
+                                          final boolean fromIncl,
+                                          final K toKey,
+                                          final boolean toIncl) {
+            if (fromKey != null && toKey != null) {
+                final int c = m.compare(fromKey, toKey);
+                if ((!descending ? c > 0 : c < 0)) {
+                    throw new IllegalArgumentException();
+                }
+            }
+
+            K minK = minKey;
+            boolean minI = minIncl;
+            K maxK = maxKey;
+            boolean maxI = maxIncl;
+
+            if (fromKey != null) {
+                if (!descending) {
+                    minK = fromKey;
+                    minI = fromIncl;
+                } else {
+                    maxK = fromKey;
+                    maxI = fromIncl;
+                }
+            }
+            if (toKey != null) {
+                if (!descending) {
+                    maxK = toKey;
+                    maxI = toIncl;
+                } else {
+                    minK = toKey;
+                    minI = toIncl;
+                }
+            }
+
+            return new SubMap<K,V>(m, minK, minI, maxK, maxI, descending);
+        }
+
+        @Override
+        public SubMap<K,V> descendingMap() {
+            return new SubMap<K,V>(m, minKey, minIncl, maxKey, maxIncl, !descending);
+        }
+
+        @Override
+        public NavigableSet<K> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            return new SnapTreeMap.KeySet<K>(SubMap.this) {
+                public Iterator<K> iterator() {
+                    return new KeyIter<K>(m.entryIterator(minKey, minIncl, maxKey, maxIncl, descending));
+                }
+            };
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+    }
+
+    //////////////// Serialization
+
+    /** Saves the boundaries and a consistent copy of the entries. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        // this handles the comparator, and any subclass stuff
+        xo.defaultWriteObject();
+
+        final ShardedSnapTreeMap<K,V> frozen = clone();
+        final Layout<K,V> l = frozen.layout;
+        xo.writeInt(l.splits.length);
+        for (Object split : l.splits) {
+            xo.writeObject(split);
+        }
+        for (Shard<K,V> shard : l.shards) {
+            xo.writeInt(shard.map.size());
+            for (Map.Entry<K,V> e : shard.map.entrySet()) {
+                xo.writeObject(e.getKey());
+                xo.writeObject(e.getValue());
+            }
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        final Object[] splits = new Object[xi.readInt()];
+        for (int i = 0; i < splits.length; ++i) {
+            splits[i] = xi.readObject();
+        }
+        init(splits);
+        for (Shard<K,V> shard : layout.shards) {
+            final int size = xi.readInt();
+            for (int i = 0; i < size; ++i) {
+                shard.map.put((K) xi.readObject(), (V) xi.readObject());
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** A concurrent deque backed by a radix-32 trie, with fast cloning,
+ *  snapshots, and consistent iteration.  Like {@link SnapTreeMap}, clone,
+ *  size, toArray, and iteration are linearizable (atomic), and the clone
+ *  shares structure with the original until one of them is modified.
+ *
+ *  <p>The peek methods are lock free.  Writers to a single instance are
+ *  serialized.  Insertion and removal at either end are amortized
+ *  O(log<sub>32</sub> n), and the trie is lowered as elements are removed,
+ *  so a long-lived queue does not accumulate empty levels.  Null elements
+ *  are not permitted.
+ *
+ *  <p>Iterators traverse a snapshot of the deque, so they never throw
+ *  <code>ConcurrentModificationException</code>.  They do not support
+ *  removal.
+ *
+ *  @author agent
+ */
+public class SnapArrayDeque<E> extends AbstractCollection<E> implements Deque<E>, Cloneable, Serializable {
+    private static final long serialVersionUID = 2790139245627391463L;
+
+    private transient volatile ArrayTrie.COWMgr holderRef;
+
+    public SnapArrayDeque() {
+        this.holderRef = new ArrayTrie.COWMgr();
+    }
+
+    public SnapArrayDeque(final Collection<? extends E> source) {
+        final ArrayTrie trie = new ArrayTrie();
+        int size = 0;
+        synchronized (trie) {
+            for (E e : source) {
+                trie.addLast(encode(e));
+                ++size;
+            }
+        }
+        this.holderRef = new ArrayTrie.COWMgr(trie, size);
+    }
+
+    private static Object encode(final Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapArrayDeque<E> clone() {
+        final SnapArrayDeque<E> copy;
+        try {
+            copy = (SnapArrayDeque<E>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.holderRef = (ArrayTrie.COWMgr) holderRef.clone();
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return holderRef.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return holderRef.read().isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        holderRef = new ArrayTrie.COWMgr();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o != null && holderRef.frozen().indexOf(o, false) >= 0;
+    }
+
+    //////// insertion
+
+    private void addImpl(final Object x, final boolean first) {
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                if (first) {
+                    trie.addFirst(x);
+                } else {
+                    trie.addLast(x);
+                }
+                sd = 1;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    public void addFirst(final E e) {
+        addImpl(encode(e), true);
+    }
+
+    public void addLast(final E e) {
+        addImpl(encode(e), false);
+    }
+
+    public boolean offerFirst(final E e) {
+        addFirst(e);
+        return true;
+    }
+
+    public boolean offerLast(final E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public boolean add(final E e) {
+        addLast(e);
+        return true;
+    }
+
+    public boolean offer(final E e) {
+        return offerLast(e);
+    }
+
+    public void push(final E e) {
+        addFirst(e);
+    }
+
+    //////// removal
+
+    @SuppressWarnings("unchecked")
+    private E pollImpl(final boolean first) {
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                final E prev = (E) (first ? trie.pollFirst() : trie.pollLast());
+                if (prev != null) {
+                    sd = -1;
+                }
+                return prev;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    public E pollFirst() {
+        return pollImpl(true);
+    }
+
+    public E pollLast() {
+        return pollImpl(false);
+    }
+
+    public E removeFirst() {
+        return orThrow(pollFirst());
+    }
+
+    public E removeLast() {
+        return orThrow(pollLast());
+    }
+
+    public E poll() {
+        return pollFirst();
+    }
+
+    public E remove() {
+        return removeFirst();
+    }
+
+    public E pop() {
+        return removeFirst();
+    }
+
+    private boolean removeOccurrence(final Object o, final boolean last) {
+        if (o == null) {
+            return false;
+        }
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                final int i = trie.indexOf(o, last);
+                if (i < 0) {
+                    return false;
+                }
+                trie.removeAt(i);
+                sd = -1;
+                return true;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    public boolean removeFirstOccurrence(final Object o) {
+        return removeOccurrence(o, false);
+    }
+
+    public boolean removeLastOccurrence(final Object o) {
+        return removeOccurrence(o, true);
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    //////// examination
+
+    @SuppressWarnings("unchecked")
+    public E peekFirst() {
+        return (E) holderRef.read().get(0, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peekLast() {
+        return (E) holderRef.read().get(0, true);
+    }
+
+    public E getFirst() {
+        return orThrow(peekFirst());
+    }
+
+    public E getLast() {
+        return orThrow(peekLast());
+    }
+
+    public E peek() {
+        return peekFirst();
+    }
+
+    public E element() {
+        return getFirst();
+    }
+
+    private static <E> E orThrow(final E e) {
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    //////// iteration
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iter<E>(holderRef.frozen(), false);
+    }
+
+    public Iterator<E> descendingIterator() {
+        return new Iter<E>(holderRef.frozen(), true);
+    }
+
+    private static class Iter<E> implements Iterator<E> {
+        private final ArrayTrie.Cursor cursor;
+        private final boolean descending;
+
+        Iter(final ArrayTrie frozen, final boolean descending) {
+            this.cursor = new ArrayTrie.Cursor(frozen, descending ? frozen.size() : 0);
+            this.descending = descending;
+        }
+
+        public boolean hasNext() {
+            return descending ? cursor.hasPrevious() : cursor.hasNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            return (E) (descending ? cursor.previous() : cursor.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    //////// Serialization
+
+    /** Saves the state of the <code>SnapArrayDeque</code> to a stream. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        xo.defaultWriteObject();
+
+        final ArrayTrie frozen = holderRef.frozen();
+        final int size = frozen.size();
+        xo.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            xo.writeObject(frozen.getQuiesced(i));
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        final int size = xi.readInt();
+        final ArrayTrie trie = new ArrayTrie();
+        synchronized (trie) {
+            for (int i = 0; i < size; ++i) {
+                trie.addLast(encode(xi.readObject()));
+            }
+        }
+        holderRef = new ArrayTrie.COWMgr(trie, size);
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static edu.stanford.ppl.concurrent.SnapTreeMap.*;
+
+/** A concurrent hash trie with fast cloning, snapshots, and consistent
+ *  iteration.  This is the unordered counterpart of {@link SnapTreeMap}: it
+ *  honors all of the contracts of {@link
+ *  java.util.concurrent.ConcurrentHashMap}, with the additional contract that
+ *  clone, size, toArray, and iteration are linearizable (atomic).
+ *
+ *  <p>The map is a 32-way trie indexed by successive 5-bit slices of the
+ *  spread hash code.  Branches are mutable arrays of slots, and each slot
+ *  holds either nothing, a child branch, or an immutable leaf.  A leaf holds
+ *  a single entry, plus a list of entries whose hash codes are identical.
+ *  Point operations descend at most 7 branches and perform no comparisons
+ *  other than on entries with the same hash.
+ *
+ *  <p>Reads require no locks and no validation.  A branch is only ever
+ *  replaced by a copy with identical contents, and leaves are never
+ *  modified, so any reference a reader obtains describes the state of its
+ *  portion of the map at the moment it was read.  Updates lock only the
+ *  branch whose slot they change.  A branch that becomes empty is unlinked
+ *  from its parent while both are locked, after which updates that reach it
+ *  retry from the parent.
+ *
+ *  <p>Cloning uses the same copy-on-write scheme as <code>SnapTreeMap</code>.
+ *  {@link CopyOnWriteManager} marks the root branch as shared while no
+ *  updates are in progress, and the first update to pass through a shared
+ *  branch replaces it with a copy whose children are in turn marked as
+ *  shared.
+ *
+ *  @author agent
+ */
+public class SnapHashMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V>, Cloneable, Serializable {
+    private static final long serialVersionUID = -1722870961384021936L;
+
+    private static final int LOG_BF = 5;
+    private static final int BF = 1 << LOG_BF;
+    private static final int BF_MASK = BF - 1;
+
+    /** The largest shift needed to separate two different hash codes. */
+    private static final int MAX_SHIFT = 30;
+
+    private static final class Branch extends AtomicReferenceArray<Object> {
+        private static final long serialVersionUID = 6240181739564893137L;
+
+        /** Once set, this branch and everything reachable from it must not
+         *  be modified.
+         */
+        volatile boolean shared;
+
+        /** Set while locked, after this branch has been removed from its
+         *  parent.
+         */
+        volatile boolean unlinked;
+
+        Branch() {
+            super(BF);
+        }
+
+        /** Returns an unshared copy, marking the child branches as shared. */
+        Branch copy() {
+            final Branch b = new Branch();
+            for (int i = 0; i < BF; ++i) {
+                final Object x = get(i);
+                if (x instanceof Branch) {
+                    ((Branch) x).shared = true;
+                }
+                b.lazySet(i, x);
+            }
+            return b;
+        }
+
+        boolean isEmpty() {
+            for (int i = 0; i < BF; ++i) {
+                if (get(i) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** An immutable entry, linked to the other entries with the same hash. */
+    private static final class Leaf<K,V> implements Map.Entry<K,V> {
+        final K key;
+        final int hash;
+        final Object value;
+        final Leaf<K,V> next;
+
+        Leaf(final K key, final int hash, final Object value, final Leaf<K,V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        Leaf<K,V> find(final Object k, final int h) {
+            if (hash != h) {
+                return null;
+            }
+            Leaf<K,V> e = this;
+            while (e != null && !k.equals(e.key)) {
+                e = e.next;
+            }
+            return e;
+        }
+
+        /** Returns this list with <code>victim</code> removed, or with its
+         *  value replaced if <code>repl</code> is non-null.
+         */
+        Leaf<K,V> without(final Leaf<K,V> victim, final Object repl) {
+            if (this == victim) {
+                return repl == null ? next : new Leaf<K,V>(key, hash, repl, next);
+            }
+            return new Leaf<K,V>(key, hash, value, next.without(victim, repl));
+        }
+
+        @Override
+        public K getKey() { return key; }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getValue() { return (V) value; }
+
+        @Override
+        public V setValue(final V v) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?,?> rhs = (Map.Entry<?,?>)o;
+            return key.equals(rhs.getKey()) && value.equals(rhs.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static class COWMgr extends CopyOnWriteManager<Branch> {
+        COWMgr() {
+            super(new Branch(), 0);
+        }
+
+        COWMgr(final Branch initialValue, final int initialSize) {
+            super(initialValue, initialSize);
+        }
+
+        protected Branch freezeAndClone(final Branch value) {
+            value.shared = true;
+            return value.copy();
+        }
+
+        protected Branch cloneFrozen(final Branch frozenValue) {
+            return frozenValue.copy();
+        }
+    }
+
+    /** The supplemental hash function of <code>java.util.HashMap</code>,
+     *  which protects against hash codes that differ only in their upper
+     *  bits.
+     */
+    private static int hash(final Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static Object checkValue(final Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        return value;
+    }
+
+    //////////////// state
+
+    private transient volatile COWMgr holderRef;
+
+    //////////////// public interface
+
+    public SnapHashMap() {
+        this.holderRef = new COWMgr();
+    }
+
+    public SnapHashMap(final Map<? extends K, ? extends V> source) {
+        int size = 0;
+        final Branch root = new Branch();
+        for (Map.Entry<? extends K, ? extends V> e : source.entrySet()) {
+            final K k = e.getKey();
+            if (updateUnderRoot(k, hash(k), UpdateAlways, null, checkValue(e.getValue()), root) == null) {
+                ++size;
+            }
+        }
+        this.holderRef = new COWMgr(root, size);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapHashMap<K,V> clone() {
+        final SnapHashMap<K,V> copy;
+        try {
+            copy = (SnapHashMap<K,V>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.holderRef = (COWMgr) holderRef.clone();
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return holderRef.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // empty branches are unlinked, so this usually inspects only the root
+        return !containsLeaf(holderRef.read());
+    }
+
+    private static boolean containsLeaf(final Branch b) {
+        for (int i = 0; i < BF; ++i) {
+            final Object x = b.get(i);
+            if (x instanceof Leaf || (x instanceof Branch && containsLeaf((Branch) x))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        holderRef = new COWMgr();
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        checkValue(value);
+        return super.containsValue(value);
+    }
+
+    //////// search
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return getImpl(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        return (V) getImpl(key);
+    }
+
+    private Object getImpl(final Object key) {
+        final int h = hash(key);
+        Branch b = holderRef.read();
+        int shift = 0;
+        while (true) {
+            final Object x = b.get((h >>> shift) & BF_MASK);
+            if (x instanceof Branch) {
+                b = (Branch) x;
+                shift += LOG_BF;
+            } else if (x == null) {
+                return null;
+            } else {
+                final Leaf<?,?> e = ((Leaf<?,?>) x).find(key, h);
+                return e == null ? null : e.value;
+            }
+        }
+    }
+
+    //////// update
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(final K key, final V value) {
+        return (V) update(key, UpdateAlways, null, checkValue(value));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(final K key, final V value) {
+        return (V) update(key, UpdateIfAbsent, null, checkValue(value));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(final K key, final V value) {
+        return (V) update(key, UpdateIfPresent, null, checkValue(value));
+    }
+
+    @Override
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        return (Boolean) update(key, UpdateIfEq, checkValue(oldValue), checkValue(newValue));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        return (V) update(key, UpdateAlways, null, null);
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (value == null) {
+            return false;
+        }
+        return (Boolean) update(key, UpdateIfEq, value, null);
+    }
+
+    // manages the epoch
+    private Object update(final Object key,
+                          final int func,
+                          final Object expected,
+                          final Object newValue) {
+        final int h = hash(key);
+        int sd = 0;
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        try {
+            final Object result = updateUnderRoot(key, h, func, expected, newValue, holderRef.mutable());
+            sd = sizeDelta(func, result, newValue);
+            return result;
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    private Object updateUnderRoot(final Object key,
+                                   final int h,
+                                   final int func,
+                                   final Object expected,
+                                   final Object newValue,
+                                   final Branch root) {
+        // the root is never unlinked, so we never need to retry here
+        final Object result = attemptUpdate(key, h, func, expected, newValue, root, 0);
+        assert(result != SpecialRetry);
+        return result;
+    }
+
+    /** Performs the update in the subtree rooted at the unshared branch
+     *  <code>b</code>.  Returns SpecialRetry if <code>b</code> has been
+     *  unlinked.
+     */
+    private Object attemptUpdate(final Object key,
+                                 final int h,
+                                 final int func,
+                                 final Object expected,
+                                 final Object newValue,
+                                 final Branch b,
+                                 final int shift) {
+        final int which = (h >>> shift) & BF_MASK;
+        while (true) {
+            final Object x = b.get(which);
+            if (x instanceof Branch) {
+                final Branch child = unsharedChild(b, which, (Branch) x);
+                if (child == null) {
+                    if (b.unlinked) {
+                        return SpecialRetry;
+                    }
+                    // else RETRY
+                    continue;
+                }
+                final Object result = attemptUpdate(key, h, func, expected, newValue, child, shift + LOG_BF);
+                if (result == SpecialRetry) {
+                    // child was unlinked, RETRY
+                    continue;
+                }
+                if (newValue == null && child.isEmpty()) {
+                    attemptUnlink(b, which, child);
+                }
+                return result;
+            } else {
+                @SuppressWarnings("unchecked")
+                final Leaf<K,V> leaf = (Leaf<K,V>) x;
+                final Object result = attemptLeafUpdate(key, h, func, expected, newValue, b, which, shift, leaf);
+                if (result != SpecialRetry || b.unlinked) {
+                    return result;
+                }
+                // else RETRY
+            }
+        }
+    }
+
+    /** Returns the unshared branch in <code>b</code>'s slot, copying it if
+     *  necessary, or null if the slot has changed.
+     */
+    private static Branch unsharedChild(final Branch b, final int which, final Branch child) {
+        if (!child.shared) {
+            return child;
+        }
+        synchronized (b) {
+            if (b.unlinked || b.get(which) != child) {
+                return null;
+            }
+            final Branch repl = child.copy();
+            b.set(which, repl);
+            return repl;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object attemptLeafUpdate(final Object key,
+                                     final int h,
+                                     final int func,
+                                     final Object expected,
+                                     final Object newValue,
+                                     final Branch b,
+                                     final int which,
+                                     final int shift,
+                                     final Leaf<K,V> leaf) {
+        synchronized (b) {
+            if (b.unlinked || b.get(which) != leaf) {
+                return SpecialRetry;
+            }
+
+            final Leaf<K,V> prevLeaf = leaf == null ? null : leaf.find(key, h);
+            final Object prev = prevLeaf == null ? null : prevLeaf.value;
+            if (!shouldUpdate(func, prev, expected)) {
+                return noUpdateResult(func, prev);
+            }
+
+            if (prevLeaf != null) {
+                b.set(which, leaf.without(prevLeaf, newValue));
+            } else if (newValue != null) {
+                if (leaf == null || leaf.hash == h) {
+                    b.set(which, new Leaf<K,V>((K) key, h, newValue, leaf));
+                } else {
+                    b.set(which, split(leaf, new Leaf<K,V>((K) key, h, newValue, null), shift + LOG_BF));
+                }
+            }
+            return updateResult(func, prev);
+        }
+    }
+
+    /** Returns a new branch that separates two leaves with different
+     *  hashes.
+     */
+    private static Branch split(final Leaf<?,?> a, final Leaf<?,?> b, final int shift) {
+        assert(shift <= MAX_SHIFT);
+        final Branch result = new Branch();
+        final int ia = (a.hash >>> shift) & BF_MASK;
+        final int ib = (b.hash >>> shift) & BF_MASK;
+        if (ia != ib) {
+            result.lazySet(ia, a);
+            result.lazySet(ib, b);
+        } else {
+            result.lazySet(ia, split(a, b, shift + LOG_BF));
+        }
+        return result;
+    }
+
+    private static void attemptUnlink(final Branch parent, final int which, final Branch child) {
+        synchronized (parent) {
+            if (parent.unlinked || parent.get(which) != child) {
+                return;
+            }
+            synchronized (child) {
+                if (child.isEmpty()) {
+                    child.unlinked = true;
+                    parent.set(which, null);
+                }
+            }
+        }
+    }
+
+    //////////////// Map views
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySet();
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+
+        @Override
+        public int size() {
+            return SnapHashMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return SnapHashMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            SnapHashMap.this.clear();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            final Object v = ((Map.Entry<?,?>)o).getValue();
+            final Object actual = SnapHashMap.this.getImpl(k);
+            return actual != null && actual.equals(v);
+        }
+
+        @Override
+        public boolean add(final Entry<K,V> e) {
+            final Object v = checkValue(e.getValue());
+            return update(e.getKey(), UpdateAlways, null, v) != v;
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            final Object v = ((Map.Entry<?,?>)o).getValue();
+            return SnapHashMap.this.remove(k, v);
+        }
+
+        @Override
+        public Iterator<Entry<K,V>> iterator() {
+            return new EntryIter<K,V>(SnapHashMap.this);
+        }
+    }
+
+    private static class EntryIter<K,V> implements Iterator<Map.Entry<K,V>> {
+        private final SnapHashMap<K,V> m;
+        private final Branch[] path = new Branch[1 + MAX_SHIFT / LOG_BF + 1];
+        private final int[] pos = new int[path.length];
+        private int depth;
+        private Leaf<K,V> nextLeaf;
+        private Leaf<K,V> mostRecentLeaf;
+
+        EntryIter(final SnapHashMap<K,V> m) {
+            this.m = m;
+            path[0] = m.holderRef.frozen();
+            depth = 1;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            if (nextLeaf != null && nextLeaf.next != null) {
+                nextLeaf = nextLeaf.next;
+                return;
+            }
+            while (depth > 0) {
+                final int d = depth - 1;
+                if (pos[d] == BF) {
+                    path[d] = null;
+                    --depth;
+                    continue;
+                }
+                final Object x = path[d].get(pos[d]++);
+                if (x instanceof Branch) {
+                    path[depth] = (Branch) x;
+                    pos[depth] = 0;
+                    ++depth;
+                } else if (x != null) {
+                    nextLeaf = (Leaf<K,V>) x;
+                    return;
+                }
+            }
+            nextLeaf = null;
+        }
+
+        public boolean hasNext() {
+            return nextLeaf != null;
+        }
+
+        public Map.Entry<K,V> next() {
+            if (nextLeaf == null) {
+                throw new NoSuchElementException();
+            }
+            mostRecentLeaf = nextLeaf;
+            advance();
+            return mostRecentLeaf;
+        }
+
+        public void remove() {
+            if (mostRecentLeaf == null) {
+                throw new IllegalStateException();
+            }
+            m.remove(mostRecentLeaf.key);
+            mostRecentLeaf = null;
+        }
+    }
+
+    //////// Serialization
+
+    /** Saves the state of the <code>SnapHashMap</code> to a stream. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        xo.defaultWriteObject();
+
+        // by cloning the COWMgr, we get a frozen trie plus the size
+        final COWMgr h = (COWMgr) holderRef.clone();
+
+        xo.writeInt(h.size());
+        writeBranch(xo, h.frozen());
+    }
+
+    private void writeBranch(final ObjectOutputStream xo, final Branch b) throws IOException {
+        for (int i = 0; i < BF; ++i) {
+            final Object x = b.get(i);
+            if (x instanceof Branch) {
+                writeBranch(xo, (Branch) x);
+            } else {
+                for (Leaf<?,?> e = (Leaf<?,?>) x; e != null; e = e.next) {
+                    xo.writeObject(e.key);
+                    xo.writeObject(e.value);
+                }
+            }
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        final int size = xi.readInt();
+        final Branch root = new Branch();
+        for (int i = 0; i < size; ++i) {
+            final Object k = xi.readObject();
+            final Object v = xi.readObject();
+            updateUnderRoot(k, hash(k), UpdateAlways, null, checkValue(v), root);
+        }
+
+        holderRef = new COWMgr(root, size);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/** A {@link SnapTreeMap} from primary keys to rows that also maintains any
+ *  number of secondary indexes over the rows.  Each {@link Index} extracts
+ *  an index key from a row; {@link #select} then finds the rows whose index
+ *  key matches or lies in a range, in O((m + 1) log n) time for m results:
+ *  each result costs a successor search in the index tree and a lookup of
+ *  its row in the primary tree.
+ *
+ *  <p>Each secondary index is a tree of (index key, primary key) pairs that
+ *  lives in the same root holder as the primary tree, so all of the trees
+ *  are managed by a single {@link CopyOnWriteManager}.  A row update
+ *  changes the primary tree and every index inside one mutation ticket, and
+ *  a clone freezes all of them at the same instant.  Use {@link #clone} to
+ *  obtain a snapshot in which every index agrees exactly with the rows.
+ *  Selects against a table that is being modified are weakly consistent:
+ *  each returned row was current at some point during the select, and is
+ *  returned only if it matched the index at that time.
+ *
+ *  @author agent
+ */
+public class SnapIndexedTable<K,R> extends SnapTreeMap<K,R> {
+    private static final long serialVersionUID = -2781659468270380914L;
+
+    /** A secondary index of a {@link SnapIndexedTable}.  Subclasses define
+     *  {@link #keyOf}, which must be a pure function of the row that neither
+     *  blocks nor throws, because it is called while holding internal locks.
+     *  A null index key leaves the row out of the index.  Index keys are
+     *  ordered by the comparator passed to the constructor, or by their
+     *  natural ordering.  Index instances may be shared by several tables,
+     *  and must be serializable if the table is.
+     */
+    public abstract static class Index<R,I> implements Serializable {
+        private static final long serialVersionUID = -4196385216709251530L;
+
+        private final Comparator<? super I> comparator;
+
+        protected Index() {
+            this.comparator = null;
+        }
+
+        protected Index(final Comparator<? super I> comparator) {
+            this.comparator = comparator;
+        }
+
+        public Comparator<? super I> comparator() {
+            return comparator;
+        }
+
+        /** Returns the index key for <code>row</code>, or null. */
+        public abstract I keyOf(R row);
+    }
+
+    public SnapIndexedTable(final Index<? super R,?> index) {
+        this(null, index);
+    }
+
+    public SnapIndexedTable(final Comparator<? super K> comparator, final Index<? super R,?> index) {
+        this(comparator, Collections.singletonList(index));
+    }
+
+    public SnapIndexedTable(final List<? extends Index<? super R,?>> indexes) {
+        this(null, indexes);
+    }
+
+    public SnapIndexedTable(final Comparator<? super K> comparator,
+                            final List<? extends Index<? super R,?>> indexes) {
+        super(comparator, toArray(indexes));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> Index<? super R,?>[] toArray(final List<? extends Index<? super R,?>> indexes) {
+        return (Index<? super R,?>[]) indexes.toArray(new Index<?,?>[indexes.size()]);
+    }
+
+    @Override
+    public SnapIndexedTable<K,R> clone() {
+        return (SnapIndexedTable<K,R>) super.clone();
+    }
+
+    /** Returns the entries whose rows have the index key <code>key</code>,
+     *  in primary key order.
+     */
+    public <I> List<Map.Entry<K,R>> select(final Index<? super R,I> index, final I key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        return indexLookup(indexPosition(index), key, true, key, true, Integer.MAX_VALUE);
+    }
+
+    /** Returns the entries whose rows have index keys in the given range,
+     *  ordered by index key and then by primary key.  A null bound is
+     *  unbounded.
+     */
+    public <I> List<Map.Entry<K,R>> select(final Index<? super R,I> index,
+                                          final I fromKey,
+                                          final boolean fromInclusive,
+                                          final I toKey,
+                                          final boolean toInclusive) {
+        return indexLookup(indexPosition(index), fromKey, fromInclusive, toKey, toInclusive, Integer.MAX_VALUE);
+    }
+
+    /** Returns the entry with the smallest primary key among those whose
+     *  rows have the index key <code>key</code>, or null if there is none.
+     */
+    public <I> Map.Entry<K,R> selectFirst(final Index<? super R,I> index, final I key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        final List<Map.Entry<K,R>> found = indexLookup(indexPosition(index), key, true, key, true, 1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.Comparator;
+
+/** A {@link SnapTreeMap} that can summarize any range of its entries in
+ *  O(log n) time, using a user-supplied associative {@link Aggregator}.
+ *  Range summaries are computed against a consistent snapshot of the map.
+ *
+ *  <p>Each node caches the summary of its subtree.  The caches are filled
+ *  lazily by queries, which run against a frozen snapshot, and cleared by
+ *  writers along the paths that they modify, so writes pay only for an
+ *  extra field write per level.  The first query after a batch of writes
+ *  also recomputes the summaries that those writes cleared, which is
+ *  O(log n) work per write.
+ *
+ *  @author agent
+ */
+public class SnapTreeAggregateMap<K,V,A> extends SnapTreeMap<K,V> {
+    private static final long serialVersionUID = -6039150818546913257L;
+
+    private final Aggregator<? super K,? super V,A> aggregator;
+
+    public SnapTreeAggregateMap(final Aggregator<? super K,? super V,A> aggregator) {
+        if (aggregator == null) {
+            throw new NullPointerException();
+        }
+        this.aggregator = aggregator;
+    }
+
+    public SnapTreeAggregateMap(final Comparator<? super K> comparator,
+                                final Aggregator<? super K,? super V,A> aggregator) {
+        super(comparator);
+        if (aggregator == null) {
+            throw new NullPointerException();
+        }
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    boolean usesSubtreeAggregates() {
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapTreeAggregateMap<K,V,A> clone() {
+        return (SnapTreeAggregateMap<K,V,A>) super.clone();
+    }
+
+    public Aggregator<? super K,? super V,A> aggregator() {
+        return aggregator;
+    }
+
+    /** Returns the summary of all of the entries of a snapshot. */
+    public A aggregate() {
+        return aggregateFrozen(aggregator, null, false, null, false);
+    }
+
+    /** Returns the summary of the entries of a snapshot whose keys lie in the
+     *  given range.  An empty range has the aggregator's identity as its
+     *  summary.
+     */
+    public A aggregate(final K fromKey, final boolean fromInclusive, final K toKey, final boolean toInclusive) {
+        if (fromKey == null || toKey == null) {
+            throw new NullPointerException();
+        }
+        return aggregateFrozen(aggregator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /** Returns the summary of the entries with keys in
+     *  <code>[fromKey, toKey)</code>.
+     */
+    public A aggregate(final K fromKey, final K toKey) {
+        return aggregate(fromKey, true, toKey, false);
+    }
+
+    /** Returns the summary of the entries with keys less than (or equal to,
+     *  if <code>inclusive</code> is true) <code>toKey</code>.
+     */
+    public A headAggregate(final K toKey, final boolean inclusive) {
+        if (toKey == null) {
+            throw new NullPointerException();
+        }
+        return aggregateFrozen(aggregator, null, false, toKey, inclusive);
+    }
+
+    /** Returns the summary of the entries with keys greater than (or equal
+     *  to, if <code>inclusive</code> is true) <code>fromKey</code>.
+     */
+    public A tailAggregate(final K fromKey, final boolean inclusive) {
+        if (fromKey == null) {
+            throw new NullPointerException();
+        }
+        return aggregateFrozen(aggregator, fromKey, inclusive, null, false);
+    }
+}
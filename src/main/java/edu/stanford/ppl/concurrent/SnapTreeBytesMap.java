@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Map;
+
+/** A {@link SnapTreeMap} whose keys are byte arrays, ordered
+ *  lexicographically as unsigned bytes.  Keys are compared eight bytes at
+ *  a time, as unsigned <code>long</code>s, and each node caches the first
+ *  eight bytes of its key so that most of the comparisons in a search
+ *  don't need to load the key array at all.  <code>get</code> and
+ *  <code>containsKey</code> compare the caller's key directly, without
+ *  allocating a search key.
+ *
+ *  <p><code>get</code>, <code>containsKey</code>, and <code>remove</code>
+ *  also accept a {@link ByteBuffer}, whose remaining bytes are used as the
+ *  key without being copied, so a key can be looked up directly from a
+ *  slice of a larger buffer.  Stored keys are always arrays, since a slice
+ *  would keep its whole buffer reachable; {@link #put(ByteBuffer,Object)}
+ *  copies the key once.  Key arrays must not be modified after they are
+ *  inserted.
+ *
+ *  @author agent
+ */
+public class SnapTreeBytesMap<V> extends SnapTreeMap<byte[],V> {
+    private static final long serialVersionUID = 7263491855087164502L;
+
+    /** A {@link SnapTreeMap.KeyHasher} for the Bloom filter of a
+     *  <code>SnapTreeBytesMap</code>, which hashes the contents of arrays
+     *  and buffers consistently.
+     */
+    public static final KeyHasher<Object> BytesHasher = new KeyHasher<Object>() {
+        public int hash(final Object key) {
+            int h = 1;
+            if (key instanceof byte[]) {
+                for (byte b : (byte[]) key) {
+                    h = 31 * h + b;
+                }
+            } else {
+                final ByteBuffer buf = (ByteBuffer) key;
+                for (int i = buf.position(); i < buf.limit(); ++i) {
+                    h = 31 * h + buf.get(i);
+                }
+            }
+            return h;
+        }
+    };
+
+    public SnapTreeBytesMap() {
+        super(BytesComparator.Instance);
+    }
+
+    public SnapTreeBytesMap(final Map<byte[],? extends V> source) {
+        super(BytesComparator.Instance);
+        putAll(source);
+    }
+
+    /** Associates <code>value</code> with a copy of the remaining bytes of
+     *  <code>key</code>.  The buffer's position is not changed.
+     */
+    public V put(final ByteBuffer key, final V value) {
+        return put(toArray(key), value);
+    }
+
+    @Override
+    public SnapTreeBytesMap<V> clone() {
+        return (SnapTreeBytesMap<V>) super.clone();
+    }
+
+    @Override
+    Comparable<? super byte[]> comparable(final Object key) {
+        if (key instanceof byte[]) {
+            final byte[] a = (byte[]) key;
+            return new SearchKey(a, 0, a.length, null);
+        }
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        final ByteBuffer buf = (ByteBuffer) key;
+        if (buf.hasArray()) {
+            return new SearchKey(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), null);
+        }
+        return new SearchKey(null, buf.position(), buf.remaining(), buf);
+    }
+
+    @Override
+    long lookupPrefix(final Object key) {
+        if (key instanceof byte[]) {
+            final byte[] a = (byte[]) key;
+            return prefix(a, 0, a.length);
+        }
+        final ByteBuffer buf = (ByteBuffer) key;
+        if (buf.hasArray()) {
+            return prefix(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        return prefix(buf, buf.position(), buf.remaining());
+    }
+
+    private static byte[] toArray(final ByteBuffer buf) {
+        final byte[] a = new byte[buf.remaining()];
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + buf.position(), a, 0, a.length);
+        } else {
+            for (int i = 0; i < a.length; ++i) {
+                a[i] = buf.get(buf.position() + i);
+            }
+        }
+        return a;
+    }
+
+    //////////////// comparison
+
+    /** A lookup key, which is either a range of an array or (if the
+     *  buffer isn't backed by an accessible array) the remaining bytes of a
+     *  buffer.
+     */
+    private static final class SearchKey extends PrefixKey<byte[]> {
+        private final byte[] array;
+        private final int offset;
+        private final int length;
+        private final ByteBuffer buffer;
+
+        SearchKey(final byte[] array, final int offset, final int length, final ByteBuffer buffer) {
+            super(array != null ? prefix(array, offset, length) : prefix(buffer, offset, length));
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+            this.buffer = buffer;
+        }
+
+        public int compareTo(final byte[] rhs) {
+            if (array != null) {
+                return compare(array, offset, length, rhs, 0, rhs.length);
+            } else {
+                return compare(buffer, offset, length, rhs);
+            }
+        }
+    }
+
+    /** Orders byte arrays and the remaining bytes of buffers
+     *  lexicographically as unsigned bytes.
+     */
+    private static final class BytesComparator implements Comparator<Object>, Serializable {
+        private static final long serialVersionUID = -5286303717307712598L;
+
+        static final BytesComparator Instance = new BytesComparator();
+
+        public int compare(final Object lhs, final Object rhs) {
+            if (lhs instanceof byte[] && rhs instanceof byte[]) {
+                final byte[] a = (byte[]) lhs;
+                final byte[] b = (byte[]) rhs;
+                return SnapTreeBytesMap.compare(a, 0, a.length, b, 0, b.length);
+            }
+            if (lhs instanceof byte[]) {
+                return -compare(rhs, lhs);
+            }
+            final ByteBuffer buf = (ByteBuffer) lhs;
+            final byte[] b = rhs instanceof byte[] ? (byte[]) rhs : toArray((ByteBuffer) rhs);
+            if (buf.hasArray()) {
+                return SnapTreeBytesMap.compare(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(),
+                        b, 0, b.length);
+            }
+            return SnapTreeBytesMap.compare(buf, buf.position(), buf.remaining(), b);
+        }
+
+        private Object readResolve() {
+            return Instance;
+        }
+    }
+
+    /** Returns the first eight bytes of the key, zero padded, as an
+     *  unsigned big-endian <code>long</code> with its sign bit flipped, so
+     *  that a signed comparison of prefixes agrees with the key order.
+     */
+    private static long prefix(final byte[] a, final int offset, final int length) {
+        if (length >= 8) {
+            return getLong(a, offset) ^ Long.MIN_VALUE;
+        }
+        long z = 0;
+        for (int i = 0; i < 8; ++i) {
+            z = (z << 8) | (i < length ? a[offset + i] & 0xffL : 0L);
+        }
+        return z ^ Long.MIN_VALUE;
+    }
+
+    private static long prefix(final ByteBuffer buf, final int offset, final int length) {
+        long z = 0;
+        for (int i = 0; i < 8; ++i) {
+            z = (z << 8) | (i < length ? buf.get(offset + i) & 0xffL : 0L);
+        }
+        return z ^ Long.MIN_VALUE;
+    }
+
+    private static long getLong(final byte[] a, final int i) {
+        return ((long) a[i] << 56)
+                | ((a[i + 1] & 0xffL) << 48)
+                | ((a[i + 2] & 0xffL) << 40)
+                | ((a[i + 3] & 0xffL) << 32)
+                | ((a[i + 4] & 0xffL) << 24)
+                | ((a[i + 5] & 0xffL) << 16)
+                | ((a[i + 6] & 0xffL) << 8)
+                | (a[i + 7] & 0xffL);
+    }
+
+    static int compare(final byte[] a, final int aOffset, final int aLength,
+                       final byte[] b, final int bOffset, final int bLength) {
+        final int n = Math.min(aLength, bLength);
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            final long x = getLong(a, aOffset + i);
+            final long y = getLong(b, bOffset + i);
+            if (x != y) {
+                return (x ^ Long.MIN_VALUE) < (y ^ Long.MIN_VALUE) ? -1 : 1;
+            }
+        }
+        for (; i < n; ++i) {
+            final int x = a[aOffset + i] & 0xff;
+            final int y = b[bOffset + i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private static int compare(final ByteBuffer a, final int aOffset, final int aLength, final byte[] b) {
+        final int n = Math.min(aLength, b.length);
+        for (int i = 0; i < n; ++i) {
+            final int x = a.get(aOffset + i) & 0xff;
+            final int y = b[i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return aLength - b.length;
+    }
+}
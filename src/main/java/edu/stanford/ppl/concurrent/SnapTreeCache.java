@@ -0,0 +1,637 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A concurrent sorted map with a maximum size or total weight, which
+ *  evicts the entries least likely to be used again.  The entries are
+ *  stored in a {@link SnapTreeMap}, so the cache keeps its ordered
+ *  navigation and its O(1) snapshots: {@link #snapshot} returns an
+ *  independent <code>SnapTreeMap</code> from which range queries and
+ *  iteration see a consistent state of the cache.
+ *
+ *  <p>The eviction policy is sampled LFU with TinyLFU admission.  Access
+ *  frequencies are estimated with a count-min sketch of 4-bit counters
+ *  that are periodically halved, so the estimate favors recent history.
+ *  When the cache is over its bound a handful of entries are sampled from
+ *  the tree and the least frequently used is evicted, unless the entry
+ *  that was just inserted is used even less, in which case the newcomer is
+ *  evicted instead.  No list of entries is maintained, so there is no
+ *  lock on the read or write path.
+ *
+ *  <p>Reads record their key in a striped, lossy buffer, and inserts
+ *  record theirs in a queue.  The buffers are drained into the sketch and
+ *  the bound is enforced by whichever thread finds them full and can
+ *  acquire the eviction lock without waiting.  A writer that finds the
+ *  insert queue very long waits for the lock, so eviction can't fall
+ *  arbitrarily far behind.  The cache may therefore be briefly over its
+ *  bound, and {@link #cleanUp} can be called to perform the pending work
+ *  immediately.  Navigation methods, snapshots and iteration don't count
+ *  as accesses.
+ *
+ *  <p>The sketch hashes keys with <code>hashCode()</code>, so if the map's
+ *  ordering is not consistent with <code>equals</code> the policy will be
+ *  less accurate, but the map will still be correct.  Null keys and
+ *  values are not permitted.
+ *
+ *  @author agent
+ */
+public class SnapTreeCache<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+
+    /** Computes the weight of an entry for {@link SnapTreeCache}.  The
+     *  weight of an entry must not change while it is in the cache.
+     */
+    public interface Weigher<K,V> {
+        int weigh(K key, V value);
+    }
+
+    private static final Weigher<Object,Object> UnitWeigher = new Weigher<Object,Object>() {
+        public int weigh(final Object key, final Object value) {
+            return 1;
+        }
+    };
+
+    /** The number of entries examined to choose a victim. */
+    private static final int SampleSize = 8;
+
+    /** Writers wait for the eviction lock once this many inserts are
+     *  waiting to be processed.
+     */
+    private static final int MaxPendingWrites = 1024;
+
+    private static final int ReadBufferStripes = Math.min(64,
+            Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    private final SnapTreeMap<K,V> map;
+    private final long maximumWeight;
+    private final Weigher<? super K,? super V> weigher;
+
+    private final AtomicLong weight = new AtomicLong();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[ReadBufferStripes];
+    private final ConcurrentLinkedQueue<K> writeBuffer = new ConcurrentLinkedQueue<K>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /** Guarded by <code>evictionLock</code>. */
+    private final FrequencySketch sketch = new FrequencySketch();
+    /** Guarded by <code>evictionLock</code>. */
+    private final Random random = new Random();
+
+    /** Constructs an empty cache that holds at most
+     *  <code>maximumSize</code> entries.
+     */
+    public SnapTreeCache(final long maximumSize) {
+        this(null, maximumSize, UnitWeigher);
+    }
+
+    public SnapTreeCache(final Comparator<? super K> comparator, final long maximumSize) {
+        this(comparator, maximumSize, UnitWeigher);
+    }
+
+    /** Constructs an empty cache whose entries have a total weight of at
+     *  most <code>maximumWeight</code>, as computed by
+     *  <code>weigher</code>.
+     */
+    public SnapTreeCache(final Comparator<? super K> comparator,
+                         final long maximumWeight,
+                         final Weigher<? super K,? super V> weigher) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (weigher == null) {
+            throw new NullPointerException();
+        }
+        this.map = new SnapTreeMap<K,V>(comparator);
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        for (int i = 0; i < ReadBufferStripes; ++i) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    public Comparator<? super K> comparator() {
+        return map.comparator();
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /** Returns the total weight of the entries, which is the same as
+     *  <code>size()</code> if there is no weigher.
+     */
+    public long weightedSize() {
+        return weight.get();
+    }
+
+    /** Returns a snapshot of the entries of this cache.  The snapshot is
+     *  taken in O(1) time, and is unaffected by later updates and evictions
+     *  in the cache, or vice versa.
+     */
+    public SnapTreeMap<K,V> snapshot() {
+        return map.clone();
+    }
+
+    private int weigh(final K key, final V value) {
+        final int w = weigher.weigh(key, value);
+        if (w < 0) {
+            throw new IllegalArgumentException("negative weight");
+        }
+        return w;
+    }
+
+    //////////////// Map and ConcurrentMap
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public V get(final Object key) {
+        final V v = map.get(key);
+        if (v != null) {
+            afterRead(key);
+        }
+        return v;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        final int w = weigh(key, value);
+        final V prev = map.put(key, value);
+        afterWrite(key, w - (prev == null ? 0 : weigh(key, prev)), prev == null);
+        return prev;
+    }
+
+    public V putIfAbsent(final K key, final V value) {
+        final int w = weigh(key, value);
+        final V prev = map.putIfAbsent(key, value);
+        if (prev == null) {
+            afterWrite(key, w, true);
+        } else {
+            afterRead(key);
+        }
+        return prev;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        final V prev = map.remove(key);
+        if (prev != null) {
+            weight.addAndGet(-weigh((K) key, prev));
+        }
+        return prev;
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean remove(final Object key, final Object value) {
+        // an equal value may still have a different weight, so we weigh the
+        // one that was actually removed
+        final V prev = map.replaceIfEqual(key, value, null);
+        if (prev == null) {
+            return false;
+        }
+        weight.addAndGet(-weigh((K) key, prev));
+        return true;
+    }
+
+    public V replace(final K key, final V value) {
+        final int w = weigh(key, value);
+        final V prev = map.replace(key, value);
+        if (prev != null) {
+            afterWrite(key, w - weigh(key, prev), false);
+        }
+        return prev;
+    }
+
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        if (newValue == null) {
+            throw new NullPointerException();
+        }
+        final int w = weigh(key, newValue);
+        final V prev = map.replaceIfEqual(key, oldValue, newValue);
+        if (prev == null) {
+            return false;
+        }
+        afterWrite(key, w - weigh(key, prev), false);
+        return true;
+    }
+
+    /** Removes every entry, one at a time so that the total weight stays
+     *  correct.  Entries inserted concurrently may remain.
+     */
+    @Override
+    public void clear() {
+        for (Map.Entry<K,V> e : map.clone().entrySet()) {
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    //////////////// navigation
+
+    public Map.Entry<K,V> firstEntry() {
+        return map.firstEntry();
+    }
+
+    public Map.Entry<K,V> lastEntry() {
+        return map.lastEntry();
+    }
+
+    public K firstKey() {
+        return map.firstKey();
+    }
+
+    public K lastKey() {
+        return map.lastKey();
+    }
+
+    public Map.Entry<K,V> lowerEntry(final K key) {
+        return map.lowerEntry(key);
+    }
+
+    public Map.Entry<K,V> floorEntry(final K key) {
+        return map.floorEntry(key);
+    }
+
+    public Map.Entry<K,V> ceilingEntry(final K key) {
+        return map.ceilingEntry(key);
+    }
+
+    public Map.Entry<K,V> higherEntry(final K key) {
+        return map.higherEntry(key);
+    }
+
+    public K lowerKey(final K key) {
+        return map.lowerKey(key);
+    }
+
+    public K floorKey(final K key) {
+        return map.floorKey(key);
+    }
+
+    public K ceilingKey(final K key) {
+        return map.ceilingKey(key);
+    }
+
+    public K higherKey(final K key) {
+        return map.higherKey(key);
+    }
+
+    //////////////// iteration
+
+    /** Returns a view whose iterator visits a snapshot of the entries, in
+     *  key order.  The iterator's <code>remove</code> removes the entry
+     *  only if it has not changed since the snapshot was taken.
+     */
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            public Iterator<Map.Entry<K,V>> iterator() {
+                final Iterator<Map.Entry<K,V>> iter = map.clone().entrySet().iterator();
+                return new Iterator<Map.Entry<K,V>>() {
+                    private Map.Entry<K,V> last;
+
+                    public boolean hasNext() {
+                        return iter.hasNext();
+                    }
+
+                    public Map.Entry<K,V> next() {
+                        last = iter.next();
+                        return last;
+                    }
+
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        SnapTreeCache.this.remove(last.getKey(), last.getValue());
+                        last = null;
+                    }
+                };
+            }
+
+            public int size() {
+                return SnapTreeCache.this.size();
+            }
+
+            @Override
+            public void clear() {
+                SnapTreeCache.this.clear();
+            }
+        };
+    }
+
+    //////////////// maintenance
+
+    private void afterRead(final Object key) {
+        final int h = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        if (readBuffers[(h >>> 16) & (ReadBufferStripes - 1)].offer(key)) {
+            tryDrain();
+        }
+    }
+
+    private void afterWrite(final K key, final long weightDelta, final boolean inserted) {
+        weight.addAndGet(weightDelta);
+        if (inserted) {
+            writeBuffer.add(key);
+            if (pendingWrites.incrementAndGet() > MaxPendingWrites) {
+                // apply back pressure rather than let eviction fall behind
+                cleanUp();
+                return;
+            }
+        }
+        if (needsDrain()) {
+            tryDrain();
+        }
+    }
+
+    /** Drains the buffers and enforces the bound if no other thread is
+     *  doing so.  A thread that gives up on the lock leaves its work to
+     *  the holder, which checks for more after unlocking.
+     */
+    private void tryDrain() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                drain();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (needsDrain());
+    }
+
+    private boolean needsDrain() {
+        return pendingWrites.get() > 0 || weight.get() > maximumWeight;
+    }
+
+    /** Performs any pending maintenance, evicting entries if the cache is
+     *  over its bound.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            drain();
+        } finally {
+            evictionLock.unlock();
+        }
+        if (needsDrain()) {
+            tryDrain();
+        }
+    }
+
+    private void drain() {
+        sketch.ensureCapacity(Math.min(map.size(), maximumWeight));
+        for (ReadBuffer b : readBuffers) {
+            b.drainTo(sketch);
+        }
+        K candidate;
+        while ((candidate = writeBuffer.poll()) != null) {
+            pendingWrites.decrementAndGet();
+            sketch.increment(candidate);
+            admit(candidate);
+        }
+        while (weight.get() > maximumWeight) {
+            final Map.Entry<K,V> victim = sampleVictim();
+            if (victim == null) {
+                break;
+            }
+            evict(victim.getKey(), victim.getValue());
+        }
+    }
+
+    /** Brings the cache back within its bound after the insertion of
+     *  <code>candidate</code>, evicting sampled victims while they are used
+     *  less often than it is, and then the candidate itself.
+     */
+    private void admit(final K candidate) {
+        final int candidateFreq = sketch.frequency(candidate);
+        while (weight.get() > maximumWeight) {
+            final Map.Entry<K,V> victim = sampleVictim();
+            if (victim == null) {
+                return;
+            }
+            // ties go to the newcomer, so a cold cache still admits entries
+            if (sketch.frequency(victim.getKey()) > candidateFreq) {
+                final V v = map.get(candidate);
+                if (v != null) {
+                    evict(candidate, v);
+                }
+                return;
+            }
+            evict(victim.getKey(), victim.getValue());
+        }
+    }
+
+    /** Returns the least frequently used of a few sampled entries, or null
+     *  if there are none.
+     */
+    private Map.Entry<K,V> sampleVictim() {
+        Map.Entry<K,V> best = null;
+        int bestFreq = Integer.MAX_VALUE;
+        for (int i = 0; i < SampleSize; ++i) {
+            final Map.Entry<K,V> e = map.sampleEntry(random);
+            if (e == null) {
+                break;
+            }
+            final int f = sketch.frequency(e.getKey());
+            if (f < bestFreq) {
+                best = e;
+                bestFreq = f;
+            }
+        }
+        return best;
+    }
+
+    private void evict(final K key, final V value) {
+        // a concurrent update wins over eviction of the value it replaced
+        if (map.remove(key, value)) {
+            weight.addAndGet(-weigh(key, value));
+        }
+    }
+
+    /** A lossy buffer of recently read keys.  Readers claim a slot with a
+     *  CAS, and give up rather than retry if the buffer is full or
+     *  contended, since the policy only needs a sample of the accesses.
+     */
+    private static final class ReadBuffer {
+        private static final int Capacity = 16;
+        private static final int DrainThreshold = Capacity / 2;
+
+        private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(Capacity);
+        private final AtomicLong writes = new AtomicLong();
+        /** Written only by the thread that holds the eviction lock. */
+        private volatile long reads;
+
+        /** Records <code>key</code>, returning true if the buffer should be
+         *  drained.
+         */
+        boolean offer(final Object key) {
+            final long w = writes.get();
+            final long pending = w - reads;
+            if (pending >= Capacity) {
+                return true;
+            }
+            if (!writes.compareAndSet(w, w + 1)) {
+                return false;
+            }
+            slots.lazySet((int) w & (Capacity - 1), key);
+            return pending + 1 >= DrainThreshold;
+        }
+
+        void drainTo(final FrequencySketch sketch) {
+            long r = reads;
+            final long w = writes.get();
+            while (r < w) {
+                final int i = (int) r & (Capacity - 1);
+                final Object key = slots.get(i);
+                if (key == null) {
+                    // claimed but not yet filled in
+                    break;
+                }
+                slots.lazySet(i, null);
+                sketch.increment(key);
+                ++r;
+            }
+            reads = r;
+        }
+    }
+
+    /** A count-min sketch of 4-bit counters, packed 16 to a
+     *  <code>long</code>.  When the number of increments reaches ten times
+     *  the capacity every counter is halved, so that the estimates age.
+     *  The sketch grows with the cache rather than being sized for its
+     *  bound, which may be much larger than the cache ever gets.  Guarded
+     *  by the eviction lock.
+     */
+    private static final class FrequencySketch {
+        private static final int Depth = 4;
+        private static final int MinCapacity = 16;
+        private static final int MaxCapacity = 1 << 22;
+
+        private long[] table;
+        private int mask;
+        private int additions;
+        private int resetPeriod;
+
+        FrequencySketch() {
+            table = new long[MinCapacity];
+            mask = 16 * MinCapacity - 1;
+            resetPeriod = 10 * MinCapacity;
+        }
+
+        /** Enlarges the sketch if it has fewer than 16 counters per
+         *  <code>expected</code> entry.  Doubling the size adds one bit to
+         *  each counter index, so replicating the old counters preserves
+         *  every estimate.
+         */
+        void ensureCapacity(final long expected) {
+            final int n = (int) Math.min(MaxCapacity, Math.max(MinCapacity, expected));
+            final int cap = Integer.highestOneBit(n - 1) << 1;
+            if (table.length < cap) {
+                final long[] bigger = new long[cap];
+                for (int i = 0; i < cap; i += table.length) {
+                    System.arraycopy(table, 0, bigger, i, table.length);
+                }
+                table = bigger;
+                mask = 16 * cap - 1;
+                resetPeriod = 10 * cap;
+            }
+        }
+
+        private static long mix(final Object key) {
+            // fmix64 from MurmurHash3
+            long z = key.hashCode();
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return z ^ (z >>> 33);
+        }
+
+        int frequency(final Object key) {
+            final long z = mix(key);
+            final int h1 = (int) z;
+            final int h2 = (int) (z >>> 32) | 1;
+            int min = 15;
+            for (int i = 0; i < Depth; ++i) {
+                final int index = (h1 + i * h2) & mask;
+                min = Math.min(min, (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+            }
+            return min;
+        }
+
+        void increment(final Object key) {
+            final long z = mix(key);
+            final int h1 = (int) z;
+            final int h2 = (int) (z >>> 32) | 1;
+            for (int i = 0; i < Depth; ++i) {
+                final int index = (h1 + i * h2) & mask;
+                final int shift = (index & 15) << 2;
+                if (((table[index >>> 4] >>> shift) & 15) != 15) {
+                    table[index >>> 4] += 1L << shift;
+                }
+            }
+            if (++additions == resetPeriod) {
+                for (int i = 0; i < table.length; ++i) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
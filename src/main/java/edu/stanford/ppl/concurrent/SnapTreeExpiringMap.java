@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** A concurrent sorted map whose entries may expire.  An entry that has
+ *  outlived its time-to-live is invisible to every read as soon as its
+ *  deadline passes, and is physically removed later by {@link #sweep},
+ *  which can be run periodically by {@link #startSweeper}.
+ *
+ *  <p>The entries are stored in a {@link SnapIndexedTable} with a secondary
+ *  index ordered by deadline, so a sweep visits only the entries that
+ *  have expired, in O(log n) time each, rather than scanning the map.
+ *  Each expired entry is removed only if it hasn't been replaced since the
+ *  sweep found it, so a sweep never removes a fresh value.
+ *
+ *  <p><code>clone()</code> and iteration work from a snapshot of the
+ *  table, and judge expiry at the time the snapshot was taken, so they see
+ *  the entries that were visible at that instant.  A clone's entries then
+ *  go on expiring independently of the original's.  <code>size()</code>
+ *  doesn't count expired entries, but it takes time proportional to the
+ *  number of expired entries that have not yet been swept.  Deadlines are
+ *  measured with {@link System#nanoTime}, and serialization saves each
+ *  entry's remaining time-to-live.  Null keys and values are not
+ *  permitted.
+ *
+ *  @author agent
+ */
+public class SnapTreeExpiringMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V>, Cloneable, Serializable {
+    private static final long serialVersionUID = 5128937014669120183L;
+
+    /** The deadline of an entry that never expires. */
+    private static final long Never = Long.MAX_VALUE;
+
+    /** The number of expired entries that {@link #sweep} looks up at a
+     *  time.
+     */
+    private static final int SweepBatch = 256;
+
+    /** Deadlines are measured from here, so they are non-negative and can
+     *  be ordered by a plain comparison.
+     */
+    private static final long Origin = System.nanoTime();
+
+    private static long now() {
+        return System.nanoTime() - Origin;
+    }
+
+    /** A value and the time after which it is no longer visible. */
+    private static final class Timed<V> {
+        final V value;
+        final long deadline;
+
+        Timed(final V value, final long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        boolean isLive(final long time) {
+            return time < deadline;
+        }
+
+        // equals is identity, so conditional updates of the table only
+        // succeed if the entry is the exact one that was read
+    }
+
+    private static final class Expiry extends SnapIndexedTable.Index<Timed<?>,Long> {
+        private static final long serialVersionUID = -3020963615357405213L;
+
+        public Long keyOf(final Timed<?> row) {
+            return row.deadline == Never ? null : row.deadline;
+        }
+    }
+
+    private static final Expiry ExpiryIndex = new Expiry();
+
+    private final Comparator<? super K> comparator;
+
+    private final long defaultTtlNanos;
+
+    private transient volatile SnapIndexedTable<K,Timed<V>> table;
+
+    /** Constructs an empty map whose entries don't expire unless they are
+     *  inserted with an explicit time-to-live.
+     */
+    public SnapTreeExpiringMap() {
+        this(null, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /** Constructs an empty map in which entries inserted without an
+     *  explicit time-to-live expire after <code>defaultTtl</code>, or never
+     *  if it is zero.
+     */
+    public SnapTreeExpiringMap(final long defaultTtl, final TimeUnit unit) {
+        this(null, defaultTtl, unit);
+    }
+
+    public SnapTreeExpiringMap(final Comparator<? super K> comparator, final long defaultTtl, final TimeUnit unit) {
+        if (defaultTtl < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.comparator = comparator;
+        this.defaultTtlNanos = unit.toNanos(defaultTtl);
+        this.table = newTable(comparator);
+    }
+
+    private static <K,V> SnapIndexedTable<K,Timed<V>> newTable(final Comparator<? super K> comparator) {
+        return new SnapIndexedTable<K,Timed<V>>(comparator, ExpiryIndex);
+    }
+
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    public long getDefaultTtl(final TimeUnit unit) {
+        return unit.convert(defaultTtlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SnapTreeExpiringMap<K,V> clone() {
+        final SnapTreeExpiringMap<K,V> copy;
+        try {
+            copy = (SnapTreeExpiringMap<K,V>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.table = table.clone();
+        return copy;
+    }
+
+    //////////////// deadlines
+
+    private Timed<V> timed(final V value, final long ttlNanos) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        if (ttlNanos < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (ttlNanos == 0) {
+            return new Timed<V>(value, Never);
+        }
+        final long t = now();
+        // saturate rather than wrap, and don't collide with Never
+        return new Timed<V>(value, ttlNanos < Never - 1 - t ? t + ttlNanos : Never - 1);
+    }
+
+    private Timed<V> timed(final V value) {
+        return timed(value, defaultTtlNanos);
+    }
+
+    /** Returns the value of <code>t</code> if it is live now, else null. */
+    private static <V> V live(final Timed<V> t) {
+        return t != null && t.isLive(now()) ? t.value : null;
+    }
+
+    /** Returns the remaining time-to-live of the entry for
+     *  <code>key</code>, 0 if it has no entry, or
+     *  <code>Long.MAX_VALUE</code> if its entry never expires.
+     */
+    public long getTtl(final Object key, final TimeUnit unit) {
+        final Timed<V> t = table.get(key);
+        final long time = now();
+        if (t == null || !t.isLive(time)) {
+            return 0L;
+        }
+        return t.deadline == Never ? Long.MAX_VALUE : unit.convert(t.deadline - time, TimeUnit.NANOSECONDS);
+    }
+
+    //////////////// Map and ConcurrentMap
+
+    @Override
+    public V get(final Object key) {
+        return live(table.get(key));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        return live(table.put(key, timed(value)));
+    }
+
+    /** Associates <code>value</code> with <code>key</code> for
+     *  <code>ttl</code>, after which the entry expires.  A
+     *  <code>ttl</code> of zero means that the entry never expires.
+     */
+    public V put(final K key, final V value, final long ttl, final TimeUnit unit) {
+        return live(table.put(key, timed(value, unit.toNanos(ttl))));
+    }
+
+    public V putIfAbsent(final K key, final V value) {
+        return putIfAbsent(key, timed(value));
+    }
+
+    /** Like {@link #putIfAbsent(Object,Object)}, but the new entry expires
+     *  after <code>ttl</code>.
+     */
+    public V putIfAbsent(final K key, final V value, final long ttl, final TimeUnit unit) {
+        return putIfAbsent(key, timed(value, unit.toNanos(ttl)));
+    }
+
+    private V putIfAbsent(final K key, final Timed<V> fresh) {
+        while (true) {
+            final Timed<V> cur = table.get(key);
+            if (cur == null) {
+                final Timed<V> prev = table.putIfAbsent(key, fresh);
+                if (prev == null) {
+                    return null;
+                }
+                // else RETRY with prev
+            } else if (cur.isLive(now())) {
+                return cur.value;
+            } else if (table.replace(key, cur, fresh)) {
+                // an expired entry counts as absent
+                return null;
+            }
+            // else RETRY
+        }
+    }
+
+    @Override
+    public V remove(final Object key) {
+        return live(table.remove(key));
+    }
+
+    public boolean remove(final Object key, final Object value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (value == null) {
+            return false;
+        }
+        while (true) {
+            final Timed<V> cur = table.get(key);
+            if (cur == null || !cur.isLive(now()) || !value.equals(cur.value)) {
+                return false;
+            }
+            if (table.remove(key, cur)) {
+                return true;
+            }
+            // else RETRY
+        }
+    }
+
+    public V replace(final K key, final V value) {
+        final Timed<V> fresh = timed(value);
+        while (true) {
+            final Timed<V> cur = table.get(key);
+            if (cur == null || !cur.isLive(now())) {
+                return null;
+            }
+            if (table.replace(key, cur, fresh)) {
+                return cur.value;
+            }
+            // else RETRY
+        }
+    }
+
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        if (oldValue == null) {
+            throw new NullPointerException();
+        }
+        final Timed<V> fresh = timed(newValue);
+        while (true) {
+            final Timed<V> cur = table.get(key);
+            if (cur == null || !cur.isLive(now()) || !oldValue.equals(cur.value)) {
+                return false;
+            }
+            if (table.replace(key, cur, fresh)) {
+                return true;
+            }
+            // else RETRY
+        }
+    }
+
+    @Override
+    public void clear() {
+        table.clear();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !entrySet().iterator().hasNext();
+    }
+
+    @Override
+    public int size() {
+        final SnapIndexedTable<K,Timed<V>> snap = table.clone();
+        final long time = now();
+        return snap.size() - snap.indexLookup(0, null, true, time, true, Integer.MAX_VALUE).size();
+    }
+
+    //////////////// sweeping
+
+    /** Removes the entries that have expired, and returns the number
+     *  removed.  Expired entries are found with the deadline index, in
+     *  batches, so the cost is proportional to the number of expired
+     *  entries.
+     */
+    public int sweep() {
+        int removed = 0;
+        while (true) {
+            final List<Map.Entry<K,Timed<V>>> batch = table.indexLookup(0, null, true, now(), true, SweepBatch);
+            for (Map.Entry<K,Timed<V>> e : batch) {
+                if (table.remove(e.getKey(), e.getValue())) {
+                    ++removed;
+                }
+            }
+            if (batch.size() < SweepBatch) {
+                return removed;
+            }
+        }
+    }
+
+    /** Runs {@link #sweep} on <code>executor</code> every
+     *  <code>period</code>, until the returned future is cancelled.
+     */
+    public ScheduledFuture<?> startSweeper(final ScheduledExecutorService executor,
+                                           final long period,
+                                           final TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, period, period, unit);
+    }
+
+    //////////////// iteration
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            public Iterator<Map.Entry<K,V>> iterator() {
+                return new EntryIter();
+            }
+
+            public int size() {
+                return SnapTreeExpiringMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                SnapTreeExpiringMap.this.clear();
+            }
+        };
+    }
+
+    /** Iterates over the entries of a snapshot that were live when it was
+     *  taken.  <code>remove()</code> removes the returned entry from the map
+     *  only if it hasn't been replaced since the snapshot.
+     */
+    private class EntryIter implements Iterator<Map.Entry<K,V>> {
+        private final Iterator<Map.Entry<K,Timed<V>>> entries;
+        private final long time;
+        private Map.Entry<K,Timed<V>> next;
+        private Map.Entry<K,Timed<V>> last;
+
+        EntryIter() {
+            this.entries = table.clone().entrySet().iterator();
+            this.time = now();
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (entries.hasNext()) {
+                final Map.Entry<K,Timed<V>> e = entries.next();
+                if (e.getValue().isLive(time)) {
+                    next = e;
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K,V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            return new SimpleImmutableEntry<K,V>(last.getKey(), last.getValue().value);
+        }
+
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            table.remove(last.getKey(), last.getValue());
+            last = null;
+        }
+    }
+
+    //////////////// Serialization
+
+    /** Saves the live entries of a snapshot with their remaining
+     *  time-to-live, since deadlines aren't meaningful in another JVM.
+     */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        xo.defaultWriteObject();
+
+        final SnapIndexedTable<K,Timed<V>> snap = table.clone();
+        final long time = now();
+        xo.writeInt(snap.size());
+        for (Map.Entry<K,Timed<V>> e : snap.entrySet()) {
+            final Timed<V> t = e.getValue();
+            // expired entries are written with a remaining TTL of -1
+            xo.writeObject(e.getKey());
+            xo.writeObject(t.value);
+            xo.writeLong(t.deadline == Never ? 0L : (t.isLive(time) ? t.deadline - time : -1L));
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        table = newTable(comparator);
+        final int size = xi.readInt();
+        for (int i = 0; i < size; ++i) {
+            final K k = (K) xi.readObject();
+            final V v = (V) xi.readObject();
+            final long ttl = xi.readLong();
+            if (ttl >= 0) {
+                table.put(k, timed(v, ttl));
+            }
+        }
+    }
+}
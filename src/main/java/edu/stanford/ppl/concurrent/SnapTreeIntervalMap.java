@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/** A {@link SnapTreeMap} whose entries are half-open intervals
+ *  <code>[start, end)</code>, keyed by <code>start</code>, that can find
+ *  every interval overlapping a point or a range.  The end of each interval
+ *  is computed from its entry by an {@link EndFunction}, so the value can
+ *  be any object that knows its own end.
+ *
+ *  <p>Each node caches the maximum end of the intervals in its subtree,
+ *  which lets an overlap query skip subtrees that end too early.  The
+ *  caches are computed lazily by queries, which always run against a
+ *  frozen snapshot; writers only clear the caches on the paths that they
+ *  modify.  An overlap query visits O(k log n) nodes when it returns k
+ *  intervals and the caches are warm, and the first query after a batch of
+ *  writes also repairs the caches that those writes cleared.
+ *
+ *  @author agent
+ */
+public class SnapTreeIntervalMap<K,V> extends SnapTreeMap<K,V> {
+    private static final long serialVersionUID = 4870125632590157138L;
+
+    /** Computes the exclusive end of the interval stored at an entry. */
+    public interface EndFunction<K,V> {
+        K end(K start, V value);
+    }
+
+    /** The summary of a subtree with no intervals. */
+    private static final Object NoEnd = new Object();
+
+    private static class MaxEnd<K,V> implements Aggregator<K,V,Object>, Serializable {
+        private static final long serialVersionUID = -1706457620963102645L;
+
+        private final Comparator<? super K> comparator;
+        private final EndFunction<K,? super V> endFunction;
+
+        MaxEnd(final Comparator<? super K> comparator, final EndFunction<K,? super V> endFunction) {
+            this.comparator = comparator;
+            this.endFunction = endFunction;
+        }
+
+        @SuppressWarnings("unchecked")
+        int compare(final K lhs, final K rhs) {
+            return comparator == null
+                    ? ((Comparable<? super K>) lhs).compareTo(rhs)
+                    : comparator.compare(lhs, rhs);
+        }
+
+        /** Returns true if <code>agg</code> includes an end greater than
+         *  <code>point</code>.
+         */
+        @SuppressWarnings("unchecked")
+        boolean endsAfter(final Object agg, final K point) {
+            return agg != NoEnd && compare((K) agg, point) > 0;
+        }
+
+        public Object identity() {
+            return NoEnd;
+        }
+
+        public Object lift(final K key, final V value) {
+            final K end = endFunction.end(key, value);
+            if (end == null) {
+                throw new NullPointerException("null interval end");
+            }
+            return end;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object combine(final Object lhs, final Object rhs) {
+            if (lhs == NoEnd) {
+                return rhs;
+            } else if (rhs == NoEnd) {
+                return lhs;
+            } else {
+                return compare((K) lhs, (K) rhs) >= 0 ? lhs : rhs;
+            }
+        }
+    }
+
+    private final MaxEnd<K,V> maxEnd;
+
+    public SnapTreeIntervalMap(final EndFunction<K,? super V> endFunction) {
+        this.maxEnd = new MaxEnd<K,V>(null, endFunction);
+    }
+
+    public SnapTreeIntervalMap(final Comparator<? super K> comparator, final EndFunction<K,? super V> endFunction) {
+        super(comparator);
+        this.maxEnd = new MaxEnd<K,V>(comparator, endFunction);
+    }
+
+    @Override
+    boolean usesSubtreeAggregates() {
+        return true;
+    }
+
+    @Override
+    public SnapTreeIntervalMap<K,V> clone() {
+        return (SnapTreeIntervalMap<K,V>) super.clone();
+    }
+
+    /** Returns, in order of start, a snapshot of the intervals that contain
+     *  <code>point</code>.
+     */
+    public List<Map.Entry<K,V>> overlapping(final K point) {
+        if (point == null) {
+            throw new NullPointerException();
+        }
+        return searchFrozen(maxEnd, new SubtreeFilter<K,V,Object>() {
+            public boolean mayContain(final Object subtreeAgg) {
+                return maxEnd.endsAfter(subtreeAgg, point);
+            }
+
+            public boolean accept(final K key, final V value) {
+                return maxEnd.compare(maxEnd.endFunction.end(key, value), point) > 0;
+            }
+        }, point, true);
+    }
+
+    /** Returns, in order of start, a snapshot of the intervals that overlap
+     *  the half-open range <code>[from, to)</code>.
+     */
+    public List<Map.Entry<K,V>> overlapping(final K from, final K to) {
+        if (from == null || to == null) {
+            throw new NullPointerException();
+        }
+        final int c = maxEnd.compare(from, to);
+        if (c > 0) {
+            throw new IllegalArgumentException();
+        }
+        if (c == 0) {
+            // an empty range overlaps nothing
+            return new ArrayList<Map.Entry<K,V>>();
+        }
+        return searchFrozen(maxEnd, new SubtreeFilter<K,V,Object>() {
+            public boolean mayContain(final Object subtreeAgg) {
+                return maxEnd.endsAfter(subtreeAgg, from);
+            }
+
+            public boolean accept(final K key, final V value) {
+                return maxEnd.compare(maxEnd.endFunction.end(key, value), from) > 0;
+            }
+        }, to, false);
+    }
+}
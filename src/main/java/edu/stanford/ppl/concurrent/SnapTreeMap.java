@@ -38,6 +38,16 @@ package edu.stanford.ppl.concurrent;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 // TODO: optimized buildFromSorted
 // TODO: submap.clone()
@@ -74,6 +84,11 @@ import java.util.concurrent.ConcurrentNavigableMap;
  *  notices that the entry count has become zero, to reduce context switches on
  *  the critical path.</em>
  *
+ *  <p>Setting the system property <code>snaptree.unmountable</code> to
+ *  <code>true</code> makes every thread that must wait park at once, rather
+ *  than spinning first, which is the better choice when the map is used
+ *  from many virtual threads.
+ *
  *  <p>The same multi-cache line data structure required for efficiently
  *  tracking the entry and exit for mutating operations is used to maintain the
  *  current size of the tree.  This means that the size can be computed by
@@ -111,8 +126,19 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     static final Object SpecialRetry = new Object();
 
 
+    /** True if the system property <code>snaptree.unmountable</code> is
+     *  set, which selects blocking that suits virtual threads.  Threads that
+     *  must wait park immediately instead of spinning first, so a virtual
+     *  thread unmounts from its carrier rather than burning it, and {@link
+     *  EpochNode} helps a concurrent close instead of spinning while it
+     *  waits for it.  Blocking always parks with {@link LockSupport} or
+     *  uses a <code>java.util.concurrent</code> lock, never a monitor.
+     */
+    static final boolean UnmountableBlocking = Boolean.getBoolean("snaptree.unmountable");
+
     /** The number of spins before yielding. */
-    static final int SpinCount = Integer.parseInt(System.getProperty("snaptree.spin", "100"));
+    static final int SpinCount = Integer.parseInt(System.getProperty("snaptree.spin",
+            UnmountableBlocking ? "0" : "100"));
 
     /** The number of yields before blocking. */
     static final int YieldCount = Integer.parseInt(System.getProperty("snaptree.yield", "0"));
@@ -143,7 +169,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     static boolean isShrinkingOrUnlinked(long ovl) { return (ovl & 3) != 0L; }
 
 
-    private static class Node<K,V> implements Map.Entry<K,V> {
+    private static class Node<K,V> extends OVLNode implements Map.Entry<K,V> {
         final K key;
         volatile int height;
 
@@ -152,10 +178,17 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
          */
         volatile Object vOpt;
         volatile Node<K,V> parent;
-        volatile long shrinkOVL;
         volatile Node<K,V> left;
         volatile Node<K,V> right;
 
+        /** A cached {@link Aggregator} summary of this subtree, or null if
+         *  unknown.  Summaries are only computed in frozen trees, but may be
+         *  inherited by a lazy copy.  Any thread that might change the
+         *  entries beneath a node clears this first, so a non-null value in
+         *  a quiescent tree is always correct.
+         */
+        volatile Object agg;
+
         Node(final K key,
               final int height,
               final Object vOpt,
@@ -164,11 +197,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
               final Node<K,V> left,
               final Node<K,V> right)
         {
+            super(shrinkOVL);
             this.key = key;
             this.height = height;
             this.vOpt = vOpt;
             this.parent = parent;
-            this.shrinkOVL = shrinkOVL;
             this.left = left;
             this.right = right;
         }
@@ -215,11 +248,18 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             return node;
         }
 
+        /** Returns an unlinked copy of this node that shares its children. */
+        Node<K,V> copy(final Node<K,V> newParent) {
+            return new Node<K,V>(key, height, vOpt, newParent, 0L, markShared(left), markShared(right));
+        }
+
         private Node<K,V> lazyCopy(Node<K,V> newParent) {
             assert (isShared(this));
-            assert (!isShrinkingOrUnlinked(shrinkOVL));
+            assert (!isShrinkingOrUnlinked(ovl()));
 
-            return new Node<K,V>(key, height, vOpt, newParent, 0L, markShared(left), markShared(right));
+            final Node<K,V> copy = copy(newParent);
+            copy.agg = agg;
+            return copy;
         }
 
         Node<K,V> unsharedLeft() {
@@ -246,42 +286,47 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             return dir == Left ? unsharedLeft() : unsharedRight();
         }
 
-        private synchronized void lazyCopyChildren() {
-            final Node<K,V> cl = left;
-            if (isShared(cl)) {
-                left = cl.lazyCopy(this);
-            }
-            final Node<K,V> cr = right;
-            if (isShared(cr)) {
-                right = cr.lazyCopy(this);
+        void invalidateAgg() {
+            if (agg != null) {
+                agg = null;
             }
         }
 
-        //////// per-node blocking
-
-        private void waitUntilShrinkCompleted(final long ovl) {
-            if (!isShrinking(ovl)) {
-                return;
+        private void lazyCopyChildren() {
+            lock();
+            try {
+                lazyCopyChildren_nl();
+            } finally {
+                unlock();
             }
+        }
 
-            for (int tries = 0; tries < SpinCount; ++tries) {
-                if (shrinkOVL != ovl) {
-                    return;
-                }
+        /** Like {@link #unsharedLeft}, but for a caller that holds this
+         *  node's lock.
+         */
+        Node<K,V> unsharedLeft_nl() {
+            if (isShared(left)) {
+                lazyCopyChildren_nl();
             }
+            return left;
+        }
 
-            for (int tries = 0; tries < YieldCount; ++tries) {
-                Thread.yield();
-                if (shrinkOVL != ovl) {
-                    return;
-                }
+        Node<K,V> unsharedRight_nl() {
+            if (isShared(right)) {
+                lazyCopyChildren_nl();
             }
+            return right;
+        }
 
-            // spin and yield failed, use the nuclear option
-            synchronized (this) {
-                // we can't have gotten the lock unless the shrink was over
+        private void lazyCopyChildren_nl() {
+            final Node<K,V> cl = left;
+            if (isShared(cl)) {
+                left = cl.lazyCopy(this);
+            }
+            final Node<K,V> cr = right;
+            if (isShared(cr)) {
+                right = cr.lazyCopy(this);
             }
-            assert(shrinkOVL != ovl);
         }
 
         int validatedHeight() {
@@ -360,19 +405,84 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
+    /** A node that caches the {@link PrefixKey#prefix} of its key, so that
+     *  a search can usually be steered without loading the key itself.
+     */
+    private static final class PrefixNode<K,V> extends Node<K,V> {
+        final long keyPrefix;
+
+        PrefixNode(final long keyPrefix,
+                   final K key,
+                   final int height,
+                   final Object vOpt,
+                   final Node<K,V> parent,
+                   final long shrinkOVL,
+                   final Node<K,V> left,
+                   final Node<K,V> right) {
+            super(key, height, vOpt, parent, shrinkOVL, left, right);
+            this.keyPrefix = keyPrefix;
+        }
+
+        @Override
+        Node<K,V> copy(final Node<K,V> newParent) {
+            return new PrefixNode<K,V>(keyPrefix, key, height, vOpt, newParent, 0L, markShared(left), markShared(right));
+        }
+    }
+
     private static class RootHolder<K,V> extends Node<K,V> {
+        /** The node with the largest key, if known.  Only written while
+         *  holding the lock of the node whose right child is being set, so
+         *  if the hint is still this value once the hint node's lock has
+         *  been acquired, then no larger key has been inserted since.
+         *  Rotations don't change which node has the largest key.
+         */
+        volatile Node<K,V> rightmost;
+
+        /** The root holders of the secondary index trees, whose keys are
+         *  {@link IndexKey}s, or null if there are no secondary indexes.
+         *  They are frozen and copied along with this one, so snapshots of
+         *  all of the trees are always consistent.
+         */
+        final RootHolder<K,V>[] indexes;
+
         RootHolder() {
             super(null, 1, null, null, 0L, null, null);
+            this.indexes = null;
+        }
+
+        RootHolder(final int numIndexes) {
+            super(null, 1, null, null, 0L, null, null);
+            if (numIndexes == 0) {
+                this.indexes = null;
+            } else {
+                this.indexes = newArray(numIndexes);
+                for (int i = 0; i < numIndexes; ++i) {
+                    this.indexes[i] = new RootHolder<K,V>();
+                }
+            }
         }
 
         RootHolder(final RootHolder<K,V> snapshot) {
             super(null, 1 + snapshot.height, null, null, 0L, null, snapshot.right);
+            if (snapshot.indexes == null) {
+                this.indexes = null;
+            } else {
+                this.indexes = newArray(snapshot.indexes.length);
+                for (int i = 0; i < indexes.length; ++i) {
+                    this.indexes[i] = new RootHolder<K,V>(snapshot.indexes[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K,V> RootHolder<K,V>[] newArray(final int length) {
+            return (RootHolder<K,V>[]) new RootHolder<?,?>[length];
         }
     }
 
     private static class COWMgr<K,V> extends CopyOnWriteManager<RootHolder<K,V>> {
-        COWMgr() {
-            super(new RootHolder<K,V>(), 0);
+        COWMgr(final int numIndexes) {
+            super(new RootHolder<K,V>(numIndexes), 0);
         }
 
         COWMgr(final RootHolder<K,V> initialValue, final int initialSize) {
@@ -381,6 +491,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
         protected RootHolder<K,V> freezeAndClone(final RootHolder<K,V> value) {
             Node.markShared(value.right);
+            if (value.indexes != null) {
+                for (RootHolder<K,V> index : value.indexes) {
+                    Node.markShared(index.right);
+                }
+            }
             return new RootHolder<K,V>(value);
         }
 
@@ -405,6 +520,14 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
+    /** Returns the vOpt that a reader should observe for a node whose vOpt
+     *  field holds <code>vOpt</code>, which may be the {@link TxnLock} of a
+     *  committing transaction.
+     */
+    private static Object visibleVOpt(final Object vOpt) {
+        return vOpt instanceof TxnLock ? ((TxnLock) vOpt).visibleVOpt() : vOpt;
+    }
+
     private static Object encodeNull(final Object v) {
         if (AllowNullValues) {
             return v == null ? SpecialNull : v;
@@ -419,29 +542,115 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     //////////////// state
 
     private final Comparator<? super K> comparator;
+
+    /** The secondary indexes maintained in {@link RootHolder#indexes}, or
+     *  null if there are none.
+     */
+    private final SnapIndexedTable.Index<? super V,?>[] indexes;
+
     private transient volatile COWMgr<K,V> holderRef;
 
+    /** See {@link #setMaxSnapshotStaleness}. */
+    private transient volatile long maxSnapshotStalenessNanos;
+
+    /** See {@link #setReadOptimized}. */
+    private transient volatile boolean readOptimized;
+
+    /** Plain copies of <code>readOptimized</code> and of whether
+     *  <code>filterHasher</code> is set, which every point read checks.  A
+     *  map that uses neither feature then pays no volatile load for them in
+     *  <code>get</code>.  A stale copy is harmless, because it can only make
+     *  a read skip a shortcut, or try one that its own volatile state turns
+     *  down.
+     */
+    private transient boolean imageShortcut;
+    private transient boolean filterShortcut;
+
+    /** A sorted array copy of a snapshot, used by point reads while no
+     *  update has occurred since the snapshot.  Only built if
+     *  <code>readOptimized</code>.  This is not volatile: the fields of
+     *  {@link ArrayImage} are final, so a reader that sees an image sees
+     *  all of it, and a reader that sees an old image finds it doesn't
+     *  match the current snapshot (see {@link #currentImage}).
+     */
+    private transient ArrayImage<K,V> image;
+
+    /** Runs the image and Bloom filter rebuilds, or null to use {@link
+     *  DefaultBuildExecutor}.
+     */
+    private transient volatile Executor imageExecutor;
+
+    /** 1 while a build of a new <code>image</code> is pending or running. */
+    private transient volatile int imageBuilding;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<SnapTreeMap> imageBuildingUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(SnapTreeMap.class, "imageBuilding");
+
+    /** See {@link #setBloomFilter}. */
+    private transient volatile KeyHasher<? super K> filterHasher;
+
+    /** Counts the keys that might be present, used by point reads to
+     *  answer misses without searching the tree.  Null if there is no
+     *  filter or it has not been built yet.
+     */
+    private transient volatile CountingFilter filter;
+
+    /** A filter that is being built to replace <code>filter</code>, which
+     *  writers must also add to.
+     */
+    private transient volatile CountingFilter nextFilter;
+
+    /** 1 while a build of a new <code>filter</code> is pending or running. */
+    private transient volatile int filterBuilding;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<SnapTreeMap> filterBuildingUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(SnapTreeMap.class, "filterBuilding");
+
     //////////////// public interface
 
     public SnapTreeMap() {
         this.comparator = null;
-        this.holderRef = new COWMgr<K,V>();
+        this.indexes = null;
+        this.holderRef = new COWMgr<K,V>(0);
     }
 
     public SnapTreeMap(final Comparator<? super K> comparator) {
         this.comparator = comparator;
-        this.holderRef = new COWMgr<K,V>();
+        this.indexes = null;
+        this.holderRef = new COWMgr<K,V>(0);
     }
 
     public SnapTreeMap(final Map<? extends K, ? extends V> source) {
         this.comparator = null;
-        this.holderRef = new COWMgr<K,V>();
+        this.indexes = null;
+        this.holderRef = new COWMgr<K,V>(0);
         putAll(source);
     }
 
+    /** Constructs an empty map that maintains the secondary indexes
+     *  <code>indexes</code>, which may not be empty.
+     */
+    SnapTreeMap(final Comparator<? super K> comparator,
+                final SnapIndexedTable.Index<? super V,?>[] indexes) {
+        if (indexes.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        for (SnapIndexedTable.Index<? super V,?> index : indexes) {
+            if (index == null) {
+                throw new NullPointerException();
+            }
+        }
+        this.comparator = comparator;
+        this.indexes = indexes.clone();
+        this.holderRef = new COWMgr<K,V>(indexes.length);
+    }
+
     public SnapTreeMap(final SortedMap<K,? extends V> source) {
         this.comparator = source.comparator();
-        if (source instanceof SnapTreeMap) {
+        this.indexes = null;
+        if (source instanceof SnapTreeMap && ((SnapTreeMap<K,?>) source).indexes == null) {
             final SnapTreeMap<K,V> s = (SnapTreeMap<K,V>) source;
             this.holderRef = (COWMgr<K,V>) s.holderRef.clone();
         }
@@ -467,9 +676,23 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public SnapTreeMap<K,V> clone() {
+        return cloneWith(holderRef.clone(maxSnapshotStalenessNanos));
+    }
+
+    /** Returns the manager whose clone is passed to {@link #cloneWith}, for
+     *  {@link SnapshotGroup}.
+     */
+    CopyOnWriteManager<?> cowManager() {
+        return holderRef;
+    }
+
+    /** Returns a copy of this map that uses <code>manager</code>, which must
+     *  be a clone of this map's <code>cowManager()</code>.
+     */
+    @SuppressWarnings("unchecked")
+    SnapTreeMap<K,V> cloneWith(final CopyOnWriteManager<?> manager) {
         final SnapTreeMap<K,V> copy;
         try {
             copy = (SnapTreeMap<K,V>) super.clone();
@@ -477,10 +700,75 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             throw new InternalError();
         }
         assert(copy.comparator == comparator);
-        copy.holderRef = (COWMgr<K,V>) holderRef.clone();
+        copy.holderRef = (COWMgr<K,V>) manager;
+        copy.imageBuilding = 0;
+        // the copy's filter diverges from ours, so it builds its own
+        copy.filter = null;
+        copy.nextFilter = null;
+        copy.filterBuilding = 0;
+        if (copy.filterHasher != null) {
+            copy.scheduleFilterBuild(null);
+        }
         return copy;
     }
 
+    /** Allows clones, iterators, cursors, aggregates, and the
+     *  <code>size()</code> of submaps to reflect a snapshot of this map that
+     *  is up to <code>duration</code> old, rather than always its current
+     *  contents.  Snapshots taken within the window are shared, so under a
+     *  constant write load scans don't each force a freeze of the tree (and
+     *  the path copying by writers that follows).  The default is zero,
+     *  which makes all of those operations linearizable.
+     */
+    public void setMaxSnapshotStaleness(final long duration, final TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException();
+        }
+        maxSnapshotStalenessNanos = unit.toNanos(duration);
+    }
+
+    public long getMaxSnapshotStaleness(final TimeUnit unit) {
+        return unit.convert(maxSnapshotStalenessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Enables a mode for maps that are read far more often than they are
+     *  written.  While it is enabled, <code>get</code> and
+     *  <code>containsKey</code> binary search a sorted array copy of a
+     *  snapshot of the map whenever no update has occurred since the
+     *  snapshot was taken, instead of walking the tree with optimistic
+     *  validation.  After an update readers use the tree until the copy has
+     *  been rebuilt, reusing the parts of the old copy whose subtrees were
+     *  not touched.  Rebuilds run on a shared daemon thread, so no reader
+     *  waits for one.  Rebuilding takes a snapshot, so it is rate-limited to
+     *  keep it from competing with a burst of writes.  Reads remain
+     *  linearizable.
+     */
+    public void setReadOptimized(final boolean enabled) {
+        setReadOptimized(enabled, null);
+    }
+
+    /** Like {@link #setReadOptimized(boolean)}, but rebuilds of the array
+     *  copy (and of the Bloom filter, see {@link #setBloomFilter}) are run
+     *  by <code>executor</code>.  A null executor selects the shared daemon
+     *  thread.
+     */
+    public void setReadOptimized(final boolean enabled, final Executor executor) {
+        imageExecutor = executor;
+        readOptimized = enabled;
+        imageShortcut = enabled;
+        if (!enabled) {
+            image = null;
+        }
+    }
+
+    public boolean isReadOptimized() {
+        return readOptimized;
+    }
+
+    private RootHolder<K,V> frozenHolder() {
+        return holderRef.frozen(maxSnapshotStalenessNanos);
+    }
+
     @Override
     public int size() {
         return holderRef.size();
@@ -495,7 +783,14 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
     @Override
     public void clear() {
-        holderRef = new COWMgr<K,V>();
+        // a filter build in progress notices the new manager and starts
+        // over, see buildFilter
+        holderRef = new COWMgr<K,V>(numIndexes());
+        filter = null;
+        if (filterHasher != null) {
+            // the new tree is nearly empty, so this is cheap
+            tryBuildFilter(null);
+        }
     }
 
     @Override
@@ -523,8 +818,53 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         return decodeNull(getImpl(key));
     }
 
+    /** A search key that carries a <code>long</code> summary of itself.
+     *  If the prefixes of two keys differ then they are ordered the same
+     *  way as the keys, so the full comparison is only needed when they are
+     *  equal.  Maps that return these from {@link #comparable} cache the
+     *  prefix in each node.
+     */
+    abstract static class PrefixKey<K> implements Comparable<K> {
+        final long prefix;
+
+        PrefixKey(final long prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    /** Compares <code>k</code> to the key of <code>node</code>, using the
+     *  prefix cached in the node if there is one.
+     */
+    private static <K> int compareToNode(final Comparable<? super K> k, final Node<K,?> node) {
+        if (k instanceof PrefixKey && node instanceof PrefixNode) {
+            final long lhs = ((PrefixKey<?>) k).prefix;
+            final long rhs = ((PrefixNode<?,?>) node).keyPrefix;
+            if (lhs != rhs) {
+                return lhs < rhs ? -1 : 1;
+            }
+        }
+        return k.compareTo(node.key);
+    }
+
+    /** Returns a new leaf for <code>key</code>, whose search key is
+     *  <code>k</code>.
+     */
+    private static <K,V> Node<K,V> newLeaf(final K key,
+                                          final Comparable<? super K> k,
+                                          final Object vOpt,
+                                          final Node<K,V> parent) {
+        if (k instanceof PrefixKey) {
+            return new PrefixNode<K,V>(((PrefixKey<?>) k).prefix, key, 1, vOpt, parent, 0L, null, null);
+        }
+        return new Node<K,V>(key, 1, vOpt, parent, 0L, null, null);
+    }
+
+    /** Returns the search key for <code>key</code>.  Subclasses may return
+     *  a {@link PrefixKey}, or accept lookup keys that are not instances of
+     *  <code>K</code> but are consistent with the comparator.
+     */
     @SuppressWarnings("unchecked")
-    private Comparable<? super K> comparable(final Object key) {
+    Comparable<? super K> comparable(final Object key) {
         if (key == null) {
             throw new NullPointerException();
         }
@@ -539,28 +879,63 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         };
     }
 
+    /** Returns the {@link PrefixKey#prefix} that {@link #comparable} would
+     *  give <code>key</code>, for maps whose nodes cache one.  Point reads
+     *  use this and the comparator directly, so they don't allocate a
+     *  search key.
+     */
+    long lookupPrefix(final Object key) {
+        return 0L;
+    }
+
+    /** Compares a point read's <code>key</code>, whose prefix is
+     *  <code>prefix</code>, to the key of <code>node</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private int compareLookupToNode(final Object key, final long prefix, final Node<K,V> node) {
+        if (node instanceof PrefixNode) {
+            final long rhs = ((PrefixNode<?,?>) node).keyPrefix;
+            if (prefix != rhs) {
+                return prefix < rhs ? -1 : 1;
+            }
+        }
+        return comparator != null
+                ? comparator.compare((K) key, node.key)
+                : ((Comparable<? super K>) key).compareTo(node.key);
+    }
+
     /** Returns either a value or SpecialNull, if present, or null, if absent. */
     private Object getImpl(final Object key) {
-        final Comparable<? super K> k = comparable(key);
-        
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (filterShortcut | imageShortcut) {
+            final Object vo = getFromShortcut(key);
+            if (vo != SpecialRetry) {
+                return vo;
+            }
+        }
+
+        final long prefix = lookupPrefix(key);
+
         while (true) {
             final Node<K,V> right = holderRef.read().right;
             if (right == null) {
                 return null;
             } else {
-                final int rightCmp = k.compareTo(right.key);
+                final int rightCmp = compareLookupToNode(key, prefix, right);
                 if (rightCmp == 0) {
                     // who cares how we got here
-                    return right.vOpt;
+                    return visibleVOpt(right.vOpt);
                 }
 
-                final long ovl = right.shrinkOVL;
+                final long ovl = right.ovl();
                 if (isShrinkingOrUnlinked(ovl)) {
                     right.waitUntilShrinkCompleted(ovl);
                     // RETRY
                 } else if (right == holderRef.read().right) {
                     // the reread of .right is the one protected by our read of ovl
-                    final Object vo = attemptGet(k, right, (rightCmp < 0 ? Left : Right), ovl);
+                    final Object vo = attemptGet(key, prefix, right, (rightCmp < 0 ? Left : Right), ovl);
                     if (vo != SpecialRetry) {
                         return vo;
                     }
@@ -570,7 +945,32 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
-    private Object attemptGet(final Comparable<? super K> k,
+    /** Answers a point read from the Bloom filter or the array image, or
+     *  returns SpecialRetry if neither can.
+     */
+    private Object getFromShortcut(final Object key) {
+        final CountingFilter f = filter;
+        if (f != null) {
+            // the filter is exact about absence only while it is current
+            if (!f.mightContain(key) && filter == f) {
+                return null;
+            }
+        } else if (filterBuilding == 0 && filterHasher != null) {
+            // an earlier build was rejected by the executor
+            scheduleFilterBuild(null);
+        }
+
+        if (imageShortcut) {
+            final ArrayImage<K,V> img = currentImage();
+            if (img != null) {
+                return img.getVOpt(key, comparator);
+            }
+        }
+        return SpecialRetry;
+    }
+
+    private Object attemptGet(final Object key,
+                              final long prefix,
                               final Node<K,V> node,
                               final char dirToC,
                               final long nodeOVL) {
@@ -578,7 +978,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             final Node<K,V> child = node.child(dirToC);
 
             if (child == null) {
-                if (node.shrinkOVL != nodeOVL) {
+                if (node.ovl() != nodeOVL) {
                     return SpecialRetry;
                 }
 
@@ -587,29 +987,29 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 // shrinks.
                 return null;
             } else {
-                final int childCmp = k.compareTo(child.key);
+                final int childCmp = compareLookupToNode(key, prefix, child);
                 if (childCmp == 0) {
                     // how we got here is irrelevant
-                    return child.vOpt;
+                    return visibleVOpt(child.vOpt);
                 }
 
                 // child is non-null
-                final long childOVL = child.shrinkOVL;
+                final long childOVL = child.ovl();
                 if (isShrinkingOrUnlinked(childOVL)) {
                     child.waitUntilShrinkCompleted(childOVL);
 
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
                     // else RETRY
                 } else if (child != node.child(dirToC)) {
                     // this .child is the one that is protected by childOVL
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
                     // else RETRY
                 } else {
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
 
@@ -620,7 +1020,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     // traversals were definitely okay.  This means that we are
                     // no longer vulnerable to node shrinks, and we don't need
                     // to validate nodeOVL any more.
-                    final Object vo = attemptGet(k, child, (childCmp < 0 ? Left : Right), childOVL);
+                    final Object vo = attemptGet(key, prefix, child, (childCmp < 0 ? Left : Right), childOVL);
                     if (vo != SpecialRetry) {
                         return vo;
                     }
@@ -668,7 +1068,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             if (right == null) {
                 return null;
             } else {
-                final long ovl = right.shrinkOVL;
+                final long ovl = right.ovl();
                 if (isShrinkingOrUnlinked(ovl)) {
                     right.waitUntilShrinkCompleted(ovl);
                     // RETRY
@@ -695,33 +1095,37 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 // read of the value must be protected by the OVL, because we
                 // must linearize against another thread that inserts a new min
                 // key and then changes this key's value
-                final Object vo = node.vOpt;
+                final Object vo = visibleVOpt(node.vOpt);
+
+                if (node.ovl() != nodeOVL) {
+                    return SpecialRetry;
+                }
 
-                if (node.shrinkOVL != nodeOVL) {
+                if (vo == null) {
+                    // an absent key that a transaction has locked
+                    awaitTxnLock(node.vOpt);
                     return SpecialRetry;
                 }
-                
-                assert(vo != null);
 
                 return returnKey ? node.key : new SimpleImmutableEntry<K,V>(node.key, decodeNull(vo));
             } else {
                 // child is non-null
-                final long childOVL = child.shrinkOVL;
+                final long childOVL = child.ovl();
                 if (isShrinkingOrUnlinked(childOVL)) {
                     child.waitUntilShrinkCompleted(childOVL);
 
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
                     // else RETRY
                 } else if (child != node.child(dir)) {
                     // this .child is the one that is protected by childOVL
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
                     // else RETRY
                 } else {
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
 
@@ -872,6 +1276,37 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         return result;
     }
 
+    /** Like {@link #boundedExtreme}, but searches the frozen tree rooted at
+     *  <code>root</code>.  The bound in direction <code>dir</code> must not
+     *  be null.  Returns null if none exists.
+     */
+    private K frozenBoundedExtremeKey(final Node<K,V> root,
+                                      final Comparable<? super K> minCmp,
+                                      final boolean minIncl,
+                                      final Comparable<? super K> maxCmp,
+                                      final boolean maxIncl,
+                                      final char dir) {
+        final Node<K,V> node = (dir == Left)
+                ? boundedMin(root, minCmp, minIncl)
+                : boundedMax(root, maxCmp, maxIncl);
+        if (node == null) {
+            return null;
+        }
+        if (dir == Left && maxCmp != null) {
+            final int c = maxCmp.compareTo(node.key);
+            if (c < 0 || (c == 0 && !maxIncl)) {
+                return null;
+            }
+        }
+        if (dir == Right && minCmp != null) {
+            final int c = minCmp.compareTo(node.key);
+            if (c > 0 || (c == 0 && !minIncl)) {
+                return null;
+            }
+        }
+        return node.key;
+    }
+
     private Node<K,V> boundedMin(Node<K,V> node,
                                  final Comparable<? super K> minCmp,
                                  final boolean minIncl) {
@@ -926,16 +1361,21 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
     //////////////// update
 
-    private static final int UpdateAlways = 0;
-    private static final int UpdateIfAbsent = 1;
-    private static final int UpdateIfPresent = 2;
-    private static final int UpdateIfEq = 3;
+    static final int UpdateAlways = 0;
+    static final int UpdateIfAbsent = 1;
+    static final int UpdateIfPresent = 2;
+    static final int UpdateIfEq = 3;
+    /** Updates if the previous vOpt is identical to <code>expected</code>,
+     *  which may be null to require absence.  Used by {@link #transact}.
+     */
+    static final int UpdateIfSame = 4;
 
-    private static boolean shouldUpdate(final int func, final Object prev, final Object expected) {
+    static boolean shouldUpdate(final int func, final Object prev, final Object expected) {
         switch (func) {
             case UpdateAlways: return true;
             case UpdateIfAbsent: return prev == null;
             case UpdateIfPresent: return prev != null;
+            case UpdateIfSame: return prev == expected;
             default: { // UpdateIfEq
                 assert(expected != null);
                 if (prev == null) {
@@ -949,15 +1389,15 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
-    private static Object noUpdateResult(final int func, final Object prev) {
-        return func == UpdateIfEq ? Boolean.FALSE : prev;
+    static Object noUpdateResult(final int func, final Object prev) {
+        return func >= UpdateIfEq ? Boolean.FALSE : prev;
     }
 
-    private static Object updateResult(final int func, final Object prev) {
-        return func == UpdateIfEq ? Boolean.TRUE : prev;
+    static Object updateResult(final int func, final Object prev) {
+        return func >= UpdateIfEq ? Boolean.TRUE : prev;
     }
 
-    private static int sizeDelta(final int func, final Object result, final Object newValue) {
+    static int sizeDelta(final int func, final Object result, final Object newValue) {
         switch (func) {
             case UpdateAlways: {
                 return (result != null ? -1 : 0) + (newValue != null ? 1 : 0);
@@ -1011,6 +1451,33 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         return (Boolean) update(key, UpdateIfEq, encodeNull(value), null);
     }
 
+    /** Like {@link #replace(Object,Object,Object)}, or like {@link
+     *  #remove(Object,Object)} if <code>newValue</code> is null, but returns
+     *  the value that was replaced or removed, which is equal to but may
+     *  not be identical to <code>expected</code>.  Returns null if the map
+     *  was not changed.
+     */
+    V replaceIfEqual(final Object key, final Object expected, final V newValue) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (!AllowNullValues && expected == null) {
+            return null;
+        }
+        final Object expectedVOpt = encodeNull(expected);
+        final Object newVOpt = newValue == null ? null : encodeNull(newValue);
+        while (true) {
+            final Object prev = getImpl(key);
+            if (!shouldUpdate(UpdateIfEq, prev, expectedVOpt)) {
+                return null;
+            }
+            // only succeeds if the value we compared is the one replaced
+            if ((Boolean) update(key, UpdateIfSame, prev, newVOpt)) {
+                return decodeNull(prev);
+            }
+        }
+    }
+
     // manages the epoch
     private Object update(final Object key,
                           final int func,
@@ -1018,13 +1485,31 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                           final Object newValue) {
         final Comparable<? super K> k = comparable(key);
         int sd = 0;
+        CountingFilter f = null;
         final Epoch.Ticket ticket = holderRef.beginMutation();
         try {
+            // nextFilter must be read first, see buildFilter
+            final CountingFilter nf = newValue != null ? nextFilter : null;
+            f = filter;
+            if (newValue != null) {
+                // a key must be counted before it becomes visible
+                filterAdd(f, nf, key);
+            }
             final Object result = updateUnderRoot(key, k, func, expected, newValue, holderRef.mutable());
             sd = sizeDelta(func, result, newValue);
+            if (newValue != null && sd <= 0) {
+                // the key was already present or wasn't inserted
+                filterRemove(f, nf, key);
+            }
+            if (sd < 0) {
+                filterRemove(f, null, key);
+            }
             return result;
         } finally {
             ticket.leave(sd);
+            if (sd != 0 && f != null && f.needsResize()) {
+                scheduleFilterBuild(f);
+            }
         }
     }
 
@@ -1037,6 +1522,13 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                    final Object newValue,
                                    final RootHolder<K,V> holder) {
 
+        if (newValue != null && shouldUpdate(func, null, expected)) {
+            final Object vo = attemptAppend((K)key, k, func, newValue, holder);
+            if (vo != SpecialRetry) {
+                return vo;
+            }
+        }
+
         while (true) {
             final Node<K,V> right = holder.unsharedRight();
             if (right == null) {
@@ -1044,19 +1536,19 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 if (!shouldUpdate(func, null, expected)) {
                     return noUpdateResult(func, null);
                 }
-                if (newValue == null || attemptInsertIntoEmpty((K)key, newValue, holder)) {
+                if (newValue == null || attemptInsertIntoEmpty((K)key, k, newValue, holder)) {
                     // nothing needs to be done, or we were successful, prev value is Absent
                     return updateResult(func, null);
                 }
                 // else RETRY
             } else {
-                final long ovl = right.shrinkOVL;
+                final long ovl = right.ovl();
                 if (isShrinkingOrUnlinked(ovl)) {
                     right.waitUntilShrinkCompleted(ovl);
                     // RETRY
                 } else if (right == holder.right) {
                     // this is the protected .right
-                    final Object vo = attemptUpdate(key, k, func, expected, newValue, holder, right, ovl);
+                    final Object vo = attemptUpdate(key, k, func, expected, newValue, holder, right, ovl, holder, true);
                     if (vo != SpecialRetry) {
                         return vo;
                     }
@@ -1066,17 +1558,69 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         }
     }
 
+    /** Inserts <code>key</code> as the right child of the node with the
+     *  largest key, without searching from the root, if <code>key</code> is
+     *  larger than every key in the tree and that node is known.  Returns
+     *  SpecialRetry if the fast path doesn't apply.  Sequential keys are
+     *  common (time series, log sequence numbers), and for them this avoids
+     *  both the comparisons and the OVL validations of the right spine.
+     *  Rebalancing is unchanged; AVL insertion of increasing keys performs
+     *  amortized O(1) rotations and height changes.
+     */
+    private Object attemptAppend(final K key,
+                                 final Comparable<? super K> k,
+                                 final int func,
+                                 final Object newValue,
+                                 final RootHolder<K,V> holder) {
+        final Node<K,V> hint = holder.rightmost;
+        if (hint == null || hint.right != null || compareToNode(k, hint) <= 0) {
+            return SpecialRetry;
+        }
+
+        final Node<K,V> leaf;
+        final Node<K,V> damaged;
+        hint.lock();
+        try {
+            if (holder.rightmost != hint || hint.right != null || isUnlinked(hint.ovl())) {
+                return SpecialRetry;
+            }
+
+            if (usesSubtreeAggregates()) {
+                // we skipped the descent that would have done this
+                for (Node<K,V> p = hint; p != null; p = p.parent) {
+                    p.invalidateAgg();
+                }
+            }
+
+            updateIndexes(holder, key, null, newValue);
+            leaf = newLeaf(key, k, newValue, hint);
+            hint.right = leaf;
+            holder.rightmost = leaf;
+            damaged = fixHeight_nl(hint);
+        } finally {
+            hint.unlock();
+        }
+        fixHeightAndRebalance(damaged);
+        return updateResult(func, null);
+    }
+
     private boolean attemptInsertIntoEmpty(final K key,
+                                           final Comparable<? super K> k,
                                            final Object vOpt,
                                            final RootHolder<K,V> holder) {
-        synchronized (holder) {
+        holder.lock();
+        try {
             if (holder.right == null) {
-                holder.right = new Node<K,V>(key, 1, vOpt, holder, 0L, null, null);
+                updateIndexes(holder, key, null, vOpt);
+                holder.right = newLeaf(key, k, vOpt, holder);
+                holder.rightmost = holder.right;
                 holder.height = 2;
                 return true;
             } else {
                 return false;
             }
+        } finally {
+            holder.unlock();
         }
     }
 
@@ -1092,7 +1636,9 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                  final Object newValue,
                                  final Node<K,V> parent,
                                  final Node<K,V> node,
-                                 final long nodeOVL) {
+                                 final long nodeOVL,
+                                 final RootHolder<K,V> holder,
+                                 final boolean rightSpine) {
         // As the search progresses there is an implicit min and max assumed for the
         // branch of the tree rooted at node. A left rotation of a node x results in
         // the range of keys in the right branch of x being reduced, so if we are at a
@@ -1105,9 +1651,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
         assert (nodeOVL != UnlinkedOVL);
 
-        final int cmp = k.compareTo(node.key);
+        node.invalidateAgg();
+
+        final int cmp = compareToNode(k, node);
         if (cmp == 0) {
-            return attemptNodeUpdate(func, expected, newValue, parent, node);
+            return attemptNodeUpdate(func, expected, newValue, parent, node, holder);
         }
 
         final char dirToC = cmp < 0 ? Left : Right;
@@ -1115,7 +1663,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         while (true) {
             final Node<K,V> child = node.unsharedChild(dirToC);
 
-            if (node.shrinkOVL != nodeOVL) {
+            if (node.ovl() != nodeOVL) {
                 return SpecialRetry;
             }
 
@@ -1125,16 +1673,17 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     // Removal is requested.  Read of node.child occurred
                     // while parent.child was valid, so we were not affected
                     // by any shrinks.
-                    return null;
+                    return noUpdateResult(func, null);
                 } else {
                     // Update will be an insert.
                     final boolean success;
                     final Node<K,V> damaged;
-                    synchronized (node) {
+                    node.lock();
+                    try {
                         // Validate that we haven't been affected by past
                         // rotations.  We've got the lock on node, so no future
                         // rotations can mess with us.
-                        if (node.shrinkOVL != nodeOVL) {
+                        if (node.ovl() != nodeOVL) {
                             return SpecialRetry;
                         }
 
@@ -1152,13 +1701,22 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                             }
 
                             // Create a new leaf
-                            node.setChild(dirToC, new Node<K,V>((K)key, 1, newValue, node, 0L, null, null));
+                            updateIndexes(holder, key, null, newValue);
+                            final Node<K,V> leaf = newLeaf((K)key, k, newValue, node);
+                            node.setChild(dirToC, leaf);
+                            if (dirToC == Right && rightSpine) {
+                                // every step was to the right, so leaf has
+                                // the largest key
+                                holder.rightmost = leaf;
+                            }
                             success = true;
 
                             // attempt to fix node.height while we've still got
                             // the lock
                             damaged = fixHeight_nl(node);
                         }
+                    } finally {
+                        node.unlock();
                     }
                     if (success) {
                         fixHeightAndRebalance(damaged);
@@ -1168,7 +1726,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 }
             } else {
                 // non-null child
-                final long childOVL = child.shrinkOVL;
+                final long childOVL = child.ovl();
                 if (isShrinkingOrUnlinked(childOVL)) {
                     child.waitUntilShrinkCompleted(childOVL);
                     // RETRY
@@ -1178,7 +1736,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     // RETRY
                 } else {
                     // validate the read that our caller took to get to node
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return SpecialRetry;
                     }
 
@@ -1189,7 +1747,8 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     // traversals were definitely okay.  This means that we are
                     // no longer vulnerable to node shrinks, and we don't need
                     // to validate nodeOVL any more.
-                    final Object vo = attemptUpdate(key, k, func, expected, newValue, node, child, childOVL);
+                    final Object vo = attemptUpdate(key, k, func, expected, newValue, node, child, childOVL,
+                            holder, rightSpine && dirToC == Right);
                     if (vo != SpecialRetry) {
                         return vo;
                     }
@@ -1206,12 +1765,20 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                      final Object expected,
                                      final Object newValue,
                                      final Node<K,V> parent,
-                                     final Node<K,V> node) {
+                                     final Node<K,V> node,
+                                     final RootHolder<K,V> holder) {
+        final Object pending = node.vOpt;
+        if (pending instanceof TxnLock && pending != expected) {
+            // wait for the transaction that owns node to resolve its lock
+            awaitTxnLock(pending);
+            return SpecialRetry;
+        }
+
         if (newValue == null) {
             // removal
             if (node.vOpt == null) {
                 // This node is already removed, nothing to do.
-                return null;
+                return noUpdateResult(func, null);
             }
         }
 
@@ -1219,37 +1786,52 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             // potential unlink, get ready by locking the parent
             final Object prev;
             final Node<K,V> damaged;
-            synchronized (parent) {
-                if (isUnlinked(parent.shrinkOVL) || node.parent != parent) {
+            parent.lock();
+            try {
+                if (isUnlinked(parent.ovl()) || node.parent != parent) {
                     return SpecialRetry;
                 }
 
-                synchronized (node) {
+                node.lock();
+                try {
                     prev = node.vOpt;
+                    if (prev instanceof TxnLock && prev != expected) {
+                        return SpecialRetry;
+                    }
                     if (!shouldUpdate(func, prev, expected)) {
                         return noUpdateResult(func, prev);
                     }
                     if (prev == null) {
                         return updateResult(func, prev);
                     }
+                    updateIndexes(holder, node.key, prev, null);
                     if (!attemptUnlink_nl(parent, node)) {
+                        updateIndexes(holder, node.key, null, prev);
                         return SpecialRetry;
                     }
+                } finally {
+                    node.unlock();
                 }
                 // try to fix the parent while we've still got the lock
                 damaged = fixHeight_nl(parent);
+            } finally {
+                parent.unlock();
             }
             fixHeightAndRebalance(damaged);
             return updateResult(func, prev);
         } else {
             // potential update (including remove-without-unlink)
-            synchronized (node) {
+            node.lock();
+            try {
                 // regular version changes don't bother us
-                if (isUnlinked(node.shrinkOVL)) {
+                if (isUnlinked(node.ovl())) {
                     return SpecialRetry;
                 }
 
                 final Object prev = node.vOpt;
+                if (prev instanceof TxnLock && prev != expected) {
+                    return SpecialRetry;
+                }
                 if (!shouldUpdate(func, prev, expected)) {
                     return noUpdateResult(func, prev);
                 }
@@ -1260,8 +1842,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 }
 
                 // update in-place
+                updateIndexes(holder, node.key, prev, newValue);
                 node.vOpt = newValue;
                 return updateResult(func, prev);
+            } finally {
+                node.unlock();
             }
         }
     }
@@ -1270,7 +1855,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     private boolean attemptUnlink_nl(final Node<K,V> parent, final Node<K,V> node) {
         // assert (Thread.holdsLock(parent));
         // assert (Thread.holdsLock(node));
-        assert (!isUnlinked(parent.shrinkOVL));
+        assert (!isUnlinked(parent.ovl()));
 
         final Node<K,V> parentL = parent.left;
         final Node<K,V>  parentR = parent.right;
@@ -1279,11 +1864,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             return false;
         }
 
-        assert (!isUnlinked(node.shrinkOVL));
+        assert (!isUnlinked(node.ovl()));
         assert (parent == node.parent);
 
-        final Node<K,V> left = node.unsharedLeft();
-        final Node<K,V> right = node.unsharedRight();
+        final Node<K,V> left = node.unsharedLeft_nl();
+        final Node<K,V> right = node.unsharedRight_nl();
         if (left != null && right != null) {
             // splicing is no longer possible
             return false; 
@@ -1299,7 +1884,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             splice.parent = parent;
         }
 
-        node.shrinkOVL = UnlinkedOVL;
+        node.setOVL(UnlinkedOVL);
         node.vOpt = null;
 
         return true;
@@ -1321,9 +1906,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         final Epoch.Ticket ticket = holderRef.beginMutation();
         int sizeDelta = 0;
         try {
+            final CountingFilter f = filter;
             final Map.Entry<K,V> prev = pollExtremeEntryUnderRoot(dir, holderRef.mutable());
             if (prev != null) {
                 sizeDelta = -1;
+                filterRemove(f, null, prev.getKey());
             }
             return prev;
         } finally {
@@ -1338,13 +1925,13 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 // tree is empty, nothing to remove
                 return null;
             } else {
-                final long ovl = right.shrinkOVL;
+                final long ovl = right.ovl();
                 if (isShrinkingOrUnlinked(ovl)) {
                     right.waitUntilShrinkCompleted(ovl);
                     // RETRY
                 } else if (right == holder.right) {
                     // this is the protected .right
-                    final Map.Entry<K,V> result = attemptRemoveExtreme(dir, holder, right, ovl);
+                    final Map.Entry<K,V> result = attemptRemoveExtreme(dir, holder, right, ovl, holder);
                     if (result != SpecialRetry) {
                         return result;
                     }
@@ -1357,40 +1944,59 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     private Map.Entry<K,V> attemptRemoveExtreme(final char dir,
                                                 final Node<K,V> parent,
                                                 final Node<K,V> node,
-                                                final long nodeOVL) {
+                                                final long nodeOVL,
+                                                final RootHolder<K,V> holder) {
         assert (nodeOVL != UnlinkedOVL);
 
+        node.invalidateAgg();
+
         while (true) {
             final Node<K,V> child = node.unsharedChild(dir);
 
-            if (nodeOVL != node.shrinkOVL) {
+            if (nodeOVL != node.ovl()) {
                 return null;
             }
 
             if (child == null) {
+                if (node.vOpt instanceof TxnLock) {
+                    awaitTxnLock(node.vOpt);
+                    return null;
+                }
+
                 // potential unlink, get ready by locking the parent
                 final Object vo;
                 final Node<K,V> damaged;
-                synchronized (parent) {
-                    if (isUnlinked(parent.shrinkOVL) || node.parent != parent) {
+                parent.lock();
+                try {
+                    if (isUnlinked(parent.ovl()) || node.parent != parent) {
                         return null;
                     }
 
-                    synchronized (node) {
+                    node.lock();
+                    try {
                         vo = node.vOpt;
-                        if (node.child(dir) != null || !attemptUnlink_nl(parent, node)) {
+                        if (node.child(dir) != null || vo instanceof TxnLock) {
+                            return null;
+                        }
+                        updateIndexes(holder, node.key, vo, null);
+                        if (!attemptUnlink_nl(parent, node)) {
+                            updateIndexes(holder, node.key, null, vo);
                             return null;
                         }
                         // success!
+                    } finally {
+                        node.unlock();
                     }
                     // try to fix parent.height while we've still got the lock
                     damaged = fixHeight_nl(parent);
+                } finally {
+                    parent.unlock();
                 }
                 fixHeightAndRebalance(damaged);
                 return new SimpleImmutableEntry<K,V>(node.key, decodeNull(vo));
             } else {
                 // keep going down
-                final long childOVL = child.shrinkOVL;
+                final long childOVL = child.ovl();
                 if (isShrinkingOrUnlinked(childOVL)) {
                     child.waitUntilShrinkCompleted(childOVL);
                     // RETRY
@@ -1400,11 +2006,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     // RETRY
                 } else {
                     // validate the read that our caller took to get to node
-                    if (node.shrinkOVL != nodeOVL) {
+                    if (node.ovl() != nodeOVL) {
                         return null;
                     }
 
-                    final Map.Entry<K,V> result = attemptRemoveExtreme(dir, node, child, childOVL);
+                    final Map.Entry<K,V> result = attemptRemoveExtreme(dir, node, child, childOVL, holder);
                     if (result != null) {
                         return result;
                     }
@@ -1416,19 +2022,297 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
     
 
-    //////////////// tree balance and height info repair
+    //////////////// transactions
 
-    private static final int UnlinkRequired = -1;
-    private static final int RebalanceRequired = -2;
-    private static final int NothingRequired = -3;
+    /** The body of a transaction executed by {@link SnapTreeMap#transact}.
+     *  The body may be run more than once, so it should not have side
+     *  effects other than those performed through its {@link Transaction}.
+     */
+    public interface TransactionBody<K,V,R> {
+        R run(Transaction<K,V> tx);
+    }
 
-    private int nodeCondition(final Node<K,V> node) {
-        // Begin atomic.
+    /** Reads and writes performed by a {@link TransactionBody}.  Reads
+     *  record the value they observed, and writes are buffered until the
+     *  body returns.  A <code>Transaction</code> may only be used by the
+     *  thread that is running its body, and only until the body returns.
+     */
+    public static final class Transaction<K,V> {
+        private final SnapTreeMap<K,V> m;
+        private final TreeMap<K,TxnAccess> accesses;
+        private boolean active = true;
 
-        final Node<K,V> nL = node.left;
-        final Node<K,V> nR = node.right;
+        private Transaction(final SnapTreeMap<K,V> m) {
+            this.m = m;
+            this.accesses = new TreeMap<K,TxnAccess>(m.comparator);
+        }
 
-        if ((nL == null || nR == null) && node.vOpt == null) {
+        @SuppressWarnings("unchecked")
+        private TxnAccess access(final Object key) {
+            if (!active) {
+                throw new IllegalStateException("transaction has completed");
+            }
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            TxnAccess a = accesses.get(key);
+            if (a == null) {
+                a = new TxnAccess(m.getImpl(key));
+                accesses.put((K) key, a);
+            }
+            return a;
+        }
+
+        public V get(final Object key) {
+            return m.decodeNull(access(key).currentVOpt());
+        }
+
+        public boolean containsKey(final Object key) {
+            return access(key).currentVOpt() != null;
+        }
+
+        public V put(final K key, final V value) {
+            final Object vOpt = encodeNull(value);
+            final TxnAccess a = access(key);
+            final V prev = m.decodeNull(a.currentVOpt());
+            a.written = true;
+            a.writeVOpt = vOpt;
+            return prev;
+        }
+
+        public V remove(final Object key) {
+            final TxnAccess a = access(key);
+            final V prev = m.decodeNull(a.currentVOpt());
+            a.written = true;
+            a.writeVOpt = null;
+            return prev;
+        }
+    }
+
+    /** The read of a key by a transaction, and its buffered write. */
+    private static final class TxnAccess {
+        final Object readVOpt;
+        boolean written;
+        Object writeVOpt;
+
+        TxnAccess(final Object readVOpt) {
+            this.readVOpt = readVOpt;
+        }
+
+        Object currentVOpt() {
+            return written ? writeVOpt : readVOpt;
+        }
+
+        boolean isInsert() {
+            return readVOpt == null && written && writeVOpt != null;
+        }
+
+        boolean isRemove() {
+            return readVOpt != null && written && writeVOpt == null;
+        }
+    }
+
+    /** The outcome of one attempt to commit a transaction, shared by all of
+     *  its locks.
+     */
+    private static final class TxnCommit {
+        static final int Pending = 0;
+        static final int Committed = 1;
+        static final int Aborted = 2;
+
+        /** A thread parked in awaitRelease. */
+        static final class Waiter {
+            final Thread thread = Thread.currentThread();
+            Waiter next;
+        }
+
+        private static final AtomicReferenceFieldUpdater<TxnCommit,Waiter> waitersUpdater
+                = AtomicReferenceFieldUpdater.newUpdater(TxnCommit.class, Waiter.class, "waiters");
+
+        volatile int state = Pending;
+        volatile boolean released;
+
+        /** This commit's own waiters, pushed onto a stack. */
+        private volatile Waiter waiters;
+
+        void release() {
+            released = true;
+            for (Waiter w = waitersUpdater.getAndSet(this, null); w != null; w = w.next) {
+                LockSupport.unpark(w.thread);
+            }
+        }
+
+        void awaitRelease() {
+            for (int tries = 0; tries < SpinCount; ++tries) {
+                if (released) {
+                    return;
+                }
+            }
+
+            for (int tries = 0; tries < YieldCount; ++tries) {
+                Thread.yield();
+                if (released) {
+                    return;
+                }
+            }
+
+            // nothing is removed from the stack, release takes all of it
+            final Waiter w = new Waiter();
+            do {
+                w.next = waiters;
+            } while (!waitersUpdater.compareAndSet(this, w.next, w));
+
+            boolean interrupted = false;
+            while (!released) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+            if (interrupted) {
+                w.thread.interrupt();
+            }
+        }
+    }
+
+    /** Stored in the vOpt of a node while a transaction that read or wrote
+     *  the node's key is committing.  Readers see <code>prevVOpt</code>
+     *  until the commit succeeds and <code>newVOpt</code> afterward, so all
+     *  of the transaction's writes become visible at the same instant.
+     *  Writers that find a lock wait for it to be replaced.
+     */
+    private static final class TxnLock {
+        final TxnCommit commit;
+        final Object prevVOpt;
+        final Object newVOpt;
+
+        TxnLock(final TxnCommit commit, final Object prevVOpt, final Object newVOpt) {
+            this.commit = commit;
+            this.prevVOpt = prevVOpt;
+            this.newVOpt = newVOpt;
+        }
+
+        Object visibleVOpt() {
+            return commit.state == TxnCommit.Committed ? newVOpt : prevVOpt;
+        }
+    }
+
+    private static void awaitTxnLock(final Object vOpt) {
+        if (vOpt instanceof TxnLock) {
+            ((TxnLock) vOpt).commit.awaitRelease();
+        }
+    }
+
+    /** Runs <code>body</code> as an optimistic transaction, returning its
+     *  result.  The body's reads and writes take effect atomically: if any
+     *  key that it read has changed by the time it commits, the body is run
+     *  again.  The body may observe an inconsistent state in a run that
+     *  will be retried, and an exception thrown by the body is propagated
+     *  without committing any of its writes.
+     *
+     *  <p>Commit locks the node of every key that the body accessed, in key
+     *  order, by replacing its value with a lock that records the previous
+     *  value and the buffered write.  A node is locked only if its value is
+     *  still the one that the body read (absent keys get a placeholder
+     *  node).  Once every node is locked the commit succeeds, all of the
+     *  writes become visible together, and the locks are replaced by the
+     *  new values.  The whole commit holds a single mutation ticket, so
+     *  clones see either all of the writes or none of them.  Because the
+     *  transaction locks are separate from the node monitors used for
+     *  rebalancing they can be acquired in key order without deadlock;
+     *  other writers of a locked key wait for the commit to finish.
+     */
+    public <R> R transact(final TransactionBody<K,V,R> body) {
+        while (true) {
+            final Transaction<K,V> tx = new Transaction<K,V>(this);
+            final R result;
+            try {
+                result = body.run(tx);
+            } finally {
+                tx.active = false;
+            }
+            if (attemptCommit(tx.accesses)) {
+                return result;
+            }
+        }
+    }
+
+    private boolean attemptCommit(final TreeMap<K,TxnAccess> accesses) {
+        if (accesses.isEmpty()
+                || (accesses.size() == 1 && !accesses.firstEntry().getValue().written)) {
+            // a single read is trivially consistent
+            return true;
+        }
+
+        final TxnCommit commit = new TxnCommit();
+        final TxnLock[] locks = new TxnLock[accesses.size()];
+        int sd = 0;
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        try {
+            final RootHolder<K,V> holder = holderRef.mutable();
+
+            // inserted keys are counted before the commit makes them
+            // visible, and removed keys after
+            final CountingFilter nf = nextFilter;
+            final CountingFilter f = filter;
+            for (Map.Entry<K,TxnAccess> e : accesses.entrySet()) {
+                if (e.getValue().isInsert()) {
+                    filterAdd(f, nf, e.getKey());
+                }
+            }
+
+            int n = 0;
+            for (Map.Entry<K,TxnAccess> e : accesses.entrySet()) {
+                final TxnAccess a = e.getValue();
+                final TxnLock lock = new TxnLock(commit, a.readVOpt, a.currentVOpt());
+                final K key = e.getKey();
+                if (updateUnderRoot(key, comparable(key), UpdateIfSame, a.readVOpt, lock, holder) != Boolean.TRUE) {
+                    break;
+                }
+                locks[n++] = lock;
+            }
+
+            final boolean success = n == locks.length;
+            commit.state = success ? TxnCommit.Committed : TxnCommit.Aborted;
+
+            int i = 0;
+            for (K key : accesses.keySet()) {
+                if (i == n) {
+                    break;
+                }
+                final TxnLock lock = locks[i++];
+                final Object vOpt = lock.visibleVOpt();
+                final Object r = updateUnderRoot(key, comparable(key), UpdateIfSame, lock, vOpt, holder);
+                assert(r == Boolean.TRUE);
+                sd += (vOpt != null ? 1 : 0) - (lock.prevVOpt != null ? 1 : 0);
+            }
+            commit.release();
+
+            for (Map.Entry<K,TxnAccess> e : accesses.entrySet()) {
+                final TxnAccess a = e.getValue();
+                if (a.isInsert() && !success) {
+                    filterRemove(f, nf, e.getKey());
+                } else if (a.isRemove() && success) {
+                    filterRemove(f, null, e.getKey());
+                }
+            }
+            return success;
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    //////////////// tree balance and height info repair
+
+    private static final int UnlinkRequired = -1;
+    private static final int RebalanceRequired = -2;
+    private static final int NothingRequired = -3;
+
+    private int nodeCondition(final Node<K,V> node) {
+        // Begin atomic.
+
+        final Node<K,V> nL = node.left;
+        final Node<K,V> nR = node.right;
+
+        if ((nL == null || nR == null) && node.vOpt == null) {
             return UnlinkRequired;
         }
 
@@ -1454,24 +2338,35 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     private void fixHeightAndRebalance(Node<K,V> node) {
         while (node != null && node.parent != null) {
             final int condition = nodeCondition(node);
-            if (condition == NothingRequired || isUnlinked(node.shrinkOVL)) {
+            if (condition == NothingRequired || isUnlinked(node.ovl())) {
                 // nothing to do, or no point in fixing this node
                 return;
             }
 
             if (condition != UnlinkRequired && condition != RebalanceRequired) {
-                synchronized (node) {
-                    node = fixHeight_nl(node);
+                final Node<K,V> locked = node;
+                locked.lock();
+                try {
+                    node = fixHeight_nl(locked);
+                } finally {
+                    locked.unlock();
                 }
             } else {
                 final Node<K,V> nParent = node.parent;
-                synchronized (nParent) {
-                    if (!isUnlinked(nParent.shrinkOVL) && node.parent == nParent) {
-                        synchronized (node) {
-                            node = rebalance_nl(nParent, node);
+                nParent.lock();
+                try {
+                    if (!isUnlinked(nParent.ovl()) && node.parent == nParent) {
+                        final Node<K,V> locked = node;
+                        locked.lock();
+                        try {
+                            node = rebalance_nl(nParent, locked);
+                        } finally {
+                            locked.unlock();
                         }
                     }
                     // else RETRY
+                } finally {
+                    nParent.unlock();
                 }
             }
         }
@@ -1503,8 +2398,8 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
      */
     private Node<K,V> rebalance_nl(final Node<K,V> nParent, final Node<K,V> n) {
 
-        final Node<K,V> nL = n.unsharedLeft();
-        final Node<K,V> nR = n.unsharedRight();
+        final Node<K,V> nL = n.unsharedLeft_nl();
+        final Node<K,V> nR = n.unsharedRight_nl();
 
         if ((nL == null || nR == null) && n.vOpt == null) {
             if (attemptUnlink_nl(nParent, n)) {
@@ -1545,19 +2440,21 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                           final int hR0) {
         // L is too large, we will rotate-right.  If L.R is taller
         // than L.L, then we will first rotate-left L.
-        synchronized (nL) {
+        nL.lock();
+        try {
             final int hL = nL.height;
             if (hL - hR0 <= 1) {
                 return n; // retry
             } else {
-                final Node<K,V> nLR = nL.unsharedRight();
+                final Node<K,V> nLR = nL.unsharedRight_nl();
                 final int hLL0 = height(nL.left);
                 final int hLR0 = height(nLR);
                 if (hLL0 >= hLR0) {
                     // rotate right based on our snapshot of hLR
                     return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR0);
                 } else {
-                    synchronized (nLR) {
+                    nLR.lock();
+                    try {
                         // If our hLR snapshot is incorrect then we might
                         // actually need to do a single rotate-right on n.
                         final int hLR = nLR.height;
@@ -1585,11 +2482,15 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                 return rotateRightOverLeft_nl(nParent, n, nL, hR0, hLL0, nLR, hLRL);
                             }
                         }
+                    } finally {
+                        nLR.unlock();
                     }
                     // focus on nL, if necessary n will be balanced later   
                     return rebalanceToLeft_nl(n, nL, nLR, hLL0);
                 }
             }
+        } finally {
+            nL.unlock();
         }
     }
 
@@ -1597,18 +2498,20 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                          final Node<K,V> n,
                                          final Node<K,V> nR,
                                          final int hL0) {
-        synchronized (nR) {
+        nR.lock();
+        try {
             final int hR = nR.height;
             if (hL0 - hR >= -1) {
                 return n; // retry
             } else {
-                final Node<K,V> nRL = nR.unsharedLeft();
+                final Node<K,V> nRL = nR.unsharedLeft_nl();
                 final int hRL0 = height(nRL);
                 final int hRR0 = height(nR.right);
                 if (hRR0 >= hRL0) {
                     return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL0, hRR0);
                 } else {
-                    synchronized (nRL) {
+                    nRL.lock();
+                    try {
                         final int hRL = nRL.height;
                         if (hRR0 >= hRL) {
                             return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL, hRR0);
@@ -1619,10 +2522,14 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                 return rotateLeftOverRight_nl(nParent, n, hL0, nR, nRL, hRR0, hRLR);
                             }
                         }
+                    } finally {
+                        nRL.unlock();
                     }
                     return rebalanceToRight_nl(n, nR, nRL, hRR0);
                 }
             }
+        } finally {
+            nR.unlock();
         }
     }
 
@@ -1633,11 +2540,13 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                      final int hLL,
                                      final Node<K,V> nLR,
                                      final int hLR) {
-        final long nodeOVL = n.shrinkOVL;
+        final long nodeOVL = n.ovl();
 
         final Node<K,V> nPL = nParent.left;
 
-        n.shrinkOVL = beginChange(nodeOVL);
+        n.setOVL(beginChange(nodeOVL));
+        n.invalidateAgg();
+        nL.invalidateAgg();
 
         n.left = nLR;
         if (nLR != null) {
@@ -1659,7 +2568,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         n.height = hNRepl;
         nL.height = 1 + Math.max(hLL, hNRepl);
 
-        n.shrinkOVL = endChange(nodeOVL);
+        n.setOVL(endChange(nodeOVL));
 
         // We have damaged nParent, n (now parent.child.right), and nL (now
         // parent.child).  n is the deepest.  Perform as many fixes as we can
@@ -1703,11 +2612,13 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                     final Node<K,V> nRL,
                                     final int hRL,
                                     final int hRR) {
-        final long nodeOVL = n.shrinkOVL;
+        final long nodeOVL = n.ovl();
 
         final Node<K,V> nPL = nParent.left;
 
-        n.shrinkOVL = beginChange(nodeOVL);
+        n.setOVL(beginChange(nodeOVL));
+        n.invalidateAgg();
+        nR.invalidateAgg();
 
         // fix up n links, careful to be compatible with concurrent traversal for all but n
         n.right = nRL;
@@ -1730,7 +2641,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         n.height = hNRepl;
         nR.height = 1 + Math.max(hNRepl, hRR);
 
-        n.shrinkOVL = endChange(nodeOVL);
+        n.setOVL(endChange(nodeOVL));
 
         final int balN = hRL - hL;
         if (balN < -1 || balN > 1) {
@@ -1760,16 +2671,19 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                              final int hLL,
                                              final Node<K,V> nLR,
                                              final int hLRL) {
-        final long nodeOVL = n.shrinkOVL;
-        final long leftOVL = nL.shrinkOVL;
+        final long nodeOVL = n.ovl();
+        final long leftOVL = nL.ovl();
 
         final Node<K,V> nPL = nParent.left;
-        final Node<K,V> nLRL = nLR.unsharedLeft();
-        final Node<K,V> nLRR = nLR.unsharedRight();
+        final Node<K,V> nLRL = nLR.unsharedLeft_nl();
+        final Node<K,V> nLRR = nLR.unsharedRight_nl();
         final int hLRR = height(nLRR);
 
-        n.shrinkOVL = beginChange(nodeOVL);
-        nL.shrinkOVL = beginChange(leftOVL);
+        n.setOVL(beginChange(nodeOVL));
+        nL.setOVL(beginChange(leftOVL));
+        n.invalidateAgg();
+        nL.invalidateAgg();
+        nLR.invalidateAgg();
 
         // fix up n links, careful about the order!
         n.left = nLRR;
@@ -1801,8 +2715,8 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         nL.height = hLRepl;
         nLR.height = 1 + Math.max(hLRepl, hNRepl);
 
-        n.shrinkOVL = endChange(nodeOVL);
-        nL.shrinkOVL = endChange(leftOVL);
+        n.setOVL(endChange(nodeOVL));
+        nL.setOVL(endChange(leftOVL));
 
         // caller should have performed only a single rotation if nL was going
         // to end up damaged
@@ -1845,16 +2759,19 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                                              final Node<K,V> nRL,
                                              final int hRR,
                                              final int hRLR) {
-        final long nodeOVL = n.shrinkOVL;
-        final long rightOVL = nR.shrinkOVL;
+        final long nodeOVL = n.ovl();
+        final long rightOVL = nR.ovl();
 
         final Node<K,V> nPL = nParent.left;
-        final Node<K,V> nRLL = nRL.unsharedLeft();
-        final Node<K,V> nRLR = nRL.unsharedRight();
+        final Node<K,V> nRLL = nRL.unsharedLeft_nl();
+        final Node<K,V> nRLR = nRL.unsharedRight_nl();
         final int hRLL = height(nRLL);
 
-        n.shrinkOVL = beginChange(nodeOVL);
-        nR.shrinkOVL = beginChange(rightOVL);
+        n.setOVL(beginChange(nodeOVL));
+        nR.setOVL(beginChange(rightOVL));
+        n.invalidateAgg();
+        nR.invalidateAgg();
+        nRL.invalidateAgg();
 
         // fix up n links, careful about the order!
         n.right = nRLL;
@@ -1886,8 +2803,8 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         nR.height = hRRepl;
         nRL.height = 1 + Math.max(hNRepl, hRRepl);
 
-        n.shrinkOVL = endChange(nodeOVL);
-        nR.shrinkOVL = endChange(rightOVL);
+        n.setOVL(endChange(nodeOVL));
+        nR.setOVL(endChange(rightOVL));
 
         assert(Math.abs(hRR - hRLR) <= 1);
 
@@ -1905,120 +2822,1447 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         return fixHeight_nl(nParent);
     }
 
-    //////////////// Map views
+    //////////////// subtree aggregation
 
-    @Override
-    public NavigableSet<K> keySet() {
-        return navigableKeySet();
+    /** Returns true if this map reads the {@link Node#agg} caches, in which
+     *  case a writer that bypasses the search from the root must clear
+     *  them itself.
+     */
+    boolean usesSubtreeAggregates() {
+        return false;
     }
 
-    @Override
-    public Set<Map.Entry<K,V>> entrySet() {
-        return new EntrySet();
-    }
+    /** Selects the entries visited by {@link #searchFrozen}. */
+    interface SubtreeFilter<K,V,A> {
+        /** Returns false if no entry in a subtree with summary
+         *  <code>subtreeAgg</code> can be accepted.
+         */
+        boolean mayContain(A subtreeAgg);
 
-    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        boolean accept(K key, V value);
+    }
 
-        @Override
-        public int size() {
-            return SnapTreeMap.this.size();
+    /** Returns the summary of the entries in the frozen subtree rooted at
+     *  <code>node</code>, caching the summary of each subtree that it visits.
+     *  Frozen nodes are never modified, so the caches are reused by later
+     *  searches of the same snapshot, and inherited by lazy copies.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K,V,A> A frozenAggregate(final Node<K,V> node,
+                                             final Aggregator<? super K,? super V,A> aggregator) {
+        if (node == null) {
+            return aggregator.identity();
         }
-
-        @Override
-        public boolean isEmpty() {
-            return SnapTreeMap.this.isEmpty();
+        final Object cached = node.agg;
+        if (cached != null) {
+            return (A) cached;
         }
+        A result = frozenAggregate(node.left, aggregator);
+        if (node.vOpt != null) {
+            result = aggregator.combine(result, aggregator.lift(node.key, node.getValue()));
+        }
+        result = aggregator.combine(result, frozenAggregate(node.right, aggregator));
+        node.agg = result;
+        return result;
+    }
 
-        @Override
-        public void clear() {
-            SnapTreeMap.this.clear();
+    /** Returns the summary of the entries of a snapshot whose keys lie
+     *  between the bounds, either of which may be null for no bound.  Every
+     *  map that shares structure with this one must use the same
+     *  <code>aggregator</code>.
+     */
+    <A> A aggregateFrozen(final Aggregator<? super K,? super V,A> aggregator,
+                          final K fromKey,
+                          final boolean fromIncl,
+                          final K toKey,
+                          final boolean toIncl) {
+        final Comparable<? super K> fromCmp = fromKey == null ? null : comparable(fromKey);
+        final Comparable<? super K> toCmp = toKey == null ? null : comparable(toKey);
+        if (fromCmp != null && toCmp != null) {
+            final int c = fromCmp.compareTo(toKey);
+            if (c > 0 || (c == 0 && !(fromIncl && toIncl))) {
+                return aggregator.identity();
+            }
         }
+        return frozenAggregate(frozenHolder().right, aggregator, fromCmp, fromIncl, toCmp, toIncl);
+    }
 
-        @Override
-        public boolean contains(final Object o) {
-            if (!(o instanceof Map.Entry<?,?>)) {
-                return false;
+    /** Like {@link Node#computeFrozenSize}, but the subtrees that lie entirely
+     *  inside the range use their cached summaries, so only the two paths
+     *  to the ends of the range are walked.
+     */
+    private static <K,V,A> A frozenAggregate(final Node<K,V> node,
+                                             final Aggregator<? super K,? super V,A> aggregator,
+                                             final Comparable<? super K> fromCmp,
+                                             final boolean fromIncl,
+                                             final Comparable<? super K> toCmp,
+                                             final boolean toIncl) {
+        if (node == null) {
+            return aggregator.identity();
+        }
+        if (fromCmp == null && toCmp == null) {
+            return frozenAggregate(node, aggregator);
+        }
+        if (fromCmp != null) {
+            final int c = fromCmp.compareTo(node.key);
+            if (c > 0 || (c == 0 && !fromIncl)) {
+                return frozenAggregate(node.right, aggregator, fromCmp, fromIncl, toCmp, toIncl);
             }
-            final Object k = ((Map.Entry<?,?>)o).getKey();
-            final Object v = ((Map.Entry<?,?>)o).getValue();
-            final Object actualVo = SnapTreeMap.this.getImpl(k);
-            if (actualVo == null) {
-                // no associated value
-                return false;
+        }
+        if (toCmp != null) {
+            final int c = toCmp.compareTo(node.key);
+            if (c < 0 || (c == 0 && !toIncl)) {
+                return frozenAggregate(node.left, aggregator, fromCmp, fromIncl, toCmp, toIncl);
             }
-            final V actual = decodeNull(actualVo);
-            return v == null ? actual == null : v.equals(actual);
         }
 
-        @Override
-        public boolean add(final Entry<K,V> e) {
-            final Object v = encodeNull(e.getValue());
-            return update(e.getKey(), UpdateAlways, null, v) != v;
+        // node is in range, so the left subtree is only bounded below and
+        // the right subtree is only bounded above
+        A result = frozenAggregate(node.left, aggregator, fromCmp, fromIncl, null, false);
+        if (node.vOpt != null) {
+            result = aggregator.combine(result, aggregator.lift(node.key, node.getValue()));
         }
+        return aggregator.combine(result, frozenAggregate(node.right, aggregator, null, false, toCmp, toIncl));
+    }
 
-        @Override
-        public boolean remove(final Object o) {
-            if (!(o instanceof Map.Entry<?,?>)) {
-                return false;
+    /** Returns, in key order, the entries of a snapshot that have keys below
+     *  <code>toKey</code> (or any key if it is null) and that are accepted
+     *  by <code>filter</code>.  Subtrees whose summary is rejected by
+     *  <code>filter.mayContain</code> are skipped.  Every map that shares
+     *  structure with this one must use the same <code>aggregator</code>.
+     */
+    <A> List<Map.Entry<K,V>> searchFrozen(final Aggregator<? super K,? super V,A> aggregator,
+                                          final SubtreeFilter<? super K,? super V,? super A> filter,
+                                          final K toKey,
+                                          final boolean toIncl) {
+        final List<Map.Entry<K,V>> result = new ArrayList<Map.Entry<K,V>>();
+        final Comparable<? super K> toCmp = toKey == null ? null : comparable(toKey);
+        searchFrozen(frozenHolder().right, aggregator, filter, toCmp, toIncl, result);
+        return result;
+    }
+
+    private static <K,V,A> void searchFrozen(Node<K,V> node,
+                                             final Aggregator<? super K,? super V,A> aggregator,
+                                             final SubtreeFilter<? super K,? super V,? super A> filter,
+                                             final Comparable<? super K> toCmp,
+                                             final boolean toIncl,
+                                             final List<Map.Entry<K,V>> result) {
+        while (node != null && filter.mayContain(frozenAggregate(node, aggregator))) {
+            if (toCmp != null) {
+                final int c = toCmp.compareTo(node.key);
+                if (c < 0 || (c == 0 && !toIncl)) {
+                    // node and its right subtree are beyond the bound
+                    node = node.left;
+                    continue;
+                }
             }
-            final Object k = ((Map.Entry<?,?>)o).getKey();
-            final Object v = ((Map.Entry<?,?>)o).getValue();
-            return SnapTreeMap.this.remove(k, v);
+            searchFrozen(node.left, aggregator, filter, toCmp, toIncl, result);
+            if (node.vOpt != null) {
+                final V value = node.getValue();
+                if (filter.accept(node.key, value)) {
+                    result.add(new SimpleImmutableEntry<K,V>(node.key, value));
+                }
+            }
+            node = node.right;
         }
+    }
 
-        @Override
-        public Iterator<Entry<K,V>> iterator() {
-            return new EntryIter<K,V>(SnapTreeMap.this);
+    //////////////// sampling
+
+    /** Returns an entry chosen approximately uniformly at random, or null
+     *  if the map is empty.  The search descends from the root, stopping at
+     *  each node or moving to one of its children in proportion to the
+     *  sizes of the subtrees, which are estimated from their heights.  The
+     *  descent is not validated, so it is cheap but the returned entry may
+     *  have been concurrently removed or replaced.  Callers should act on
+     *  it only with a conditional update.
+     */
+    SimpleImmutableEntry<K,V> sampleEntry(final Random random) {
+        while (true) {
+            Node<K,V> node = holderRef.read().right;
+            if (node == null) {
+                return null;
+            }
+            while (true) {
+                final double leftSize = estimatedSize(node.left);
+                final double x = random.nextDouble() * (1 + leftSize + estimatedSize(node.right));
+                if (x < 1) {
+                    break;
+                }
+                final Node<K,V> child = node.child(x < 1 + leftSize ? Left : Right);
+                if (child == null) {
+                    // changed since we read the heights
+                    break;
+                }
+                node = child;
+            }
+            final Object vo = visibleVOpt(node.vOpt);
+            if (vo != null) {
+                return new SimpleImmutableEntry<K,V>(node.key, decodeNull(vo));
+            }
+            // else RETRY, this is a routing node
         }
     }
 
-    private static class EntryIter<K,V> extends AbstractIter<K,V> implements Iterator<Map.Entry<K,V>> {
-        private EntryIter(final SnapTreeMap<K,V> m) {
-            super(m);
+    private static double estimatedSize(final Node<?,?> node) {
+        return node == null ? 0.0 : Math.scalb(1.0, node.height) - 1;
+    }
+
+    //////////////// read-optimized array image
+
+    /** The next image build may start after this many times the duration of
+     *  the previous one has elapsed, so that rebuilding uses at most a
+     *  small fraction of one thread even under a constant write load.
+     */
+    private static final int ImageRebuildBackoff = 8;
+
+    /** The entries of the frozen tree rooted at <code>root</code>, in key
+     *  order.  Node identity is the basis for incremental rebuilds: a node
+     *  of a frozen tree is never modified, so a node that is in both the
+     *  old and the new frozen tree has an unchanged subtree.
+     */
+    private static final class ArrayImage<K,V> {
+        final RootHolder<K,V> root;
+        final Object[] keys;
+        final Object[] vOpts;
+        final long nextBuildNanos;
+
+        ArrayImage(final RootHolder<K,V> root, final Object[] keys, final Object[] vOpts, final long nextBuildNanos) {
+            this.root = root;
+            this.keys = keys;
+            this.vOpts = vOpts;
+            this.nextBuildNanos = nextBuildNanos;
         }
 
-        private EntryIter(final SnapTreeMap<K,V> m,
-                          final Comparable<? super K> minCmp,
-                          final boolean minIncl,
-                          final Comparable<? super K> maxCmp,
-                          final boolean maxIncl,
-                          final boolean descending) {
-            super(m, minCmp, minIncl, maxCmp, maxIncl, descending);
+        /** Like {@link java.util.Arrays#binarySearch(Object[],Object)}. */
+        @SuppressWarnings("unchecked")
+        int search(final Object key, final Comparator<? super K> comparator) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            int lo = 0;
+            int hi = keys.length - 1;
+            if (comparator == null) {
+                final Comparable<Object> k = (Comparable<Object>) key;
+                while (lo <= hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    final int c = k.compareTo(keys[mid]);
+                    if (c == 0) {
+                        return mid;
+                    } else if (c < 0) {
+                        hi = mid - 1;
+                    } else {
+                        lo = mid + 1;
+                    }
+                }
+            } else {
+                while (lo <= hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    final int c = comparator.compare((K) key, (K) keys[mid]);
+                    if (c == 0) {
+                        return mid;
+                    } else if (c < 0) {
+                        hi = mid - 1;
+                    } else {
+                        lo = mid + 1;
+                    }
+                }
+            }
+            return -(lo + 1);
         }
 
-        @Override
-        public Entry<K,V> next() {
-            return nextNode();
+        Object getVOpt(final Object key, final Comparator<? super K> comparator) {
+            final int i = search(key, comparator);
+            return i < 0 ? null : vOpts[i];
         }
     }
 
-    private static class KeyIter<K,V> extends AbstractIter<K,V> implements Iterator<K> {
-        private KeyIter(final SnapTreeMap<K,V> m) {
-            super(m);
+    /** Accumulates the arrays of a new {@link ArrayImage}. */
+    private static final class ImageBuilder {
+        Object[] keys;
+        Object[] vOpts;
+        int size;
+
+        ImageBuilder(final int capacity) {
+            keys = new Object[capacity];
+            vOpts = new Object[capacity];
         }
 
-        private KeyIter(final SnapTreeMap<K,V> m,
-                        final Comparable<? super K> minCmp,
-                        final boolean minIncl,
-                        final Comparable<? super K> maxCmp,
-                        final boolean maxIncl,
-                        final boolean descending) {
-            super(m, minCmp, minIncl, maxCmp, maxIncl, descending);
+        private void reserve(final int n) {
+            if (size + n > keys.length) {
+                final int cap = Math.max(size + n, keys.length * 2);
+                keys = Arrays.copyOf(keys, cap);
+                vOpts = Arrays.copyOf(vOpts, cap);
+            }
         }
 
-        @Override
-        public K next() {
-            return nextNode().key;
+        void add(final Object key, final Object vOpt) {
+            reserve(1);
+            keys[size] = key;
+            vOpts[size] = vOpt;
+            ++size;
+        }
+
+        void addRange(final ArrayImage<?,?> src, final int from, final int to) {
+            reserve(to - from);
+            System.arraycopy(src.keys, from, keys, size, to - from);
+            System.arraycopy(src.vOpts, from, vOpts, size, to - from);
+            size += to - from;
         }
     }
 
-    private static class AbstractIter<K,V> {
-        private final SnapTreeMap<K,V> m;
-        private final boolean descending;
-        private final char forward;
-        private final char reverse;
-        private Node<K,V>[] path;
-        private int depth = 0;
+    /** Returns the image if it reflects the current contents of the map,
+     *  otherwise returns null after perhaps scheduling a rebuild.  The map
+     *  has not changed since a snapshot iff the active epoch still has that
+     *  snapshot available, which makes this check the linearization point of
+     *  a read from the image.  The check costs the only volatile loads of a
+     *  read that the image answers: <code>holderRef</code> (which
+     *  <code>clear</code> replaces), the manager's active epoch, and the
+     *  epoch's frozen value and dirty flag.  Without them the read could
+     *  not be ordered after an update that completed before it started.
+     *  They also keep the plain load of <code>image</code> from being
+     *  hoisted out of a caller's loop.  Whether the image is enabled is a
+     *  plain hint, since a stale image fails this check however it was
+     *  found.
+     */
+    private ArrayImage<K,V> currentImage() {
+        final ArrayImage<K,V> img = image;
+        if (img != null && img.root == holderRef.availableFrozen()) {
+            return img;
+        }
+        if (readOptimized
+                && imageBuilding == 0
+                && (img == null || System.nanoTime() - img.nextBuildNanos >= 0)
+                && imageBuildingUpdater.compareAndSet(this, 0, 1)) {
+            scheduleImageBuild(img);
+        }
+        return null;
+    }
+
+    /** Builds the images and filters of maps that weren't given an
+     *  executor.
+     */
+    private static final class DefaultBuildExecutor {
+        static final Executor Instance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                final Thread t = new Thread(task, "SnapTreeMap builder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private Executor buildExecutor() {
+        final Executor executor = imageExecutor;
+        return executor != null ? executor : DefaultBuildExecutor.Instance;
+    }
+
+    /** Must be called after setting <code>imageBuilding</code>. */
+    private void scheduleImageBuild(final ArrayImage<K,V> prev) {
+        try {
+            buildExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (readOptimized) {
+                            image = buildImage(prev);
+                        }
+                    } finally {
+                        imageBuilding = 0;
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException xx) {
+            // reads use the tree until a later attempt is accepted
+            imageBuilding = 0;
+        }
+    }
+
+    private ArrayImage<K,V> buildImage(final ArrayImage<K,V> prev) {
+        final long t0 = System.nanoTime();
+        final RootHolder<K,V> root = holderRef.frozen();
+        final ImageBuilder b = new ImageBuilder(prev == null ? 16 : prev.keys.length + 16);
+        appendImage(root.right, prev, b);
+        final long t1 = System.nanoTime();
+        return new ArrayImage<K,V>(root, Arrays.copyOf(b.keys, b.size), Arrays.copyOf(b.vOpts, b.size),
+                t1 + ImageRebuildBackoff * (t1 - t0));
+    }
+
+    /** Appends the entries of the frozen subtree rooted at
+     *  <code>node</code>, copying them from <code>prev</code> if the subtree
+     *  is unchanged since <code>prev</code> was built.
+     */
+    private void appendImage(final Node<K,V> node, final ArrayImage<K,V> prev, final ImageBuilder b) {
+        if (node == null) {
+            return;
+        }
+        if (prev != null && inFrozenTree(prev.root, node)) {
+            Node<K,V> min = node;
+            while (min.left != null) {
+                min = min.left;
+            }
+            Node<K,V> max = node;
+            while (max.right != null) {
+                max = max.right;
+            }
+            final int from = prev.search(min.key, comparator);
+            final int to = prev.search(max.key, comparator);
+            // routing nodes are not in the image, so min or max may be absent
+            b.addRange(prev, from >= 0 ? from : -(from + 1), to >= 0 ? to + 1 : -(to + 1));
+            return;
+        }
+        appendImage(node.left, prev, b);
+        if (node.vOpt != null) {
+            b.add(node.key, node.vOpt);
+        }
+        appendImage(node.right, prev, b);
+    }
+
+    /** Returns true if <code>node</code> is reachable from the frozen
+     *  <code>root</code>.
+     */
+    private boolean inFrozenTree(final RootHolder<K,V> root, final Node<K,V> node) {
+        final Comparable<? super K> k = comparable(node.key);
+        Node<K,V> n = root.right;
+        while (n != null) {
+            if (n == node) {
+                return true;
+            }
+            final int c = k.compareTo(n.key);
+            if (c == 0) {
+                return false;
+            }
+            n = c < 0 ? n.left : n.right;
+        }
+        return false;
+    }
+
+    /** Returns an immutable copy of a snapshot of this map, laid out for
+     *  fast <code>get</code>, <code>floor</code>, and <code>ceiling</code>
+     *  queries.  See {@link SearchLayout}.
+     */
+    public SearchLayout<K,V> toSearchLayout() {
+        return toSearchLayout(null);
+    }
+
+    /** Like {@link #toSearchLayout()}, but the keys are stored encoded by
+     *  <code>codec</code>, which must be strictly increasing in this map's
+     *  key order.
+     *  @throws IllegalArgumentException if <code>codec</code> is not
+     *          increasing
+     */
+    public SearchLayout<K,V> toSearchLayout(final SearchLayout.KeyCodec<K> codec) {
+        final ImageBuilder b = new ImageBuilder(16);
+        appendImage(frozenHolder().right, null, b);
+        for (int i = 0; i < b.size; ++i) {
+            b.vOpts[i] = decodeNull(b.vOpts[i]);
+        }
+        return new SearchLayout<K,V>(comparator, codec, b.keys, b.vOpts, b.size);
+    }
+
+    /** Returns true if point reads are currently served from the image. */
+    boolean imageIsCurrent() {
+        final ArrayImage<K,V> img = image;
+        return img != null && img.root == holderRef.availableFrozen();
+    }
+
+    //////////////// Bloom filter
+
+    /** Hashes keys for {@link #setBloomFilter}.  Keys that are equal
+     *  according to the map's ordering must have the same hash.
+     */
+    public interface KeyHasher<K> {
+        int hash(K key);
+    }
+
+    /** A {@link KeyHasher} that uses <code>hashCode()</code>, which is
+     *  suitable if the map's ordering is consistent with
+     *  <code>equals</code>.
+     */
+    public static final KeyHasher<Object> HashCodeHasher = new KeyHasher<Object>() {
+        public int hash(final Object key) {
+            return key.hashCode();
+        }
+    };
+
+    /** Enables or disables (if <code>hasher</code> is null) a counting
+     *  Bloom filter of the keys, which lets <code>get</code> and
+     *  <code>containsKey</code> answer most misses without searching the
+     *  tree.  Hits pay for one extra hash and a few array reads.  Writers
+     *  add a key to the filter before it becomes visible and remove it
+     *  after it is gone, so the filter never reports a present key as
+     *  absent.  The filter is built from a snapshot by this call and by
+     *  <code>clear</code>.  Clones keep the setting, and build their own
+     *  filter in the background, as does a map that has grown or shrunk
+     *  enough to change its filter's accuracy.  Background builds use the
+     *  executor given to {@link #setReadOptimized(boolean, Executor)}, and
+     *  reads search the tree until they finish.  The filter is not
+     *  serialized.
+     */
+    public void setBloomFilter(final KeyHasher<? super K> hasher) {
+        filterHasher = hasher;
+        filterShortcut = hasher != null;
+        filter = null;
+        if (hasher != null) {
+            // a build that is already running notices the change, or if it
+            // has just finished the next read schedules another
+            tryBuildFilter(null);
+        }
+    }
+
+    public KeyHasher<? super K> getBloomFilter() {
+        return filterHasher;
+    }
+
+    /** Returns the number of keys for which the current filter was sized,
+     *  or 0 if there is no current filter.
+     */
+    int bloomFilterCapacity() {
+        final CountingFilter f = filter;
+        return f == null ? 0 : f.capacity;
+    }
+
+    private static void filterAdd(final CountingFilter f, final CountingFilter nf, final Object key) {
+        if (f != null) {
+            f.add(key);
+        }
+        if (nf != null && nf != f) {
+            nf.add(key);
+        }
+    }
+
+    private static void filterRemove(final CountingFilter f, final CountingFilter nf, final Object key) {
+        if (f != null) {
+            f.remove(key);
+        }
+        if (nf != null && nf != f) {
+            nf.remove(key);
+        }
+    }
+
+    private boolean claimFilterBuild() {
+        return filterBuilding == 0 && filterBuildingUpdater.compareAndSet(this, 0, 1);
+    }
+
+    /** Replaces the filter in the calling thread, if it is still
+     *  <code>expected</code> and no other thread is already doing so.
+     */
+    private void tryBuildFilter(final CountingFilter expected) {
+        if (claimFilterBuild()) {
+            try {
+                buildFilter(expected);
+            } finally {
+                filterBuilding = 0;
+            }
+        }
+    }
+
+    /** Like {@link #tryBuildFilter}, but the build runs on the build
+     *  executor, so a writer that makes the filter need resizing doesn't
+     *  pay for it.
+     */
+    private void scheduleFilterBuild(final CountingFilter expected) {
+        if (!claimFilterBuild()) {
+            return;
+        }
+        try {
+            buildExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        buildFilter(expected);
+                    } finally {
+                        filterBuilding = 0;
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException xx) {
+            // reads use the tree until a later attempt is accepted
+            filterBuilding = 0;
+        }
+    }
+
+    /** Must be called after setting <code>filterBuilding</code>.  The new
+     *  filter is published as <code>nextFilter</code> before the snapshot
+     *  is taken, so every writer whose mutation is not in the snapshot adds
+     *  to it; writers read <code>nextFilter</code> before
+     *  <code>filter</code>, so they can't miss both.  Writers don't remove
+     *  keys from a filter until it has replaced <code>filter</code>,
+     *  because the removal might precede the snapshot.  If {@link #clear}
+     *  or {@link #setBloomFilter} ran during the build, the result counts
+     *  the wrong tree or uses the wrong hasher, so it is withdrawn and the
+     *  build starts over.  They change their field before clearing
+     *  <code>filter</code>, so either they clear our result or we see the
+     *  change.
+     */
+    private void buildFilter(CountingFilter expected) {
+        try {
+            while (true) {
+                final KeyHasher<? super K> hasher = filterHasher;
+                if (hasher == null || filter != expected) {
+                    return;
+                }
+                final COWMgr<K,V> mgr = holderRef;
+                final CountingFilter f = new CountingFilter(hasher, mgr.size());
+                nextFilter = f;
+                addAll(f, mgr.frozen().right);
+                filter = f;
+                if (filterHasher == hasher && holderRef == mgr) {
+                    return;
+                }
+                filter = null;
+                expected = null;
+            }
+        } finally {
+            nextFilter = null;
+        }
+    }
+
+    private static void addAll(final CountingFilter f, final Node<?,?> node) {
+        if (node != null) {
+            addAll(f, node.left);
+            if (node.vOpt != null) {
+                f.add(node.key);
+            }
+            addAll(f, node.right);
+        }
+    }
+
+    /** A counting Bloom filter with 4-bit counters, packed 16 to a
+     *  <code>long</code> and updated with CAS.  A counter that reaches 15
+     *  is never decremented, since it can no longer tell how many keys it
+     *  counts.  The number of keys is estimated from the adds and removes
+     *  of a sample of the hash space, which is cheap enough to maintain on
+     *  every update and is accurate for large filters.
+     */
+    private static final class CountingFilter {
+        private static final int HashCount = 3;
+        private static final int CountersPerKey = 10;
+        private static final int MinCapacity = 1024;
+        private static final int MaxCounters = 1 << 28;
+        /** Keys with these hash bits all zero are counted in sampled. */
+        private static final int SampleShift = 6;
+
+        final KeyHasher<Object> hasher;
+        final int capacity;
+        private final int mask;
+        private final AtomicLongArray words;
+        private final AtomicInteger sampled = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        CountingFilter(final KeyHasher<?> hasher, final int size) {
+            this.hasher = (KeyHasher<Object>) hasher;
+            final long counters = Math.min(MaxCounters,
+                    Long.highestOneBit(Math.max(MinCapacity, 2L * size) * CountersPerKey - 1) << 1);
+            this.capacity = (int) (counters / CountersPerKey);
+            this.mask = (int) counters - 1;
+            this.words = new AtomicLongArray((int) (counters >>> 4));
+        }
+
+        private long mix(final Object key) {
+            // fmix64 from MurmurHash3
+            long z = hasher.hash(key);
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return z ^ (z >>> 33);
+        }
+
+        private int count(final int index) {
+            return (int) (words.get(index >>> 4) >>> ((index & 15) << 2)) & 15;
+        }
+
+        boolean mightContain(final Object key) {
+            final long z = mix(key);
+            final int h1 = (int) z;
+            final int h2 = (int) (z >>> 32) | 1;
+            for (int i = 0; i < HashCount; ++i) {
+                if (count((h1 + i * h2) & mask) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(final Object key) {
+            final long z = mix(key);
+            final int h1 = (int) z;
+            final int h2 = (int) (z >>> 32) | 1;
+            for (int i = 0; i < HashCount; ++i) {
+                final int index = (h1 + i * h2) & mask;
+                final int w = index >>> 4;
+                final int shift = (index & 15) << 2;
+                while (true) {
+                    final long cur = words.get(w);
+                    if (((cur >>> shift) & 15) == 15 || words.compareAndSet(w, cur, cur + (1L << shift))) {
+                        break;
+                    }
+                }
+            }
+            if ((z >>> (64 - SampleShift)) == 0) {
+                sampled.incrementAndGet();
+            }
+        }
+
+        void remove(final Object key) {
+            final long z = mix(key);
+            final int h1 = (int) z;
+            final int h2 = (int) (z >>> 32) | 1;
+            for (int i = 0; i < HashCount; ++i) {
+                final int index = (h1 + i * h2) & mask;
+                final int w = index >>> 4;
+                final int shift = (index & 15) << 2;
+                while (true) {
+                    final long cur = words.get(w);
+                    final long c = (cur >>> shift) & 15;
+                    if (c == 15 || c == 0 || words.compareAndSet(w, cur, cur - (1L << shift))) {
+                        break;
+                    }
+                }
+            }
+            if ((z >>> (64 - SampleShift)) == 0) {
+                sampled.decrementAndGet();
+            }
+        }
+
+        /** Returns true if the estimated number of keys is far enough from
+         *  <code>capacity</code> that a rebuilt filter would be better.
+         */
+        boolean needsResize() {
+            final long estimate = (long) sampled.get() << SampleShift;
+            return estimate > capacity || (capacity > 2 * MinCapacity && estimate < capacity / 8);
+        }
+    }
+
+    //////////////// cursors
+
+    /** Returns a {@link Cursor} over a snapshot of this map.  The cursor is
+     *  initially unpositioned.
+     */
+    public Cursor<K,V> cursor() {
+        return new Cursor<K,V>(this, null, false, null, false);
+    }
+
+    /** Returns a {@link Cursor} over a snapshot of the portion of this map
+     *  whose keys range from <code>fromKey</code> to <code>toKey</code>.  A
+     *  null bound is unbounded.  The cursor is initially unpositioned.
+     */
+    public Cursor<K,V> cursor(final K fromKey,
+                              final boolean fromInclusive,
+                              final K toKey,
+                              final boolean toInclusive) {
+        final Cursor<K,V> c = new Cursor<K,V>(this, fromKey, fromInclusive, toKey, toInclusive);
+        if (fromKey != null && toKey != null && c.compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException();
+        }
+        return c;
+    }
+
+    /** A reusable position in a snapshot of a <code>SnapTreeMap</code>.
+     *  Unlike an iterator a cursor can move in either direction and can be
+     *  repositioned with {@link #seek}, and moving it performs no memory
+     *  allocation (after the first few seeks have sized its internal path).
+     *  {@link #reset} takes a new snapshot, so one cursor can serve any
+     *  number of queries.  The positioning methods return true if the cursor
+     *  is on an entry afterward, in which case {@link #key} and {@link
+     *  #value} may be called.  A cursor is not thread-safe.
+     */
+    public static final class Cursor<K,V> {
+        private final SnapTreeMap<K,V> m;
+        private final K fromKey;
+        private final boolean fromIncl;
+        private final K toKey;
+        private final boolean toIncl;
+        private Node<K,V> root;
+
+        /** The nodes from the root to the current position, inclusive. */
+        private Node<K,V>[] path;
+        private int depth;
+
+        private Cursor(final SnapTreeMap<K,V> m,
+                       final K fromKey,
+                       final boolean fromIncl,
+                       final K toKey,
+                       final boolean toIncl) {
+            this.m = m;
+            this.fromKey = fromKey;
+            this.fromIncl = fromIncl;
+            this.toKey = toKey;
+            this.toIncl = toIncl;
+            @SuppressWarnings("unchecked")
+            final Node<K,V>[] p = (Node<K,V>[]) new Node<?,?>[8];
+            this.path = p;
+            reset();
+        }
+
+        /** Replaces the snapshot with a new snapshot of the map, and leaves
+         *  the cursor unpositioned.
+         */
+        public void reset() {
+            root = m.frozenHolder().right;
+            Arrays.fill(path, 0, depth, null);
+            depth = 0;
+        }
+
+        public boolean isValid() {
+            return depth > 0;
+        }
+
+        public K key() {
+            return current().key;
+        }
+
+        public V value() {
+            return m.decodeNull(current().vOpt);
+        }
+
+        /** Positions the cursor on the smallest entry. */
+        public boolean seekFirst() {
+            if (fromKey != null) {
+                return seekCeiling(fromKey, fromIncl);
+            }
+            depth = 0;
+            pushExtreme(root, Left);
+            return settle(Right);
+        }
+
+        /** Positions the cursor on the largest entry. */
+        public boolean seekLast() {
+            if (toKey != null) {
+                return seekFloor(toKey, toIncl);
+            }
+            depth = 0;
+            pushExtreme(root, Right);
+            return settle(Left);
+        }
+
+        /** Positions the cursor on the smallest entry whose key is greater
+         *  than or equal to <code>key</code>.
+         */
+        public boolean seek(final K key) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            if (fromKey != null) {
+                final int c = compare(key, fromKey);
+                if (c < 0 || (c == 0 && !fromIncl)) {
+                    return seekCeiling(fromKey, fromIncl);
+                }
+            }
+            return seekCeiling(key, true);
+        }
+
+        /** Moves the cursor to the next larger entry.  Returns false and
+         *  leaves the cursor unpositioned if there is none.
+         */
+        public boolean next() {
+            current();
+            step(Right);
+            return settle(Right);
+        }
+
+        /** Moves the cursor to the next smaller entry.  Returns false and
+         *  leaves the cursor unpositioned if there is none.
+         */
+        public boolean prev() {
+            current();
+            step(Left);
+            return settle(Left);
+        }
+
+        private Node<K,V> current() {
+            if (depth == 0) {
+                throw new NoSuchElementException();
+            }
+            return path[depth - 1];
+        }
+
+        @SuppressWarnings("unchecked")
+        int compare(final K lhs, final K rhs) {
+            final Comparator<? super K> cmp = m.comparator;
+            return cmp != null ? cmp.compare(lhs, rhs) : ((Comparable<? super K>) lhs).compareTo(rhs);
+        }
+
+        private void push(final Node<K,V> node) {
+            if (depth == path.length) {
+                // heights are only a hint if the snapshot was taken while
+                // rebalancing was still pending
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = node;
+        }
+
+        private void pushExtreme(Node<K,V> node, final char dir) {
+            while (node != null) {
+                push(node);
+                node = node.child(dir);
+            }
+        }
+
+        /** Truncates the path to the deepest node whose key is at least (or
+         *  more than) <code>key</code>.
+         */
+        private boolean seekCeiling(final K key, final boolean inclusive) {
+            depth = 0;
+            int found = 0;
+            Node<K,V> node = root;
+            while (node != null) {
+                push(node);
+                final int c = compare(key, node.key);
+                if (c == 0 && inclusive) {
+                    found = depth;
+                    break;
+                }
+                if (c < 0) {
+                    found = depth;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            depth = found;
+            return settle(Right);
+        }
+
+        private boolean seekFloor(final K key, final boolean inclusive) {
+            depth = 0;
+            int found = 0;
+            Node<K,V> node = root;
+            while (node != null) {
+                push(node);
+                final int c = compare(key, node.key);
+                if (c == 0 && inclusive) {
+                    found = depth;
+                    break;
+                }
+                if (c > 0) {
+                    found = depth;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            depth = found;
+            return settle(Left);
+        }
+
+        /** Moves to the in-order neighbor in direction <code>dir</code>, or
+         *  empties the path.
+         */
+        private void step(final char dir) {
+            final Node<K,V> t = path[depth - 1];
+            final Node<K,V> c = t.child(dir);
+            if (c != null) {
+                push(c);
+                pushExtreme(c.child(dir == Left ? Right : Left), dir == Left ? Right : Left);
+            } else {
+                // keep going up until we pop a node that isn't a dir child
+                Node<K,V> popped;
+                do {
+                    popped = path[--depth];
+                } while (depth > 0 && popped == path[depth - 1].child(dir));
+            }
+        }
+
+        /** Skips removed-but-not-unlinked entries in direction
+         *  <code>dir</code>, then checks the bounds.
+         */
+        private boolean settle(final char dir) {
+            while (depth > 0 && path[depth - 1].vOpt == null) {
+                step(dir);
+            }
+            if (depth > 0 && !inRange(path[depth - 1].key)) {
+                depth = 0;
+            }
+            return depth > 0;
+        }
+
+        private boolean inRange(final K key) {
+            if (fromKey != null) {
+                final int c = compare(key, fromKey);
+                if (c < 0 || (c == 0 && !fromIncl)) {
+                    return false;
+                }
+            }
+            if (toKey != null) {
+                final int c = compare(key, toKey);
+                if (c > 0 || (c == 0 && !toIncl)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    //////////////// secondary indexes
+
+    /** The key of an entry in a secondary index tree.  Entries are ordered
+     *  by index key and then by primary key, and the index tree's values are
+     *  ignored.
+     */
+    private static class IndexKey<K> {
+        final Object indexKey;
+        final K key;
+
+        IndexKey(final Object indexKey, final K key) {
+            this.indexKey = indexKey;
+            this.key = key;
+        }
+    }
+
+    private int numIndexes() {
+        return indexes == null ? 0 : indexes.length;
+    }
+
+    /** Returns the position of <code>index</code> among this map's
+     *  secondary indexes.
+     */
+    int indexPosition(final SnapIndexedTable.Index<?,?> index) {
+        for (int i = 0; i < numIndexes(); ++i) {
+            if (indexes[i] == index) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("index is not maintained by this map");
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareIndexKeys(final int index, final Object lhs, final Object rhs) {
+        final Comparator<Object> cmp = (Comparator<Object>) indexes[index].comparator();
+        return cmp != null ? cmp.compare(lhs, rhs) : ((Comparable<Object>) lhs).compareTo(rhs);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareKeys(final Object lhs, final Object rhs) {
+        return comparator != null
+                ? comparator.compare((K) lhs, (K) rhs)
+                : ((Comparable<Object>) lhs).compareTo(rhs);
+    }
+
+    /** Returns a search key for a secondary index tree.  If
+     *  <code>bound</code> is non-zero then <code>key</code> is ignored, and
+     *  the result is ordered before (-1) or after (+1) every entry for
+     *  <code>indexKey</code>.  If <code>indexKey</code> is also null then the
+     *  result is before or after every entry.
+     */
+    @SuppressWarnings("unchecked")
+    private Comparable<? super K> indexKeyComparable(final int index,
+                                                     final Object indexKey,
+                                                     final Object key,
+                                                     final int bound) {
+        return (Comparable<? super K>) new Comparable<IndexKey<K>>() {
+            public int compareTo(final IndexKey<K> rhs) {
+                if (indexKey == null) {
+                    return bound;
+                }
+                final int c = compareIndexKeys(index, indexKey, rhs.indexKey);
+                if (c != 0) {
+                    return c;
+                }
+                return bound != 0 ? bound : compareKeys(key, rhs.key);
+            }
+        };
+    }
+
+    /** Applies the change of <code>key</code>'s entry from
+     *  <code>prevVOpt</code> to <code>newVOpt</code> (either of which may be
+     *  null for absent) to the secondary indexes, if <code>holder</code> has
+     *  any.  This must be called while holding the lock that protects the
+     *  entry, before the change becomes visible.  Since a new node for the
+     *  key can't be linked until the old one has been unlinked, the index
+     *  changes for each key are applied in the same order as the entry
+     *  changes.
+     */
+    @SuppressWarnings("unchecked")
+    private void updateIndexes(final RootHolder<K,V> holder,
+                               final Object key,
+                               final Object prevVOpt,
+                               final Object newVOpt) {
+        final RootHolder<K,V>[] trees = holder.indexes;
+        if (trees == null) {
+            return;
+        }
+        // a transaction's lock stands for the value it replaced until the
+        // lock is resolved
+        final Object pv = prevVOpt instanceof TxnLock ? ((TxnLock) prevVOpt).prevVOpt : prevVOpt;
+        final Object nv = newVOpt instanceof TxnLock ? ((TxnLock) newVOpt).prevVOpt : newVOpt;
+        final V prev = pv == null ? null : decodeNull(pv);
+        final V next = nv == null ? null : decodeNull(nv);
+        for (int i = 0; i < trees.length; ++i) {
+            final Object prevIK = prev == null ? null : indexes[i].keyOf(prev);
+            final Object nextIK = next == null ? null : indexes[i].keyOf(next);
+            if (prevIK != null && nextIK != null && compareIndexKeys(i, prevIK, nextIK) == 0) {
+                // this index entry doesn't change
+                continue;
+            }
+            if (prevIK != null) {
+                updateUnderRoot(new IndexKey<K>(prevIK, (K) key), indexKeyComparable(i, prevIK, key, 0),
+                        UpdateAlways, null, null, trees[i]);
+            }
+            if (nextIK != null) {
+                updateUnderRoot(new IndexKey<K>(nextIK, (K) key), indexKeyComparable(i, nextIK, key, 0),
+                        UpdateAlways, null, Boolean.TRUE, trees[i]);
+            }
+        }
+    }
+
+    /** Returns up to <code>limit</code> entries whose key in secondary index
+     *  <code>index</code> lies in the given range, ordered by index key and
+     *  then by key.  A null bound is unbounded.  Index entries are found in
+     *  the live index tree and then checked against the map, so the result
+     *  is weakly consistent in the same way as {@link #liveKeyIterator}.
+     *  Each index entry visited costs two O(log n) searches, one for its
+     *  successor in the index tree and one for its row.
+     */
+    @SuppressWarnings("unchecked")
+    List<Map.Entry<K,V>> indexLookup(final int index,
+                                     final Object fromIndexKey,
+                                     final boolean fromInclusive,
+                                     final Object toIndexKey,
+                                     final boolean toInclusive,
+                                     final int limit) {
+        final List<Map.Entry<K,V>> result = new ArrayList<Map.Entry<K,V>>();
+        SimpleImmutableEntry<K,V> e = concurrentSuccessor(
+                indexKeyComparable(index, fromIndexKey, null, (fromIndexKey == null || fromInclusive) ? -1 : 1),
+                true, index);
+        while (e != null && result.size() < limit) {
+            final IndexKey<K> ik = (IndexKey<K>) (Object) e.getKey();
+            if (toIndexKey != null) {
+                final int c = compareIndexKeys(index, ik.indexKey, toIndexKey);
+                if (c > 0 || (c == 0 && !toInclusive)) {
+                    break;
+                }
+            }
+            final Object vo = getImpl(ik.key);
+            if (vo != null) {
+                // skip index entries that are being replaced
+                final V v = decodeNull(vo);
+                final Object current = indexes[index].keyOf(v);
+                if (current != null && compareIndexKeys(index, current, ik.indexKey) == 0) {
+                    result.add(new SimpleImmutableEntry<K,V>(ik.key, v));
+                }
+            }
+            e = concurrentSuccessor(indexKeyComparable(index, ik.indexKey, ik.key, 0), false, index);
+        }
+        return result;
+    }
+
+    //////////////// live iteration
+
+    /** Returns a weakly consistent iterator over the entries of this map, in
+     *  ascending key order.  Unlike the iterators of the map views this does
+     *  not take a snapshot, so it imposes no copy-on-write costs on
+     *  concurrent writers.  As for {@link
+     *  java.util.concurrent.ConcurrentSkipListMap}, the iterator never
+     *  throws {@link ConcurrentModificationException}, returns each key at
+     *  most once, and returns every entry that is present (with an unchanged
+     *  key) for the whole iteration.  It may or may not reflect other
+     *  changes made after it was created.  Each step is an optimistic
+     *  search for the successor of the previously returned key.
+     */
+    public Iterator<Map.Entry<K,V>> liveEntryIterator() {
+        return new LiveEntryIter<K,V>(this);
+    }
+
+    /** Returns a weakly consistent iterator over the keys of this map, with
+     *  the same semantics as {@link #liveEntryIterator}.
+     */
+    public Iterator<K> liveKeyIterator() {
+        return new LiveKeyIter<K,V>(this);
+    }
+
+    /** Returns the entry with the smallest key that is greater than (or
+     *  equal to, if <code>inclusive</code>) <code>key</code>, or null if
+     *  none exists, without quiescing the tree.  The entry's key and value
+     *  were both present in the tree at some point during the call, and any
+     *  entry that was present for the entire call is considered.
+     */
+    @SuppressWarnings("unchecked")
+    private SimpleImmutableEntry<K,V> concurrentSuccessor(final Comparable<? super K> k,
+                                                          final boolean inclusive,
+                                                          final int index) {
+        while (true) {
+            final Node<K,V> right = liveRoot(index);
+            if (right == null) {
+                return null;
+            } else {
+                final long ovl = right.ovl();
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                    // RETRY
+                } else if (right == liveRoot(index)) {
+                    // the reread of .right is the one protected by our read of ovl
+                    final Object result = attemptSuccessor(k, inclusive, right, ovl);
+                    if (result != SpecialRetry) {
+                        return (SimpleImmutableEntry<K,V>) result;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    /** Returns the root of the mutable tree if <code>index</code> is
+     *  negative, otherwise the root of that secondary index.
+     */
+    private Node<K,V> liveRoot(final int index) {
+        final RootHolder<K,V> holder = holderRef.read();
+        return index < 0 ? holder.right : holder.indexes[index].right;
+    }
+
+    /** Searches the subtree rooted at <code>node</code>, returning an entry,
+     *  null, or SpecialRetry.
+     */
+    private Object attemptSuccessor(final Comparable<? super K> k,
+                                    final boolean inclusive,
+                                    final Node<K,V> node,
+                                    final long nodeOVL) {
+        final int c = k.compareTo(node.key);
+        if (c < 0) {
+            // there may be a matching node on the left branch
+            final Object z = attemptSuccessorInChild(k, inclusive, node, nodeOVL, Left);
+            if (z != null) {
+                return z;
+            }
+        }
+
+        if (c < 0 || (c == 0 && inclusive)) {
+            // this node is a candidate, is it actually present?
+            final Object vo = visibleVOpt(node.vOpt);
+            if (node.ovl() != nodeOVL) {
+                return SpecialRetry;
+            }
+            if (vo != null) {
+                return new SimpleImmutableEntry<K,V>(node.key, decodeNull(vo));
+            }
+        }
+
+        // the matching node is on the right branch if it is present
+        return attemptSuccessorInChild(k, inclusive, node, nodeOVL, Right);
+    }
+
+    private Object attemptSuccessorInChild(final Comparable<? super K> k,
+                                           final boolean inclusive,
+                                           final Node<K,V> node,
+                                           final long nodeOVL,
+                                           final char dir) {
+        while (true) {
+            final Node<K,V> child = node.child(dir);
+
+            if (child == null) {
+                if (node.ovl() != nodeOVL) {
+                    return SpecialRetry;
+                }
+                return null;
+            } else {
+                final long childOVL = child.ovl();
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+
+                    if (node.ovl() != nodeOVL) {
+                        return SpecialRetry;
+                    }
+                    // else RETRY
+                } else if (child != node.child(dir)) {
+                    // this .child is the one that is protected by childOVL
+                    if (node.ovl() != nodeOVL) {
+                        return SpecialRetry;
+                    }
+                    // else RETRY
+                } else {
+                    if (node.ovl() != nodeOVL) {
+                        return SpecialRetry;
+                    }
+
+                    final Object result = attemptSuccessor(k, inclusive, child, childOVL);
+                    if (result != SpecialRetry) {
+                        return result;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    private static class LiveIter<K,V> {
+        private final SnapTreeMap<K,V> m;
+
+        /** The most recently returned key, or null before the first step. */
+        private K position;
+
+        /** The successor of <code>position</code>, if <code>nextValid</code>.
+         *  The search is deferred to <code>hasNext</code> so that it
+         *  reflects changes made after the previous step.
+         */
+        private SimpleImmutableEntry<K,V> next;
+        private boolean nextValid;
+        private boolean canRemove;
+
+        LiveIter(final SnapTreeMap<K,V> m) {
+            this.m = m;
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            if (!nextValid) {
+                next = position == null
+                        ? (SimpleImmutableEntry<K,V>) m.extreme(false, Left)
+                        : m.concurrentSuccessor(m.comparable(position), false, -1);
+                nextValid = true;
+            }
+            return next != null;
+        }
+
+        Map.Entry<K,V> nextEntry() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            position = next.getKey();
+            nextValid = false;
+            canRemove = true;
+            return next;
+        }
+
+        public void remove() {
+            if (!canRemove) {
+                throw new IllegalStateException();
+            }
+            m.remove(position);
+            canRemove = false;
+        }
+    }
+
+    private static class LiveEntryIter<K,V> extends LiveIter<K,V> implements Iterator<Map.Entry<K,V>> {
+        LiveEntryIter(final SnapTreeMap<K,V> m) {
+            super(m);
+        }
+
+        public Map.Entry<K,V> next() {
+            return nextEntry();
+        }
+    }
+
+    private static class LiveKeyIter<K,V> extends LiveIter<K,V> implements Iterator<K> {
+        LiveKeyIter(final SnapTreeMap<K,V> m) {
+            super(m);
+        }
+
+        public K next() {
+            return nextEntry().getKey();
+        }
+    }
+
+    //////////////// Map views
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySet();
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+
+        @Override
+        public int size() {
+            return SnapTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return SnapTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            SnapTreeMap.this.clear();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            final Object v = ((Map.Entry<?,?>)o).getValue();
+            final Object actualVo = SnapTreeMap.this.getImpl(k);
+            if (actualVo == null) {
+                // no associated value
+                return false;
+            }
+            final V actual = decodeNull(actualVo);
+            return v == null ? actual == null : v.equals(actual);
+        }
+
+        @Override
+        public boolean add(final Entry<K,V> e) {
+            final Object v = encodeNull(e.getValue());
+            return update(e.getKey(), UpdateAlways, null, v) != v;
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            if (!(o instanceof Map.Entry<?,?>)) {
+                return false;
+            }
+            final Object k = ((Map.Entry<?,?>)o).getKey();
+            final Object v = ((Map.Entry<?,?>)o).getValue();
+            return SnapTreeMap.this.remove(k, v);
+        }
+
+        @Override
+        public Iterator<Entry<K,V>> iterator() {
+            return new EntryIter<K,V>(SnapTreeMap.this);
+        }
+    }
+
+    private static class EntryIter<K,V> extends AbstractIter<K,V> implements Iterator<Map.Entry<K,V>> {
+        private EntryIter(final SnapTreeMap<K,V> m) {
+            super(m);
+        }
+
+        private EntryIter(final SnapTreeMap<K,V> m,
+                          final Comparable<? super K> minCmp,
+                          final boolean minIncl,
+                          final Comparable<? super K> maxCmp,
+                          final boolean maxIncl,
+                          final boolean descending) {
+            super(m, minCmp, minIncl, maxCmp, maxIncl, descending);
+        }
+
+        @Override
+        public Entry<K,V> next() {
+            return nextNode();
+        }
+    }
+
+    private static class KeyIter<K,V> extends AbstractIter<K,V> implements Iterator<K> {
+        private KeyIter(final SnapTreeMap<K,V> m) {
+            super(m);
+        }
+
+        private KeyIter(final SnapTreeMap<K,V> m,
+                        final Comparable<? super K> minCmp,
+                        final boolean minIncl,
+                        final Comparable<? super K> maxCmp,
+                        final boolean maxIncl,
+                        final boolean descending) {
+            super(m, minCmp, minIncl, maxCmp, maxIncl, descending);
+        }
+
+        @Override
+        public K next() {
+            return nextNode().key;
+        }
+    }
+
+    private static class AbstractIter<K,V> {
+        private final SnapTreeMap<K,V> m;
+        private final boolean descending;
+        private final char forward;
+        private final char reverse;
+        private Node<K,V>[] path;
+        private int depth = 0;
         private Node<K,V> mostRecentNode;
         private final K endKey;
 
@@ -2028,7 +4272,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             this.descending = false;
             this.forward = Right;
             this.reverse = Left;
-            final Node<K,V> root = m.holderRef.frozen().right;
+            final Node<K,V> root = m.frozenHolder().right;
             this.path = (Node<K,V>[]) new Node[1 + height(root)];
             this.endKey = null;
             pushFirst(root);
@@ -2057,10 +4301,11 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 toCmp = minCmp;
             }
 
-            final Node<K,V> root = m.holderRef.frozen().right;
+            final Node<K,V> root = m.frozenHolder().right;
 
             if (toCmp != null) {
-                this.endKey = (K) m.boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, true, forward);
+                // this must use the same snapshot as the iteration
+                this.endKey = m.frozenBoundedExtremeKey(root, minCmp, minIncl, maxCmp, maxIncl, forward);
                 if (this.endKey == null) {
                     // no node satisfies the bound, nothing to iterate
                     // ---------> EARLY EXIT
@@ -2092,9 +4337,18 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             }
         }
 
+        private void push(final Node<K,V> node) {
+            if (depth == path.length) {
+                // heights are only a hint if the snapshot was taken while
+                // rebalancing was still pending
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = node;
+        }
+
         private void pushFirst(Node<K,V> node) {
             while (node != null) {
-                path[depth++] = node;
+                push(node);
                 node = node.child(reverse);
             }
         }
@@ -2107,7 +4361,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                     node = node.child(forward);
                 }
                 else {
-                    path[depth++] = node;
+                    push(node);
                     if (c == 0) {
                         // start the iteration here
                         return;
@@ -2191,7 +4445,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
         return descendingMap().navigableKeySet();
     }
 
-    private abstract static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+    abstract static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
 
         private final ConcurrentNavigableMap<K,?> map;
 
@@ -2393,7 +4647,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
         @Override
         public int size() {
-            final Node<K,V> root = m.holderRef.frozen().right;
+            final Node<K,V> root = m.frozenHolder().right;
             return Node.computeFrozenSize(root, minCmp, minIncl, maxCmp, maxIncl);
         }
 
@@ -2870,7 +5124,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
 
         // TODO: take advantage of the sort order
         // for now we optimize only by bypassing the COWMgr
-        final RootHolder<K,V> holder = new RootHolder<K,V>();
+        final RootHolder<K,V> holder = new RootHolder<K,V>(numIndexes());
         for (int i = 0; i < size; ++i) {
             final K k = (K) xi.readObject();
             final V v = (V) xi.readObject();
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+
+/** A concurrent sorted multimap with fast cloning, snapshots, and
+ *  consistent iteration.  Each key maps to a sorted set of values.  All of
+ *  the (key, value) pairs are stored as the elements of a single {@link
+ *  SnapTreeSet}, ordered first by key and then by value, so adding or
+ *  removing a pair is a single atomic tree update and does not allocate a
+ *  per-key collection.  Clone, size, and iteration are linearizable
+ *  (atomic) across all keys and values.
+ *
+ *  <p>The set returned by {@link #get} is a live view of the values for one
+ *  key; modifying it modifies the multimap.  Null keys and values are not
+ *  permitted.
+ *
+ *  @author agent
+ */
+public class SnapTreeMultimap<K,V> implements Cloneable, Serializable {
+    private static final long serialVersionUID = 3506186290317451922L;
+
+    /** A (key, value) pair, or a bound that sorts before or after all of
+     *  the pairs for a key.
+     */
+    private static final class Item<K,V> implements Map.Entry<K,V> {
+        final K key;
+        final V value;
+
+        /** -1 for the lower bound of a key, 1 for the upper, 0 for a pair. */
+        final int bound;
+
+        Item(final K key, final V value, final int bound) {
+            this.key = key;
+            this.value = value;
+            this.bound = bound;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(final V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?,?> rhs = (Map.Entry<?,?>) o;
+            return key.equals(rhs.getKey()) && value.equals(rhs.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static class ItemComparator<K,V> implements Comparator<Item<K,V>> {
+        private final Comparator<? super K> keyComparator;
+        private final Comparator<? super V> valueComparator;
+
+        ItemComparator(final Comparator<? super K> keyComparator, final Comparator<? super V> valueComparator) {
+            this.keyComparator = keyComparator;
+            this.valueComparator = valueComparator;
+        }
+
+        @SuppressWarnings("unchecked")
+        public int compare(final Item<K,V> lhs, final Item<K,V> rhs) {
+            final int c = keyComparator == null
+                    ? ((Comparable<? super K>) lhs.key).compareTo(rhs.key)
+                    : keyComparator.compare(lhs.key, rhs.key);
+            if (c != 0) {
+                return c;
+            }
+            if (lhs.bound != 0 || rhs.bound != 0) {
+                return lhs.bound - rhs.bound;
+            }
+            return valueComparator == null
+                    ? ((Comparable<? super V>) lhs.value).compareTo(rhs.value)
+                    : valueComparator.compare(lhs.value, rhs.value);
+        }
+    }
+
+    //////////////// state
+
+    private final Comparator<? super K> keyComparator;
+    private final Comparator<? super V> valueComparator;
+    private transient volatile SnapTreeSet<Item<K,V>> items;
+
+    //////////////// public interface
+
+    public SnapTreeMultimap() {
+        this(null, null);
+    }
+
+    public SnapTreeMultimap(final Comparator<? super K> keyComparator, final Comparator<? super V> valueComparator) {
+        this.keyComparator = keyComparator;
+        this.valueComparator = valueComparator;
+        this.items = newItems();
+    }
+
+    private SnapTreeSet<Item<K,V>> newItems() {
+        return new SnapTreeSet<Item<K,V>>(new ItemComparator<K,V>(keyComparator, valueComparator));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapTreeMultimap<K,V> clone() {
+        final SnapTreeMultimap<K,V> copy;
+        try {
+            copy = (SnapTreeMultimap<K,V>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.items = items.clone();
+        return copy;
+    }
+
+    public Comparator<? super K> keyComparator() {
+        return keyComparator;
+    }
+
+    public Comparator<? super V> valueComparator() {
+        return valueComparator;
+    }
+
+    /** Returns the number of (key, value) pairs. */
+    public int size() {
+        return items.size();
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public void clear() {
+        items.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Item<K,V> pair(final Object key, final Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        return new Item<K,V>((K) key, (V) value, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Item<K,V> bound(final Object key, final int bound) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        return new Item<K,V>((K) key, null, bound);
+    }
+
+    /** Adds the pair (<code>key</code>, <code>value</code>), returning true
+     *  if it was not already present.
+     */
+    public boolean put(final K key, final V value) {
+        return items.add(pair(key, value));
+    }
+
+    /** Removes the pair (<code>key</code>, <code>value</code>), returning true
+     *  if it was present.
+     */
+    public boolean remove(final Object key, final Object value) {
+        return items.remove(pair(key, value));
+    }
+
+    public boolean containsEntry(final Object key, final Object value) {
+        return items.contains(pair(key, value));
+    }
+
+    public boolean containsKey(final Object key) {
+        final Item<K,V> first = items.higher(bound(key, -1));
+        return first != null && items.comparator().compare(first, bound(key, 1)) < 0;
+    }
+
+    /** Returns a live view of the values associated with <code>key</code>,
+     *  which is empty if there are none.
+     */
+    @SuppressWarnings("unchecked")
+    public NavigableSet<V> get(final Object key) {
+        final K k = (K) key;
+        return new KeyValues<K,V>(k, items.subSet(bound(k, -1), false, bound(k, 1), false), valueComparator, false);
+    }
+
+    /** Removes all of the values associated with <code>key</code>, returning
+     *  the values that were removed.  Each pair is removed atomically, but
+     *  the removal of the group is not atomic.
+     */
+    public Collection<V> removeAll(final Object key) {
+        final Collection<V> result = new ArrayList<V>();
+        final NavigableSet<V> values = get(key);
+        for (V v : values) {
+            if (values.remove(v)) {
+                result.add(v);
+            }
+        }
+        return result;
+    }
+
+    /** Returns a live view of the (key, value) pairs, ordered by key and then
+     *  by value.  Iteration is over a snapshot.
+     */
+    public Set<Map.Entry<K,V>> entries() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public int size() {
+                return items.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return items.isEmpty();
+            }
+
+            @Override
+            public boolean contains(final Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                final Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+                return containsEntry(e.getKey(), e.getValue());
+            }
+
+            @Override
+            public boolean remove(final Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                final Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+                return SnapTreeMultimap.this.remove(e.getKey(), e.getValue());
+            }
+
+            @Override
+            public void clear() {
+                items.clear();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Iterator<Map.Entry<K,V>> iterator() {
+                return (Iterator<Map.Entry<K,V>>) (Iterator<?>) items.iterator();
+            }
+        };
+    }
+
+    /** Returns the distinct keys of a snapshot of this multimap, in order. */
+    public Set<K> keySet() {
+        final Set<K> result = new SnapTreeSet<K>(keyComparator);
+        for (Item<K,V> item : items.clone()) {
+            result.add(item.key);
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    @Override
+    public String toString() {
+        return entries().toString();
+    }
+
+    //////////////// per-key view
+
+    private static class KeyValues<K,V> extends AbstractSet<V> implements NavigableSet<V> {
+        private final K key;
+        private final NavigableSet<Item<K,V>> range;
+        private final Comparator<? super V> valueComparator;
+        private final boolean descending;
+
+        KeyValues(final K key,
+                  final NavigableSet<Item<K,V>> range,
+                  final Comparator<? super V> valueComparator,
+                  final boolean descending) {
+            this.key = key;
+            this.range = range;
+            this.valueComparator = valueComparator;
+            this.descending = descending;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Item<K,V> pair(final Object value) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            return new Item<K,V>(key, (V) value, 0);
+        }
+
+        private static <K,V> V valueOrNull(final Item<K,V> item) {
+            return item == null ? null : item.value;
+        }
+
+        private KeyValues<K,V> wrap(final NavigableSet<Item<K,V>> r, final boolean desc) {
+            return new KeyValues<K,V>(key, r, valueComparator, desc);
+        }
+
+        //////// AbstractSet
+
+        @Override
+        public int size() {
+            return range.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return range.isEmpty();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return range.contains(pair(o));
+        }
+
+        @Override
+        public boolean add(final V v) {
+            return range.add(pair(v));
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            return range.remove(pair(o));
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            final Iterator<Item<K,V>> iter = range.iterator();
+            return new Iterator<V>() {
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                public V next() {
+                    return iter.next().value;
+                }
+
+                public void remove() {
+                    iter.remove();
+                }
+            };
+        }
+
+        //////// SortedSet
+
+        public Comparator<? super V> comparator() {
+            if (descending) {
+                return Collections.reverseOrder(valueComparator);
+            } else {
+                return valueComparator;
+            }
+        }
+
+        public V first() {
+            return range.first().value;
+        }
+
+        public V last() {
+            return range.last().value;
+        }
+
+        //////// NavigableSet
+
+        public V lower(final V v) {
+            return valueOrNull(range.lower(pair(v)));
+        }
+
+        public V floor(final V v) {
+            return valueOrNull(range.floor(pair(v)));
+        }
+
+        public V ceiling(final V v) {
+            return valueOrNull(range.ceiling(pair(v)));
+        }
+
+        public V higher(final V v) {
+            return valueOrNull(range.higher(pair(v)));
+        }
+
+        public V pollFirst() {
+            return valueOrNull(range.pollFirst());
+        }
+
+        public V pollLast() {
+            return valueOrNull(range.pollLast());
+        }
+
+        public NavigableSet<V> descendingSet() {
+            return wrap(range.descendingSet(), !descending);
+        }
+
+        public Iterator<V> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        public NavigableSet<V> subSet(final V fromElement,
+                                      final boolean fromInclusive,
+                                      final V toElement,
+                                      final boolean toInclusive) {
+            return wrap(range.subSet(pair(fromElement), fromInclusive, pair(toElement), toInclusive), descending);
+        }
+
+        public NavigableSet<V> headSet(final V toElement, final boolean inclusive) {
+            return wrap(range.headSet(pair(toElement), inclusive), descending);
+        }
+
+        public NavigableSet<V> tailSet(final V fromElement, final boolean inclusive) {
+            return wrap(range.tailSet(pair(fromElement), inclusive), descending);
+        }
+
+        public NavigableSet<V> subSet(final V fromElement, final V toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        public NavigableSet<V> headSet(final V toElement) {
+            return headSet(toElement, false);
+        }
+
+        public NavigableSet<V> tailSet(final V fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    //////////////// Serialization
+
+    /** Saves the state of the <code>SnapTreeMultimap</code> to a stream. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        // this handles the comparators, and any subclass stuff
+        xo.defaultWriteObject();
+
+        final SnapTreeSet<Item<K,V>> frozen = items.clone();
+        xo.writeInt(frozen.size());
+        for (Item<K,V> item : frozen) {
+            xo.writeObject(item.key);
+            xo.writeObject(item.value);
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        items = newItems();
+        final int size = xi.readInt();
+        for (int i = 0; i < size; ++i) {
+            final K k = (K) xi.readObject();
+            final V v = (V) xi.readObject();
+            items.add(pair(k, v));
+        }
+    }
+}
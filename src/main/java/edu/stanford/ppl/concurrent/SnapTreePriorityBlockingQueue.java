@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** An unbounded blocking priority queue that uses the same low-contention
+ *  dequeue as {@link SnapTreePriorityQueue}.  Only consumers that actually
+ *  have to wait touch the lock; an <code>offer</code> takes the lock only if
+ *  there is a consumer blocked in <code>take</code> or a timed
+ *  <code>poll</code>.
+ *
+ *  @author agent
+ */
+public class SnapTreePriorityBlockingQueue<E> extends SnapTreePriorityQueue<E> implements BlockingQueue<E> {
+    private static final long serialVersionUID = -5418253761947389617L;
+
+    private transient ReentrantLock lock;
+    private transient Condition notEmpty;
+
+    /** The number of consumers that may be blocked on <code>notEmpty</code>.
+     *  Only changed while holding <code>lock</code>.
+     */
+    private transient volatile int waiters;
+
+    public SnapTreePriorityBlockingQueue() {
+        initLock();
+    }
+
+    public SnapTreePriorityBlockingQueue(final Comparator<? super E> comparator) {
+        super(comparator);
+        initLock();
+    }
+
+    /** See {@link SnapTreePriorityQueue#SnapTreePriorityQueue(Collection)}. */
+    public SnapTreePriorityBlockingQueue(final Collection<? extends E> source) {
+        super(source);
+        initLock();
+    }
+
+    private void initLock() {
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        waiters = 0;
+    }
+
+    @Override
+    public SnapTreePriorityBlockingQueue<E> clone() {
+        final SnapTreePriorityBlockingQueue<E> copy = (SnapTreePriorityBlockingQueue<E>) super.clone();
+        copy.initLock();
+        return copy;
+    }
+
+    //////////////// insertion
+
+    @Override
+    public boolean offer(final E e) {
+        super.offer(e);
+        // A consumer increments waiters before its final poll attempt, so
+        // if we see zero here that poll will see e.
+        if (waiters > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    public void put(final E e) {
+        offer(e);
+    }
+
+    public boolean offer(final E e, final long timeout, final TimeUnit unit) {
+        return offer(e);
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    //////////////// removal
+
+    public E take() throws InterruptedException {
+        final E fast = poll();
+        if (fast != null) {
+            return fast;
+        }
+
+        lock.lockInterruptibly();
+        ++waiters;
+        try {
+            while (true) {
+                final E e = poll();
+                if (e != null) {
+                    return e;
+                }
+                notEmpty.await();
+            }
+        } catch (final InterruptedException xx) {
+            // propagate to a non-interrupted consumer
+            notEmpty.signal();
+            throw xx;
+        } finally {
+            --waiters;
+            lock.unlock();
+        }
+    }
+
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final E fast = poll();
+        if (fast != null) {
+            return fast;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        ++waiters;
+        try {
+            while (true) {
+                final E e = poll();
+                if (e != null || nanos <= 0) {
+                    return e;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } catch (final InterruptedException xx) {
+            // propagate to a non-interrupted consumer
+            notEmpty.signal();
+            throw xx;
+        } finally {
+            --waiters;
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(final Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(final Collection<? super E> c, final int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        while (n < maxElements) {
+            final E e = poll();
+            if (e == null) {
+                break;
+            }
+            c.add(e);
+            ++n;
+        }
+        return n;
+    }
+
+    //////////////// Serialization
+
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+        initLock();
+    }
+}
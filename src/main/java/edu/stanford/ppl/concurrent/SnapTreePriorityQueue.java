@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** An unbounded concurrent priority queue backed by a {@link SnapTreeSet},
+ *  with fast cloning, snapshots, and consistent iteration.  Elements that
+ *  compare equal are dequeued in FIFO order.  Null elements are not
+ *  permitted.
+ *
+ *  <p>A naive priority queue built from a concurrent tree has a hot spot,
+ *  because every consumer locks the same nodes on the leftmost path.  This
+ *  class avoids the hot spot in two ways.  First, when a consumer finds
+ *  that another consumer is already removing from the tree it publishes a
+ *  request in a small array instead of joining the lock convoy; the thread
+ *  that is removing from the tree (the combiner) satisfies all of the
+ *  published requests before it stops.  Second, an <code>offer</code> of an
+ *  element that is strictly smaller than everything in the tree is handed
+ *  directly to a waiting request, without touching the tree at all
+ *  (elimination).  Both techniques only ever hand an element to a consumer
+ *  whose operation is in progress, so clone, size, toArray, and iteration
+ *  remain linearizable (atomic).
+ *
+ *  <p>Iterators traverse a snapshot of the queue in priority order, and
+ *  support removal.  <code>contains</code> and <code>remove(Object)</code>
+ *  take time linear in the size of the queue.
+ *
+ *  @author agent
+ */
+public class SnapTreePriorityQueue<E> extends AbstractQueue<E> implements Cloneable, Serializable {
+    private static final long serialVersionUID = 7291306154892213046L;
+
+    /** The result of a request that found the queue empty. */
+    private static final Object EmptyResult = new Object();
+
+    private static final int MaxRequests = 64;
+
+    /** An element plus the sequence number that breaks ties. */
+    private static class Item<E> {
+        final E element;
+        final long seq;
+
+        Item(final E element, final long seq) {
+            this.element = element;
+            this.seq = seq;
+        }
+    }
+
+    private static class ItemComparator<E> implements Comparator<Item<E>> {
+        private final Comparator<? super E> comparator;
+
+        ItemComparator(final Comparator<? super E> comparator) {
+            this.comparator = comparator;
+        }
+
+        @SuppressWarnings("unchecked")
+        public int compare(final Item<E> lhs, final Item<E> rhs) {
+            final int c = comparator == null
+                    ? ((Comparable<? super E>) lhs.element).compareTo(rhs.element)
+                    : comparator.compare(lhs.element, rhs.element);
+            if (c != 0) {
+                return c;
+            }
+            return lhs.seq < rhs.seq ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+        }
+    }
+
+    /** A consumer waiting for the combiner.  <code>result</code> is null
+     *  while the request is pending.
+     */
+    private static class Request {
+        volatile Object result;
+    }
+
+    //////////////// state
+
+    private final Comparator<? super E> comparator;
+    private transient volatile SnapTreeSet<Item<E>> items;
+    private transient AtomicLong nextSeq;
+    private transient AtomicBoolean combining;
+    private transient AtomicReferenceArray<Request> requests;
+
+    //////////////// public interface
+
+    public SnapTreePriorityQueue() {
+        this.comparator = null;
+        init(0L);
+    }
+
+    public SnapTreePriorityQueue(final Comparator<? super E> comparator) {
+        this.comparator = comparator;
+        init(0L);
+    }
+
+    /** Creates a queue containing the elements of <code>source</code>.  If
+     *  <code>source</code> is a {@link SortedSet} or a priority queue
+     *  ({@link PriorityQueue}, {@link PriorityBlockingQueue}, or a
+     *  <code>SnapTreePriorityQueue</code>), this queue is ordered by the
+     *  same comparator, otherwise by the elements' natural ordering.
+     */
+    public SnapTreePriorityQueue(final Collection<? extends E> source) {
+        this.comparator = comparatorOf(source);
+        init(0L);
+        for (E e : source) {
+            addItem(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Comparator<? super E> comparatorOf(final Collection<? extends E> source) {
+        if (source instanceof SortedSet) {
+            return ((SortedSet<E>) source).comparator();
+        } else if (source instanceof PriorityQueue) {
+            return ((PriorityQueue<E>) source).comparator();
+        } else if (source instanceof PriorityBlockingQueue) {
+            return ((PriorityBlockingQueue<E>) source).comparator();
+        } else if (source instanceof SnapTreePriorityQueue) {
+            return ((SnapTreePriorityQueue<E>) source).comparator();
+        } else {
+            return null;
+        }
+    }
+
+    private void init(final long seq) {
+        this.items = new SnapTreeSet<Item<E>>(new ItemComparator<E>(comparator));
+        initNonItems(seq);
+    }
+
+    private void initNonItems(final long seq) {
+        this.nextSeq = new AtomicLong(seq);
+        this.combining = new AtomicBoolean();
+        int n = 1;
+        while (n < 2 * Runtime.getRuntime().availableProcessors() && n < MaxRequests) {
+            n *= 2;
+        }
+        this.requests = new AtomicReferenceArray<Request>(n);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapTreePriorityQueue<E> clone() {
+        final SnapTreePriorityQueue<E> copy;
+        try {
+            copy = (SnapTreePriorityQueue<E>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.items = items.clone();
+        copy.initNonItems(nextSeq.get());
+        return copy;
+    }
+
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(final E lhs, final E rhs) {
+        return comparator == null
+                ? ((Comparable<? super E>) lhs).compareTo(rhs)
+                : comparator.compare(lhs, rhs);
+    }
+
+    //////////////// insertion
+
+    public boolean offer(final E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (!eliminate(e)) {
+            addItem(e);
+        }
+        return true;
+    }
+
+    private void addItem(final E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        items.add(new Item<E>(e, nextSeq.getAndIncrement()));
+    }
+
+    /** Hands <code>e</code> directly to a pending request if it is strictly
+     *  smaller than every element in the tree.  The pending request must be
+     *  observed before the minimum is read, so that the offer and the poll
+     *  can both be linearized at the read.
+     */
+    private boolean eliminate(final E e) {
+        if (!precedesFirst(e)) {
+            return false;
+        }
+        final int n = requests.length();
+        for (int i = 0; i < n; ++i) {
+            final Request req = requests.get(i);
+            if (req != null) {
+                if (!precedesFirst(e)) {
+                    return false;
+                }
+                if (requests.compareAndSet(i, req, null)) {
+                    req.result = e;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean precedesFirst(final E e) {
+        final Item<E> first = items.extreme(SnapTreeMap.Left);
+        return first == null || compare(e, first.element) < 0;
+    }
+
+    //////////////// removal
+
+    public E peek() {
+        final Item<E> first = items.extreme(SnapTreeMap.Left);
+        return first == null ? null : first.element;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (combining.compareAndSet(false, true)) {
+            try {
+                final E result = pollTree();
+                serveRequests();
+                return result;
+            } finally {
+                combining.set(false);
+            }
+        }
+
+        final Request req = new Request();
+        if (!publish(req)) {
+            // every slot is busy, so just join the convoy
+            return pollTree();
+        }
+
+        int spins = 0;
+        while (true) {
+            final Object r = req.result;
+            if (r != null) {
+                return r == EmptyResult ? null : (E) r;
+            }
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                // we will serve our own request, unless someone else
+                // already has
+                try {
+                    serveRequests();
+                } finally {
+                    combining.set(false);
+                }
+            } else if (++spins > SnapTreeMap.SpinCount) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private E pollTree() {
+        final Item<E> first = items.pollFirst();
+        return first == null ? null : first.element;
+    }
+
+    private boolean publish(final Request req) {
+        final int n = requests.length();
+        final int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < n; ++i) {
+            final int j = (start + i) & (n - 1);
+            if (requests.get(j) == null && requests.compareAndSet(j, null, req)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Must be called by the combiner. */
+    private void serveRequests() {
+        final int n = requests.length();
+        for (int i = 0; i < n; ++i) {
+            final Request req = requests.get(i);
+            if (req != null && requests.compareAndSet(i, req, null)) {
+                final E e = pollTree();
+                req.result = e == null ? EmptyResult : e;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (o != null) {
+            for (Item<E> item : items) {
+                if (o.equals(item.element) && items.remove(item)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (o != null) {
+            for (Item<E> item : items) {
+                if (o.equals(item.element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //////////////// snapshots
+
+    private List<E> snapshot() {
+        final SnapTreeSet<Item<E>> frozen = items.clone();
+        final List<E> result = new ArrayList<E>(frozen.size());
+        for (Item<E> item : frozen) {
+            result.add(item.element);
+        }
+        return result;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(final T[] a) {
+        return snapshot().toArray(a);
+    }
+
+    /** Returns an iterator over a snapshot of this queue, in priority
+     *  order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final SnapTreeSet<Item<E>> set = items;
+        final Iterator<Item<E>> iter = set.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public E next() {
+                return iter.next().element;
+            }
+
+            public void remove() {
+                iter.remove();
+            }
+        };
+    }
+
+    //////////////// Serialization
+
+    /** Saves the state of the <code>SnapTreePriorityQueue</code> to a
+     *  stream.
+     */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        // this handles the comparator, and any subclass stuff
+        xo.defaultWriteObject();
+
+        final List<E> elements = snapshot();
+        xo.writeInt(elements.size());
+        for (E e : elements) {
+            xo.writeObject(e);
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        init(0L);
+        final int size = xi.readInt();
+        for (int i = 0; i < size; ++i) {
+            addItem((E) xi.readObject());
+        }
+    }
+}
@@ -0,0 +1,2178 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.*;
+import java.util.*;
+
+import static edu.stanford.ppl.concurrent.SnapTreeMap.*;
+
+/** A concurrent AVL tree set with fast cloning, snapshots, and consistent
+ *  iteration.  This uses the same algorithm as {@link SnapTreeMap}, but its
+ *  nodes hold only a key.  Whether a node's key is present in the set (as
+ *  opposed to the node being a routing node) is recorded in the low bit of
+ *  the node's height, so a node is one reference smaller than a map node and
+ *  no per-element value object is required.
+ *
+ *  <p>This data structure honors all of the contracts of {@link
+ *  java.util.concurrent.ConcurrentSkipListSet}, with the additional contract
+ *  that clone, size, toArray, and iteration are linearizable (atomic).  See
+ *  {@link SnapTreeMap} for a description of the concurrency control.  The
+ *  nodes of both trees share their OVL and the lock embedded in it, so a
+ *  contended set parks its waiters exactly as a contended map does.
+ *
+ *  @author agent
+ */
+public class SnapTreeSet<E> extends AbstractSet<E> implements NavigableSet<E>, Cloneable, Serializable {
+    private static final long serialVersionUID = -2846157297438917372L;
+
+    /** A result of {@link #attemptUpdate} that means the caller should
+     *  retry.  Successful updates return a Boolean.
+     */
+    private static final Object Retry = SpecialRetry;
+
+    private static class Node<E> extends OVLNode {
+        final E key;
+
+        /** The height of this node shifted left by one, with the low bit set
+         *  iff <code>key</code> is present in the set.  A node whose key is
+         *  not present is a routing node.  Only written while the node is
+         *  locked, so the two halves can be updated separately.
+         */
+        volatile int heightAndPresence;
+        volatile Node<E> parent;
+        volatile Node<E> left;
+        volatile Node<E> right;
+
+        Node(final E key,
+             final int heightAndPresence,
+             final Node<E> parent,
+             final long shrinkOVL,
+             final Node<E> left,
+             final Node<E> right)
+        {
+            super(shrinkOVL);
+            this.key = key;
+            this.heightAndPresence = heightAndPresence;
+            this.parent = parent;
+            this.left = left;
+            this.right = right;
+        }
+
+        int height() { return heightAndPresence >> 1; }
+        boolean isPresent() { return (heightAndPresence & 1) != 0; }
+
+        void setHeight(final int h) {
+            heightAndPresence = (h << 1) | (heightAndPresence & 1);
+        }
+
+        void setPresent(final boolean present) {
+            heightAndPresence = (heightAndPresence & ~1) | (present ? 1 : 0);
+        }
+
+        Node<E> child(char dir) { return dir == Left ? left : right; }
+
+        void setChild(char dir, Node<E> node) {
+            if (dir == Left) {
+                left = node;
+            } else {
+                right = node;
+            }
+        }
+
+        //////// copy-on-write stuff
+
+        private static <E> boolean isShared(final Node<E> node) {
+            return node != null && node.parent == null;
+        }
+
+        static <E> Node<E> markShared(final Node<E> node) {
+            if (node != null) {
+                node.parent = null;
+            }
+            return node;
+        }
+
+        private Node<E> lazyCopy(Node<E> newParent) {
+            assert (isShared(this));
+            assert (!isShrinkingOrUnlinked(ovl()));
+
+            return new Node<E>(key, heightAndPresence, newParent, 0L, markShared(left), markShared(right));
+        }
+
+        Node<E> unsharedLeft() {
+            final Node<E> cl = left;
+            if (!isShared(cl)) {
+                return cl;
+            } else {
+                lazyCopyChildren();
+                return left;
+            }
+        }
+
+        Node<E> unsharedRight() {
+            final Node<E> cr = right;
+            if (!isShared(cr)) {
+                return cr;
+            } else {
+                lazyCopyChildren();
+                return right;
+            }
+        }
+
+        Node<E> unsharedChild(final char dir) {
+            return dir == Left ? unsharedLeft() : unsharedRight();
+        }
+
+        private void lazyCopyChildren() {
+            lock();
+            try {
+                lazyCopyChildren_nl();
+            } finally {
+                unlock();
+            }
+        }
+
+        /** Like {@link #unsharedLeft}, but for a caller that holds this
+         *  node's lock.
+         */
+        Node<E> unsharedLeft_nl() {
+            if (isShared(left)) {
+                lazyCopyChildren_nl();
+            }
+            return left;
+        }
+
+        Node<E> unsharedRight_nl() {
+            if (isShared(right)) {
+                lazyCopyChildren_nl();
+            }
+            return right;
+        }
+
+        private void lazyCopyChildren_nl() {
+            final Node<E> cl = left;
+            if (isShared(cl)) {
+                left = cl.lazyCopy(this);
+            }
+            final Node<E> cr = right;
+            if (isShared(cr)) {
+                right = cr.lazyCopy(this);
+            }
+        }
+
+        //////// SubSet.size() helper
+
+        static <E> int computeFrozenSize(Node<E> root,
+                                         Comparable<? super E> fromCmp,
+                                         boolean fromIncl,
+                                         final Comparable<? super E> toCmp,
+                                         final boolean toIncl) {
+            int result = 0;
+            while (true) {
+                if (root == null) {
+                    return result;
+                }
+                if (fromCmp != null) {
+                    final int c = fromCmp.compareTo(root.key);
+                    if (c > 0 || (c == 0 && !fromIncl)) {
+                        root = root.right;
+                        continue;
+                    }
+                }
+                if (toCmp != null) {
+                    final int c = toCmp.compareTo(root.key);
+                    if (c < 0 || (c == 0 && !toIncl)) {
+                        root = root.left;
+                        continue;
+                    }
+                }
+
+                if (root.isPresent()) {
+                    ++result;
+                }
+                result += computeFrozenSize(root.left, fromCmp, fromIncl, null, false);
+                fromCmp = null;
+                root = root.right;
+            }
+        }
+    }
+
+    private static class RootHolder<E> extends Node<E> {
+        RootHolder() {
+            super(null, 1 << 1, null, 0L, null, null);
+        }
+
+        RootHolder(final RootHolder<E> snapshot) {
+            super(null, (1 + snapshot.height()) << 1, null, 0L, null, snapshot.right);
+        }
+    }
+
+    private static class COWMgr<E> extends CopyOnWriteManager<RootHolder<E>> {
+        COWMgr() {
+            super(new RootHolder<E>(), 0);
+        }
+
+        COWMgr(final RootHolder<E> initialValue, final int initialSize) {
+            super(initialValue, initialSize);
+        }
+
+        protected RootHolder<E> freezeAndClone(final RootHolder<E> value) {
+            Node.markShared(value.right);
+            return new RootHolder<E>(value);
+        }
+
+        protected RootHolder<E> cloneFrozen(final RootHolder<E> frozenValue) {
+            return new RootHolder<E>(frozenValue);
+        }
+    }
+
+    //////// node access functions
+
+    private static int height(final Node<?> node) {
+        return node == null ? 0 : node.height();
+    }
+
+    //////////////// state
+
+    private final Comparator<? super E> comparator;
+    private transient volatile COWMgr<E> holderRef;
+
+    //////////////// public interface
+
+    public SnapTreeSet() {
+        this.comparator = null;
+        this.holderRef = new COWMgr<E>();
+    }
+
+    public SnapTreeSet(final Comparator<? super E> comparator) {
+        this.comparator = comparator;
+        this.holderRef = new COWMgr<E>();
+    }
+
+    public SnapTreeSet(final Collection<? extends E> source) {
+        this.comparator = null;
+        this.holderRef = new COWMgr<E>();
+        addAll(source);
+    }
+
+    public SnapTreeSet(final SortedSet<E> source) {
+        this.comparator = source.comparator();
+        if (source instanceof SnapTreeSet) {
+            final SnapTreeSet<E> s = (SnapTreeSet<E>) source;
+            this.holderRef = (COWMgr<E>) s.holderRef.clone();
+        }
+        else {
+            int size = 0;
+            final RootHolder<E> holder = new RootHolder<E>();
+            for (E k : source) {
+                if (k == null) {
+                    throw new NullPointerException("source set contained a null element");
+                }
+                if (updateUnderRoot(k, comparable(k), true, holder) == Boolean.FALSE) {
+                    ++size;
+                }
+            }
+
+            this.holderRef = new COWMgr<E>(holder, size);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapTreeSet<E> clone() {
+        final SnapTreeSet<E> copy;
+        try {
+            copy = (SnapTreeSet<E>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        assert(copy.comparator == comparator);
+        copy.holderRef = (COWMgr<E>) holderRef.clone();
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return holderRef.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // removed-but-not-unlinked nodes cannot be leaves, so if the tree is
+        // truly empty then the root holder has no right child
+        return holderRef.read().right == null;
+    }
+
+    @Override
+    public void clear() {
+        holderRef = new COWMgr<E>();
+    }
+
+    @Override
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    //////// concurrent search
+
+    @SuppressWarnings("unchecked")
+    private Comparable<? super E> comparable(final Object key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (comparator == null) {
+            return (Comparable<? super E>)key;
+        }
+        return new Comparable<E>() {
+            final Comparator<? super E> _cmp = comparator;
+
+            @SuppressWarnings("unchecked")
+            public int compareTo(final E rhs) { return _cmp.compare((E)key, rhs); }
+        };
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        final Comparable<? super E> k = comparable(o);
+
+        while (true) {
+            final Node<E> right = holderRef.read().right;
+            if (right == null) {
+                return false;
+            } else {
+                final int rightCmp = k.compareTo(right.key);
+                if (rightCmp == 0) {
+                    // who cares how we got here
+                    return right.isPresent();
+                }
+
+                final long ovl = right.ovl();
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                    // RETRY
+                } else if (right == holderRef.read().right) {
+                    // the reread of .right is the one protected by our read of ovl
+                    final Object vo = attemptContains(k, right, (rightCmp < 0 ? Left : Right), ovl);
+                    if (vo != Retry) {
+                        return vo == Boolean.TRUE;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    /** Returns Boolean.TRUE, Boolean.FALSE, or Retry. */
+    private Object attemptContains(final Comparable<? super E> k,
+                                   final Node<E> node,
+                                   final char dirToC,
+                                   final long nodeOVL) {
+        while (true) {
+            final Node<E> child = node.child(dirToC);
+
+            if (child == null) {
+                if (node.ovl() != nodeOVL) {
+                    return Retry;
+                }
+
+                // Note is not present.  Read of node.child occurred while
+                // parent.child was valid, so we were not affected by any
+                // shrinks.
+                return Boolean.FALSE;
+            } else {
+                final int childCmp = k.compareTo(child.key);
+                if (childCmp == 0) {
+                    // how we got here is irrelevant
+                    return child.isPresent() ? Boolean.TRUE : Boolean.FALSE;
+                }
+
+                // child is non-null
+                final long childOVL = child.ovl();
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+                    // else RETRY
+                } else if (child != node.child(dirToC)) {
+                    // this .child is the one that is protected by childOVL
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+                    // else RETRY
+                } else {
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+
+                    // At this point we know that the traversal our parent took
+                    // to get to node is still valid.  The recursive
+                    // implementation will validate the traversal from node to
+                    // child, so just prior to the nodeOVL validation both
+                    // traversals were definitely okay.  This means that we are
+                    // no longer vulnerable to node shrinks, and we don't need
+                    // to validate nodeOVL any more.
+                    final Object vo = attemptContains(k, child, (childCmp < 0 ? Left : Right), childOVL);
+                    if (vo != Retry) {
+                        return vo;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    @Override
+    public E first() {
+        return extremeOrThrow(Left);
+    }
+
+    @Override
+    public E last() {
+        return extremeOrThrow(Right);
+    }
+
+    private E extremeOrThrow(final char dir) {
+        final E k = extreme(dir);
+        if (k == null) {
+            throw new NoSuchElementException();
+        }
+        return k;
+    }
+
+    /** Returns null if none exists. */
+    @SuppressWarnings("unchecked")
+    E extreme(final char dir) {
+        while (true) {
+            final Node<E> right = holderRef.read().right;
+            if (right == null) {
+                return null;
+            } else {
+                final long ovl = right.ovl();
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                    // RETRY
+                } else if (right == holderRef.read().right) {
+                    // the reread of .right is the one protected by our read of ovl
+                    final Object vo = attemptExtreme(dir, right, ovl);
+                    if (vo != Retry) {
+                        return (E) vo;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    private Object attemptExtreme(final char dir,
+                                  final Node<E> node,
+                                  final long nodeOVL) {
+        while (true) {
+            final Node<E> child = node.child(dir);
+
+            if (child == null) {
+                // read of the presence must be protected by the OVL, because
+                // we must linearize against another thread that inserts a new
+                // min key and then removes this key
+                final boolean present = node.isPresent();
+
+                if (node.ovl() != nodeOVL) {
+                    return Retry;
+                }
+
+                assert(present);
+
+                return node.key;
+            } else {
+                // child is non-null
+                final long childOVL = child.ovl();
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+                    // else RETRY
+                } else if (child != node.child(dir)) {
+                    // this .child is the one that is protected by childOVL
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+                    // else RETRY
+                } else {
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+
+                    final Object vo = attemptExtreme(dir, child, childOVL);
+                    if (vo != Retry) {
+                        return vo;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    //////////////// quiesced search
+
+    @Override
+    public E lower(final E e) {
+        return boundedExtreme(null, false, comparable(e), false, Right);
+    }
+
+    @Override
+    public E floor(final E e) {
+        return boundedExtreme(null, false, comparable(e), true, Right);
+    }
+
+    @Override
+    public E ceiling(final E e) {
+        return boundedExtreme(comparable(e), true, null, false, Left);
+    }
+
+    @Override
+    public E higher(final E e) {
+        return boundedExtreme(comparable(e), false, null, false, Left);
+    }
+
+    private E boundedExtremeOrThrow(final Comparable<? super E> minCmp,
+                                    final boolean minIncl,
+                                    final Comparable<? super E> maxCmp,
+                                    final boolean maxIncl,
+                                    final char dir) {
+        final E k = boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, dir);
+        if (k == null) {
+            throw new NoSuchElementException();
+        }
+        return k;
+    }
+
+    /** Returns null if none exists. */
+    private E boundedExtreme(final Comparable<? super E> minCmp,
+                             final boolean minIncl,
+                             final Comparable<? super E> maxCmp,
+                             final boolean maxIncl,
+                             final char dir) {
+        final E result;
+
+        if ((dir == Left && minCmp == null) || (dir == Right && maxCmp == null)) {
+            // no bound in the extreme direction, so use the concurrent search
+            result = extreme(dir);
+            if (result == null) {
+                return null;
+            }
+        }
+        else {
+            RootHolder<E> holder = holderRef.availableFrozen();
+            final Epoch.Ticket ticket;
+            if (holder == null) {
+                ticket = holderRef.beginQuiescent();
+                holder = holderRef.read();
+            }
+            else {
+                ticket = null;
+            }
+            try {
+                final Node<E> node = (dir == Left)
+                        ? boundedMin(holder.right, minCmp, minIncl)
+                        : boundedMax(holder.right, maxCmp, maxIncl);
+                if (node == null) {
+                    return null;
+                }
+                result = node.key;
+            }
+            finally {
+                if (ticket != null) {
+                    ticket.leave(0);
+                }
+            }
+        }
+
+        if (dir == Left && maxCmp != null) {
+            final int c = maxCmp.compareTo(result);
+            if (c < 0 || (c == 0 && !maxIncl)) {
+                return null;
+            }
+        }
+        if (dir == Right && minCmp != null) {
+            final int c = minCmp.compareTo(result);
+            if (c > 0 || (c == 0 && !minIncl)) {
+                return null;
+            }
+        }
+
+        return result;
+    }
+
+    private Node<E> boundedMin(Node<E> node,
+                               final Comparable<? super E> minCmp,
+                               final boolean minIncl) {
+        while (node != null) {
+            final int c = minCmp.compareTo(node.key);
+            if (c < 0) {
+                // there may be a matching node on the left branch
+                final Node<E> z = boundedMin(node.left, minCmp, minIncl);
+                if (z != null) {
+                    return z;
+                }
+            }
+
+            if (c < 0 || (c == 0 && minIncl)) {
+                // this node is a candidate, is it actually present?
+                if (node.isPresent()) {
+                    return node;
+                }
+            }
+
+            // the matching node is on the right branch if it is present
+            node = node.right;
+        }
+        return null;
+    }
+
+    private Node<E> boundedMax(Node<E> node,
+                               final Comparable<? super E> maxCmp,
+                               final boolean maxIncl) {
+        while (node != null) {
+            final int c = maxCmp.compareTo(node.key);
+            if (c > 0) {
+                // there may be a matching node on the right branch
+                final Node<E> z = boundedMax(node.right, maxCmp, maxIncl);
+                if (z != null) {
+                    return z;
+                }
+            }
+
+            if (c > 0 || (c == 0 && maxIncl)) {
+                // this node is a candidate, is it actually present?
+                if (node.isPresent()) {
+                    return node;
+                }
+            }
+
+            // the matching node is on the left branch if it is present
+            node = node.left;
+        }
+        return null;
+    }
+
+    //////////////// update
+
+    @Override
+    public boolean add(final E e) {
+        return update(e, true) == Boolean.FALSE;
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        return update(o, false) == Boolean.TRUE;
+    }
+
+    /** Makes the presence of <code>key</code> equal to <code>present</code>,
+     *  returning the previous presence.  Manages the epoch.
+     */
+    private Boolean update(final Object key, final boolean present) {
+        final Comparable<? super E> k = comparable(key);
+        int sd = 0;
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        try {
+            final Boolean result = updateUnderRoot(key, k, present, holderRef.mutable());
+            if (result.booleanValue() != present) {
+                sd = present ? 1 : -1;
+            }
+            return result;
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    // manages updates to the root holder
+    @SuppressWarnings("unchecked")
+    private Boolean updateUnderRoot(final Object key,
+                                    final Comparable<? super E> k,
+                                    final boolean present,
+                                    final RootHolder<E> holder) {
+
+        while (true) {
+            final Node<E> right = holder.unsharedRight();
+            if (right == null) {
+                // key is not present
+                if (!present || attemptInsertIntoEmpty((E)key, holder)) {
+                    // nothing needs to be done, or we were successful
+                    return Boolean.FALSE;
+                }
+                // else RETRY
+            } else {
+                final long ovl = right.ovl();
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                    // RETRY
+                } else if (right == holder.right) {
+                    // this is the protected .right
+                    final Object vo = attemptUpdate(key, k, present, holder, right, ovl);
+                    if (vo != Retry) {
+                        return (Boolean) vo;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    private boolean attemptInsertIntoEmpty(final E key, final RootHolder<E> holder) {
+        holder.lock();
+        try {
+            if (holder.right == null) {
+                holder.right = new Node<E>(key, (1 << 1) | 1, holder, 0L, null, null);
+                holder.setHeight(2);
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            holder.unlock();
+        }
+    }
+
+    /** If successful returns the previous presence of the key, otherwise
+     *  returns Retry.
+     */
+    @SuppressWarnings("unchecked")
+    private Object attemptUpdate(final Object key,
+                                 final Comparable<? super E> k,
+                                 final boolean present,
+                                 final Node<E> parent,
+                                 final Node<E> node,
+                                 final long nodeOVL) {
+        // See SnapTreeMap.attemptUpdate for a discussion of the validation
+        // required as the search progresses.
+
+        assert (nodeOVL != UnlinkedOVL);
+
+        final int cmp = k.compareTo(node.key);
+        if (cmp == 0) {
+            return attemptNodeUpdate(present, parent, node);
+        }
+
+        final char dirToC = cmp < 0 ? Left : Right;
+
+        while (true) {
+            final Node<E> child = node.unsharedChild(dirToC);
+
+            if (node.ovl() != nodeOVL) {
+                return Retry;
+            }
+
+            if (child == null) {
+                // key is not present
+                if (!present) {
+                    // Removal is requested.  Read of node.child occurred
+                    // while parent.child was valid, so we were not affected
+                    // by any shrinks.
+                    return Boolean.FALSE;
+                } else {
+                    // Update will be an insert.
+                    final boolean success;
+                    final Node<E> damaged;
+                    node.lock();
+                    try {
+                        // Validate that we haven't been affected by past
+                        // rotations.  We've got the lock on node, so no future
+                        // rotations can mess with us.
+                        if (node.ovl() != nodeOVL) {
+                            return Retry;
+                        }
+
+                        if (node.child(dirToC) != null) {
+                            // Lost a race with a concurrent insert.  No need
+                            // to back up to the parent, but we must RETRY in
+                            // the outer loop of this method.
+                            success = false;
+                            damaged = null;
+                        } else {
+                            // Create a new leaf
+                            node.setChild(dirToC, new Node<E>((E)key, (1 << 1) | 1, node, 0L, null, null));
+                            success = true;
+
+                            // attempt to fix node.height while we've still got
+                            // the lock
+                            damaged = fixHeight_nl(node);
+                        }
+                    } finally {
+                        node.unlock();
+                    }
+                    if (success) {
+                        fixHeightAndRebalance(damaged);
+                        return Boolean.FALSE;
+                    }
+                    // else RETRY
+                }
+            } else {
+                // non-null child
+                final long childOVL = child.ovl();
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+                    // RETRY
+                } else if (child != node.child(dirToC)) {
+                    // this second read is important, because it is protected
+                    // by childOVL
+                    // RETRY
+                } else {
+                    // validate the read that our caller took to get to node
+                    if (node.ovl() != nodeOVL) {
+                        return Retry;
+                    }
+
+                    final Object vo = attemptUpdate(key, k, present, node, child, childOVL);
+                    if (vo != Retry) {
+                        return vo;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    /** parent will only be used for unlink, update can proceed even if parent
+     *  is stale.
+     */
+    private Object attemptNodeUpdate(final boolean present,
+                                     final Node<E> parent,
+                                     final Node<E> node) {
+        if (!present) {
+            // removal
+            if (!node.isPresent()) {
+                // This node is already removed, nothing to do.
+                return Boolean.FALSE;
+            }
+        }
+
+        if (!present && (node.left == null || node.right == null)) {
+            // potential unlink, get ready by locking the parent
+            final Node<E> damaged;
+            parent.lock();
+            try {
+                if (isUnlinked(parent.ovl()) || node.parent != parent) {
+                    return Retry;
+                }
+
+                node.lock();
+                try {
+                    if (!node.isPresent()) {
+                        return Boolean.FALSE;
+                    }
+                    if (!attemptUnlink_nl(parent, node)) {
+                        return Retry;
+                    }
+                } finally {
+                    node.unlock();
+                }
+                // try to fix the parent while we've still got the lock
+                damaged = fixHeight_nl(parent);
+            } finally {
+                parent.unlock();
+            }
+            fixHeightAndRebalance(damaged);
+            return Boolean.TRUE;
+        } else {
+            // potential update (including remove-without-unlink)
+            node.lock();
+            try {
+                // regular version changes don't bother us
+                if (isUnlinked(node.ovl())) {
+                    return Retry;
+                }
+
+                final boolean prev = node.isPresent();
+                if (prev == present) {
+                    return prev ? Boolean.TRUE : Boolean.FALSE;
+                }
+
+                // retry if we now detect that unlink is possible
+                if (!present && (node.left == null || node.right == null)) {
+                    return Retry;
+                }
+
+                // update in-place
+                node.setPresent(present);
+                return prev ? Boolean.TRUE : Boolean.FALSE;
+            } finally {
+                node.unlock();
+            }
+        }
+    }
+
+    /** Does not adjust the size or any heights. */
+    private boolean attemptUnlink_nl(final Node<E> parent, final Node<E> node) {
+        // assert (Thread.holdsLock(parent));
+        // assert (Thread.holdsLock(node));
+        assert (!isUnlinked(parent.ovl()));
+
+        final Node<E> parentL = parent.left;
+        final Node<E>  parentR = parent.right;
+        if (parentL != node && parentR != node) {
+            // node is no longer a child of parent
+            return false;
+        }
+
+        assert (!isUnlinked(node.ovl()));
+        assert (parent == node.parent);
+
+        final Node<E> left = node.unsharedLeft_nl();
+        final Node<E> right = node.unsharedRight_nl();
+        if (left != null && right != null) {
+            // splicing is no longer possible
+            return false;
+        }
+        final Node<E> splice = left != null ? left : right;
+
+        if (parentL == node) {
+            parent.left = splice;
+        } else {
+            parent.right = splice;
+        }
+        if (splice != null) {
+            splice.parent = parent;
+        }
+
+        node.setOVL(UnlinkedOVL);
+        node.setPresent(false);
+
+        return true;
+    }
+
+    //////////////// NavigableSet stuff
+
+    @Override
+    public E pollFirst() {
+        return pollExtreme(Left);
+    }
+
+    @Override
+    public E pollLast() {
+        return pollExtreme(Right);
+    }
+
+    private E pollExtreme(final char dir) {
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sizeDelta = 0;
+        try {
+            final E prev = pollExtremeUnderRoot(dir, holderRef.mutable());
+            if (prev != null) {
+                sizeDelta = -1;
+            }
+            return prev;
+        } finally {
+            ticket.leave(sizeDelta);
+        }
+    }
+
+    private E pollExtremeUnderRoot(final char dir, final RootHolder<E> holder) {
+        while (true) {
+            final Node<E> right = holder.unsharedRight();
+            if (right == null) {
+                // tree is empty, nothing to remove
+                return null;
+            } else {
+                final long ovl = right.ovl();
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                    // RETRY
+                } else if (right == holder.right) {
+                    // this is the protected .right
+                    final Node<E> result = attemptRemoveExtreme(dir, holder, right, ovl);
+                    if (result != null) {
+                        return result.key;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    /** Returns the unlinked node on success, null on failure. */
+    private Node<E> attemptRemoveExtreme(final char dir,
+                                         final Node<E> parent,
+                                         final Node<E> node,
+                                         final long nodeOVL) {
+        assert (nodeOVL != UnlinkedOVL);
+
+        while (true) {
+            final Node<E> child = node.unsharedChild(dir);
+
+            if (nodeOVL != node.ovl()) {
+                return null;
+            }
+
+            if (child == null) {
+                // potential unlink, get ready by locking the parent
+                final Node<E> damaged;
+                parent.lock();
+                try {
+                    if (isUnlinked(parent.ovl()) || node.parent != parent) {
+                        return null;
+                    }
+
+                    node.lock();
+                    try {
+                        if (node.child(dir) != null || !attemptUnlink_nl(parent, node)) {
+                            return null;
+                        }
+                        // success!
+                    } finally {
+                        node.unlock();
+                    }
+                    // try to fix parent.height while we've still got the lock
+                    damaged = fixHeight_nl(parent);
+                } finally {
+                    parent.unlock();
+                }
+                fixHeightAndRebalance(damaged);
+                return node;
+            } else {
+                // keep going down
+                final long childOVL = child.ovl();
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+                    // RETRY
+                } else if (child != node.child(dir)) {
+                    // this second read is important, because it is protected
+                    // by childOVL
+                    // RETRY
+                } else {
+                    // validate the read that our caller took to get to node
+                    if (node.ovl() != nodeOVL) {
+                        return null;
+                    }
+
+                    final Node<E> result = attemptRemoveExtreme(dir, node, child, childOVL);
+                    if (result != null) {
+                        return result;
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    //////////////// tree balance and height info repair
+
+    private static final int UnlinkRequired = -1;
+    private static final int RebalanceRequired = -2;
+    private static final int NothingRequired = -3;
+
+    private int nodeCondition(final Node<E> node) {
+        // Begin atomic.
+
+        final Node<E> nL = node.left;
+        final Node<E> nR = node.right;
+        final int hp = node.heightAndPresence;
+
+        if ((nL == null || nR == null) && (hp & 1) == 0) {
+            return UnlinkRequired;
+        }
+
+        final int hN = hp >> 1;
+        final int hL0 = height(nL);
+        final int hR0 = height(nR);
+
+        // End atomic.  Since any thread that changes a node promises to fix
+        // it, either our read was consistent (and a NothingRequired conclusion
+        // is correct) or someone else has taken responsibility for either node
+        // or one of its children.
+
+        final int hNRepl = 1 + Math.max(hL0, hR0);
+        final int bal = hL0 - hR0;
+
+        if (bal < -1 || bal > 1) {
+            return RebalanceRequired;
+        }
+
+        return hN != hNRepl ? hNRepl : NothingRequired;
+    }
+
+    private void fixHeightAndRebalance(Node<E> node) {
+        while (node != null && node.parent != null) {
+            final int condition = nodeCondition(node);
+            if (condition == NothingRequired || isUnlinked(node.ovl())) {
+                // nothing to do, or no point in fixing this node
+                return;
+            }
+
+            if (condition != UnlinkRequired && condition != RebalanceRequired) {
+                final Node<E> locked = node;
+                locked.lock();
+                try {
+                    node = fixHeight_nl(locked);
+                } finally {
+                    locked.unlock();
+                }
+            } else {
+                final Node<E> nParent = node.parent;
+                nParent.lock();
+                try {
+                    if (!isUnlinked(nParent.ovl()) && node.parent == nParent) {
+                        final Node<E> locked = node;
+                        locked.lock();
+                        try {
+                            node = rebalance_nl(nParent, locked);
+                        } finally {
+                            locked.unlock();
+                        }
+                    }
+                    // else RETRY
+                } finally {
+                    nParent.unlock();
+                }
+            }
+        }
+    }
+
+    /** Attempts to fix the height of a (locked) damaged node, returning the
+     *  lowest damaged node for which this thread is responsible.  Returns null
+     *  if no more repairs are needed.
+     */
+    private Node<E> fixHeight_nl(final Node<E> node) {
+        final int c = nodeCondition(node);
+        switch (c) {
+            case RebalanceRequired:
+            case UnlinkRequired:
+                // can't repair
+                return node;
+            case NothingRequired:
+                // Any future damage to this node is not our responsibility.
+                return null;
+            default:
+                node.setHeight(c);
+                // we've damaged our parent, but we can't fix it now
+                return node.parent;
+        }
+    }
+
+    /** nParent and n must be locked on entry.  Returns a damaged node, or null
+     *  if no more rebalancing is necessary.
+     */
+    private Node<E> rebalance_nl(final Node<E> nParent, final Node<E> n) {
+
+        final Node<E> nL = n.unsharedLeft_nl();
+        final Node<E> nR = n.unsharedRight_nl();
+
+        if ((nL == null || nR == null) && !n.isPresent()) {
+            if (attemptUnlink_nl(nParent, n)) {
+                // attempt to fix nParent.height while we've still got the lock
+                return fixHeight_nl(nParent);
+            } else {
+                // retry needed for n
+                return n;
+            }
+        }
+
+        final int hN = n.height();
+        final int hL0 = height(nL);
+        final int hR0 = height(nR);
+        final int hNRepl = 1 + Math.max(hL0, hR0);
+        final int bal = hL0 - hR0;
+
+        if (bal > 1) {
+            return rebalanceToRight_nl(nParent, n, nL, hR0);
+        } else if (bal < -1) {
+            return rebalanceToLeft_nl(nParent, n, nR, hL0);
+        } else if (hNRepl != hN) {
+            // we've got more than enough locks to do a height change, no need to
+            // trigger a retry
+            n.setHeight(hNRepl);
+
+            // nParent is already locked, let's try to fix it too
+            return fixHeight_nl(nParent);
+        } else {
+            // nothing to do
+            return null;
+        }
+    }
+
+    private Node<E> rebalanceToRight_nl(final Node<E> nParent,
+                                        final Node<E> n,
+                                        final Node<E> nL,
+                                        final int hR0) {
+        // L is too large, we will rotate-right.  If L.R is taller
+        // than L.L, then we will first rotate-left L.
+        nL.lock();
+        try {
+            final int hL = nL.height();
+            if (hL - hR0 <= 1) {
+                return n; // retry
+            } else {
+                final Node<E> nLR = nL.unsharedRight_nl();
+                final int hLL0 = height(nL.left);
+                final int hLR0 = height(nLR);
+                if (hLL0 >= hLR0) {
+                    // rotate right based on our snapshot of hLR
+                    return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR0);
+                } else {
+                    nLR.lock();
+                    try {
+                        // If our hLR snapshot is incorrect then we might
+                        // actually need to do a single rotate-right on n.
+                        final int hLR = nLR.height();
+                        if (hLL0 >= hLR) {
+                            return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR);
+                        } else {
+                            // See SnapTreeMap.rebalanceToRight_nl for why the
+                            // double rotation is sometimes deferred.
+                            final int hLRL = height(nLR.left);
+                            final int b = hLL0 - hLRL;
+                            if (b >= -1 && b <= 1 && !((hLL0 == 0 || hLRL == 0) && !nL.isPresent())) {
+                                // nParent.child.left won't be damaged after a double rotation
+                                return rotateRightOverLeft_nl(nParent, n, nL, hR0, hLL0, nLR, hLRL);
+                            }
+                        }
+                    } finally {
+                        nLR.unlock();
+                    }
+                    // focus on nL, if necessary n will be balanced later
+                    return rebalanceToLeft_nl(n, nL, nLR, hLL0);
+                }
+            }
+        } finally {
+            nL.unlock();
+        }
+    }
+
+    private Node<E> rebalanceToLeft_nl(final Node<E> nParent,
+                                       final Node<E> n,
+                                       final Node<E> nR,
+                                       final int hL0) {
+        nR.lock();
+        try {
+            final int hR = nR.height();
+            if (hL0 - hR >= -1) {
+                return n; // retry
+            } else {
+                final Node<E> nRL = nR.unsharedLeft_nl();
+                final int hRL0 = height(nRL);
+                final int hRR0 = height(nR.right);
+                if (hRR0 >= hRL0) {
+                    return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL0, hRR0);
+                } else {
+                    nRL.lock();
+                    try {
+                        final int hRL = nRL.height();
+                        if (hRR0 >= hRL) {
+                            return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL, hRR0);
+                        } else {
+                            final int hRLR = height(nRL.right);
+                            final int b = hRR0 - hRLR;
+                            if (b >= -1 && b <= 1 && !((hRR0 == 0 || hRLR == 0) && !nR.isPresent())) {
+                                return rotateLeftOverRight_nl(nParent, n, hL0, nR, nRL, hRR0, hRLR);
+                            }
+                        }
+                    } finally {
+                        nRL.unlock();
+                    }
+                    return rebalanceToRight_nl(n, nR, nRL, hRR0);
+                }
+            }
+        } finally {
+            nR.unlock();
+        }
+    }
+
+    private Node<E> rotateRight_nl(final Node<E> nParent,
+                                   final Node<E> n,
+                                   final Node<E> nL,
+                                   final int hR,
+                                   final int hLL,
+                                   final Node<E> nLR,
+                                   final int hLR) {
+        final long nodeOVL = n.ovl();
+
+        final Node<E> nPL = nParent.left;
+
+        n.setOVL(beginChange(nodeOVL));
+
+        n.left = nLR;
+        if (nLR != null) {
+            nLR.parent = n;
+        }
+
+        nL.right = n;
+        n.parent = nL;
+
+        if (nPL == n) {
+            nParent.left = nL;
+        } else {
+            nParent.right = nL;
+        }
+        nL.parent = nParent;
+
+        // fix up heights links
+        final int hNRepl = 1 + Math.max(hLR, hR);
+        n.setHeight(hNRepl);
+        nL.setHeight(1 + Math.max(hLL, hNRepl));
+
+        n.setOVL(endChange(nodeOVL));
+
+        // See SnapTreeMap.rotateRight_nl for a discussion of the remaining
+        // damage.
+        final int balN = hLR - hR;
+        if (balN < -1 || balN > 1) {
+            // we need another rotation at n
+            return n;
+        }
+
+        if ((nLR == null || hR == 0) && !n.isPresent()) {
+            // we need to remove n and then repair
+            return n;
+        }
+
+        final int balL = hLL - hNRepl;
+        if (balL < -1 || balL > 1) {
+            return nL;
+        }
+
+        if (hLL == 0 && !nL.isPresent()) {
+            return nL;
+        }
+
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<E> rotateLeft_nl(final Node<E> nParent,
+                                  final Node<E> n,
+                                  final int hL,
+                                  final Node<E> nR,
+                                  final Node<E> nRL,
+                                  final int hRL,
+                                  final int hRR) {
+        final long nodeOVL = n.ovl();
+
+        final Node<E> nPL = nParent.left;
+
+        n.setOVL(beginChange(nodeOVL));
+
+        // fix up n links, careful to be compatible with concurrent traversal for all but n
+        n.right = nRL;
+        if (nRL != null) {
+            nRL.parent = n;
+        }
+
+        nR.left = n;
+        n.parent = nR;
+
+        if (nPL == n) {
+            nParent.left = nR;
+        } else {
+            nParent.right = nR;
+        }
+        nR.parent = nParent;
+
+        // fix up heights
+        final int  hNRepl = 1 + Math.max(hL, hRL);
+        n.setHeight(hNRepl);
+        nR.setHeight(1 + Math.max(hNRepl, hRR));
+
+        n.setOVL(endChange(nodeOVL));
+
+        final int balN = hRL - hL;
+        if (balN < -1 || balN > 1) {
+            return n;
+        }
+
+        if ((nRL == null || hL == 0) && !n.isPresent()) {
+            return n;
+        }
+
+        final int balR = hRR - hNRepl;
+        if (balR < -1 || balR > 1) {
+            return nR;
+        }
+
+        if (hRR == 0 && !nR.isPresent()) {
+            return nR;
+        }
+
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<E> rotateRightOverLeft_nl(final Node<E> nParent,
+                                           final Node<E> n,
+                                           final Node<E> nL,
+                                           final int hR,
+                                           final int hLL,
+                                           final Node<E> nLR,
+                                           final int hLRL) {
+        final long nodeOVL = n.ovl();
+        final long leftOVL = nL.ovl();
+
+        final Node<E> nPL = nParent.left;
+        final Node<E> nLRL = nLR.unsharedLeft_nl();
+        final Node<E> nLRR = nLR.unsharedRight_nl();
+        final int hLRR = height(nLRR);
+
+        n.setOVL(beginChange(nodeOVL));
+        nL.setOVL(beginChange(leftOVL));
+
+        // fix up n links, careful about the order!
+        n.left = nLRR;
+        if (nLRR != null) {
+            nLRR.parent = n;
+        }
+
+        nL.right = nLRL;
+        if (nLRL != null) {
+            nLRL.parent = nL;
+        }
+
+        nLR.left = nL;
+        nL.parent = nLR;
+        nLR.right = n;
+        n.parent = nLR;
+
+        if (nPL == n) {
+            nParent.left = nLR;
+        } else {
+            nParent.right = nLR;
+        }
+        nLR.parent = nParent;
+
+        // fix up heights
+        final int hNRepl = 1 + Math.max(hLRR, hR);
+        n.setHeight(hNRepl);
+        final int hLRepl = 1 + Math.max(hLL, hLRL);
+        nL.setHeight(hLRepl);
+        nLR.setHeight(1 + Math.max(hLRepl, hNRepl));
+
+        n.setOVL(endChange(nodeOVL));
+        nL.setOVL(endChange(leftOVL));
+
+        // caller should have performed only a single rotation if nL was going
+        // to end up damaged
+        assert(Math.abs(hLL - hLRL) <= 1);
+        assert(!((hLL == 0 || nLRL == null) && !nL.isPresent()));
+
+        final int balN = hLRR - hR;
+        if (balN < -1 || balN > 1) {
+            // we need another rotation at n
+            return n;
+        }
+
+        // n might also be damaged by being an unnecessary routing node
+        if ((nLRR == null || hR == 0) && !n.isPresent()) {
+            // repair involves splicing out n and maybe more rotations
+            return n;
+        }
+
+        // we've already fixed the height at nLR, do we need a rotation here?
+        final int balLR = hLRepl - hNRepl;
+        if (balLR < -1 || balLR > 1) {
+            return nLR;
+        }
+
+        // try to fix the parent height while we've still got the lock
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<E> rotateLeftOverRight_nl(final Node<E> nParent,
+                                           final Node<E> n,
+                                           final int hL,
+                                           final Node<E> nR,
+                                           final Node<E> nRL,
+                                           final int hRR,
+                                           final int hRLR) {
+        final long nodeOVL = n.ovl();
+        final long rightOVL = nR.ovl();
+
+        final Node<E> nPL = nParent.left;
+        final Node<E> nRLL = nRL.unsharedLeft_nl();
+        final Node<E> nRLR = nRL.unsharedRight_nl();
+        final int hRLL = height(nRLL);
+
+        n.setOVL(beginChange(nodeOVL));
+        nR.setOVL(beginChange(rightOVL));
+
+        // fix up n links, careful about the order!
+        n.right = nRLL;
+        if (nRLL != null) {
+            nRLL.parent = n;
+        }
+
+        nR.left = nRLR;
+        if (nRLR != null) {
+            nRLR.parent = nR;
+        }
+
+        nRL.right = nR;
+        nR.parent = nRL;
+        nRL.left = n;
+        n.parent = nRL;
+
+        if (nPL == n) {
+            nParent.left = nRL;
+        } else {
+            nParent.right = nRL;
+        }
+        nRL.parent = nParent;
+
+        // fix up heights
+        final int hNRepl = 1 + Math.max(hL, hRLL);
+        n.setHeight(hNRepl);
+        final int hRRepl = 1 + Math.max(hRLR, hRR);
+        nR.setHeight(hRRepl);
+        nRL.setHeight(1 + Math.max(hNRepl, hRRepl));
+
+        n.setOVL(endChange(nodeOVL));
+        nR.setOVL(endChange(rightOVL));
+
+        assert(Math.abs(hRR - hRLR) <= 1);
+
+        final int balN = hRLL - hL;
+        if (balN < -1 || balN > 1) {
+            return n;
+        }
+        if ((nRLL == null || hL == 0) && !n.isPresent()) {
+            return n;
+        }
+        final int balRL = hRRepl - hNRepl;
+        if (balRL < -1 || balRL > 1) {
+            return nRL;
+        }
+        return fixHeight_nl(nParent);
+    }
+
+    //////////////// iteration
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iter<E>(this);
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        return new Iter<E>(this, null, false, null, false, true);
+    }
+
+    private static class Iter<E> implements Iterator<E> {
+        private final SnapTreeSet<E> m;
+        private final boolean descending;
+        private final char forward;
+        private final char reverse;
+        private Node<E>[] path;
+        private int depth = 0;
+        private Node<E> mostRecentNode;
+        private final E endKey;
+
+        Iter(final SnapTreeSet<E> m) {
+            this.m = m;
+            this.descending = false;
+            this.forward = Right;
+            this.reverse = Left;
+            final Node<E> root = m.holderRef.frozen().right;
+            this.path = newPath(1 + height(root));
+            this.endKey = null;
+            pushFirst(root);
+        }
+
+        Iter(final SnapTreeSet<E> m,
+             final Comparable<? super E> minCmp,
+             final boolean minIncl,
+             final Comparable<? super E> maxCmp,
+             final boolean maxIncl,
+             final boolean descending) {
+            this.m = m;
+            this.descending = descending;
+            this.forward = !descending ? Right : Left;
+            this.reverse = !descending ? Left : Right;
+            final Comparable<? super E> fromCmp;
+            final boolean fromIncl = !descending ? minIncl : maxIncl;
+            final Comparable<? super E> toCmp;
+            if (!descending) {
+                fromCmp = minCmp;
+                toCmp = maxCmp;
+            } else {
+                fromCmp = maxCmp;
+                toCmp = minCmp;
+            }
+
+            final Node<E> root = m.holderRef.frozen().right;
+
+            if (toCmp != null) {
+                this.endKey = m.boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, forward);
+                if (this.endKey == null) {
+                    // no node satisfies the bound, nothing to iterate
+                    // ---------> EARLY EXIT
+                    return;
+                }
+            } else {
+                this.endKey = null;
+            }
+
+            this.path = newPath(1 + height(root));
+
+            if (fromCmp == null) {
+                pushFirst(root);
+            }
+            else {
+                pushFirst(root, fromCmp, fromIncl);
+                if (depth > 0 && !top().isPresent()) {
+                    advance();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <E> Node<E>[] newPath(final int length) {
+            return (Node<E>[]) new Node<?>[length];
+        }
+
+        private int cmp(final Comparable<? super E> comparable, final E key) {
+            final int c = comparable.compareTo(key);
+            if (!descending) {
+                return c;
+            } else {
+                return c == Integer.MIN_VALUE ? 1 : -c;
+            }
+        }
+
+        private void push(final Node<E> node) {
+            if (depth == path.length) {
+                // heights are only a hint if the snapshot was taken while
+                // rebalancing was still pending
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = node;
+        }
+
+        private void pushFirst(Node<E> node) {
+            while (node != null) {
+                push(node);
+                node = node.child(reverse);
+            }
+        }
+
+        private void pushFirst(Node<E> node, final Comparable<? super E> fromCmp, final boolean fromIncl) {
+            while (node != null) {
+                final int c = cmp(fromCmp, node.key);
+                if (c > 0 || (c == 0 && !fromIncl)) {
+                    // everything we're interested in is on the right
+                    node = node.child(forward);
+                }
+                else {
+                    push(node);
+                    if (c == 0) {
+                        // start the iteration here
+                        return;
+                    }
+                    else {
+                        node = node.child(reverse);
+                    }
+                }
+            }
+        }
+
+        private Node<E> top() {
+            return path[depth - 1];
+        }
+
+        private void advance() {
+            do {
+                final Node<E> t = top();
+                if (endKey != null && endKey == t.key) {
+                    depth = 0;
+                    path = null;
+                    return;
+                }
+
+                final Node<E> fwd = t.child(forward);
+                if (fwd != null) {
+                    pushFirst(fwd);
+                } else {
+                    // keep going up until we pop a node that is a left child
+                    Node<E> popped;
+                    do {
+                        popped = path[--depth];
+                    } while (depth > 0 && popped == top().child(forward));
+                }
+
+                if (depth == 0) {
+                    // clear out the path so we don't pin too much stuff
+                    path = null;
+                    return;
+                }
+
+                // skip removed-but-not-unlinked entries
+            } while (!top().isPresent());
+        }
+
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        public E next() {
+            if (depth == 0) {
+                throw new NoSuchElementException();
+            }
+            mostRecentNode = top();
+            advance();
+            return mostRecentNode.key;
+        }
+
+        public void remove() {
+            if (mostRecentNode == null) {
+                throw new IllegalStateException();
+            }
+            m.remove(mostRecentNode.key);
+            mostRecentNode = null;
+        }
+    }
+
+    //////////////// NavigableSet views
+
+    @Override
+    public NavigableSet<E> subSet(final E fromElement,
+                                  final boolean fromInclusive,
+                                  final E toElement,
+                                  final boolean toInclusive) {
+        final Comparable<? super E> fromCmp = comparable(fromElement);
+        if (fromCmp.compareTo(toElement) > 0) {
+            throw new IllegalArgumentException();
+        }
+        return new SubSet<E>(this, fromElement, fromCmp, fromInclusive, toElement, comparable(toElement), toInclusive, false);
+    }
+
+    @Override
+    public NavigableSet<E> headSet(final E toElement, final boolean inclusive) {
+        return new SubSet<E>(this, null, null, false, toElement, comparable(toElement), inclusive, false);
+    }
+
+    @Override
+    public NavigableSet<E> tailSet(final E fromElement, final boolean inclusive) {
+        return new SubSet<E>(this, fromElement, comparable(fromElement), inclusive, null, null, false, false);
+    }
+
+    @Override
+    public NavigableSet<E> subSet(final E fromElement, final E toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public NavigableSet<E> headSet(final E toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public NavigableSet<E> tailSet(final E fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    @Override
+    public NavigableSet<E> descendingSet() {
+        return new SubSet<E>(this, null, null, false, null, null, false, true);
+    }
+
+    private static class SubSet<E> extends AbstractSet<E> implements NavigableSet<E>, Serializable {
+        private static final long serialVersionUID = 4417340574196186512L;
+
+        private final SnapTreeSet<E> m;
+        private final E minKey;
+        private transient Comparable<? super E> minCmp;
+        private final boolean minIncl;
+        private final E maxKey;
+        private transient Comparable<? super E> maxCmp;
+        private final boolean maxIncl;
+        private final boolean descending;
+
+        private SubSet(final SnapTreeSet<E> m,
+                       final E minKey,
+                       final Comparable<? super E> minCmp,
+                       final boolean minIncl,
+                       final E maxKey,
+                       final Comparable<? super E> maxCmp,
+                       final boolean maxIncl,
+                       final boolean descending) {
+            this.m = m;
+            this.minKey = minKey;
+            this.minCmp = minCmp;
+            this.minIncl = minIncl;
+            this.maxKey = maxKey;
+            this.maxCmp = maxCmp;
+            this.maxIncl = maxIncl;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(final E key) {
+            if (minCmp == null) {
+                return false;
+            } else {
+                final int c = minCmp.compareTo(key);
+                return c > 0 || (c == 0 && !minIncl);
+            }
+        }
+
+        private boolean tooHigh(final E key) {
+            if (maxCmp == null) {
+                return false;
+            } else {
+                final int c = maxCmp.compareTo(key);
+                return c < 0 || (c == 0 && !maxIncl);
+            }
+        }
+
+        private boolean inRange(final E key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        private void requireInRange(final E key) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            if (!inRange(key)) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        private char minDir() {
+            return descending ? Right : Left;
+        }
+
+        private char maxDir() {
+            return descending ? Left : Right;
+        }
+
+        //////// AbstractSet
+
+        @Override
+        public boolean isEmpty() {
+            return m.boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, Left) == null;
+        }
+
+        @Override
+        public int size() {
+            final Node<E> root = m.holderRef.frozen().right;
+            return Node.computeFrozenSize(root, minCmp, minIncl, maxCmp, maxIncl);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(final Object o) {
+            if (o == null) {
+                throw new NullPointerException();
+            }
+            final E k = (E) o;
+            return inRange(k) && m.contains(k);
+        }
+
+        @Override
+        public boolean add(final E e) {
+            requireInRange(e);
+            return m.add(e);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(final Object o) {
+            if (o == null) {
+                throw new NullPointerException();
+            }
+            return inRange((E) o) && m.remove(o);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new Iter<E>(m, minCmp, minIncl, maxCmp, maxIncl, descending);
+        }
+
+        @Override
+        public Iterator<E> descendingIterator() {
+            return new Iter<E>(m, minCmp, minIncl, maxCmp, maxIncl, !descending);
+        }
+
+        //////// SortedSet
+
+        @Override
+        public Comparator<? super E> comparator() {
+            final Comparator<? super E> fromM = m.comparator();
+            if (descending) {
+                return Collections.reverseOrder(fromM);
+            } else {
+                return fromM;
+            }
+        }
+
+        @Override
+        public E first() {
+            return m.boundedExtremeOrThrow(minCmp, minIncl, maxCmp, maxIncl, minDir());
+        }
+
+        @Override
+        public E last() {
+            return m.boundedExtremeOrThrow(minCmp, minIncl, maxCmp, maxIncl, maxDir());
+        }
+
+        //////// NavigableSet
+
+        private E firstOrNull() {
+            return m.boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, minDir());
+        }
+
+        private E lastOrNull() {
+            return m.boundedExtreme(minCmp, minIncl, maxCmp, maxIncl, maxDir());
+        }
+
+        @Override
+        public E lower(final E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (!descending ? tooLow(e) : tooHigh(e)) {
+                return null;
+            }
+            return ((!descending ? tooHigh(e) : tooLow(e))
+                    ? this : subSetInRange(null, false, e, false)).lastOrNull();
+        }
+
+        @Override
+        public E floor(final E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (!descending ? tooLow(e) : tooHigh(e)) {
+                return null;
+            }
+            return ((!descending ? tooHigh(e) : tooLow(e))
+                    ? this : subSetInRange(null, false, e, true)).lastOrNull();
+        }
+
+        @Override
+        public E ceiling(final E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (!descending ? tooHigh(e) : tooLow(e)) {
+                return null;
+            }
+            return ((!descending ? tooLow(e) : tooHigh(e))
+                    ? this : subSetInRange(e, true, null, false)).firstOrNull();
+        }
+
+        @Override
+        public E higher(final E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (!descending ? tooHigh(e) : tooLow(e)) {
+                return null;
+            }
+            return ((!descending ? tooLow(e) : tooHigh(e))
+                    ? this : subSetInRange(e, false, null, false)).firstOrNull();
+        }
+
+        @Override
+        public E pollFirst() {
+            while (true) {
+                final E snapshot = firstOrNull();
+                if (snapshot == null || m.remove(snapshot)) {
+                    return snapshot;
+                }
+            }
+        }
+
+        @Override
+        public E pollLast() {
+            while (true) {
+                final E snapshot = lastOrNull();
+                if (snapshot == null || m.remove(snapshot)) {
+                    return snapshot;
+                }
+            }
+        }
+
+        @Override
+        public SubSet<E> subSet(final E fromElement,
+                                final boolean fromInclusive,
+                                final E toElement,
+                                final boolean toInclusive) {
+            if (fromElement == null || toElement == null) {
+                throw new NullPointerException();
+            }
+            return subSetImpl(fromElement, fromInclusive, toElement, toInclusive);
+        }
+
+        @Override
+        public SubSet<E> headSet(final E toElement, final boolean inclusive) {
+            if (toElement == null) {
+                throw new NullPointerException();
+            }
+            return subSetImpl(null, false, toElement, inclusive);
+        }
+
+        @Override
+        public SubSet<E> tailSet(final E fromElement, final boolean inclusive) {
+            if (fromElement == null) {
+                throw new NullPointerException();
+            }
+            return subSetImpl(fromElement, inclusive, null, false);
+        }
+
+        @Override
+        public SubSet<E> subSet(final E fromElement, final E toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SubSet<E> headSet(final E toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SubSet<E> tailSet(final E fromElement) {
+            return tailSet(fromElement, true);
+        }
+
+        private SubSet<E> subSetImpl(final E fromKey,
+                                     final boolean fromIncl,
+                                     final E toKey,
+                                     final boolean toIncl) {
+            if (fromKey != null) {
+                requireInRange(fromKey);
+            }
+            if (toKey != null) {
+                requireInRange(toKey);
+            }
+            return subSetInRange(fromKey, fromIncl, toKey, toIncl);
+        }
+
+        private SubSet<E> subSetInRange(final E fromKey,
+                                        final boolean fromIncl,
+                                        final E toKey,
+                                        final boolean toIncl) {
+            final Comparable<? super E> fromCmp = fromKey == null ? null : m.comparable(fromKey);
+            final Comparable<? super E> toCmp = toKey == null ? null : m.comparable(toKey);
+
+            if (fromKey != null && toKey != null) {
+                final int c = fromCmp.compareTo(toKey);
+                if ((!descending ? c > 0 : c < 0)) {
+                    throw new IllegalArgumentException();
+                }
+            }
+
+            E minK = minKey;
+            Comparable<? super E> minC = minCmp;
+            boolean minI = minIncl;
+            E maxK = maxKey;
+            Comparable<? super E> maxC = maxCmp;
+            boolean maxI = maxIncl;
+
+            if (fromKey != null) {
+                if (!descending) {
+                    minK = fromKey;
+                    minC = fromCmp;
+                    minI = fromIncl;
+                } else {
+                    maxK = fromKey;
+                    maxC = fromCmp;
+                    maxI = fromIncl;
+                }
+            }
+            if (toKey != null) {
+                if (!descending) {
+                    maxK = toKey;
+                    maxC = toCmp;
+                    maxI = toIncl;
+                } else {
+                    minK = toKey;
+                    minC = toCmp;
+                    minI = toIncl;
+                }
+            }
+
+            return new SubSet<E>(m, minK, minC, minI, maxK, maxC, maxI, descending);
+        }
+
+        @Override
+        public SubSet<E> descendingSet() {
+            return new SubSet<E>(m, minKey, minCmp, minIncl, maxKey, maxCmp, maxIncl, !descending);
+        }
+
+        //////// Serialization
+
+        private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException {
+            xi.defaultReadObject();
+
+            minCmp = minKey == null ? null : m.comparable(minKey);
+            maxCmp = maxKey == null ? null : m.comparable(maxKey);
+        }
+    }
+
+    //////// Serialization
+
+    /** Saves the state of the <code>SnapTreeSet</code> to a stream. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        // this handles the comparator, and any subclass stuff
+        xo.defaultWriteObject();
+
+        // by cloning the COWMgr, we get a frozen tree plus the size
+        final COWMgr<E> h = (COWMgr<E>) holderRef.clone();
+
+        xo.writeInt(h.size());
+        writeElement(xo, h.frozen().right);
+    }
+
+    private void writeElement(final ObjectOutputStream xo, final Node<E> node) throws IOException {
+        if (node != null) {
+            writeElement(xo, node.left);
+            if (node.isPresent()) {
+                xo.writeObject(node.key);
+            }
+            writeElement(xo, node.right);
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        final int size = xi.readInt();
+
+        final RootHolder<E> holder = new RootHolder<E>();
+        for (int i = 0; i < size; ++i) {
+            final E k = (E) xi.readObject();
+            updateUnderRoot(k, comparable(k), true, holder);
+        }
+
+        holderRef = new COWMgr<E>(holder, size);
+    }
+}
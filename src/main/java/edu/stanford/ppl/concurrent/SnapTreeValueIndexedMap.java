@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/** A {@link SnapTreeMap} that also maintains an index from values to keys,
+ *  so that {@link #containsValue} takes O(log n) time and {@link
+ *  #keysForValue} takes O((m + 1) log n) time for m matches, instead of
+ *  scanning the map.  Values are
+ *  matched using a value comparator (or their natural ordering) rather than
+ *  <code>equals</code>, just as keys are.
+ *
+ *  <p>This is a {@link SnapIndexedTable} whose only index is the value
+ *  itself, so the index is updated in the same mutation ticket as the
+ *  entry, and clones, snapshot iteration, and serialization see an index
+ *  that agrees exactly with the entries.  Value queries on the live map are
+ *  weakly consistent, as is <code>containsValue</code> for {@link
+ *  java.util.concurrent.ConcurrentSkipListMap}.  Each update of an entry's
+ *  value costs an extra removal and insertion in the index tree.
+ *
+ *  @author agent
+ */
+public class SnapTreeValueIndexedMap<K,V> extends SnapTreeMap<K,V> {
+    private static final long serialVersionUID = 3920177035478118270L;
+
+    private static class Identity<V> extends SnapIndexedTable.Index<V,V> {
+        private static final long serialVersionUID = 6171543093281540617L;
+
+        Identity(final Comparator<? super V> comparator) {
+            super(comparator);
+        }
+
+        public V keyOf(final V value) {
+            return value;
+        }
+    }
+
+    /** Constructs an empty map that uses the natural ordering of both keys
+     *  and values.
+     */
+    public SnapTreeValueIndexedMap() {
+        this(null, null);
+    }
+
+    /** Constructs an empty map that uses the natural ordering of keys, and
+     *  matches values using <code>valueComparator</code>.
+     */
+    public SnapTreeValueIndexedMap(final Comparator<? super V> valueComparator) {
+        this(null, valueComparator);
+    }
+
+    /** Constructs an empty map whose keys are ordered by
+     *  <code>comparator</code> and whose values are matched using
+     *  <code>valueComparator</code>.  Either may be null for natural
+     *  ordering.
+     */
+    public SnapTreeValueIndexedMap(final Comparator<? super K> comparator,
+                                   final Comparator<? super V> valueComparator) {
+        super(comparator, identityIndex(valueComparator));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> SnapIndexedTable.Index<? super V,?>[] identityIndex(final Comparator<? super V> valueComparator) {
+        return (SnapIndexedTable.Index<? super V,?>[]) new SnapIndexedTable.Index<?,?>[] { new Identity<V>(valueComparator) };
+    }
+
+    @Override
+    public SnapTreeValueIndexedMap<K,V> clone() {
+        return (SnapTreeValueIndexedMap<K,V>) super.clone();
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        return !indexLookup(0, value, true, value, true, 1).isEmpty();
+    }
+
+    /** Returns the keys that are mapped to <code>value</code>, in ascending
+     *  order.
+     */
+    public List<K> keysForValue(final V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        final List<K> result = new ArrayList<K>();
+        for (Map.Entry<K,V> e : indexLookup(0, value, true, value, true, Integer.MAX_VALUE)) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+
+/** A concurrent list backed by a radix-32 trie, with fast cloning,
+ *  snapshots, and consistent iteration.  Like {@link SnapTreeMap}, clone,
+ *  size, toArray, and iteration are linearizable (atomic), and the clone
+ *  shares structure with the original until one of them is modified.
+ *
+ *  <p>Reads by index are lock free.  Writers to a single instance are
+ *  serialized.  Appending, and adding or removing at index zero, are
+ *  amortized O(log<sub>32</sub> n); insertion or removal in the interior of
+ *  the list moves the shorter of the two sides of the list.  Null elements
+ *  are not permitted.
+ *
+ *  <p>Iterators traverse a snapshot of the list, so they never throw
+ *  <code>ConcurrentModificationException</code>.  They do not support
+ *  modification.
+ *
+ *  @author agent
+ */
+public class SnapVector<E> extends AbstractList<E> implements RandomAccess, Cloneable, Serializable {
+    private static final long serialVersionUID = -3867262911364526436L;
+
+    private transient volatile ArrayTrie.COWMgr holderRef;
+
+    public SnapVector() {
+        this.holderRef = new ArrayTrie.COWMgr();
+    }
+
+    public SnapVector(final Collection<? extends E> source) {
+        final ArrayTrie trie = new ArrayTrie();
+        int size = 0;
+        synchronized (trie) {
+            for (E e : source) {
+                trie.addLast(encode(e));
+                ++size;
+            }
+        }
+        this.holderRef = new ArrayTrie.COWMgr(trie, size);
+    }
+
+    private static Object encode(final Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SnapVector<E> clone() {
+        final SnapVector<E> copy;
+        try {
+            copy = (SnapVector<E>) super.clone();
+        } catch (final CloneNotSupportedException xx) {
+            throw new InternalError();
+        }
+        copy.holderRef = (ArrayTrie.COWMgr) holderRef.clone();
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return holderRef.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return holderRef.read().isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        holderRef = new ArrayTrie.COWMgr();
+    }
+
+    //////// reads
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(final int index) {
+        final E e = (E) holderRef.read().get(index, false);
+        if (e == null) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return e;
+    }
+
+    /** Returns the last element, or null if this list is empty. */
+    @SuppressWarnings("unchecked")
+    public E peekLast() {
+        return (E) holderRef.read().get(0, true);
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(final Object o) {
+        return o == null ? -1 : holderRef.frozen().indexOf(o, false);
+    }
+
+    @Override
+    public int lastIndexOf(final Object o) {
+        return o == null ? -1 : holderRef.frozen().indexOf(o, true);
+    }
+
+    //////// updates
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(final int index, final E element) {
+        final Object x = encode(element);
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                checkIndex(index, trie.size());
+                return (E) trie.set(index, x);
+            }
+        } finally {
+            ticket.leave(0);
+        }
+    }
+
+    @Override
+    public boolean add(final E element) {
+        final Object x = encode(element);
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                trie.addLast(x);
+                sd = 1;
+            }
+            return true;
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    @Override
+    public void add(final int index, final E element) {
+        final Object x = encode(element);
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                checkIndex(index, trie.size() + 1);
+                trie.insertAt(index, x);
+                sd = 1;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(final int index) {
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                checkIndex(index, trie.size());
+                final E prev = (E) trie.removeAt(index);
+                sd = -1;
+                return prev;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (o == null) {
+            return false;
+        }
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                final int i = trie.indexOf(o, false);
+                if (i < 0) {
+                    return false;
+                }
+                trie.removeAt(i);
+                sd = -1;
+                return true;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    /** Removes and returns the last element, or returns null if this list
+     *  is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        final Epoch.Ticket ticket = holderRef.beginMutation();
+        int sd = 0;
+        try {
+            final ArrayTrie trie = holderRef.mutable();
+            synchronized (trie) {
+                final E prev = (E) trie.pollLast();
+                if (prev != null) {
+                    sd = -1;
+                }
+                return prev;
+            }
+        } finally {
+            ticket.leave(sd);
+        }
+    }
+
+    private static void checkIndex(final int index, final int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (limit));
+        }
+    }
+
+    //////// iteration
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iter<E>(holderRef.frozen(), 0);
+    }
+
+    @Override
+    public ListIterator<E> listIterator() {
+        return new Iter<E>(holderRef.frozen(), 0);
+    }
+
+    @Override
+    public ListIterator<E> listIterator(final int index) {
+        final ArrayTrie frozen = holderRef.frozen();
+        if (index < 0 || index > frozen.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return new Iter<E>(frozen, index);
+    }
+
+    private static class Iter<E> implements ListIterator<E> {
+        private final ArrayTrie.Cursor cursor;
+
+        Iter(final ArrayTrie frozen, final int index) {
+            this.cursor = new ArrayTrie.Cursor(frozen, index);
+        }
+
+        public boolean hasNext() { return cursor.hasNext(); }
+        public boolean hasPrevious() { return cursor.hasPrevious(); }
+        public int nextIndex() { return cursor.nextIndex(); }
+        public int previousIndex() { return cursor.nextIndex() - 1; }
+
+        @SuppressWarnings("unchecked")
+        public E next() { return (E) cursor.next(); }
+
+        @SuppressWarnings("unchecked")
+        public E previous() { return (E) cursor.previous(); }
+
+        public void remove() { throw new UnsupportedOperationException(); }
+        public void set(final E e) { throw new UnsupportedOperationException(); }
+        public void add(final E e) { throw new UnsupportedOperationException(); }
+    }
+
+    //////// Serialization
+
+    /** Saves the state of the <code>SnapVector</code> to a stream. */
+    private void writeObject(final ObjectOutputStream xo) throws IOException {
+        xo.defaultWriteObject();
+
+        final ArrayTrie frozen = holderRef.frozen();
+        final int size = frozen.size();
+        xo.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            xo.writeObject(frozen.getQuiesced(i));
+        }
+    }
+
+    /** Reverses {@link #writeObject(ObjectOutputStream)}. */
+    private void readObject(final ObjectInputStream xi) throws IOException, ClassNotFoundException  {
+        xi.defaultReadObject();
+
+        final int size = xi.readInt();
+        final ArrayTrie trie = new ArrayTrie();
+        synchronized (trie) {
+            for (int i = 0; i < size; ++i) {
+                trie.addLast(encode(xi.readObject()));
+            }
+        }
+        holderRef = new ArrayTrie.COWMgr(trie, size);
+    }
+}
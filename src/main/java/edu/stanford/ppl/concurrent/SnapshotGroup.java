@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** A set of {@link SnapTreeMap}s that can be cloned together, so that the
+ *  clones are mutually consistent.  {@link #snapshotAll} returns a
+ *  {@link Snapshot} containing one clone per member, such that there is a
+ *  single instant at which every clone had exactly the contents of its
+ *  source.  A mutation to one member that happens before a mutation to
+ *  another member is therefore never visible in the snapshot without the
+ *  first.
+ *
+ *  <p>Like {@link SnapTreeMap#clone}, this does not stop writers while the
+ *  snapshot is copied.  Each member's current epoch is held open while
+ *  requests to freeze all of them are installed, so writers are delayed
+ *  only until the mutations already in progress on the members complete.
+ *  Members may be added and removed concurrently with snapshots, and a map
+ *  may belong to more than one group.
+ *
+ *  @author agent
+ */
+public class SnapshotGroup {
+
+    /** The mutually consistent clones returned by {@link #snapshotAll}. */
+    public static class Snapshot {
+        private final IdentityHashMap<SnapTreeMap<?,?>,SnapTreeMap<?,?>> clones;
+
+        Snapshot(final IdentityHashMap<SnapTreeMap<?,?>,SnapTreeMap<?,?>> clones) {
+            this.clones = clones;
+        }
+
+        /** Returns the clone of <code>member</code>, which has the same
+         *  class as <code>member</code>.
+         *  @throws IllegalArgumentException if <code>member</code> was not in
+         *          the group when the snapshot was taken
+         */
+        @SuppressWarnings("unchecked")
+        public <M extends SnapTreeMap<?,?>> M get(final M member) {
+            final SnapTreeMap<?,?> copy = clones.get(member);
+            if (copy == null) {
+                throw new IllegalArgumentException("not a member of the snapshot");
+            }
+            return (M) copy;
+        }
+
+        /** Returns the number of maps in the snapshot. */
+        public int size() {
+            return clones.size();
+        }
+    }
+
+    private final List<SnapTreeMap<?,?>> members = new CopyOnWriteArrayList<SnapTreeMap<?,?>>();
+
+    public SnapshotGroup() {
+    }
+
+    public SnapshotGroup(final SnapTreeMap<?,?>... maps) {
+        for (SnapTreeMap<?,?> m : maps) {
+            add(m);
+        }
+    }
+
+    /** Adds <code>map</code> to the group, returning false if it was already
+     *  a member.
+     */
+    public boolean add(final SnapTreeMap<?,?> map) {
+        if (map == null) {
+            throw new NullPointerException();
+        }
+        synchronized (members) {
+            if (indexOf(map) >= 0) {
+                return false;
+            }
+            members.add(map);
+            return true;
+        }
+    }
+
+    /** Removes <code>map</code> from the group, returning false if it was
+     *  not a member.
+     */
+    public boolean remove(final SnapTreeMap<?,?> map) {
+        synchronized (members) {
+            final int i = indexOf(map);
+            if (i < 0) {
+                return false;
+            }
+            members.remove(i);
+            return true;
+        }
+    }
+
+    /** Membership is by identity, since the maps' equality changes. */
+    private int indexOf(final SnapTreeMap<?,?> map) {
+        for (int i = 0; i < members.size(); ++i) {
+            if (members.get(i) == map) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /** Returns clones of all of the members of this group that are
+     *  consistent with each other.
+     */
+    public Snapshot snapshotAll() {
+        final Object[] maps = members.toArray();
+        final List<CopyOnWriteManager<?>> managers = new ArrayList<CopyOnWriteManager<?>>(maps.length);
+        for (Object m : maps) {
+            managers.add(((SnapTreeMap<?,?>) m).cowManager());
+        }
+
+        final List<CopyOnWriteManager<?>> copies = CopyOnWriteManager.cloneAll(managers);
+
+        final IdentityHashMap<SnapTreeMap<?,?>,SnapTreeMap<?,?>> clones
+                = new IdentityHashMap<SnapTreeMap<?,?>,SnapTreeMap<?,?>>();
+        for (int i = 0; i < maps.length; ++i) {
+            final SnapTreeMap<?,?> m = (SnapTreeMap<?,?>) maps[i];
+            clones.put(m, m.cloneWith(copies.get(i)));
+        }
+        return new Snapshot(clones);
+    }
+}
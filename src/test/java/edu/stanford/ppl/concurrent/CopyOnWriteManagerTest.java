@@ -142,6 +142,22 @@ public class CopyOnWriteManagerTest extends TestCase {
         assertEquals(10, copy.availableFrozen().size());
     }
 
+    public void testBoundedStaleness() {
+        final COWM m = new COWM(10);
+        final Payload s10 = m.frozen(Long.MAX_VALUE);
+        assertEquals(10, s10.size());
+        incr(m);
+        assertSame(s10, m.frozen(Long.MAX_VALUE));
+        final COWM copy = (COWM) m.clone(Long.MAX_VALUE);
+        assertEquals(10, copy.size());
+        assertEquals(10, copy.read().size());
+        assertEquals(11, m.frozen(0L).size());
+        // unbounded snapshots aren't recorded, so they don't refresh it
+        assertSame(s10, m.frozen(Long.MAX_VALUE));
+        incr(m);
+        assertEquals(12, m.frozen(1L).size());
+    }
+
     public void testParallel() {
         doParallel(1, 1000000);
         doParallel(2, 1000000);
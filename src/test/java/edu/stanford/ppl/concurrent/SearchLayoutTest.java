@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SearchLayoutTest extends TestCase {
+
+    private static final SearchLayout.KeyCodec<Integer> IntCodec = new SearchLayout.KeyCodec<Integer>() {
+        public long encode(final Integer key) {
+            return key;
+        }
+
+        public Integer decode(final long code) {
+            return (int) code;
+        }
+    };
+
+    public void testEmpty() {
+        final SearchLayout<Integer,String> a = new SnapTreeMap<Integer,String>().toSearchLayout();
+        assertTrue(a.isEmpty());
+        assertNull(a.get(0));
+        assertNull(a.floorKey(0));
+        assertNull(a.ceilingEntry(0));
+
+        final SearchLayout<Integer,String> b = new SnapTreeMap<Integer,String>().toSearchLayout(IntCodec);
+        assertEquals(0, b.size());
+        assertNull(b.getEncoded(0));
+        assertNull(b.higherKey(0));
+    }
+
+    public void testMatchesTreeMap() {
+        // cover sizes on both sides of each power of two
+        for (int size = 0; size < 70; ++size) {
+            checkAgainstTreeMap(size, null, null);
+            checkAgainstTreeMap(size, null, IntCodec);
+        }
+        checkAgainstTreeMap(10000, null, null);
+        checkAgainstTreeMap(10000, null, IntCodec);
+        checkAgainstTreeMap(1000, Collections.<Integer>reverseOrder(), null);
+    }
+
+    private void checkAgainstTreeMap(final int size,
+                                     final Comparator<Integer> comparator,
+                                     final SearchLayout.KeyCodec<Integer> codec) {
+        final Random rand = new Random(size);
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>(comparator);
+        final TreeMap<Integer,String> ref = new TreeMap<Integer,String>(comparator);
+        while (ref.size() < size) {
+            final int k = rand.nextInt(4 * size) - 2 * size;
+            m.put(k, "v" + k);
+            ref.put(k, "v" + k);
+        }
+        // routing nodes must not appear in the layout
+        for (int i = 0; i < size / 4; ++i) {
+            final int k = rand.nextInt(4 * size + 1) - 2 * size;
+            m.remove(k);
+            ref.remove(k);
+        }
+
+        final SearchLayout<Integer,String> layout = m.toSearchLayout(codec);
+        m.put(Integer.MAX_VALUE, "after");
+        assertEquals(ref.size(), layout.size());
+        assertNull(layout.get(Integer.MAX_VALUE));
+
+        for (int k = -2 * size - 2; k <= 2 * size + 2; ++k) {
+            assertEquals(ref.get(k), layout.get(k));
+            assertEquals(ref.floorKey(k), layout.floorKey(k));
+            assertEquals(ref.lowerKey(k), layout.lowerKey(k));
+            assertEquals(ref.ceilingKey(k), layout.ceilingKey(k));
+            assertEquals(ref.higherKey(k), layout.higherKey(k));
+            assertEquals(ref.floorEntry(k), layout.floorEntry(k));
+            assertEquals(ref.ceilingEntry(k), layout.ceilingEntry(k));
+            if (codec != null) {
+                assertEquals(ref.get(k), layout.getEncoded(k));
+                final Integer floor = ref.floorKey(k);
+                assertEquals(floor == null ? null : ref.get(floor), layout.floorValueEncoded(k));
+                final Integer ceiling = ref.ceilingKey(k);
+                assertEquals(ceiling == null ? null : ref.get(ceiling), layout.ceilingValueEncoded(k));
+            }
+        }
+    }
+
+    public void testExtremeComparisons() {
+        // compareTo results of Integer.MIN_VALUE and MAX_VALUE must not
+        // overflow the search
+        final SnapTreeMap<String,Integer> m = new SnapTreeMap<String,Integer>(new Comparator<String>() {
+            public int compare(final String lhs, final String rhs) {
+                final int c = lhs.compareTo(rhs);
+                return c < 0 ? Integer.MIN_VALUE : (c > 0 ? Integer.MAX_VALUE : 0);
+            }
+        });
+        m.put("b", 1);
+        m.put("d", 2);
+        final SearchLayout<String,Integer> layout = m.toSearchLayout();
+        assertEquals("b", layout.ceilingKey("a"));
+        assertEquals("d", layout.higherKey("b"));
+        assertEquals("b", layout.lowerKey("d"));
+        assertEquals("d", layout.floorKey("e"));
+        assertNull(layout.higherKey("d"));
+    }
+
+    public void testBadCodec() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.put(1, "a");
+        m.put(2, "b");
+        try {
+            m.toSearchLayout(new SearchLayout.KeyCodec<Integer>() {
+                public long encode(final Integer key) {
+                    return -key;
+                }
+
+                public Integer decode(final long code) {
+                    return (int) -code;
+                }
+            });
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+        try {
+            m.toSearchLayout().getEncoded(1);
+            fail();
+        } catch (final IllegalStateException xx) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ShardedSnapTreeMapTest extends TestCase {
+
+    public void testSplitsAsItGrows() {
+        final ShardedSnapTreeMap<Integer,Integer> m = new ShardedSnapTreeMap<Integer,Integer>(8);
+        assertEquals(1, m.shardCount());
+        for (int i = 0; i < 20000; ++i) {
+            m.put(i, -i);
+        }
+        m.rebalance();
+        assertEquals(8, m.shardCount());
+        assertEquals(20000, m.size());
+        for (int i = 0; i < 20000; ++i) {
+            assertEquals(-i, (int) m.get(i));
+        }
+        assertEquals(0, (int) m.firstKey());
+        assertEquals(19999, (int) m.lastKey());
+    }
+
+    public void testMatchesTreeMap() {
+        final ShardedSnapTreeMap<Integer,Integer> m = new ShardedSnapTreeMap<Integer,Integer>(4);
+        final TreeMap<Integer,Integer> ref = new TreeMap<Integer,Integer>();
+        final Random rand = new Random(0);
+        for (int i = 0; i < 50000; ++i) {
+            final int k = rand.nextInt(8000);
+            final int pct = rand.nextInt(100);
+            if (pct < 60) {
+                assertEquals(ref.put(k, i), m.put(k, i));
+            } else if (pct < 80) {
+                assertEquals(ref.remove(k), m.remove(k));
+            } else if (pct < 85) {
+                final Map.Entry<Integer,Integer> a = ref.pollFirstEntry();
+                final Map.Entry<Integer,Integer> b = m.pollFirstEntry();
+                assertEquals(a, b);
+            } else {
+                assertEquals(ref.lowerKey(k), m.lowerKey(k));
+                assertEquals(ref.floorKey(k), m.floorKey(k));
+                assertEquals(ref.ceilingKey(k), m.ceilingKey(k));
+                assertEquals(ref.higherKey(k), m.higherKey(k));
+            }
+        }
+        assertTrue(m.shardCount() > 1);
+        assertEquals(ref, m);
+        assertEquals(ref.size(), m.size());
+        assertEquals(ref.descendingMap(), m.descendingMap());
+
+        for (int i = 0; i < 100; ++i) {
+            final int lo = rand.nextInt(8000);
+            final int hi = lo + rand.nextInt(3000);
+            final boolean loIncl = rand.nextBoolean();
+            final boolean hiIncl = rand.nextBoolean();
+            final NavigableMap<Integer,Integer> expected = ref.subMap(lo, loIncl, hi, hiIncl);
+            final NavigableMap<Integer,Integer> actual = m.subMap(lo, loIncl, hi, hiIncl);
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected.firstEntry(), actual.firstEntry());
+            assertEquals(expected.lastEntry(), actual.lastEntry());
+            assertEquals(expected.descendingMap().higherKey(hi - 1), actual.descendingMap().higherKey(hi - 1));
+            if (hi - lo >= 2) {
+                final int mid = lo + (hi - lo) / 2;
+                assertEquals(expected.headMap(mid, true), actual.headMap(mid, true));
+                assertEquals(expected.descendingMap().headMap(mid, false), actual.descendingMap().headMap(mid, false));
+            }
+        }
+    }
+
+    public void testIteratorRemove() {
+        final ShardedSnapTreeMap<Integer,Integer> m = new ShardedSnapTreeMap<Integer,Integer>(4);
+        for (int i = 0; i < 10000; ++i) {
+            m.put(i, i);
+        }
+        m.rebalance();
+        final Iterator<Integer> iter = m.keySet().iterator();
+        int expected = 0;
+        while (iter.hasNext()) {
+            assertEquals(expected, (int) iter.next());
+            if (expected % 2 == 0) {
+                iter.remove();
+            }
+            ++expected;
+        }
+        assertEquals(10000, expected);
+        assertEquals(5000, m.size());
+        assertFalse(m.containsKey(0));
+        assertTrue(m.containsKey(9999));
+    }
+
+    /** A writer moves a token back and forth between keys at opposite ends
+     *  of the key space, which are in different shards.  Every clone must
+     *  see at least one copy.
+     */
+    public void testConsistentSnapshots() {
+        final ShardedSnapTreeMap<Integer,Integer> m = new ShardedSnapTreeMap<Integer,Integer>(4);
+        for (int i = 0; i < 8000; ++i) {
+            m.put(i, 0);
+        }
+        m.rebalance();
+        assertEquals(4, m.shardCount());
+        m.put(0, 1);
+
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        ParUtil.parallel(3, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                if (index == 0) {
+                    while (!done.get()) {
+                        final ShardedSnapTreeMap<Integer,Integer> copy = m.clone();
+                        if (copy.get(0) == 0 && copy.get(7999) == 0) {
+                            failed.set(true);
+                        }
+                    }
+                } else if (index == 1) {
+                    for (int i = 0; i < 20000; ++i) {
+                        // the token leaves one end only after it reached the other
+                        final int from = m.get(0) == 1 ? 0 : 7999;
+                        m.put(7999 - from, 1);
+                        m.put(from, 0);
+                    }
+                    done.set(true);
+                } else {
+                    while (!done.get()) {
+                        m.put(1 + rand.nextInt(7998), rand.nextInt());
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+    }
+
+    public void testParallelGrowth() {
+        final ShardedSnapTreeMap<Integer,Integer> m = new ShardedSnapTreeMap<Integer,Integer>(8);
+        final int numThreads = 4;
+        final int perThread = 10000;
+        final AtomicBoolean failed = new AtomicBoolean();
+        ParUtil.parallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                for (int i = 0; i < perThread; ++i) {
+                    final int k = i * numThreads + index;
+                    m.put(k, k);
+                    // entries moving between shards must never be missed
+                    if (m.get(k) == null || m.get(k / 2) == null && (k / 2) % numThreads == index) {
+                        failed.set(true);
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        assertTrue(m.shardCount() > 1);
+        assertEquals(numThreads * perThread, m.size());
+        int expected = 0;
+        for (Map.Entry<Integer,Integer> e : m.entrySet()) {
+            assertEquals(expected, (int) e.getKey());
+            ++expected;
+        }
+        assertEquals(numThreads * perThread, expected);
+    }
+
+    public void testCloneAndSerialization() throws Exception {
+        final ShardedSnapTreeMap<Integer,String> m = new ShardedSnapTreeMap<Integer,String>(4);
+        for (int i = 0; i < 5000; ++i) {
+            m.put(i, "x" + i);
+        }
+        final ShardedSnapTreeMap<Integer,String> copy = m.clone();
+        m.headMap(1000).clear();
+        assertEquals(4000, m.size());
+        assertEquals(5000, copy.size());
+        assertEquals("x10", copy.get(10));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(copy);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        final ShardedSnapTreeMap<Integer,String> deser = (ShardedSnapTreeMap<Integer,String>) xi.readObject();
+        assertEquals(copy, deser);
+        assertEquals(copy.shardCount(), deser.shardCount());
+    }
+}
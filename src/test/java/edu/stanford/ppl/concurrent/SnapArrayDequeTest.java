@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SnapArrayDequeTest extends TestCase {
+
+    public void testAgainstArrayDeque() {
+        final Random rand = new Random(0);
+        final SnapArrayDeque<Integer> d = new SnapArrayDeque<Integer>();
+        final Deque<Integer> ref = new ArrayDeque<Integer>();
+        for (int op = 0; op < 50000; ++op) {
+            final int pct = rand.nextInt(100);
+            if (pct < 30) {
+                d.addFirst(op);
+                ref.addFirst(op);
+            } else if (pct < 60) {
+                d.addLast(op);
+                ref.addLast(op);
+            } else if (pct < 75) {
+                assertEquals(ref.pollFirst(), d.pollFirst());
+            } else if (pct < 90) {
+                assertEquals(ref.pollLast(), d.pollLast());
+            } else if (pct < 95) {
+                assertEquals(ref.peekFirst(), d.peekFirst());
+                assertEquals(ref.peekLast(), d.peekLast());
+            } else {
+                final Integer x = op - rand.nextInt(100);
+                assertEquals(ref.removeFirstOccurrence(x), d.removeFirstOccurrence(x));
+            }
+            assertEquals(ref.size(), d.size());
+        }
+        assertEquals(new ArrayList<Integer>(ref), new ArrayList<Integer>(d));
+    }
+
+    public void testQueueDrains() {
+        final SnapArrayDeque<Integer> d = new SnapArrayDeque<Integer>();
+        for (int i = 0; i < 100000; ++i) {
+            d.offer(i);
+            if (i >= 10) {
+                assertEquals(i - 10, (int) d.poll());
+            }
+        }
+        assertEquals(10, d.size());
+        while (d.poll() != null) {
+        }
+        assertTrue(d.isEmpty());
+    }
+
+    public void testCloneAndIterate() {
+        final SnapArrayDeque<Integer> d = new SnapArrayDeque<Integer>();
+        for (int i = 0; i < 100; ++i) {
+            d.addFirst(i);
+        }
+        final SnapArrayDeque<Integer> copy = d.clone();
+        final Iterator<Integer> iter = d.descendingIterator();
+        while (!d.isEmpty()) {
+            d.pollLast();
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, (int) iter.next());
+        }
+        assertFalse(iter.hasNext());
+        assertEquals(100, copy.size());
+        assertEquals(99, (int) copy.peekFirst());
+    }
+
+    public void testParallel() {
+        final SnapArrayDeque<Integer> d = new SnapArrayDeque<Integer>();
+        final AtomicLong sum = new AtomicLong();
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                for (int i = 0; i < 20000; ++i) {
+                    if ((index & 1) == 0) {
+                        d.addLast(1);
+                    } else {
+                        d.addFirst(2);
+                    }
+                    if ((i & 7) == 0) {
+                        final Integer x = d.pollFirst();
+                        if (x != null) {
+                            sum.addAndGet(x);
+                        }
+                    }
+                }
+            }
+        });
+        long remaining = 0;
+        for (Integer x : d.clone()) {
+            remaining += x;
+        }
+        assertEquals(2 * 20000 * (1 + 2), sum.get() + remaining);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class SnapHashMapTest extends TestCase {
+
+    /** A key whose hash code is chosen by the test. */
+    static class Key {
+        final int id;
+        final int hash;
+
+        Key(final int id, final int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public void testAgainstHashMap() {
+        final Random rand = new Random(0);
+        final SnapHashMap<Key,Integer> m = new SnapHashMap<Key,Integer>();
+        final Map<Key,Integer> ref = new HashMap<Key,Integer>();
+        for (int op = 0; op < 100000; ++op) {
+            final int id = rand.nextInt(2000);
+            // lots of full and partial collisions
+            final Key k = new Key(id, id % 3 == 0 ? 42 : id * 1024);
+            final int pct = rand.nextInt(100);
+            if (pct < 50) {
+                assertEquals(ref.put(k, op), m.put(k, op));
+            } else if (pct < 80) {
+                assertEquals(ref.remove(k), m.remove(k));
+            } else {
+                assertEquals(ref.get(k), m.get(k));
+            }
+        }
+        assertEquals(ref.size(), m.size());
+        assertEquals(ref, m);
+        assertEquals(m, ref);
+    }
+
+    public void testEmptyAfterRemoval() {
+        final SnapHashMap<Integer,Integer> m = new SnapHashMap<Integer,Integer>();
+        for (int i = 0; i < 10000; ++i) {
+            m.put(i, i);
+        }
+        assertFalse(m.isEmpty());
+        for (int i = 0; i < 10000; ++i) {
+            assertEquals(i, (int) m.remove(i));
+        }
+        assertTrue(m.isEmpty());
+        assertEquals(0, m.size());
+    }
+
+    public void testCloneIsolation() {
+        final SnapHashMap<Integer,Integer> m = new SnapHashMap<Integer,Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i, i);
+        }
+        final SnapHashMap<Integer,Integer> copy = m.clone();
+        for (int i = 0; i < 1000; i += 2) {
+            m.remove(i);
+            copy.put(i, -i);
+        }
+        assertEquals(500, m.size());
+        assertEquals(1000, copy.size());
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(i % 2 == 0 ? null : (Integer) i, m.get(i));
+            assertEquals(i % 2 == 0 ? -i : i, (int) copy.get(i));
+        }
+    }
+
+    public void testParallelSnapshots() {
+        final SnapHashMap<Integer,Integer> m = new SnapHashMap<Integer,Integer>();
+        ParUtil.parallel(4, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 50000; ++op) {
+                    final int k = rand.nextInt(500);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 45) {
+                        m.put(k, k);
+                    } else if (pct < 90) {
+                        m.remove(k);
+                    } else if (pct < 95) {
+                        final SnapHashMap<Integer,Integer> copy = m.clone();
+                        int n = 0;
+                        for (Map.Entry<Integer,Integer> e : copy.entrySet()) {
+                            assertEquals(e.getKey(), e.getValue());
+                            ++n;
+                        }
+                        assertEquals(copy.size(), n);
+                    } else {
+                        m.get(k);
+                    }
+                }
+            }
+        });
+        assertEquals(m.size(), new HashMap<Integer,Integer>(m).size());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapIndexedTableTest extends TestCase {
+
+    static class Person implements java.io.Serializable {
+        final String name;
+        final int age;
+        final String city;
+
+        Person(final String name, final int age, final String city) {
+            this.name = name;
+            this.age = age;
+            this.city = city;
+        }
+    }
+
+    static final SnapIndexedTable.Index<Person,Integer> ByAge = new SnapIndexedTable.Index<Person,Integer>() {
+        public Integer keyOf(final Person row) {
+            return row.age;
+        }
+    };
+
+    /** Rows with no city are left out of this index. */
+    static final SnapIndexedTable.Index<Person,String> ByCity = new SnapIndexedTable.Index<Person,String>(
+            String.CASE_INSENSITIVE_ORDER) {
+        public String keyOf(final Person row) {
+            return row.city;
+        }
+    };
+
+    private static List<Integer> keys(final List<Map.Entry<Integer,Person>> entries) {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer,Person> e : entries) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    private static SnapIndexedTable<Integer,Person> newTable() {
+        final List<SnapIndexedTable.Index<? super Person,?>> indexes
+                = new ArrayList<SnapIndexedTable.Index<? super Person,?>>();
+        indexes.add(ByAge);
+        indexes.add(ByCity);
+        return new SnapIndexedTable<Integer,Person>(indexes);
+    }
+
+    public void testSelect() {
+        final SnapIndexedTable<Integer,Person> t = newTable();
+        t.put(1, new Person("ann", 30, "Paris"));
+        t.put(2, new Person("bob", 25, "paris"));
+        t.put(3, new Person("cy", 30, null));
+        t.put(4, new Person("di", 40, "Oslo"));
+
+        assertEquals(java.util.Arrays.asList(1, 3), keys(t.select(ByAge, 30)));
+        assertEquals(java.util.Arrays.asList(1, 2), keys(t.select(ByCity, "PARIS")));
+        assertEquals(java.util.Arrays.asList(2, 1, 3), keys(t.select(ByAge, 20, true, 30, true)));
+        assertEquals(java.util.Arrays.asList(1, 3, 4), keys(t.select(ByAge, 25, false, null, false)));
+        assertEquals(java.util.Arrays.asList(4, 1, 2), keys(t.select(ByCity, null, false, null, false)));
+        assertEquals("ann", t.selectFirst(ByAge, 30).getValue().name);
+        assertNull(t.selectFirst(ByAge, 31));
+
+        t.put(1, new Person("ann", 31, "Oslo"));
+        assertEquals(java.util.Arrays.asList(3), keys(t.select(ByAge, 30)));
+        assertEquals(java.util.Arrays.asList(1, 4), keys(t.select(ByCity, "oslo")));
+        t.remove(4);
+        assertEquals(java.util.Arrays.asList(1), keys(t.select(ByCity, "oslo")));
+        t.clear();
+        assertEquals(Collections.<Integer>emptyList(), keys(t.select(ByAge, 30)));
+    }
+
+    public void testUnknownIndex() {
+        final SnapIndexedTable<Integer,Person> t = newTable();
+        try {
+            t.select(new SnapIndexedTable.Index<Person,Integer>() {
+                public Integer keyOf(final Person row) {
+                    return 0;
+                }
+            }, 0);
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+    }
+
+    public void testCloneIsConsistent() {
+        final SnapIndexedTable<Integer,Person> t = newTable();
+        for (int i = 0; i < 100; ++i) {
+            t.put(i, new Person("p" + i, i % 10, "c" + (i % 3)));
+        }
+        final SnapIndexedTable<Integer,Person> snap = t.clone();
+        for (int i = 0; i < 100; i += 2) {
+            t.put(i, new Person("q" + i, 99, null));
+        }
+        assertEquals(10, snap.select(ByAge, 4).size());
+        assertEquals(50, t.select(ByAge, 99).size());
+        assertEquals(0, snap.select(ByAge, 99).size());
+        assertEquals(34, snap.select(ByCity, "c0").size());
+        assertEquals(17, t.select(ByCity, "c0").size());
+    }
+
+    /** Each thread owns the rows with its own primary keys, and checks its
+     *  own rows against the age index.
+     */
+    public void testParallel() {
+        final SnapIndexedTable<Integer,Person> t = newTable();
+        final int numThreads = 4;
+        ParUtil.parallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                final Map<Integer,Integer> ages = new TreeMap<Integer,Integer>();
+                for (int i = 0; i < 10000; ++i) {
+                    final int k = rand.nextInt(100) * numThreads + index;
+                    final int age = rand.nextInt(10);
+                    if (rand.nextInt(4) == 0) {
+                        t.remove(k);
+                        ages.remove(k);
+                    } else {
+                        t.put(k, new Person("p", age, rand.nextBoolean() ? "x" : null));
+                        ages.put(k, age);
+                    }
+                    if ((i % 16) == 0) {
+                        final List<Integer> found = new ArrayList<Integer>();
+                        for (Map.Entry<Integer,Person> e : t.select(ByAge, age)) {
+                            assertEquals(age, e.getValue().age);
+                            if ((e.getKey() % numThreads) == index) {
+                                found.add(e.getKey());
+                            }
+                        }
+                        final List<Integer> expected = new ArrayList<Integer>();
+                        for (Map.Entry<Integer,Integer> e : ages.entrySet()) {
+                            if (e.getValue() == age) {
+                                expected.add(e.getKey());
+                            }
+                        }
+                        assertEquals(expected, found);
+                    }
+                    if (index == 0 && (i % 128) == 0) {
+                        final SnapIndexedTable<Integer,Person> snap = t.clone();
+                        int total = 0;
+                        for (int a = 0; a < 10; ++a) {
+                            total += snap.select(ByAge, a).size();
+                        }
+                        assertEquals(snap.size(), total);
+                        int withCity = 0;
+                        for (Person p : snap.values()) {
+                            if (p.city != null) {
+                                ++withCity;
+                            }
+                        }
+                        assertEquals(withCity, snap.select(ByCity, "x").size());
+                    }
+                }
+            }
+        });
+    }
+}
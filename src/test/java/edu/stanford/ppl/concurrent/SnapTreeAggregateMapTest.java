@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapTreeAggregateMapTest extends TestCase {
+
+    private static final Aggregator<Integer,Long,Long> Sum = new Aggregator<Integer,Long,Long>() {
+        public Long identity() {
+            return 0L;
+        }
+
+        public Long lift(final Integer key, final Long value) {
+            return value;
+        }
+
+        public Long combine(final Long lhs, final Long rhs) {
+            return lhs + rhs;
+        }
+    };
+
+    /** Concatenation is associative but not commutative. */
+    private static final Aggregator<Integer,Long,String> Concat = new Aggregator<Integer,Long,String>() {
+        public String identity() {
+            return "";
+        }
+
+        public String lift(final Integer key, final Long value) {
+            return key + ",";
+        }
+
+        public String combine(final String lhs, final String rhs) {
+            return lhs + rhs;
+        }
+    };
+
+    private static long sum(final Map<Integer,Long> m) {
+        long result = 0;
+        for (Long v : m.values()) {
+            result += v;
+        }
+        return result;
+    }
+
+    private static String concat(final Map<Integer,Long> m) {
+        final StringBuilder sb = new StringBuilder();
+        for (Integer k : m.keySet()) {
+            sb.append(k).append(',');
+        }
+        return sb.toString();
+    }
+
+    public void testSumAgainstTreeMap() {
+        final Random rand = new Random(0);
+        final SnapTreeAggregateMap<Integer,Long,Long> m = new SnapTreeAggregateMap<Integer,Long,Long>(Sum);
+        final TreeMap<Integer,Long> ref = new TreeMap<Integer,Long>();
+        for (int op = 0; op < 50000; ++op) {
+            final int k = rand.nextInt(1000);
+            final int pct = rand.nextInt(100);
+            if (pct < 45) {
+                final long v = rand.nextInt(100);
+                assertEquals(ref.put(k, v), m.put(k, v));
+            } else if (pct < 80) {
+                assertEquals(ref.remove(k), m.remove(k));
+            } else {
+                final int to = k + rand.nextInt(200);
+                final boolean fi = rand.nextBoolean();
+                final boolean ti = rand.nextBoolean();
+                if (k == to && fi != ti) {
+                    // TreeMap rejects this empty range
+                    continue;
+                }
+                assertEquals(sum(ref.subMap(k, fi, to, ti)), (long) m.aggregate(k, fi, to, ti));
+                assertEquals(sum(ref.headMap(k, fi)), (long) m.headAggregate(k, fi));
+                assertEquals(sum(ref.tailMap(to, ti)), (long) m.tailAggregate(to, ti));
+            }
+        }
+        assertEquals(sum(ref), (long) m.aggregate());
+    }
+
+    public void testNonCommutative() {
+        final SnapTreeAggregateMap<Integer,Long,String> m = new SnapTreeAggregateMap<Integer,Long,String>(Concat);
+        final TreeMap<Integer,Long> ref = new TreeMap<Integer,Long>();
+        final Random rand = new Random(0);
+        for (int i = 0; i < 2000; ++i) {
+            final int k = rand.nextInt(500);
+            m.put(k, 0L);
+            ref.put(k, 0L);
+            if (i % 100 == 0) {
+                assertEquals(concat(ref.subMap(100, 300)), m.aggregate(100, 300));
+            }
+        }
+        assertEquals(concat(ref), m.aggregate());
+    }
+
+    public void testSnapshotIsolation() {
+        final SnapTreeAggregateMap<Integer,Long,Long> m = new SnapTreeAggregateMap<Integer,Long,Long>(Sum);
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i, 1L);
+        }
+        assertEquals(1000L, (long) m.aggregate());
+        final SnapTreeAggregateMap<Integer,Long,Long> copy = m.clone();
+        for (int i = 0; i < 1000; i += 2) {
+            m.put(i, 3L);
+        }
+        assertEquals(2000L, (long) m.aggregate());
+        assertEquals(1000L, (long) copy.aggregate());
+        assertEquals(100L, (long) copy.aggregate(0, 100));
+        assertEquals(200L, (long) m.aggregate(0, 100));
+    }
+
+    public void testParallelSnapshots() {
+        final SnapTreeAggregateMap<Integer,Long,Long> m = new SnapTreeAggregateMap<Integer,Long,Long>(Sum);
+        ParUtil.parallel(4, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 20000; ++op) {
+                    final int k = rand.nextInt(1000);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 45) {
+                        m.put(k, (long) k);
+                    } else if (pct < 90) {
+                        m.remove(k);
+                    } else {
+                        final SnapTreeAggregateMap<Integer,Long,Long> copy = m.clone();
+                        assertEquals(sum(copy.subMap(k, k + 100)), (long) copy.aggregate(k, k + 100));
+                    }
+                }
+            }
+        });
+        assertEquals(sum(m), (long) m.aggregate());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SnapTreeAppendTest extends TestCase {
+
+    public void testSequential() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < 10000; ++i) {
+            assertNull(m.put(i, -i));
+            expected.put(i, -i);
+        }
+        assertEquals(expected, m);
+        assertEquals(expected.firstKey(), m.firstKey());
+        assertEquals(expected.lastKey(), m.lastKey());
+    }
+
+    public void testMixedWithRemovesAndSnapshots() {
+        final Random rand = new Random(0);
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        int next = 0;
+        NavigableMap<Integer,Integer> snap = null;
+        Map<Integer,Integer> snapExpected = null;
+        for (int i = 0; i < 20000; ++i) {
+            final int r = rand.nextInt(100);
+            if (r < 60) {
+                next += 1 + rand.nextInt(3);
+                assertEquals(expected.put(next, i), m.put(next, i));
+            } else if (r < 70) {
+                assertEquals(expected.pollLastEntry(), m.pollLastEntry());
+            } else if (r < 80) {
+                final int k = rand.nextInt(next + 2);
+                assertEquals(expected.remove(k), m.remove(k));
+            } else if (r < 90) {
+                final int k = rand.nextInt(next + 2);
+                assertEquals(expected.put(k, i), m.put(k, i));
+            } else if (r < 95) {
+                snap = m.clone();
+                snapExpected = new TreeMap<Integer,Integer>(expected);
+            } else {
+                // appends may reuse a key that was larger than everything
+                next = expected.isEmpty() ? 0 : expected.lastKey();
+            }
+        }
+        assertEquals(expected, m);
+        if (snap != null) {
+            assertEquals(snapExpected, snap);
+        }
+    }
+
+    public void testAppendAfterClone() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < 100; ++i) {
+            m.put(i, i);
+        }
+        final SnapTreeMap<Integer,Integer> copy = m.clone();
+        for (int i = 100; i < 200; ++i) {
+            m.put(i, i);
+            copy.put(i, -i);
+        }
+        assertEquals(200, m.size());
+        assertEquals(200, copy.size());
+        for (int i = 100; i < 200; ++i) {
+            assertEquals(i, (int) m.get(i));
+            assertEquals(-i, (int) copy.get(i));
+        }
+    }
+
+    public void testParallelAppends() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final AtomicInteger next = new AtomicInteger();
+        final int numThreads = 4;
+        final int perThread = 20000;
+        ParUtil.parallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                for (int i = 0; i < perThread; ++i) {
+                    final int k = next.getAndIncrement();
+                    m.put(k, index);
+                    if (index == 0 && (i % 8) == 0) {
+                        m.pollLastEntry();
+                    }
+                    if (index == 1 && (i % 64) == 0) {
+                        m.clone();
+                    }
+                }
+            }
+        });
+        // thread 0 removed at most one entry per poll
+        final int total = numThreads * perThread;
+        assertTrue(m.size() >= total - (perThread + 7) / 8);
+        final int size = m.size();
+        int count = 0;
+        int prev = -1;
+        Map.Entry<Integer,Integer> e;
+        while ((e = m.pollFirstEntry()) != null) {
+            assertTrue(e.getKey() > prev);
+            prev = e.getKey();
+            ++count;
+        }
+        assertEquals(size, count);
+    }
+
+    public void testAppendToAggregateMap() {
+        final SnapTreeAggregateMap<Integer,Long,Long> m = new SnapTreeAggregateMap<Integer,Long,Long>(
+                new Aggregator<Integer,Long,Long>() {
+                    public Long identity() {
+                        return 0L;
+                    }
+
+                    public Long lift(final Integer key, final Long value) {
+                        return value;
+                    }
+
+                    public Long combine(final Long lhs, final Long rhs) {
+                        return lhs + rhs;
+                    }
+                });
+        long sum = 0;
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i, (long) i);
+            sum += i;
+            if ((i % 37) == 0) {
+                assertEquals(sum, (long) m.aggregate());
+                assertEquals(sum - i, (long) m.headAggregate(i, false));
+            }
+        }
+        assertEquals(sum, (long) m.aggregate());
+    }
+}
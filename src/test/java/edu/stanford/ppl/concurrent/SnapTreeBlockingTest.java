@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Exercises the paths on which SnapTreeMap threads block, with many more
+ *  threads than processors.
+ */
+public class SnapTreeBlockingTest extends TestCase {
+
+    public void testManyThreadsOneMap() {
+        for (int numThreads = 64; numThreads <= 256; numThreads *= 4) {
+            runManyThreads(numThreads, 40000 / numThreads);
+        }
+    }
+
+    /** Every thread hammers the same node, so most of them end up parked in
+     *  the slow path of the node lock.  A lost wakeup leaves a thread parked
+     *  forever, which the join timeout catches.
+     */
+    public void testManyThreadsOneNode() throws InterruptedException {
+        final int numThreads = 128;
+        final int opsPerThread = 2000;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.put(0, 0);
+        final AtomicInteger done = new AtomicInteger();
+        final Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            threads[i] = new Thread("worker #" + i) {
+                @Override
+                public void run() {
+                    for (int j = 0; j < opsPerThread; ++j) {
+                        while (true) {
+                            final Integer v = m.get(0);
+                            if (m.replace(0, v, v + 1)) {
+                                break;
+                            }
+                        }
+                    }
+                    done.incrementAndGet();
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        final long deadline = System.currentTimeMillis() + 120000L;
+        for (Thread t : threads) {
+            t.join(Math.max(1L, deadline - System.currentTimeMillis()));
+        }
+        assertEquals("threads stuck in the node lock", numThreads, done.get());
+        assertEquals(numThreads * opsPerThread, (int) m.get(0));
+        assertEquals(0, OVLNode.lockWaiterQueues());
+    }
+
+    /** Every thread increments counters under a few keys, mostly with
+     *  transactions and sometimes with plain CAS, while some of them clone.
+     *  The counters must add up, whatever the blocking.
+     */
+    private void runManyThreads(final int numThreads, final int opsPerThread) {
+        final int numKeys = 32;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int k = 0; k < numKeys; ++k) {
+            m.put(k, 0);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        final long elapsed = ParUtil.timeParallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                if ((index & 7) == 0) {
+                    // blocking must not lose or swallow an interrupt
+                    Thread.currentThread().interrupt();
+                }
+                final Random rand = new Random(index);
+                for (int i = 0; i < opsPerThread; ++i) {
+                    final int a = rand.nextInt(numKeys);
+                    final int b = rand.nextInt(numKeys);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 70) {
+                        m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Object>() {
+                            public Object run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                                tx.put(a, tx.get(a) + 1);
+                                tx.put(b, tx.get(b) + 1);
+                                return null;
+                            }
+                        });
+                    } else if (pct < 95) {
+                        while (true) {
+                            final Integer v = m.get(a);
+                            if (m.replace(a, v, v + 2)) {
+                                break;
+                            }
+                        }
+                    } else {
+                        int sum = 0;
+                        for (int v : m.clone().values()) {
+                            sum += v;
+                        }
+                        if (sum % 2 != 0) {
+                            failed.set(true);
+                        }
+                    }
+                }
+                if ((index & 7) == 0 && !Thread.interrupted()) {
+                    failed.set(true);
+                }
+            }
+        });
+
+        assertFalse(failed.get());
+        int sum = 0;
+        for (int v : m.values()) {
+            sum += v;
+        }
+        assertEquals(0, sum % 2);
+        System.out.println("manyThreads    numThreads " + numThreads + "    opsPerThread " + opsPerThread + "    " +
+                "elapsedMillis " + elapsed + "    opsPerSec " + numThreads * 1000L * opsPerThread / Math.max(1L, elapsed));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SnapTreeBloomFilterTest extends TestCase {
+
+    /** Waits for a background filter build to bring the capacity of
+     *  <code>m</code>'s filter into the given range.
+     */
+    private static void awaitCapacity(final SnapTreeMap<Integer,?> m, final int min, final int max) {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!(m.bloomFilterCapacity() >= min && m.bloomFilterCapacity() < max)
+                && System.currentTimeMillis() < deadline) {
+            // reads schedule a build if none is pending
+            m.get(0);
+            Thread.yield();
+        }
+        assertTrue(m.bloomFilterCapacity() >= min && m.bloomFilterCapacity() < max);
+    }
+
+    public void testDisabledByDefault() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        assertNull(m.getBloomFilter());
+        m.put(1, "a");
+        assertEquals("a", m.get(1));
+        assertEquals(0, m.bloomFilterCapacity());
+    }
+
+    public void testMatchesTreeMap() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> ref = new TreeMap<Integer,Integer>();
+        final Random rand = new Random(0);
+        for (int i = 0; i < 5000; ++i) {
+            final int k = rand.nextInt(10000);
+            m.put(k, i);
+            ref.put(k, i);
+        }
+        // enabling the filter on a populated map builds it from a snapshot
+        m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        assertSame(SnapTreeMap.HashCodeHasher, m.getBloomFilter());
+        assertTrue(m.bloomFilterCapacity() >= 5000);
+
+        for (int i = 0; i < 100000; ++i) {
+            final int k = rand.nextInt(10000);
+            final int pct = rand.nextInt(100);
+            if (pct < 30) {
+                assertEquals(ref.put(k, i), m.put(k, i));
+            } else if (pct < 50) {
+                assertEquals(ref.remove(k), m.remove(k));
+            } else if (pct < 52) {
+                assertEquals(ref.pollFirstEntry(), m.pollFirstEntry());
+            } else if (pct < 55) {
+                assertEquals(ref.get(k), m.putIfAbsent(k, i));
+                if (!ref.containsKey(k)) {
+                    ref.put(k, i);
+                }
+            } else {
+                assertEquals(ref.get(k), m.get(k));
+                assertEquals(ref.containsKey(k), m.containsKey(k));
+            }
+        }
+        assertEquals(ref, m);
+
+        m.clear();
+        // clearing rebuilds the filter immediately
+        assertTrue(m.bloomFilterCapacity() > 0);
+        assertNull(m.get(ref.firstKey()));
+        m.put(3, 3);
+        assertEquals(3, (int) m.get(3));
+
+        m.setBloomFilter(null);
+        assertEquals(0, m.bloomFilterCapacity());
+        assertEquals(3, (int) m.get(3));
+    }
+
+    public void testResize() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        final int initial = m.bloomFilterCapacity();
+        assertTrue(initial > 0);
+        for (int i = 0; i < 100000; ++i) {
+            m.put(i, i);
+        }
+        awaitCapacity(m, 50000, Integer.MAX_VALUE);
+        for (int i = 0; i < 100000; ++i) {
+            assertEquals(i, (int) m.get(i));
+        }
+        for (int i = 0; i < 99900; ++i) {
+            m.remove(i);
+        }
+        awaitCapacity(m, 1, 50000);
+        for (int i = 99900; i < 100000; ++i) {
+            assertEquals(i, (int) m.get(i));
+        }
+    }
+
+    public void testCloneBuildsItsOwnFilter() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i, "v" + i);
+        }
+        final SnapTreeMap<Integer,String> copy = m.clone();
+        assertSame(SnapTreeMap.HashCodeHasher, copy.getBloomFilter());
+        m.remove(10);
+        copy.put(2000, "x");
+        assertEquals("v10", copy.get(10));
+        awaitCapacity(copy, 1, Integer.MAX_VALUE);
+        assertNull(m.get(10));
+        assertNull(m.get(2000));
+        assertEquals("x", copy.get(2000));
+        copy.remove(20);
+        assertEquals("v20", m.get(20));
+        assertNull(copy.get(20));
+    }
+
+    public void testOrderingConsistentHasher() {
+        final SnapTreeMap<String,Integer> m = new SnapTreeMap<String,Integer>(String.CASE_INSENSITIVE_ORDER);
+        m.setBloomFilter(new SnapTreeMap.KeyHasher<String>() {
+            public int hash(final String key) {
+                return key.toLowerCase().hashCode();
+            }
+        });
+        m.put("Hello", 1);
+        assertEquals(1, (int) m.get("HELLO"));
+        assertTrue(m.containsKey("hello"));
+        assertNull(m.get("world"));
+    }
+
+    public void testTransactions() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        m.put(1, 1);
+        m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Object>() {
+            public Object run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                tx.put(2, tx.remove(1));
+                return null;
+            }
+        });
+        assertNull(m.get(1));
+        assertEquals(1, (int) m.get(2));
+    }
+
+    /** A writer inserts increasing keys and publishes the last one, so a
+     *  reader that misses a published key has seen a false negative.
+     *  Removing old keys makes the filter shrink and rebuild while readers
+     *  and the writer are running.
+     */
+    public void testNoFalseNegatives() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        final AtomicInteger last = new AtomicInteger(-1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                if (index == 0) {
+                    for (int i = 0; i < 200000; ++i) {
+                        m.put(i, i);
+                        last.set(i);
+                        if (i >= 30000) {
+                            m.remove(i - 30000);
+                        }
+                        if (i % 50000 == 0) {
+                            m.clone();
+                        }
+                    }
+                    done.set(true);
+                } else if (index == 1) {
+                    // transient keys far from the others
+                    while (!done.get()) {
+                        final int k = -1 - rand.nextInt(1000);
+                        m.put(k, k);
+                        if (m.get(k) == null) {
+                            failed.set(true);
+                        }
+                        m.remove(k);
+                    }
+                } else {
+                    while (!done.get()) {
+                        final int k = last.get();
+                        if (k >= 0 && !m.containsKey(k)) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        for (Map.Entry<Integer,Integer> e : m.entrySet()) {
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+        assertEquals(30000, m.size());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapTreeBytesMapTest extends TestCase {
+
+    /** The obvious unsigned lexicographic order. */
+    private static final Comparator<byte[]> Reference = new Comparator<byte[]>() {
+        public int compare(final byte[] lhs, final byte[] rhs) {
+            for (int i = 0; i < lhs.length && i < rhs.length; ++i) {
+                final int c = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return lhs.length - rhs.length;
+        }
+    };
+
+    /** Returns a key that often shares a long prefix with other keys, and
+     *  whose bytes are often 0, 0x7f, 0x80, or 0xff.
+     */
+    private static byte[] randomKey(final Random rand) {
+        final byte[] key = new byte[rand.nextInt(20)];
+        final int common = rand.nextInt(key.length + 1);
+        for (int i = 0; i < key.length; ++i) {
+            if (i < common) {
+                key[i] = (byte) (i * 37);
+            } else {
+                switch (rand.nextInt(5)) {
+                    case 0: key[i] = 0; break;
+                    case 1: key[i] = 0x7f; break;
+                    case 2: key[i] = (byte) 0x80; break;
+                    case 3: key[i] = (byte) 0xff; break;
+                    default: key[i] = (byte) rand.nextInt(); break;
+                }
+            }
+        }
+        return key;
+    }
+
+    public void testMatchesTreeMap() {
+        final SnapTreeBytesMap<Integer> m = new SnapTreeBytesMap<Integer>();
+        final TreeMap<byte[],Integer> ref = new TreeMap<byte[],Integer>(Reference);
+        final Random rand = new Random(0);
+        for (int i = 0; i < 50000; ++i) {
+            final byte[] key = randomKey(rand);
+            final int pct = rand.nextInt(100);
+            if (pct < 50) {
+                assertEquals(ref.put(key, i), m.put(key, i));
+            } else if (pct < 70) {
+                assertEquals(ref.remove(key), m.remove(key));
+            } else {
+                assertEquals(ref.get(key), m.get(key));
+                assertEquals(ref.containsKey(key), m.containsKey(key));
+                final Map.Entry<byte[],Integer> a = ref.ceilingEntry(key);
+                final Map.Entry<byte[],Integer> b = m.ceilingEntry(key);
+                assertEquals(a == null, b == null);
+                if (a != null) {
+                    assertEquals(a.getValue(), b.getValue());
+                }
+            }
+        }
+        assertEquals(ref.size(), m.size());
+        int n = 0;
+        byte[] prev = null;
+        for (byte[] key : m.keySet()) {
+            assertEquals(ref.get(key), m.get(key));
+            if (prev != null) {
+                assertTrue(Reference.compare(prev, key) < 0);
+            }
+            prev = key;
+            ++n;
+        }
+        assertEquals(ref.size(), n);
+    }
+
+    public void testBufferLookups() {
+        final SnapTreeBytesMap<String> m = new SnapTreeBytesMap<String>();
+        final Random rand = new Random(1);
+        final byte[][] keys = new byte[1000][];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = randomKey(rand);
+            m.put(keys[i], "v" + i);
+        }
+
+        final ByteBuffer heap = ByteBuffer.allocate(64);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < keys.length; ++i) {
+            final String expected = m.get(keys[i]);
+            for (ByteBuffer buf : new ByteBuffer[] { heap, direct }) {
+                // the key is in the middle of the buffer, between junk
+                buf.clear();
+                buf.put((byte) 0x55);
+                buf.put(keys[i]);
+                buf.put((byte) 0x66);
+                buf.position(1).limit(1 + keys[i].length);
+                final ByteBuffer slice = rand.nextBoolean() ? buf : buf.slice();
+                assertEquals(expected, m.get(slice));
+                assertEquals(expected, m.get(slice.asReadOnlyBuffer()));
+                assertTrue(m.containsKey(slice));
+                assertEquals(1 + keys[i].length, buf.limit());
+            }
+        }
+
+        final ByteBuffer absent = ByteBuffer.wrap(new byte[] { 9, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, 1, 9);
+        if (!m.containsKey(absent)) {
+            assertNull(m.put(absent, "new"));
+            assertEquals(1, absent.position());
+            assertEquals("new", m.get(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+            assertEquals("new", m.remove(absent));
+            assertFalse(m.containsKey(absent));
+        }
+    }
+
+    public void testShortAndEmptyKeys() {
+        final SnapTreeBytesMap<Integer> m = new SnapTreeBytesMap<Integer>();
+        // keys that differ only after the cached prefix, or in length
+        final byte[][] keys = {
+            {},
+            { 0 },
+            { 0, 0 },
+            { 1, 2, 3, 4, 5, 6, 7, 8 },
+            { 1, 2, 3, 4, 5, 6, 7, 8, 0 },
+            { 1, 2, 3, 4, 5, 6, 7, 8, 1 },
+            { 1, 2, 3, 4, 5, 6, 7, 9 },
+            { (byte) 0x80 },
+            { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff },
+            { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 },
+        };
+        for (int i = keys.length - 1; i >= 0; --i) {
+            m.put(keys[i], i);
+        }
+        int i = 0;
+        for (Map.Entry<byte[],Integer> e : m.entrySet()) {
+            assertSame(keys[i], e.getKey());
+            assertEquals(i, (int) e.getValue());
+            ++i;
+        }
+        assertEquals(keys.length, i);
+        assertEquals(0, (int) m.get(new byte[0]));
+        assertEquals(4, (int) m.get(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0 }));
+        assertNull(m.get(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0, 0 }));
+    }
+
+    public void testCloneSerializationAndOptions() throws Exception {
+        final SnapTreeBytesMap<Integer> m = new SnapTreeBytesMap<Integer>();
+        m.setBloomFilter(SnapTreeBytesMap.BytesHasher);
+        m.setReadOptimized(true);
+        for (int i = 0; i < 5000; ++i) {
+            m.put(("key" + i).getBytes("UTF-8"), i);
+        }
+        for (int i = 0; i < 5000; ++i) {
+            assertEquals(i, (int) m.get(ByteBuffer.wrap(("key" + i).getBytes("UTF-8"))));
+            assertNull(m.get(ByteBuffer.wrap(("nokey" + i).getBytes("UTF-8"))));
+        }
+
+        final SnapTreeBytesMap<Integer> copy = m.clone();
+        m.remove("key10".getBytes("UTF-8"));
+        assertEquals(10, (int) copy.get("key10".getBytes("UTF-8")));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(copy);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        final SnapTreeBytesMap<Integer> deser = (SnapTreeBytesMap<Integer>) xi.readObject();
+        assertEquals(5000, deser.size());
+        assertEquals(10, (int) deser.get(ByteBuffer.wrap("key10".getBytes("UTF-8"))));
+        assertEquals(4999, (int) deser.get("key4999".getBytes("UTF-8")));
+    }
+}
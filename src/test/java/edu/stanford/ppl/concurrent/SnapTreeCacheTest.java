@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapTreeCacheTest extends TestCase {
+
+    private static final SnapTreeCache.Weigher<Integer,String> LengthWeigher = new SnapTreeCache.Weigher<Integer,String>() {
+        public int weigh(final Integer key, final String value) {
+            return value.length();
+        }
+    };
+
+    private static long totalWeight(final Map<Integer,String> m) {
+        long sum = 0;
+        for (String v : m.values()) {
+            sum += v.length();
+        }
+        return sum;
+    }
+
+    public void testSampleEntry() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final Random rand = new Random(0);
+        assertNull(m.sampleEntry(rand));
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i, -i);
+        }
+        // routing nodes must never be returned
+        for (int i = 0; i < 1000; i += 3) {
+            m.remove(i);
+        }
+        final int[] hits = new int[10];
+        for (int i = 0; i < 100000; ++i) {
+            final Map.Entry<Integer,Integer> e = m.sampleEntry(rand);
+            assertEquals(-e.getKey(), (int) e.getValue());
+            assertTrue(m.containsKey(e.getKey()));
+            ++hits[e.getKey() / 100];
+        }
+        // every tenth of the key space gets a fair share
+        for (int h : hits) {
+            assertTrue(h > 5000 && h < 15000);
+        }
+    }
+
+    public void testSizeBound() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(100);
+        assertEquals(100, c.getMaximumWeight());
+        for (int i = 0; i < 10000; ++i) {
+            c.put(i, "x" + i);
+            assertTrue(c.size() <= 100 + 1024);
+        }
+        c.cleanUp();
+        assertTrue(c.size() <= 100);
+        assertTrue(c.size() >= 90);
+        assertEquals(c.size(), c.weightedSize());
+        for (Map.Entry<Integer,String> e : c.entrySet()) {
+            assertEquals("x" + e.getKey(), e.getValue());
+        }
+    }
+
+    public void testFrequentEntriesSurvive() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(200);
+        for (int i = 0; i < 100; ++i) {
+            c.put(i, "hot");
+        }
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("hot", c.get(i));
+            }
+        }
+        // a scan of keys that are each used once, while the hot entries
+        // are still in use
+        for (int i = 1000; i < 11000; ++i) {
+            c.put(i, "cold");
+            if (i % 5 == 0) {
+                c.get((i / 5) % 100);
+            }
+        }
+        c.cleanUp();
+        int survivors = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (c.containsKey(i)) {
+                ++survivors;
+            }
+        }
+        assertTrue("only " + survivors + " hot entries survived", survivors >= 90);
+        assertTrue(c.size() <= 200);
+    }
+
+    public void testWeigher() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(null, 1000, LengthWeigher);
+        final Random rand = new Random(0);
+        for (int i = 0; i < 5000; ++i) {
+            final int k = rand.nextInt(500);
+            final String v = "abcdefghijklmnopqrstuvwxyz".substring(rand.nextInt(26));
+            switch (rand.nextInt(5)) {
+                case 0: c.remove(k); break;
+                case 1: c.replace(k, v); break;
+                case 2: c.putIfAbsent(k, v); break;
+                default: c.put(k, v); break;
+            }
+            assertEquals(totalWeight(c.snapshot()), c.weightedSize());
+        }
+        c.cleanUp();
+        assertTrue(c.weightedSize() <= 1000);
+
+        // an entry heavier than the bound is evicted at once
+        c.put(-1, new String(new char[2000]));
+        c.cleanUp();
+        assertFalse(c.containsKey(-1));
+        assertEquals(totalWeight(c.snapshot()), c.weightedSize());
+
+        c.clear();
+        assertTrue(c.isEmpty());
+        assertEquals(0, c.weightedSize());
+    }
+
+    public void testMapOperations() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(null, 100, LengthWeigher);
+        assertNull(c.putIfAbsent(1, "a"));
+        assertEquals("a", c.putIfAbsent(1, "bb"));
+        assertEquals(1, c.weightedSize());
+        assertNull(c.replace(2, "bb"));
+        assertEquals("a", c.replace(1, "ccc"));
+        assertEquals(3, c.weightedSize());
+        assertFalse(c.replace(1, "a", "dd"));
+        assertTrue(c.replace(1, "ccc", "dd"));
+        assertEquals(2, c.weightedSize());
+        assertFalse(c.remove(1, "ccc"));
+        assertTrue(c.remove(1, "dd"));
+        assertEquals(0, c.weightedSize());
+        assertNull(c.remove(1));
+        try {
+            c.put(1, null);
+            fail();
+        } catch (final NullPointerException xx) {
+            // expected
+        }
+    }
+
+    /** Equal if their names are, whatever their sizes. */
+    private static final class Blob {
+        final String name;
+        final int size;
+
+        Blob(final String name, final int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Blob && ((Blob) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    public void testEqualValuesOfDifferentWeight() {
+        final SnapTreeCache<Integer,Blob> c = new SnapTreeCache<Integer,Blob>(null, 1000,
+                new SnapTreeCache.Weigher<Integer,Blob>() {
+                    public int weigh(final Integer key, final Blob value) {
+                        return value.size;
+                    }
+                });
+        c.put(1, new Blob("a", 10));
+        c.put(2, new Blob("b", 20));
+        assertEquals(30, c.weightedSize());
+
+        // the stored value's weight is replaced, not the argument's
+        assertTrue(c.replace(1, new Blob("a", 1), new Blob("c", 5)));
+        assertEquals(25, c.weightedSize());
+        assertFalse(c.replace(1, new Blob("a", 10), new Blob("d", 5)));
+        assertEquals(25, c.weightedSize());
+
+        assertTrue(c.remove(2, new Blob("b", 99)));
+        assertEquals(5, c.weightedSize());
+        assertFalse(c.remove(1, new Blob("a", 5)));
+        assertTrue(c.remove(1, new Blob("c", 0)));
+        assertEquals(0, c.weightedSize());
+    }
+
+    public void testNavigationAndSnapshots() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(1000);
+        for (int i = 0; i < 100; i += 2) {
+            c.put(i, "v" + i);
+        }
+        assertEquals(0, (int) c.firstKey());
+        assertEquals(98, (int) c.lastKey());
+        assertEquals(10, (int) c.floorKey(11));
+        assertEquals(12, (int) c.ceilingKey(11));
+        assertEquals(8, (int) c.lowerKey(10));
+        assertEquals(12, (int) c.higherKey(10));
+        assertEquals("v10", c.floorEntry(10).getValue());
+        assertNull(c.higherEntry(98));
+
+        final SnapTreeMap<Integer,String> snap = c.snapshot();
+        c.put(1, "new");
+        c.remove(0);
+        assertEquals(50, snap.size());
+        assertEquals(10, snap.subMap(20, 40).size());
+        assertFalse(snap.containsKey(1));
+        assertEquals("v0", snap.get(0));
+
+        // iteration is over a snapshot, and remove goes through the cache
+        final Iterator<Map.Entry<Integer,String>> iter = c.entrySet().iterator();
+        c.put(3, "later");
+        int n = 0;
+        while (iter.hasNext()) {
+            final Map.Entry<Integer,String> e = iter.next();
+            assertFalse(e.getKey() == 3);
+            iter.remove();
+            ++n;
+        }
+        assertEquals(50, n);
+        assertEquals(1, c.size());
+        assertEquals(1, c.weightedSize());
+        assertEquals("later", c.get(3));
+    }
+
+    public void testParallel() {
+        final SnapTreeCache<Integer,String> c = new SnapTreeCache<Integer,String>(null, 5000, LengthWeigher);
+        final AtomicBoolean failed = new AtomicBoolean();
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int i = 0; i < 200000; ++i) {
+                    // skewed keys, so there is something for the policy to find
+                    final int k = (int) Math.abs(rand.nextGaussian() * 2000);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 60) {
+                        final String v = c.get(k);
+                        if (v != null && !v.startsWith("v" + k)) {
+                            failed.set(true);
+                        }
+                    } else if (pct < 90) {
+                        c.put(k, "v" + k + "                ".substring(rand.nextInt(16)));
+                    } else if (pct < 95) {
+                        c.remove(k);
+                    } else {
+                        final SnapTreeMap<Integer,String> snap = c.snapshot();
+                        Integer prev = null;
+                        for (Integer key : snap.keySet()) {
+                            if (prev != null && prev >= key) {
+                                failed.set(true);
+                            }
+                            prev = key;
+                        }
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        c.cleanUp();
+        assertTrue(c.weightedSize() <= 5000);
+        assertEquals(totalWeight(c.snapshot()), c.weightedSize());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapTreeCursorTest extends TestCase {
+
+    public void testEmpty() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        final SnapTreeMap.Cursor<Integer,String> c = m.cursor();
+        assertFalse(c.isValid());
+        assertFalse(c.seekFirst());
+        assertFalse(c.seekLast());
+        assertFalse(c.seek(10));
+        try {
+            c.key();
+            fail();
+        } catch (final NoSuchElementException xx) {
+            // expected
+        }
+        try {
+            c.next();
+            fail();
+        } catch (final NoSuchElementException xx) {
+            // expected
+        }
+    }
+
+    public void testForwardAndBackward() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        for (int i = 0; i < 100; i += 2) {
+            m.put(i, "v" + i);
+        }
+        final SnapTreeMap.Cursor<Integer,String> c = m.cursor();
+        int n = 0;
+        for (boolean ok = c.seekFirst(); ok; ok = c.next()) {
+            assertEquals(n, (int) c.key());
+            assertEquals("v" + n, c.value());
+            n += 2;
+        }
+        assertEquals(100, n);
+        for (boolean ok = c.seekLast(); ok; ok = c.prev()) {
+            n -= 2;
+            assertEquals(n, (int) c.key());
+        }
+        assertEquals(0, n);
+
+        assertTrue(c.seek(31));
+        assertEquals(32, (int) c.key());
+        assertTrue(c.prev());
+        assertEquals(30, (int) c.key());
+        assertTrue(c.seek(30));
+        assertEquals(30, (int) c.key());
+        assertFalse(c.seek(99));
+    }
+
+    public void testSnapshotAndReset() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.put(1, "a");
+        final SnapTreeMap.Cursor<Integer,String> c = m.cursor();
+        m.put(2, "b");
+        m.remove(1);
+        assertTrue(c.seekFirst());
+        assertEquals(1, (int) c.key());
+        assertFalse(c.next());
+        c.reset();
+        assertFalse(c.isValid());
+        assertTrue(c.seekFirst());
+        assertEquals(2, (int) c.key());
+        assertEquals("b", c.value());
+    }
+
+    public void testBounds() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        for (int i = 0; i < 20; ++i) {
+            m.put(i, "v" + i);
+        }
+        final SnapTreeMap.Cursor<Integer,String> c = m.cursor(5, false, 10, true);
+        assertTrue(c.seekFirst());
+        assertEquals(6, (int) c.key());
+        assertFalse(c.prev());
+        assertTrue(c.seekLast());
+        assertEquals(10, (int) c.key());
+        assertFalse(c.next());
+        assertTrue(c.seek(0));
+        assertEquals(6, (int) c.key());
+        assertFalse(c.seek(11));
+
+        final SnapTreeMap.Cursor<Integer,String> head = m.cursor(null, false, 3, false);
+        assertTrue(head.seekLast());
+        assertEquals(2, (int) head.key());
+
+        try {
+            m.cursor(10, true, 5, true);
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+    }
+
+    public void testComparator() {
+        final Comparator<Integer> rev = Collections.reverseOrder();
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>(rev);
+        for (int i = 0; i < 10; ++i) {
+            m.put(i, "v" + i);
+        }
+        final SnapTreeMap.Cursor<Integer,String> c = m.cursor();
+        assertTrue(c.seekFirst());
+        assertEquals(9, (int) c.key());
+        assertTrue(c.seek(4));
+        assertEquals(4, (int) c.key());
+        assertTrue(c.next());
+        assertEquals(3, (int) c.key());
+    }
+
+    public void testRandomAgainstTreeMap() {
+        final Random rand = new Random(0);
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        for (int round = 0; round < 50; ++round) {
+            for (int i = 0; i < 200; ++i) {
+                final int k = rand.nextInt(500);
+                if (rand.nextInt(3) == 0) {
+                    assertEquals(expected.remove(k), m.remove(k));
+                } else {
+                    assertEquals(expected.put(k, i), m.put(k, i));
+                }
+            }
+            final int lo = rand.nextInt(500);
+            final int hi = lo + rand.nextInt(200);
+            final boolean loIncl = rand.nextBoolean();
+            final boolean hiIncl = rand.nextBoolean();
+            final NavigableMap<Integer,Integer> sub = expected.subMap(lo, loIncl, hi, hiIncl);
+            final SnapTreeMap.Cursor<Integer,Integer> c = m.cursor(lo, loIncl, hi, hiIncl);
+            for (int probe = 0; probe < 50; ++probe) {
+                final int k = rand.nextInt(800) - 100;
+                Map.Entry<Integer,Integer> e = sub.ceilingEntry(k);
+                assertEquals(e != null, c.seek(k));
+                for (int step = 0; step < 5 && e != null; ++step) {
+                    assertEquals(e.getKey(), c.key());
+                    assertEquals(e.getValue(), c.value());
+                    if (rand.nextBoolean()) {
+                        e = sub.higherEntry(e.getKey());
+                        assertEquals(e != null, c.next());
+                    } else {
+                        e = sub.lowerEntry(e.getKey());
+                        assertEquals(e != null, c.prev());
+                    }
+                }
+            }
+            c.reset();
+        }
+    }
+}
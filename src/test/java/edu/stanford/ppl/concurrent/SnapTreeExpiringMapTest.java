@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapTreeExpiringMapTest extends TestCase {
+
+    /** Long enough that nothing expires during a test. */
+    private static final long Hour = TimeUnit.HOURS.toNanos(1);
+
+    public void testExpiredEntriesAreInvisible() {
+        final SnapTreeExpiringMap<Integer,String> m = new SnapTreeExpiringMap<Integer,String>();
+        m.put(1, "forever");
+        m.put(2, "gone", 1, TimeUnit.NANOSECONDS);
+        m.put(3, "later", 1, TimeUnit.HOURS);
+        assertEquals("forever", m.get(1));
+        assertNull(m.get(2));
+        assertFalse(m.containsKey(2));
+        assertEquals("later", m.get(3));
+        assertEquals(2, m.size());
+        assertEquals(Long.MAX_VALUE, m.getTtl(1, TimeUnit.NANOSECONDS));
+        assertEquals(0L, m.getTtl(2, TimeUnit.NANOSECONDS));
+        assertTrue(m.getTtl(3, TimeUnit.MINUTES) > 50);
+
+        // an expired entry is absent for conditional updates
+        assertNull(m.replace(2, "x"));
+        assertFalse(m.remove(2, "gone"));
+        assertNull(m.putIfAbsent(2, "back"));
+        assertEquals("back", m.get(2));
+        assertEquals("back", m.putIfAbsent(2, "again"));
+        assertTrue(m.replace(2, "back", "replaced"));
+        assertEquals("replaced", m.remove(2));
+
+        int n = 0;
+        for (Map.Entry<Integer,String> e : m.entrySet()) {
+            assertTrue(e.getKey() == 1 || e.getKey() == 3);
+            ++n;
+        }
+        assertEquals(2, n);
+    }
+
+    public void testDefaultTtl() throws InterruptedException {
+        final SnapTreeExpiringMap<Integer,String> m = new SnapTreeExpiringMap<Integer,String>(20, TimeUnit.MILLISECONDS);
+        assertEquals(20, m.getDefaultTtl(TimeUnit.MILLISECONDS));
+        m.put(1, "a");
+        m.put(2, "b", 0, TimeUnit.SECONDS);
+        assertEquals("a", m.get(1));
+        Thread.sleep(40);
+        assertNull(m.get(1));
+        assertEquals("b", m.get(2));
+        assertEquals(1, m.sweep());
+        assertEquals(1, m.size());
+    }
+
+    public void testSweepRemovesOnlyExpired() {
+        final SnapTreeExpiringMap<Integer,Integer> m = new SnapTreeExpiringMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> ref = new TreeMap<Integer,Integer>();
+        final Random rand = new Random(0);
+        for (int i = 0; i < 10000; ++i) {
+            final int k = rand.nextInt(5000);
+            if (rand.nextBoolean()) {
+                m.put(k, i, 1, TimeUnit.NANOSECONDS);
+                ref.remove(k);
+            } else {
+                m.put(k, i, Hour, TimeUnit.NANOSECONDS);
+                ref.put(k, i);
+            }
+        }
+        assertEquals(ref, m);
+        assertEquals(ref.size(), m.size());
+        final int swept = m.sweep();
+        assertTrue(swept > 0);
+        assertEquals(0, m.sweep());
+        assertEquals(ref, m);
+        assertEquals(ref.size(), m.size());
+    }
+
+    public void testSnapshots() {
+        final SnapTreeExpiringMap<Integer,String> m = new SnapTreeExpiringMap<Integer,String>();
+        for (int i = 0; i < 100; ++i) {
+            m.put(i, "v" + i, Hour, TimeUnit.NANOSECONDS);
+        }
+        final Iterator<Map.Entry<Integer,String>> iter = m.entrySet().iterator();
+        final SnapTreeExpiringMap<Integer,String> copy = m.clone();
+        m.put(50, "short", 1, TimeUnit.NANOSECONDS);
+        m.remove(60);
+        assertEquals("v50", copy.get(50));
+        assertEquals("v60", copy.get(60));
+        assertNull(m.get(50));
+
+        // the iterator sees the map as of its creation
+        int n = 0;
+        while (iter.hasNext()) {
+            final Map.Entry<Integer,String> e = iter.next();
+            assertEquals("v" + e.getKey(), e.getValue());
+            if (e.getKey() % 2 == 0) {
+                iter.remove();
+            }
+            ++n;
+        }
+        assertEquals(100, n);
+        // removal through the iterator skips the replaced 50, which has
+        // expired anyway, so only the odd keys are left
+        assertEquals(50, m.size());
+        assertEquals(1, m.sweep());
+        assertEquals(100, copy.size());
+    }
+
+    public void testSerialization() throws Exception {
+        final SnapTreeExpiringMap<String,Integer> m = new SnapTreeExpiringMap<String,Integer>();
+        m.put("forever", 1);
+        m.put("gone", 2, 1, TimeUnit.NANOSECONDS);
+        m.put("hour", 3, 1, TimeUnit.HOURS);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(m);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        final SnapTreeExpiringMap<String,Integer> copy = (SnapTreeExpiringMap<String,Integer>) xi.readObject();
+        assertEquals(m, copy);
+        assertEquals(Long.MAX_VALUE, copy.getTtl("forever", TimeUnit.NANOSECONDS));
+        final long ttl = copy.getTtl("hour", TimeUnit.MINUTES);
+        assertTrue(ttl > 50 && ttl <= 60);
+        assertEquals(0, copy.sweep());
+    }
+
+    /** Writers keep replacing short-lived entries with long-lived ones
+     *  while a background sweeper runs, so a sweep that removed a fresh
+     *  value would be detected.
+     */
+    public void testConcurrentSweeper() throws InterruptedException {
+        final SnapTreeExpiringMap<Integer,Integer> m = new SnapTreeExpiringMap<Integer,Integer>();
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        m.startSweeper(executor, 1, TimeUnit.MILLISECONDS);
+        final AtomicBoolean failed = new AtomicBoolean();
+        try {
+            ParUtil.parallel(2, new ParUtil.Block() {
+                public void call(final int index) {
+                    final Random rand = new Random(index);
+                    for (int i = 0; i < 20000; ++i) {
+                        // each thread owns the keys of its parity
+                        final int k = 2 * rand.nextInt(500) + index;
+                        m.put(k, i, 1, TimeUnit.NANOSECONDS);
+                        m.put(k, i, Hour, TimeUnit.NANOSECONDS);
+                        if (m.get(k) == null || m.get(k) != i) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertFalse(failed.get());
+        assertEquals(m.size(), m.entrySet().size());
+        assertEquals(0, m.sweep());
+    }
+}
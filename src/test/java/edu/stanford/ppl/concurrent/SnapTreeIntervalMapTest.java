@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class SnapTreeIntervalMapTest extends TestCase {
+
+    /** Each value is the length of its interval. */
+    private static final SnapTreeIntervalMap.EndFunction<Integer,Integer> StartPlusLength =
+            new SnapTreeIntervalMap.EndFunction<Integer,Integer>() {
+        public Integer end(final Integer start, final Integer length) {
+            return start + length;
+        }
+    };
+
+    private static List<Integer> bruteForce(final Map<Integer,Integer> m, final int from, final int to) {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer,Integer> e : m.entrySet()) {
+            if (e.getKey() < to && e.getKey() + e.getValue() > from) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static List<Integer> keys(final List<Map.Entry<Integer,Integer>> entries) {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer,Integer> e : entries) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    public void testAgainstBruteForce() {
+        final Random rand = new Random(0);
+        final SnapTreeIntervalMap<Integer,Integer> m = new SnapTreeIntervalMap<Integer,Integer>(StartPlusLength);
+        for (int op = 0; op < 20000; ++op) {
+            final int k = rand.nextInt(1000);
+            final int pct = rand.nextInt(100);
+            if (pct < 45) {
+                m.put(k, 1 + rand.nextInt(rand.nextBoolean() ? 10 : 200));
+            } else if (pct < 80) {
+                m.remove(k);
+            } else if (pct < 90) {
+                assertEquals(bruteForce(m, k, k + 1), keys(m.overlapping(k)));
+            } else {
+                final int to = k + 1 + rand.nextInt(50);
+                assertEquals(bruteForce(m, k, to), keys(m.overlapping(k, to)));
+            }
+        }
+    }
+
+    public void testEmptyRange() {
+        final SnapTreeIntervalMap<Integer,Integer> m = new SnapTreeIntervalMap<Integer,Integer>(StartPlusLength);
+        m.put(0, 10);
+        assertEquals(1, m.overlapping(5).size());
+        assertEquals(0, m.overlapping(5, 5).size());
+        assertEquals(0, m.overlapping(10).size());
+        try {
+            m.overlapping(6, 5);
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+    }
+
+    public void testSnapshotsShareCaches() {
+        final Random rand = new Random(0);
+        final SnapTreeIntervalMap<Integer,Integer> m = new SnapTreeIntervalMap<Integer,Integer>(StartPlusLength);
+        for (int i = 0; i < 1000; ++i) {
+            m.put(rand.nextInt(10000), 1 + rand.nextInt(100));
+        }
+        final List<SnapTreeIntervalMap<Integer,Integer>> snapshots = new ArrayList<SnapTreeIntervalMap<Integer,Integer>>();
+        for (int round = 0; round < 20; ++round) {
+            snapshots.add(m.clone());
+            for (int i = 0; i < 50; ++i) {
+                m.put(rand.nextInt(10000), 1 + rand.nextInt(1000));
+                m.remove(rand.nextInt(10000));
+            }
+            for (SnapTreeIntervalMap<Integer,Integer> s : snapshots) {
+                final int p = rand.nextInt(10000);
+                assertEquals(bruteForce(s, p, p + 100), keys(s.overlapping(p, p + 100)));
+            }
+        }
+    }
+
+    public void testParallelSnapshots() {
+        final SnapTreeIntervalMap<Integer,Integer> m = new SnapTreeIntervalMap<Integer,Integer>(StartPlusLength);
+        ParUtil.parallel(4, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 20000; ++op) {
+                    final int k = rand.nextInt(2000);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 45) {
+                        m.put(k, 1 + rand.nextInt(100));
+                    } else if (pct < 90) {
+                        m.remove(k);
+                    } else {
+                        final SnapTreeIntervalMap<Integer,Integer> copy = m.clone();
+                        assertEquals(bruteForce(copy, k, k + 20), keys(copy.overlapping(k, k + 20)));
+                    }
+                }
+            }
+        });
+    }
+}
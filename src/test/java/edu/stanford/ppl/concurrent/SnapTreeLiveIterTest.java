@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapTreeLiveIterTest extends TestCase {
+
+    public void testEmpty() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        final Iterator<Integer> iter = m.liveKeyIterator();
+        assertFalse(iter.hasNext());
+        try {
+            iter.next();
+            fail();
+        } catch (final NoSuchElementException xx) {
+            // expected
+        }
+    }
+
+    public void testMatchesTreeMap() {
+        final Random rand = new Random(0);
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < 2000; ++i) {
+            final int k = rand.nextInt(1000);
+            if (rand.nextInt(4) == 0) {
+                m.remove(k);
+                expected.remove(k);
+            } else {
+                m.put(k, i);
+                expected.put(k, i);
+            }
+        }
+        final List<Map.Entry<Integer,Integer>> actual = new ArrayList<Map.Entry<Integer,Integer>>();
+        for (Iterator<Map.Entry<Integer,Integer>> iter = m.liveEntryIterator(); iter.hasNext(); ) {
+            actual.add(iter.next());
+        }
+        assertEquals(new ArrayList<Map.Entry<Integer,Integer>>(expected.entrySet()), actual);
+    }
+
+    public void testRemove() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        for (int i = 0; i < 10; ++i) {
+            m.put(i, "v" + i);
+        }
+        final Iterator<Integer> iter = m.liveKeyIterator();
+        try {
+            iter.remove();
+            fail();
+        } catch (final IllegalStateException xx) {
+            // expected
+        }
+        while (iter.hasNext()) {
+            if ((iter.next() % 2) == 0) {
+                iter.remove();
+            }
+        }
+        assertEquals(5, m.size());
+        assertFalse(m.containsKey(4));
+        assertTrue(m.containsKey(5));
+    }
+
+    public void testSeesLaterInserts() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.put(1, "a");
+        m.put(3, "c");
+        final Iterator<Integer> iter = m.liveKeyIterator();
+        assertEquals(1, (int) iter.next());
+        m.put(2, "b");
+        m.remove(3);
+        assertEquals(2, (int) iter.next());
+        assertFalse(iter.hasNext());
+    }
+
+    /** Even keys are never touched, odd keys churn.  Every pass must see
+     *  every even key, in order.
+     */
+    public void testConcurrentWriters() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final int range = 2000;
+        for (int i = 0; i < range; i += 2) {
+            m.put(i, i);
+        }
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int pass = 0; pass < 20; ++pass) {
+                    if (index == 0) {
+                        int prev = -1;
+                        int evens = 0;
+                        for (Iterator<Integer> iter = m.liveKeyIterator(); iter.hasNext(); ) {
+                            final int k = iter.next();
+                            assertTrue(k > prev);
+                            prev = k;
+                            if ((k % 2) == 0) {
+                                ++evens;
+                            }
+                        }
+                        assertEquals(range / 2, evens);
+                    } else {
+                        for (int i = 0; i < 1000; ++i) {
+                            final int k = 2 * rand.nextInt(range / 2) + 1;
+                            if (rand.nextBoolean()) {
+                                m.put(k, k);
+                            } else {
+                                m.remove(k);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
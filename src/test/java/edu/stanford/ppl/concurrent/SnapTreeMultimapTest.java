@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class SnapTreeMultimapTest extends TestCase {
+
+    private static boolean refPut(final TreeMap<Integer,TreeSet<Integer>> ref, final int k, final int v) {
+        TreeSet<Integer> values = ref.get(k);
+        if (values == null) {
+            values = new TreeSet<Integer>();
+            ref.put(k, values);
+        }
+        return values.add(v);
+    }
+
+    private static boolean refRemove(final TreeMap<Integer,TreeSet<Integer>> ref, final int k, final int v) {
+        final TreeSet<Integer> values = ref.get(k);
+        if (values == null || !values.remove(v)) {
+            return false;
+        }
+        if (values.isEmpty()) {
+            ref.remove(k);
+        }
+        return true;
+    }
+
+    public void testAgainstTreeMapOfSets() {
+        final Random rand = new Random(0);
+        final SnapTreeMultimap<Integer,Integer> m = new SnapTreeMultimap<Integer,Integer>();
+        final TreeMap<Integer,TreeSet<Integer>> ref = new TreeMap<Integer,TreeSet<Integer>>();
+        for (int op = 0; op < 50000; ++op) {
+            final int k = rand.nextInt(50);
+            final int v = rand.nextInt(50);
+            final int pct = rand.nextInt(100);
+            if (pct < 50) {
+                assertEquals(refPut(ref, k, v), m.put(k, v));
+            } else if (pct < 90) {
+                assertEquals(refRemove(ref, k, v), m.remove(k, v));
+            } else {
+                assertEquals(ref.containsKey(k), m.containsKey(k));
+                final TreeSet<Integer> values = ref.get(k);
+                assertEquals(values == null ? new TreeSet<Integer>() : values, m.get(k));
+            }
+        }
+        assertEquals(ref.keySet(), m.keySet());
+        int n = 0;
+        for (Map.Entry<Integer,Integer> e : m.entries()) {
+            assertTrue(ref.get(e.getKey()).contains(e.getValue()));
+            ++n;
+        }
+        assertEquals(n, m.size());
+    }
+
+    public void testValueView() {
+        final SnapTreeMultimap<String,Integer> m = new SnapTreeMultimap<String,Integer>();
+        for (int i = 0; i < 10; ++i) {
+            m.put("a", i);
+            m.put("b", i);
+            m.put("c", i);
+        }
+        final NavigableSet<Integer> b = m.get("b");
+        assertEquals(10, b.size());
+        assertEquals(0, (int) b.first());
+        assertEquals(9, (int) b.last());
+        assertEquals(4, (int) b.lower(5));
+        assertEquals(6, (int) b.higher(5));
+        assertEquals(9, (int) b.descendingSet().first());
+        assertEquals(3, b.subSet(2, 5).size());
+        assertEquals(6, (int) b.descendingSet().higher(7));
+        assertTrue(b.add(20));
+        assertTrue(m.containsEntry("b", 20));
+        assertEquals(0, (int) b.pollFirst());
+        assertFalse(m.containsEntry("b", 0));
+        assertEquals(10, m.removeAll("b").size());
+        assertTrue(b.isEmpty());
+        assertFalse(m.containsKey("b"));
+        assertEquals(20, m.size());
+    }
+
+    public void testCloneAndSerialization() throws Exception {
+        final SnapTreeMultimap<Integer,Integer> m = new SnapTreeMultimap<Integer,Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            m.put(i % 10, i);
+        }
+        final SnapTreeMultimap<Integer,Integer> copy = m.clone();
+        m.removeAll(3);
+        assertEquals(900, m.size());
+        assertEquals(1000, copy.size());
+        assertEquals(100, copy.get(3).size());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(copy);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        final SnapTreeMultimap<Integer,Integer> deser = (SnapTreeMultimap<Integer,Integer>) xi.readObject();
+        assertEquals(copy.entries(), deser.entries());
+    }
+
+    public void testParallelSnapshots() {
+        final SnapTreeMultimap<Integer,Integer> m = new SnapTreeMultimap<Integer,Integer>();
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random();
+                for (int op = 0; op < 20000; ++op) {
+                    // each thread has its own keys
+                    final int k = rand.nextInt(20) * 4 + index;
+                    final int v = rand.nextInt(20);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 45) {
+                        // pairs are always added and removed in twos
+                        m.put(k, v);
+                        m.put(k, -v - 1);
+                    } else if (pct < 90) {
+                        m.remove(k, -v - 1);
+                        m.remove(k, v);
+                    } else {
+                        final SnapTreeMultimap<Integer,Integer> copy = m.clone();
+                        int n = 0;
+                        for (Map.Entry<Integer,Integer> e : copy.entries()) {
+                            if (e.getValue() < 0) {
+                                assertTrue(copy.containsEntry(e.getKey(), -e.getValue() - 1));
+                            }
+                            ++n;
+                        }
+                        assertEquals(copy.size(), n);
+                    }
+                }
+            }
+        });
+    }
+}
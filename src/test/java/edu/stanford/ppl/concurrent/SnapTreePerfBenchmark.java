@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Prints throughputs for the operations that allocate nodes, which are
+ *  insertion and the path copying that follows a clone, and for reads.
+ *  The name keeps it out of the default test run, which it would slow down
+ *  without checking anything; run it with
+ *  <code>mvn test -Dtest=SnapTreePerfBenchmark</code>.
+ */
+public class SnapTreePerfBenchmark extends TestCase {
+
+    public void testInsertPerf() {
+        for (int pass = 0; pass < 5; ++pass) {
+            runInsertPerf(200000);
+        }
+    }
+
+    private void runInsertPerf(final int n) {
+        final Random rand = new Random(n);
+        final int[] keys = new int[n];
+        for (int i = 0; i < n; ++i) {
+            keys[i] = rand.nextInt();
+        }
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final long t0 = System.nanoTime();
+        for (int k : keys) {
+            m.put(k, k);
+        }
+        final long elapsed = System.nanoTime() - t0;
+        assertTrue(m.size() > 0);
+        System.out.println("insert    n " + n + "    nanosPerOp " + elapsed / n);
+    }
+
+    public void testSmallInsertRemovePerf() {
+        for (int pass = 0; pass < 5; ++pass) {
+            runSmallInsertRemovePerf(1000, 2000);
+        }
+    }
+
+    /** Keeps the tree in cache, so that the cost of creating a node isn't
+     *  hidden by misses.
+     */
+    private void runSmallInsertRemovePerf(final int size, final int rounds) {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final Integer[] keys = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = (i * 7919) % size;
+        }
+        final long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (Integer k : keys) {
+                m.put(k, k);
+            }
+            for (Integer k : keys) {
+                m.remove(k);
+            }
+        }
+        final long elapsed = System.nanoTime() - t0;
+        assertTrue(m.isEmpty());
+        System.out.println("smallInsertRemove    size " + size + "    nanosPerOp " + elapsed / (2L * size * rounds));
+    }
+
+    public void testContendedUpdatePerf() {
+        final int procs = Runtime.getRuntime().availableProcessors();
+        for (int pass = 0; pass < 3; ++pass) {
+            for (int numThreads = 1; numThreads <= 2 * procs; numThreads *= 2) {
+                runContendedUpdatePerf(numThreads, 16, 200000);
+            }
+        }
+    }
+
+    /** Updates of a few keys by many threads, so that most updates wait
+     *  for a node's lock.
+     */
+    private void runContendedUpdatePerf(final int numThreads, final int numKeys, final int opsPerThread) {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final long elapsed = ParUtil.timeParallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int i = 0; i < opsPerThread; ++i) {
+                    final Integer k = rand.nextInt(numKeys);
+                    if (rand.nextBoolean()) {
+                        m.put(k, i);
+                    } else {
+                        m.remove(k);
+                    }
+                }
+            }
+        });
+        final long opsPerSec = numThreads * 1000L * opsPerThread / Math.max(1L, elapsed);
+        System.out.println("contendedUpdate    numThreads " + numThreads + "    numKeys " + numKeys + "    " +
+                "elapsedMillis " + elapsed + "    opsPerSec " + opsPerSec);
+    }
+
+    public void testVirtualThreadContendedPerf() throws Exception {
+        final ExecutorService exec;
+        try {
+            exec = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final NoSuchMethodException xx) {
+            System.out.println("virtualThreadContended    skipped, this JVM has no virtual threads");
+            return;
+        }
+        try {
+            for (int pass = 0; pass < 3; ++pass) {
+                for (int numThreads = 1000; numThreads <= 100000; numThreads *= 10) {
+                    runVirtualThreadContendedPerf(exec, numThreads, 16, 2000000 / numThreads);
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    /** Far more threads than carriers, updating a few keys with puts and
+     *  transactions, so that most of them are parked on a node's lock or on
+     *  a commit at any instant.
+     */
+    private void runVirtualThreadContendedPerf(final ExecutorService exec,
+                                               final int numThreads,
+                                               final int numKeys,
+                                               final int opsPerThread) throws Exception {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int k = 0; k < numKeys; ++k) {
+            m.put(k, 0);
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final long t0 = System.nanoTime();
+        for (int t = 0; t < numThreads; ++t) {
+            final int index = t;
+            futures.add(exec.submit(new Runnable() {
+                public void run() {
+                    final Random rand = new Random(index);
+                    for (int i = 0; i < opsPerThread; ++i) {
+                        final Integer k = rand.nextInt(numKeys);
+                        if (rand.nextBoolean()) {
+                            m.put(k, i);
+                        } else {
+                            m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Object>() {
+                                public Object run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                                    tx.put(k, tx.get(k) + 1);
+                                    return null;
+                                }
+                            });
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        final long elapsed = (System.nanoTime() - t0) / 1000000L;
+        final long opsPerSec = numThreads * 1000L * opsPerThread / Math.max(1L, elapsed);
+        System.out.println("virtualThreadContended    numThreads " + numThreads + "    numKeys " + numKeys + "    " +
+                "elapsedMillis " + elapsed + "    opsPerSec " + opsPerSec);
+    }
+
+    public void testReadOptimizedGetPerf() {
+        for (int pass = 0; pass < 5; ++pass) {
+            runGetPerf(10000, 2000000, false);
+            runGetPerf(10000, 2000000, true);
+        }
+    }
+
+    /** Point reads of an unchanging map, walking the tree or binary
+     *  searching the array image.
+     */
+    private void runGetPerf(final int size, final int reads, final boolean readOptimized) {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setReadOptimized(readOptimized);
+        final Integer[] keys = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = (i * 7919) % size;
+            m.put(keys[i], i);
+        }
+        m.get(0);
+        while (readOptimized && !m.imageIsCurrent()) {
+            // the image is built in the background
+            Thread.yield();
+        }
+        long sum = 0;
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < reads; ++i) {
+            sum += m.get(keys[i % size]);
+        }
+        final long elapsed = System.nanoTime() - t0;
+        assertTrue(sum > 0);
+        System.out.println("get    size " + size + "    readOptimized " + readOptimized + "    nanosPerOp " +
+                (double) elapsed / reads);
+    }
+
+    public void testReadOptimizedUpdatePerf() {
+        for (int pass = 0; pass < 3; ++pass) {
+            runGetWithUpdatesPerf(1 << 20, 4000000, 10000, false);
+            runGetWithUpdatesPerf(1 << 20, 4000000, 10000, true);
+        }
+    }
+
+    /** Point reads with an occasional update in the same thread, which
+     *  makes the array image stale.  The CPU time of the reading thread
+     *  shows whether it pays for the rebuilds, wherever they run.
+     */
+    private void runGetWithUpdatesPerf(final int size, final int reads, final int readsPerUpdate,
+                                       final boolean readOptimized) {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setReadOptimized(readOptimized);
+        for (int i = 0; i < size; ++i) {
+            m.put(i, i);
+        }
+        final Random rand = new Random(size);
+        long sum = 0;
+        final long t0 = System.nanoTime();
+        final long c0 = mx.getCurrentThreadCpuTime();
+        for (int i = 0; i < reads; ++i) {
+            if (i % readsPerUpdate == 0) {
+                m.put(rand.nextInt(size), i);
+            }
+            sum += m.get(rand.nextInt(size));
+        }
+        final long cpu = mx.getCurrentThreadCpuTime() - c0;
+        final long elapsed = System.nanoTime() - t0;
+        assertTrue(sum > 0);
+        System.out.println("getWithUpdates    size " + size + "    readsPerUpdate " + readsPerUpdate +
+                "    readOptimized " + readOptimized + "    nanosPerOp " + (double) elapsed / reads +
+                "    readerCpuNanosPerOp " + (double) cpu / reads);
+    }
+
+    public void testBloomFilterMissPerf() {
+        for (int pass = 0; pass < 3; ++pass) {
+            runMissPerf(1 << 20, 2000000, false);
+            runMissPerf(1 << 20, 2000000, true);
+        }
+    }
+
+    /** Point reads of absent keys, with and without the Bloom filter. */
+    private void runMissPerf(final int size, final int reads, final boolean bloomFilter) {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; ++i) {
+            m.put(2 * i, i);
+        }
+        if (bloomFilter) {
+            m.setBloomFilter(SnapTreeMap.HashCodeHasher);
+        }
+        int hits = 0;
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < reads; ++i) {
+            if (m.containsKey(2 * ((i * 7919) & (size - 1)) + 1)) {
+                ++hits;
+            }
+        }
+        final long elapsed = System.nanoTime() - t0;
+        assertEquals(0, hits);
+        System.out.println("miss    size " + size + "    bloomFilter " + bloomFilter + "    nanosPerOp " +
+                (double) elapsed / reads);
+    }
+
+    public void testBytesKeyGetPerf() {
+        final int size = 1 << 18;
+        final Random rand = new Random(size);
+        final byte[][] keys = new byte[size][];
+        final SnapTreeMap<byte[],Integer> generic = new SnapTreeMap<byte[],Integer>(new Comparator<byte[]>() {
+            public int compare(final byte[] lhs, final byte[] rhs) {
+                for (int i = 0; i < lhs.length && i < rhs.length; ++i) {
+                    final int c = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return lhs.length - rhs.length;
+            }
+        });
+        final SnapTreeBytesMap<Integer> bytes = new SnapTreeBytesMap<Integer>();
+        for (int i = 0; i < size; ++i) {
+            keys[i] = new byte[16];
+            rand.nextBytes(keys[i]);
+            generic.put(keys[i], i);
+            bytes.put(keys[i], i);
+        }
+        final int reads = 1000000;
+        for (int pass = 0; pass < 3; ++pass) {
+            long sum = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                sum += generic.get(keys[(i * 7919) & (size - 1)]);
+            }
+            final long g = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                sum += bytes.get(keys[(i * 7919) & (size - 1)]);
+            }
+            final long b = System.nanoTime() - t0;
+            assertTrue(sum != 0);
+            System.out.println("bytesKeyGet    size " + size + "    comparatorNanosPerGet " + g / reads +
+                    "    bytesMapNanosPerGet " + b / reads);
+        }
+    }
+
+    public void testSearchLayoutPerf() {
+        final int size = 1 << 20;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final Random rand = new Random(size);
+        final int[] keys = new int[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = rand.nextInt();
+            m.put(keys[i], i);
+        }
+        final SearchLayout<Integer,Integer> objLayout = m.toSearchLayout();
+        final SearchLayout<Integer,Integer> longLayout = m.toSearchLayout(new SearchLayout.KeyCodec<Integer>() {
+            public long encode(final Integer key) {
+                return key;
+            }
+
+            public Integer decode(final long code) {
+                return (int) code;
+            }
+        });
+        final int reads = 2000000;
+        for (int pass = 0; pass < 3; ++pass) {
+            long sum = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                sum += m.get(keys[(i * 7919) & (size - 1)]);
+            }
+            final long tree = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                sum += objLayout.get(keys[(i * 7919) & (size - 1)]);
+            }
+            final long obj = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                sum += longLayout.getEncoded(keys[(i * 7919) & (size - 1)]);
+            }
+            final long prim = System.nanoTime() - t0;
+            assertTrue(sum != 0);
+            System.out.println("searchLayout    size " + size + "    treeNanosPerGet " + tree / reads +
+                    "    objectLayoutNanosPerGet " + obj / reads + "    longLayoutNanosPerGet " + prim / reads);
+        }
+    }
+
+    public void testCopyOnWritePerf() {
+        for (int pass = 0; pass < 5; ++pass) {
+            runCopyOnWritePerf(100000, 50000);
+        }
+    }
+
+    /** Each clone is followed by an update, which must copy its whole
+     *  path.
+     */
+    private void runCopyOnWritePerf(final int size, final int clones) {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < size; ++i) {
+            m.put(i, i);
+        }
+        final Random rand = new Random(size);
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < clones; ++i) {
+            m.clone();
+            final int k = rand.nextInt(size);
+            m.put(k, i);
+        }
+        final long elapsed = System.nanoTime() - t0;
+        System.out.println("cloneAndUpdate    size " + size + "    nanosPerOp " + elapsed / clones);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SnapTreePriorityBlockingQueueTest extends TestCase {
+
+    public void testTimedPoll() throws InterruptedException {
+        final SnapTreePriorityBlockingQueue<Integer> q = new SnapTreePriorityBlockingQueue<Integer>();
+        assertNull(q.poll(10, TimeUnit.MILLISECONDS));
+        q.put(3);
+        q.put(1);
+        assertEquals(1, (int) q.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(3, (int) q.take());
+    }
+
+    public void testDrainTo() {
+        final SnapTreePriorityBlockingQueue<Integer> q = new SnapTreePriorityBlockingQueue<Integer>();
+        for (int i = 9; i >= 0; --i) {
+            q.put(i);
+        }
+        final List<Integer> sink = new ArrayList<Integer>();
+        assertEquals(4, q.drainTo(sink, 4));
+        assertEquals(6, q.drainTo(sink));
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, (int) sink.get(i));
+        }
+        assertTrue(q.isEmpty());
+    }
+
+    public void testProducersAndBlockedConsumers() {
+        final int numProducers = 4;
+        final int numConsumers = 8;
+        final int perProducer = 10000;
+        final int total = numProducers * perProducer;
+        final SnapTreePriorityBlockingQueue<Integer> q = new SnapTreePriorityBlockingQueue<Integer>();
+        final AtomicIntegerArray counts = new AtomicIntegerArray(total);
+        ParUtil.parallel(numProducers + numConsumers, new ParUtil.Block() {
+            public void call(final int index) {
+                try {
+                    if (index < numProducers) {
+                        for (int i = 0; i < perProducer; ++i) {
+                            q.put(index * perProducer + i);
+                        }
+                        // one poison pill per consumer
+                        for (int i = index; i < numConsumers; i += numProducers) {
+                            q.put(Integer.MAX_VALUE);
+                        }
+                    } else {
+                        while (true) {
+                            final int x = q.take();
+                            if (x == Integer.MAX_VALUE) {
+                                break;
+                            }
+                            counts.incrementAndGet(x);
+                        }
+                    }
+                } catch (final InterruptedException xx) {
+                    throw new RuntimeException("unexpected", xx);
+                }
+            }
+        });
+        for (int i = 0; i < total; ++i) {
+            assertEquals(1, counts.get(i));
+        }
+        assertTrue(q.isEmpty());
+    }
+}
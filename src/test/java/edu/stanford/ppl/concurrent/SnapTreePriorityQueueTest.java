@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SnapTreePriorityQueueTest extends TestCase {
+
+    public void testAgainstPriorityQueue() {
+        final Random rand = new Random(0);
+        final SnapTreePriorityQueue<Integer> q = new SnapTreePriorityQueue<Integer>();
+        final PriorityQueue<Integer> ref = new PriorityQueue<Integer>();
+        for (int op = 0; op < 100000; ++op) {
+            final int pct = rand.nextInt(100);
+            if (pct < 50) {
+                final int k = rand.nextInt(1000);
+                assertEquals(ref.offer(k), q.offer(k));
+            } else if (pct < 90) {
+                assertEquals(ref.poll(), q.poll());
+            } else {
+                assertEquals(ref.peek(), q.peek());
+            }
+            assertEquals(ref.size(), q.size());
+        }
+    }
+
+    /** Elements that compare equal must come out in the order they went in. */
+    /** As for {@link PriorityQueue}, copying a sorted set or a priority
+     *  queue keeps its ordering.
+     */
+    public void testComparatorFromSource() {
+        final Comparator<Integer> reverse = Collections.reverseOrder();
+        final List<Integer> elements = new ArrayList<Integer>();
+        for (int i = 0; i < 10; ++i) {
+            elements.add(i);
+        }
+        Collections.shuffle(elements, new Random(0));
+
+        final TreeSet<Integer> set = new TreeSet<Integer>(reverse);
+        set.addAll(elements);
+        final PriorityQueue<Integer> pq = new PriorityQueue<Integer>(10, reverse);
+        pq.addAll(elements);
+        final SnapTreePriorityQueue<Integer> stpq = new SnapTreePriorityQueue<Integer>(reverse);
+        stpq.addAll(elements);
+
+        final List<SnapTreePriorityQueue<Integer>> copies = new ArrayList<SnapTreePriorityQueue<Integer>>();
+        copies.add(new SnapTreePriorityQueue<Integer>(set));
+        copies.add(new SnapTreePriorityQueue<Integer>(pq));
+        copies.add(new SnapTreePriorityQueue<Integer>(stpq));
+        copies.add(new SnapTreePriorityBlockingQueue<Integer>(set));
+        for (SnapTreePriorityQueue<Integer> q : copies) {
+            assertSame(reverse, q.comparator());
+            for (int i = 9; i >= 0; --i) {
+                assertEquals(i, (int) q.poll());
+            }
+        }
+
+        final SnapTreePriorityQueue<Integer> natural = new SnapTreePriorityQueue<Integer>(elements);
+        assertNull(natural.comparator());
+        assertEquals(0, (int) natural.poll());
+    }
+
+    public void testFifoTies() {
+        final SnapTreePriorityQueue<int[]> q = new SnapTreePriorityQueue<int[]>(new Comparator<int[]>() {
+            public int compare(final int[] lhs, final int[] rhs) {
+                return lhs[0] - rhs[0];
+            }
+        });
+        for (int i = 0; i < 1000; ++i) {
+            q.offer(new int[] { i % 10, i });
+        }
+        int prevPri = -1;
+        int prevSeq = -1;
+        while (!q.isEmpty()) {
+            final int[] x = q.poll();
+            if (x[0] == prevPri) {
+                assertTrue(x[1] > prevSeq);
+            } else {
+                assertTrue(x[0] > prevPri);
+            }
+            prevPri = x[0];
+            prevSeq = x[1];
+        }
+    }
+
+    public void testSnapshotIteration() {
+        final SnapTreePriorityQueue<Integer> q = new SnapTreePriorityQueue<Integer>();
+        final List<Integer> ref = new ArrayList<Integer>();
+        final Random rand = new Random(0);
+        for (int i = 0; i < 1000; ++i) {
+            final int k = rand.nextInt(100);
+            q.offer(k);
+            ref.add(k);
+        }
+        Collections.sort(ref);
+        final List<Integer> seen = new ArrayList<Integer>();
+        for (Integer x : q) {
+            seen.add(x);
+            q.poll();
+        }
+        assertEquals(ref, seen);
+        assertTrue(q.isEmpty());
+    }
+
+    public void testCloneAndSerialization() throws Exception {
+        final SnapTreePriorityQueue<Integer> q = new SnapTreePriorityQueue<Integer>();
+        for (int i = 0; i < 100; ++i) {
+            q.offer(i * 7 % 100);
+        }
+        final SnapTreePriorityQueue<Integer> copy = q.clone();
+        assertEquals(0, (int) q.poll());
+        assertEquals(99, q.size());
+        assertEquals(100, copy.size());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(copy);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        final SnapTreePriorityQueue<Integer> deser = (SnapTreePriorityQueue<Integer>) xi.readObject();
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, (int) deser.poll());
+        }
+        assertNull(deser.poll());
+    }
+
+    public void testParallelExactlyOnce() {
+        final int numThreads = 8;
+        final int perThread = 20000;
+        final SnapTreePriorityQueue<Integer> q = new SnapTreePriorityQueue<Integer>();
+        final AtomicIntegerArray counts = new AtomicIntegerArray(numThreads * perThread);
+        ParUtil.parallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                int next = 0;
+                while (next < perThread) {
+                    if (rand.nextBoolean()) {
+                        q.offer(index * perThread + next);
+                        ++next;
+                    } else {
+                        final Integer x = q.poll();
+                        if (x != null) {
+                            counts.incrementAndGet(x);
+                        }
+                    }
+                }
+            }
+        });
+        Integer x;
+        while ((x = q.poll()) != null) {
+            counts.incrementAndGet(x);
+        }
+        for (int i = 0; i < counts.length(); ++i) {
+            assertEquals(1, counts.get(i));
+        }
+        assertEquals(0, q.size());
+    }
+}
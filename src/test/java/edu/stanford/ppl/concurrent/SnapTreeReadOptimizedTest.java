@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapTreeReadOptimizedTest extends TestCase {
+
+    /** Reads until the map serves them from its array image, which is
+     *  built in the background.
+     */
+    private static void awaitImage(final SnapTreeMap<Integer,?> m) {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!m.imageIsCurrent() && System.currentTimeMillis() < deadline) {
+            m.get(0);
+            Thread.yield();
+        }
+        assertTrue(m.imageIsCurrent());
+    }
+
+    public void testDisabledByDefault() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        assertFalse(m.isReadOptimized());
+        m.put(1, "a");
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("a", m.get(1));
+        }
+        assertFalse(m.imageIsCurrent());
+    }
+
+    public void testImageTracksUpdates() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.setReadOptimized(true);
+        assertTrue(m.isReadOptimized());
+        for (int i = 0; i < 1000; i += 2) {
+            m.put(i, "x" + i);
+        }
+        awaitImage(m);
+        assertEquals("x10", m.get(10));
+        assertNull(m.get(11));
+        assertTrue(m.containsKey(998));
+        assertFalse(m.containsKey(-1));
+
+        // every read after an update must see it, image or not
+        m.put(11, "y");
+        assertFalse(m.imageIsCurrent());
+        assertEquals("y", m.get(11));
+        m.remove(10);
+        assertNull(m.get(10));
+        awaitImage(m);
+        assertEquals("y", m.get(11));
+        assertNull(m.get(10));
+
+        m.setReadOptimized(false);
+        assertFalse(m.imageIsCurrent());
+        assertEquals("y", m.get(11));
+    }
+
+    public void testIncrementalRebuild() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> ref = new TreeMap<Integer,Integer>();
+        m.setReadOptimized(true);
+        final Random rand = new Random(0);
+        for (int i = 0; i < 10000; ++i) {
+            final int k = rand.nextInt(20000);
+            m.put(k, i);
+            ref.put(k, i);
+        }
+        for (int round = 0; round < 50; ++round) {
+            awaitImage(m);
+            for (int k = -1; k <= 20000; ++k) {
+                assertEquals(ref.get(k), m.get(k));
+            }
+            // a few updates, so most subtrees are reused by the next image
+            for (int i = 0; i < 1 + round % 5; ++i) {
+                final int k = rand.nextInt(20000);
+                if (rand.nextBoolean()) {
+                    assertEquals(ref.put(k, -round), m.put(k, -round));
+                } else {
+                    assertEquals(ref.remove(k), m.remove(k));
+                }
+            }
+        }
+        assertEquals(ref, m);
+    }
+
+    public void testComparatorAndClone() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>(new Comparator<Integer>() {
+            public int compare(final Integer lhs, final Integer rhs) {
+                return rhs.compareTo(lhs);
+            }
+        });
+        m.setReadOptimized(true);
+        for (int i = 0; i < 100; ++i) {
+            m.put(i, "v" + i);
+        }
+        awaitImage(m);
+        assertEquals("v42", m.get(42));
+        assertNull(m.get(100));
+
+        final SnapTreeMap<Integer,String> copy = m.clone();
+        assertTrue(copy.isReadOptimized());
+        m.put(42, "changed");
+        assertEquals("v42", copy.get(42));
+        assertEquals("changed", m.get(42));
+        copy.remove(41);
+        assertNull(copy.get(41));
+        assertEquals("v41", m.get(41));
+    }
+
+    /** A writer only ever increases the values, so a reader that sees a
+     *  value decrease has read from a stale image.
+     */
+    public void testReadsAreMonotonic() {
+        final int numKeys = 64;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.setReadOptimized(true);
+        for (int k = 0; k < numKeys; ++k) {
+            m.put(k, 0);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        ParUtil.parallel(3, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                if (index == 0) {
+                    for (int i = 1; i <= 20000; ++i) {
+                        m.put(rand.nextInt(numKeys), i);
+                        if (i % 100 == 0) {
+                            Thread.yield();
+                        }
+                    }
+                    done.set(true);
+                } else {
+                    final int[] seen = new int[numKeys];
+                    while (!done.get()) {
+                        final int k = rand.nextInt(numKeys);
+                        final int v = m.get(k);
+                        if (v < seen[k]) {
+                            failed.set(true);
+                        }
+                        seen[k] = v;
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        for (Map.Entry<Integer,Integer> e : m.entrySet()) {
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class SnapTreeSetTest extends TestCase {
+
+    public void testAgainstTreeSet() {
+        final Random rand = new Random(0);
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        final TreeSet<Integer> ref = new TreeSet<Integer>();
+        for (int op = 0; op < 100000; ++op) {
+            final int k = rand.nextInt(2000);
+            final int pct = rand.nextInt(100);
+            if (pct < 40) {
+                assertEquals(ref.add(k), s.add(k));
+            } else if (pct < 70) {
+                assertEquals(ref.remove(k), s.remove(k));
+            } else if (pct < 75) {
+                assertEquals(ref.pollFirst(), s.pollFirst());
+            } else if (pct < 80) {
+                assertEquals(ref.pollLast(), s.pollLast());
+            } else if (pct < 85) {
+                assertEquals(ref.floor(k), s.floor(k));
+                assertEquals(ref.higher(k), s.higher(k));
+            } else {
+                assertEquals(ref.contains(k), s.contains(k));
+            }
+        }
+        assertEquals(ref.size(), s.size());
+        assertEquals(ref, s);
+        assertEquals(s, ref);
+    }
+
+    public void testSubSetViews() {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        final TreeSet<Integer> ref = new TreeSet<Integer>();
+        for (int i = 0; i < 100; i += 3) {
+            s.add(i);
+            ref.add(i);
+        }
+        for (int lo = -1; lo < 101; lo += 7) {
+            for (int hi = lo; hi < 101; hi += 5) {
+                final NavigableSet<Integer> a = s.subSet(lo, lo % 2 == 0, hi, hi % 2 == 0);
+                final NavigableSet<Integer> b = ref.subSet(lo, lo % 2 == 0, hi, hi % 2 == 0);
+                assertEquals(b.size(), a.size());
+                assertEquals(b, a);
+                assertEquals(b.descendingSet(), a.descendingSet());
+                for (int k = lo - 2; k < hi + 2; ++k) {
+                    assertEquals(b.lower(k), a.lower(k));
+                    assertEquals(b.ceiling(k), a.ceiling(k));
+                    assertEquals(b.descendingSet().lower(k), a.descendingSet().lower(k));
+                    assertEquals(b.descendingSet().ceiling(k), a.descendingSet().ceiling(k));
+                }
+            }
+        }
+    }
+
+    public void testIteratorRemove() {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            s.add(i);
+        }
+        final Iterator<Integer> iter = s.iterator();
+        int expected = 0;
+        while (iter.hasNext()) {
+            final int k = iter.next();
+            assertEquals(expected++, k);
+            if (k % 2 == 0) {
+                iter.remove();
+            }
+        }
+        assertEquals(500, s.size());
+        assertEquals(1, (int) s.first());
+        assertEquals(999, (int) s.last());
+    }
+
+    public void testCloneIsolation() {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            s.add(i);
+        }
+        final SnapTreeSet<Integer> copy = s.clone();
+        for (int i = 0; i < 1000; i += 2) {
+            s.remove(i);
+            copy.add(-i - 1);
+        }
+        assertEquals(500, s.size());
+        assertEquals(1500, copy.size());
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(i % 2 != 0, s.contains(i));
+            assertTrue(copy.contains(i));
+        }
+    }
+
+    public void testSerialization() throws Exception {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        for (int i = 0; i < 1000; ++i) {
+            s.add(i * 7 % 1000);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream xo = new ObjectOutputStream(bytes);
+        xo.writeObject(s);
+        xo.close();
+        final ObjectInputStream xi = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final Object copy = xi.readObject();
+        assertEquals(s, copy);
+    }
+
+    public void testParallelSnapshots() {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        ParUtil.parallel(4, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 50000; ++op) {
+                    final int k = rand.nextInt(500);
+                    final int pct = rand.nextInt(100);
+                    if (pct < 45) {
+                        s.add(k);
+                    } else if (pct < 90) {
+                        s.remove(k);
+                    } else if (pct < 95) {
+                        final SnapTreeSet<Integer> copy = s.clone();
+                        int n = 0;
+                        int prev = -1;
+                        for (Integer e : copy) {
+                            assertTrue(e > prev);
+                            prev = e;
+                            ++n;
+                        }
+                        assertEquals(copy.size(), n);
+                    } else {
+                        s.pollFirst();
+                    }
+                }
+            }
+        });
+        assertEquals(s.size(), new TreeSet<Integer>(s).size());
+    }
+
+    /** Many more threads than elements, so that rebalancing contends for
+     *  the same few nodes and waiters park on their locks.
+     */
+    public void testManyThreadsFewElements() {
+        final SnapTreeSet<Integer> s = new SnapTreeSet<Integer>();
+        ParUtil.parallel(64, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 5000; ++op) {
+                    final int k = rand.nextInt(16);
+                    if (rand.nextBoolean()) {
+                        s.add(k);
+                    } else {
+                        s.remove(k);
+                    }
+                }
+                for (int k = 0; k < 16; ++k) {
+                    s.add(k);
+                }
+            }
+        });
+        assertEquals(16, s.size());
+        assertEquals(16, new TreeSet<Integer>(s).size());
+        assertEquals(0, OVLNode.lockWaiterQueues());
+    }
+}
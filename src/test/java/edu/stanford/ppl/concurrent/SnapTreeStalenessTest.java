@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+
+public class SnapTreeStalenessTest extends TestCase {
+
+    public void testDefaultIsCurrent() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        assertEquals(0L, m.getMaxSnapshotStaleness(TimeUnit.NANOSECONDS));
+        m.put(1, "a");
+        assertEquals(1, m.keySet().size());
+        m.put(2, "b");
+        assertEquals(2, m.clone().size());
+        assertEquals(2, m.headMap(10).size());
+    }
+
+    public void testSharedSnapshot() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.setMaxSnapshotStaleness(1, TimeUnit.HOURS);
+        assertEquals(1L, m.getMaxSnapshotStaleness(TimeUnit.HOURS));
+        m.put(1, "a");
+        m.put(2, "b");
+        final NavigableMap<Integer,String> head = m.headMap(10, true);
+        assertEquals(2, head.size());
+
+        m.put(3, "c");
+        m.remove(1);
+
+        // everything within the window sees the first snapshot
+        assertEquals(2, head.size());
+        final Iterator<Integer> iter = m.keySet().iterator();
+        assertEquals(1, (int) iter.next());
+        assertEquals(2, (int) iter.next());
+        assertFalse(iter.hasNext());
+        final SnapTreeMap<Integer,String> copy = m.clone();
+        assertEquals(2, copy.size());
+        assertTrue(copy.containsKey(1));
+        assertFalse(copy.containsKey(3));
+
+        // bounded iteration must stop at the end of the snapshot, even
+        // though the live tree has a larger key in range
+        final Iterator<Integer> bounded = m.subMap(0, 10).keySet().iterator();
+        assertEquals(1, (int) bounded.next());
+        assertEquals(2, (int) bounded.next());
+        assertFalse(bounded.hasNext());
+
+        // point reads are always current
+        assertEquals("c", m.get(3));
+        assertEquals(2, m.size());
+
+        m.setMaxSnapshotStaleness(0, TimeUnit.NANOSECONDS);
+        assertEquals(2, head.size());
+        assertTrue(head.containsKey(3));
+        assertFalse(head.containsKey(1));
+    }
+
+    public void testNegative() {
+        try {
+            new SnapTreeMap<Integer,String>().setMaxSnapshotStaleness(-1, TimeUnit.SECONDS);
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+    }
+}
@@ -55,4 +55,18 @@ public class SnapTreeTest extends TestCase {
 
         assert map2.size() == 0;
     }
+
+    public void testConditionalRemoveOfAbsentKey() {
+        final SnapTreeMap<Integer, Integer> map = new SnapTreeMap<Integer, Integer>();
+        assertFalse(map.remove(1, 1));
+        map.put(2, 2);
+        map.put(3, 3);
+        assertFalse(map.remove(1, 1));
+        assertFalse(map.remove(4, 4));
+        map.put(1, 1);
+        map.remove(2);
+        assertFalse(map.remove(2, 2));
+        assertTrue(map.remove(3, 3));
+        assertEquals(1, map.size());
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SnapTreeTransactionTest extends TestCase {
+
+    public void testReadsAndWrites() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.put(1, "a");
+        m.put(2, "b");
+        final String result = m.transact(new SnapTreeMap.TransactionBody<Integer,String,String>() {
+            public String run(final SnapTreeMap.Transaction<Integer,String> tx) {
+                assertEquals("a", tx.get(1));
+                assertNull(tx.get(3));
+                assertFalse(tx.containsKey(3));
+                assertEquals("a", tx.put(1, "A"));
+                assertNull(tx.put(3, "c"));
+                assertEquals("b", tx.remove(2));
+                assertNull(tx.remove(4));
+
+                // reads see the transaction's own writes
+                assertEquals("A", tx.get(1));
+                assertTrue(tx.containsKey(3));
+                assertFalse(tx.containsKey(2));
+
+                // nothing is visible until commit
+                assertEquals("a", m.get(1));
+                assertEquals("b", m.get(2));
+                assertFalse(m.containsKey(3));
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertEquals(2, m.size());
+        assertEquals("A", m.get(1));
+        assertEquals("c", m.get(3));
+        assertFalse(m.containsKey(2));
+        assertFalse(m.containsKey(4));
+        assertEquals(2, m.clone().size());
+        assertEquals(1, (int) m.firstKey());
+        assertEquals(3, (int) m.lastKey());
+    }
+
+    public void testUseAfterCompletion() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        final SnapTreeMap.Transaction<Integer,String> escaped = m.transact(
+                new SnapTreeMap.TransactionBody<Integer,String,SnapTreeMap.Transaction<Integer,String>>() {
+            public SnapTreeMap.Transaction<Integer,String> run(final SnapTreeMap.Transaction<Integer,String> tx) {
+                return tx;
+            }
+        });
+        try {
+            escaped.get(1);
+            fail();
+        } catch (final IllegalStateException xx) {
+            // expected
+        }
+    }
+
+    public void testExceptionDiscardsWrites() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.put(1, "a");
+        try {
+            m.transact(new SnapTreeMap.TransactionBody<Integer,String,Object>() {
+                public Object run(final SnapTreeMap.Transaction<Integer,String> tx) {
+                    tx.put(1, "b");
+                    tx.put(2, "c");
+                    throw new UnsupportedOperationException();
+                }
+            });
+            fail();
+        } catch (final UnsupportedOperationException xx) {
+            // expected
+        }
+        assertEquals(1, m.size());
+        assertEquals("a", m.get(1));
+    }
+
+    public void testNullsRejected() {
+        final SnapTreeMap<Integer,String> m = new SnapTreeMap<Integer,String>();
+        m.transact(new SnapTreeMap.TransactionBody<Integer,String,Object>() {
+            public Object run(final SnapTreeMap.Transaction<Integer,String> tx) {
+                try {
+                    tx.get(null);
+                    fail();
+                } catch (final NullPointerException xx) {
+                    // expected
+                }
+                try {
+                    tx.put(1, null);
+                    fail();
+                } catch (final NullPointerException xx) {
+                    // expected
+                }
+                return null;
+            }
+        });
+        assertTrue(m.isEmpty());
+    }
+
+    public void testConflictRetries() {
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        m.put(1, 10);
+        final AtomicInteger runs = new AtomicInteger();
+        m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Object>() {
+            public Object run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                final int v = tx.get(1);
+                if (runs.getAndIncrement() == 0) {
+                    // a conflicting write after the read
+                    m.put(1, 20);
+                }
+                tx.put(2, v + 1);
+                return null;
+            }
+        });
+        assertEquals(2, runs.get());
+        assertEquals(21, (int) m.get(2));
+    }
+
+    /** Transfers between accounts preserve the total, as observed by
+     *  read-only transactions and by clones.
+     */
+    public void testTransfers() {
+        final int numAccounts = 32;
+        final int initial = 1000;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < numAccounts; ++i) {
+            m.put(i, initial);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        ParUtil.parallel(6, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int iter = 0; iter < 3000; ++iter) {
+                    if (index < 4) {
+                        final int from = rand.nextInt(numAccounts);
+                        final int to = rand.nextInt(numAccounts);
+                        final int amount = rand.nextInt(10);
+                        m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Object>() {
+                            public Object run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                                tx.put(from, tx.get(from) - amount);
+                                tx.put(to, tx.get(to) + amount);
+                                return null;
+                            }
+                        });
+                    } else if (index == 4) {
+                        final int total = m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Integer>() {
+                            public Integer run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                                int sum = 0;
+                                for (int i = 0; i < numAccounts; ++i) {
+                                    sum += tx.get(i);
+                                }
+                                return sum;
+                            }
+                        });
+                        if (total != numAccounts * initial) {
+                            failed.set(true);
+                        }
+                    } else if ((iter & 7) == 0) {
+                        int sum = 0;
+                        for (int v : m.clone().values()) {
+                            sum += v;
+                        }
+                        if (sum != numAccounts * initial) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        int sum = 0;
+        for (int v : m.values()) {
+            sum += v;
+        }
+        assertEquals(numAccounts * initial, sum);
+        assertEquals(numAccounts, m.size());
+    }
+
+    /** Transactions that insert and remove keys, racing with plain writers
+     *  of the same keys.
+     */
+    public void testMixedWithPlainWriters() {
+        final int numTokens = 16;
+        final SnapTreeMap<Integer,Integer> m = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < numTokens; ++i) {
+            m.put(2 * i, 0);
+        }
+        final AtomicInteger increments = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        ParUtil.parallel(6, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int iter = 0; iter < 3000; ++iter) {
+                    final int token = rand.nextInt(numTokens);
+                    if (index < 3) {
+                        // move the token between its two slots, counting the move
+                        final boolean moved = m.transact(new SnapTreeMap.TransactionBody<Integer,Integer,Boolean>() {
+                            public Boolean run(final SnapTreeMap.Transaction<Integer,Integer> tx) {
+                                final int src = tx.containsKey(2 * token) ? 2 * token : 2 * token + 1;
+                                final int dst = src ^ 1;
+                                final Integer count = tx.remove(src);
+                                if (count == null || tx.containsKey(dst)) {
+                                    // inconsistent, which is only okay if
+                                    // this run won't commit
+                                    return false;
+                                }
+                                tx.put(dst, count + 1);
+                                return true;
+                            }
+                        });
+                        if (!moved) {
+                            failed.set(true);
+                        }
+                        increments.incrementAndGet();
+                    } else if (index < 5) {
+                        // increment the token in place with a plain CAS
+                        while (true) {
+                            final Integer a = m.get(2 * token);
+                            if (a != null && m.replace(2 * token, a, a + 1)) {
+                                break;
+                            }
+                            final Integer b = m.get(2 * token + 1);
+                            if (b != null && m.replace(2 * token + 1, b, b + 1)) {
+                                break;
+                            }
+                        }
+                        increments.incrementAndGet();
+                    } else {
+                        if (m.clone().size() != numTokens) {
+                            failed.set(true);
+                        }
+                        m.firstKey();
+                        m.lastKey();
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        assertEquals(numTokens, m.size());
+        int sum = 0;
+        for (int v : m.values()) {
+            sum += v;
+        }
+        assertEquals(increments.get(), sum);
+    }
+
+    public void testIndexedTable() {
+        final SnapIndexedTable.Index<String,Integer> length = new SnapIndexedTable.Index<String,Integer>() {
+            public Integer keyOf(final String row) {
+                return row.length();
+            }
+        };
+        final SnapIndexedTable<Integer,String> t = new SnapIndexedTable<Integer,String>(length);
+        t.put(1, "a");
+        t.put(2, "bb");
+        t.transact(new SnapTreeMap.TransactionBody<Integer,String,Object>() {
+            public Object run(final SnapTreeMap.Transaction<Integer,String> tx) {
+                tx.put(1, "aaa");
+                tx.remove(2);
+                tx.put(3, "c");
+                return null;
+            }
+        });
+        assertEquals(1, t.select(length, 1).size());
+        assertEquals(3, (int) t.select(length, 1).get(0).getKey());
+        assertEquals(0, t.select(length, 2).size());
+        assertEquals(1, t.select(length, 3).size());
+        assertEquals(1, t.clone().select(length, 3).size());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SnapTreeValueIndexedMapTest extends TestCase {
+
+    private static List<Integer> expectedKeys(final Map<Integer,Integer> m, final int value) {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer,Integer> e : m.entrySet()) {
+            if (e.getValue() == value) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    public void testBasic() {
+        final SnapTreeValueIndexedMap<Integer,String> m = new SnapTreeValueIndexedMap<Integer,String>();
+        assertFalse(m.containsValue("a"));
+        m.put(3, "a");
+        m.put(1, "a");
+        m.put(2, "b");
+        assertTrue(m.containsValue("a"));
+        assertEquals(Arrays.asList(1, 3), m.keysForValue("a"));
+        assertEquals(Arrays.asList(2), m.keysForValue("b"));
+        m.put(1, "b");
+        assertEquals(Arrays.asList(3), m.keysForValue("a"));
+        assertEquals(Arrays.asList(1, 2), m.keysForValue("b"));
+        m.remove(3);
+        assertFalse(m.containsValue("a"));
+        assertEquals(Collections.<Integer>emptyList(), m.keysForValue("a"));
+        m.pollFirstEntry();
+        assertEquals(Arrays.asList(2), m.keysForValue("b"));
+        m.clear();
+        assertFalse(m.containsValue("b"));
+    }
+
+    public void testValueComparator() {
+        final SnapTreeValueIndexedMap<Integer,String> m =
+                new SnapTreeValueIndexedMap<Integer,String>(String.CASE_INSENSITIVE_ORDER);
+        m.put(1, "Hello");
+        m.put(2, "hello");
+        m.put(3, "world");
+        assertEquals(Arrays.asList(1, 2), m.keysForValue("HELLO"));
+        // a change that the value ordering considers equal keeps the entry
+        m.put(1, "HELLO");
+        assertEquals(Arrays.asList(1, 2), m.keysForValue("hello"));
+    }
+
+    public void testRandomAgainstTreeMap() {
+        final Random rand = new Random(0);
+        final SnapTreeValueIndexedMap<Integer,Integer> m = new SnapTreeValueIndexedMap<Integer,Integer>();
+        final TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        SnapTreeValueIndexedMap<Integer,Integer> snap = null;
+        Map<Integer,Integer> snapExpected = null;
+        for (int i = 0; i < 20000; ++i) {
+            final int k = rand.nextInt(200);
+            final int v = rand.nextInt(20);
+            final int r = rand.nextInt(100);
+            if (r < 50) {
+                assertEquals(expected.put(k, v), m.put(k, v));
+            } else if (r < 70) {
+                assertEquals(expected.remove(k), m.remove(k));
+            } else if (r < 75) {
+                assertEquals(expected.pollLastEntry(), m.pollLastEntry());
+            } else if (r < 80) {
+                snap = m.clone();
+                snapExpected = new TreeMap<Integer,Integer>(expected);
+            } else {
+                assertEquals(expectedKeys(expected, v), m.keysForValue(v));
+                assertEquals(expected.containsValue(v), m.containsValue(v));
+            }
+        }
+        if (snap != null) {
+            for (int v = 0; v < 20; ++v) {
+                assertEquals(expectedKeys(snapExpected, v), snap.keysForValue(v));
+            }
+        }
+    }
+
+    public void testCloneIsIndependent() {
+        final SnapTreeValueIndexedMap<Integer,String> m = new SnapTreeValueIndexedMap<Integer,String>();
+        m.put(1, "a");
+        final SnapTreeValueIndexedMap<Integer,String> copy = m.clone();
+        m.put(1, "b");
+        copy.put(2, "a");
+        assertEquals(Arrays.asList(1), m.keysForValue("b"));
+        assertFalse(m.containsValue("a"));
+        assertEquals(Arrays.asList(1, 2), copy.keysForValue("a"));
+        assertFalse(copy.containsValue("b"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testSerialization() throws Exception {
+        final SnapTreeValueIndexedMap<Integer,String> m = new SnapTreeValueIndexedMap<Integer,String>();
+        for (int i = 0; i < 100; ++i) {
+            m.put(i, "v" + (i % 7));
+        }
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(buf);
+        out.writeObject(m);
+        out.close();
+        final SnapTreeValueIndexedMap<Integer,String> m2 = (SnapTreeValueIndexedMap<Integer,String>)
+                new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray())).readObject();
+        assertEquals(m, m2);
+        assertEquals(m.keysForValue("v3"), m2.keysForValue("v3"));
+        assertEquals(15, m2.keysForValue("v0").size());
+    }
+
+    /** Each thread owns a disjoint set of keys, and checks that its own keys
+     *  are always found for the value it last wrote.
+     */
+    public void testParallel() {
+        final SnapTreeValueIndexedMap<Integer,Integer> m = new SnapTreeValueIndexedMap<Integer,Integer>();
+        final int numThreads = 4;
+        ParUtil.parallel(numThreads, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                final Map<Integer,Integer> mine = new TreeMap<Integer,Integer>();
+                for (int i = 0; i < 20000; ++i) {
+                    final int k = rand.nextInt(100) * numThreads + index;
+                    final int v = rand.nextInt(10);
+                    if (rand.nextInt(4) == 0) {
+                        m.remove(k);
+                        mine.remove(k);
+                    } else {
+                        m.put(k, v);
+                        mine.put(k, v);
+                    }
+                    if ((i % 16) == 0) {
+                        final List<Integer> found = new ArrayList<Integer>();
+                        for (Integer key : m.keysForValue(v)) {
+                            if ((key % numThreads) == index) {
+                                found.add(key);
+                            }
+                        }
+                        assertEquals(expectedKeys(mine, v), found);
+                    }
+                    if (index == 0 && (i % 256) == 0) {
+                        m.clone();
+                    }
+                }
+            }
+        });
+        final Map<Integer,Integer> expected = new TreeMap<Integer,Integer>(m);
+        for (int v = 0; v < 10; ++v) {
+            assertEquals(expectedKeys(expected, v), m.keysForValue(v));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class SnapVectorTest extends TestCase {
+
+    public void testAppendAndGet() {
+        final SnapVector<Integer> v = new SnapVector<Integer>();
+        for (int i = 0; i < 5000; ++i) {
+            v.add(i);
+        }
+        assertEquals(5000, v.size());
+        for (int i = 0; i < 5000; ++i) {
+            assertEquals(i, (int) v.get(i));
+        }
+        try {
+            v.get(5000);
+            fail();
+        } catch (final IndexOutOfBoundsException xx) {
+            // expected
+        }
+    }
+
+    public void testAgainstArrayList() {
+        final Random rand = new Random(0);
+        final SnapVector<Integer> v = new SnapVector<Integer>();
+        final List<Integer> ref = new ArrayList<Integer>();
+        for (int op = 0; op < 20000; ++op) {
+            final int pct = rand.nextInt(100);
+            if (pct < 40 || ref.isEmpty()) {
+                v.add(op);
+                ref.add(op);
+            } else if (pct < 55) {
+                final int i = rand.nextInt(ref.size() + 1);
+                v.add(i, op);
+                ref.add(i, op);
+            } else if (pct < 80) {
+                final int i = rand.nextInt(ref.size());
+                assertEquals(ref.remove(i), v.remove(i));
+            } else if (pct < 90) {
+                final int i = rand.nextInt(ref.size());
+                assertEquals(ref.set(i, op), v.set(i, op));
+            } else {
+                assertEquals(ref.get(ref.size() - 1), v.pollLast());
+                ref.remove(ref.size() - 1);
+            }
+            assertEquals(ref.size(), v.size());
+        }
+        assertEquals(ref, v);
+    }
+
+    public void testCloneIsolation() {
+        final SnapVector<Integer> v = new SnapVector<Integer>();
+        for (int i = 0; i < 100; ++i) {
+            v.add(i);
+        }
+        final SnapVector<Integer> copy = v.clone();
+        v.set(0, -1);
+        v.remove(50);
+        copy.add(100);
+        assertEquals(-1, (int) v.get(0));
+        assertEquals(99, v.size());
+        assertEquals(0, (int) copy.get(0));
+        assertEquals(50, (int) copy.get(50));
+        assertEquals(101, copy.size());
+    }
+
+    public void testIteratorSnapshot() {
+        final SnapVector<Integer> v = new SnapVector<Integer>();
+        for (int i = 0; i < 100; ++i) {
+            v.add(i);
+        }
+        final Iterator<Integer> iter = v.iterator();
+        v.clear();
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, (int) iter.next());
+        }
+        assertFalse(iter.hasNext());
+        assertTrue(v.isEmpty());
+    }
+
+    public void testParallel() {
+        final SnapVector<Integer> v = new SnapVector<Integer>();
+        ParUtil.parallel(4, new Runnable() {
+            public void run() {
+                final Random rand = new Random();
+                for (int op = 0; op < 20000; ++op) {
+                    final int pct = rand.nextInt(100);
+                    if (pct < 50) {
+                        v.add(op);
+                    } else if (pct < 80) {
+                        v.pollLast();
+                    } else if (pct < 90) {
+                        int n = 0;
+                        for (Integer x : v) {
+                            assertNotNull(x);
+                            ++n;
+                        }
+                        assertTrue(n >= 0);
+                    } else {
+                        final SnapVector<Integer> copy = v.clone();
+                        assertEquals(copy.size(), new ArrayList<Integer>(copy).size());
+                    }
+                }
+            }
+        });
+        assertEquals(v.size(), new ArrayList<Integer>(v).size());
+    }
+}
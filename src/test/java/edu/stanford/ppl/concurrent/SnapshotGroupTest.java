@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2026 agent, unless otherwise specified.
+ * All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software in source
+ * or binary form for any purpose with or without fee is hereby granted,
+ * provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ *    3. Neither the name of Stanford University nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package edu.stanford.ppl.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SnapshotGroupTest extends TestCase {
+
+    private static final Aggregator<Integer,Integer,Integer> Sum = new Aggregator<Integer,Integer,Integer>() {
+        public Integer identity() {
+            return 0;
+        }
+
+        public Integer lift(final Integer key, final Integer value) {
+            return value;
+        }
+
+        public Integer combine(final Integer lhs, final Integer rhs) {
+            return lhs + rhs;
+        }
+    };
+
+    public void testBasic() {
+        final SnapTreeMap<Integer,String> a = new SnapTreeMap<Integer,String>();
+        final SnapTreeAggregateMap<Integer,Integer,Integer> b
+                = new SnapTreeAggregateMap<Integer,Integer,Integer>(Sum);
+        final SnapshotGroup group = new SnapshotGroup(a);
+        assertTrue(group.add(b));
+        assertFalse(group.add(a));
+        assertEquals(2, group.size());
+
+        a.put(1, "one");
+        b.put(1, 10);
+        b.put(2, 20);
+        final SnapshotGroup.Snapshot snap = group.snapshotAll();
+        assertEquals(2, snap.size());
+        a.put(2, "two");
+        b.remove(1);
+
+        final SnapTreeMap<Integer,String> a2 = snap.get(a);
+        final SnapTreeAggregateMap<Integer,Integer,Integer> b2 = snap.get(b);
+        assertEquals(1, a2.size());
+        assertEquals("one", a2.get(1));
+        assertEquals(2, b2.size());
+        assertEquals(30, (int) b2.aggregate());
+
+        // the clones are independent maps
+        a2.put(3, "three");
+        assertFalse(a.containsKey(3));
+        assertEquals(2, a.size());
+        assertEquals(1, b.size());
+
+        assertTrue(group.remove(b));
+        assertFalse(group.remove(b));
+        final SnapshotGroup.Snapshot snap2 = group.snapshotAll();
+        assertEquals(1, snap2.size());
+        assertEquals(2, snap2.get(a).size());
+        try {
+            snap2.get(b);
+            fail();
+        } catch (final IllegalArgumentException xx) {
+            // expected
+        }
+    }
+
+    public void testEmptyGroup() {
+        assertEquals(0, new SnapshotGroup().snapshotAll().size());
+    }
+
+    public void testMembershipIsByIdentity() {
+        final SnapTreeMap<Integer,String> a = new SnapTreeMap<Integer,String>();
+        final SnapTreeMap<Integer,String> b = new SnapTreeMap<Integer,String>();
+        assertEquals(a, b);
+        final SnapshotGroup group = new SnapshotGroup(a, b);
+        assertEquals(2, group.size());
+        a.put(1, "x");
+        final SnapshotGroup.Snapshot snap = group.snapshotAll();
+        assertEquals(1, snap.get(a).size());
+        assertEquals(0, snap.get(b).size());
+    }
+
+    /** Writers move tokens between two maps by inserting into the
+     *  destination before removing from the source, so at every instant each
+     *  token is present in at least one of the maps.  Cloning the maps one
+     *  at a time (destination first) can miss a token in both; a group
+     *  snapshot must not.
+     */
+    public void testTransfersAreConsistent() {
+        final int numTokens = 64;
+        final SnapTreeMap<Integer,Integer> left = new SnapTreeMap<Integer,Integer>();
+        final SnapTreeMap<Integer,Integer> right = new SnapTreeMap<Integer,Integer>();
+        for (int i = 0; i < numTokens; ++i) {
+            left.put(i, 0);
+        }
+        final SnapshotGroup group = new SnapshotGroup(right, left);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        ParUtil.parallel(4, new ParUtil.Block() {
+            public void call(final int index) {
+                if (index == 0) {
+                    for (int pass = 0; pass < 2000 && !failed.get(); ++pass) {
+                        final SnapshotGroup.Snapshot snap = group.snapshotAll();
+                        final SnapTreeMap<Integer,Integer> l = snap.get(left);
+                        final SnapTreeMap<Integer,Integer> r = snap.get(right);
+                        for (int i = 0; i < numTokens; ++i) {
+                            if (!l.containsKey(i) && !r.containsKey(i)) {
+                                failed.set(true);
+                            }
+                        }
+                    }
+                    done.set(true);
+                } else {
+                    final Random rand = new Random(index);
+                    while (!done.get()) {
+                        // each writer owns the tokens congruent to its index
+                        final int token = (rand.nextInt(numTokens) / 3) * 3 + index - 1;
+                        if (token >= numTokens) {
+                            continue;
+                        }
+                        if (left.containsKey(token)) {
+                            right.put(token, 0);
+                            left.remove(token);
+                        } else {
+                            left.put(token, 0);
+                            right.remove(token);
+                        }
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+        assertEquals(numTokens, left.size() + right.size());
+    }
+
+    /** One writer inserts each key into <code>a</code> while another
+     *  inserts it into <code>b</code> and then checks <code>a</code>.  If
+     *  the key was not yet in <code>a</code>, the insert into <code>b</code>
+     *  happened first, so no snapshot may contain the key in <code>a</code>
+     *  but not in <code>b</code>.  This fails if one map's next epoch is
+     *  activated while a mutation of the other's frozen epoch is still in
+     *  flight.
+     */
+    public void testCrossMapOrdering() {
+        final int numKeys = 5000;
+        final SnapTreeMap<Integer,Integer> a = new SnapTreeMap<Integer,Integer>();
+        final SnapTreeMap<Integer,Integer> b = new SnapTreeMap<Integer,Integer>();
+        final SnapshotGroup group = new SnapshotGroup(a, b);
+        final Set<Integer> bFirst = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+        final List<SnapshotGroup.Snapshot> snaps = new ArrayList<SnapshotGroup.Snapshot>();
+        final AtomicInteger aProgress = new AtomicInteger();
+        final AtomicInteger bProgress = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        ParUtil.parallel(3, new ParUtil.Block() {
+            public void call(final int index) {
+                if (index == 0) {
+                    while (!done.get() && snaps.size() < 1000) {
+                        snaps.add(group.snapshotAll());
+                    }
+                } else if (index == 1) {
+                    for (int i = 0; i < numKeys; ++i) {
+                        while (bProgress.get() < i) {
+                            Thread.yield();
+                        }
+                        a.put(i, i);
+                        aProgress.set(i + 1);
+                    }
+                } else {
+                    for (int i = 0; i < numKeys; ++i) {
+                        while (aProgress.get() < i) {
+                            Thread.yield();
+                        }
+                        b.put(i, i);
+                        if (!a.containsKey(i)) {
+                            bFirst.add(i);
+                        }
+                        bProgress.set(i + 1);
+                    }
+                    done.set(true);
+                }
+            }
+        });
+
+        for (SnapshotGroup.Snapshot snap : snaps) {
+            final SnapTreeMap<Integer,Integer> a2 = snap.get(a);
+            final SnapTreeMap<Integer,Integer> b2 = snap.get(b);
+            for (Integer k : bFirst) {
+                assertTrue(!a2.containsKey(k) || b2.containsKey(k));
+            }
+        }
+    }
+
+    /** Concurrent snapshots of overlapping groups must not deadlock. */
+    public void testOverlappingGroups() {
+        final SnapTreeMap<Integer,Integer>[] maps = newMaps(4);
+        final SnapshotGroup forward = new SnapshotGroup(maps[0], maps[1], maps[2], maps[3]);
+        final SnapshotGroup backward = new SnapshotGroup(maps[3], maps[2], maps[1], maps[0]);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        ParUtil.parallel(6, new ParUtil.Block() {
+            public void call(final int index) {
+                final Random rand = new Random(index);
+                for (int i = 0; i < 2000; ++i) {
+                    if (index < 2) {
+                        // each write increments every map, in order
+                        final int k = rand.nextInt(16);
+                        for (SnapTreeMap<Integer,Integer> m : maps) {
+                            synchronized (m) {
+                                final Integer v = m.get(k);
+                                m.put(k, v == null ? 1 : v + 1);
+                            }
+                        }
+                    } else {
+                        final SnapshotGroup g = (index & 1) == 0 ? forward : backward;
+                        final SnapshotGroup.Snapshot snap = g.snapshotAll();
+                        // counts must be non-increasing along the write order
+                        for (int j = 1; j < maps.length; ++j) {
+                            for (int k = 0; k < 16; ++k) {
+                                if (count(snap.get(maps[j - 1]), k) < count(snap.get(maps[j]), k)) {
+                                    failed.set(true);
+                                }
+                            }
+                        }
+                        if ((i & 63) == 0) {
+                            maps[rand.nextInt(maps.length)].clone();
+                        }
+                    }
+                }
+            }
+        });
+        assertFalse(failed.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SnapTreeMap<Integer,Integer>[] newMaps(final int n) {
+        final SnapTreeMap<Integer,Integer>[] result = new SnapTreeMap[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = new SnapTreeMap<Integer,Integer>();
+        }
+        return result;
+    }
+
+    private static int count(final SnapTreeMap<Integer,Integer> m, final int k) {
+        final Integer v = m.get(k);
+        return v == null ? 0 : v;
+    }
+}